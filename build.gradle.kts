@@ -58,6 +58,13 @@ dependencies {
     }
 }
 
+// Tunnel protocol classes shared with the proxy server and client (maven/debug-proxy-common) are compiled into the plugin
+sourceSets {
+    main {
+        java.srcDir("maven/debug-proxy-common/src/main/java")
+    }
+}
+
 // Configure IntelliJ Platform Gradle Plugin - read more: https://plugins.jetbrains.com/docs/intellij/tools-intellij-platform-gradle-plugin-extension.html
 intellijPlatform {
     pluginConfiguration {
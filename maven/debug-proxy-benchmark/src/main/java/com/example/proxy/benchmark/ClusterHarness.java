@@ -0,0 +1,309 @@
+package com.example.proxy.benchmark;
+
+import com.example.proxy.client.WebSocketDebugProxyClient;
+import com.example.proxy.server.WebSocketDebugProxyServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 多副本部署的本地验证：两个服务端副本各跑在独立进程中，共享一个基于文件的会话目录，
+ * 前面是轮询的 {@link RoundRobinBalancer}，客户端和调试器只连负载均衡器。
+ *
+ * <ol>
+ *   <li>调试器建立会话，会话登记在目录中</li>
+ *   <li>负载均衡器断开所有连接，客户端重连被分到另一个副本，该副本把客户端引导回持有会话的副本，会话恢复</li>
+ *   <li>排空持有会话的副本：它不再就绪，新会话落到另一个副本，原有会话继续工作</li>
+ *   <li>原有会话结束后，被排空的副本自行退出</li>
+ * </ol>
+ *
+ * 运行：{@code java -cp target/benchmarks.jar com.example.proxy.benchmark.ClusterHarness}，
+ * 全部通过时退出码为 0。副本日志在临时目录中，路径打印在开头。
+ */
+public class ClusterHarness {
+
+    private static final int ROUND_TRIPS = 20;
+    private static final long STARTUP_TIMEOUT_MILLIS = 15_000;
+    private static final long DRAIN_EXIT_TIMEOUT_SECONDS = 15;
+    private static final int DEBUGGER_READ_TIMEOUT_MILLIS = 30_000;
+
+    private final Path workDirectory;
+    private final Path sessionDirectory;
+    private final List<Replica> replicas = new ArrayList<>();
+
+    /**
+     * 一个服务端副本进程
+     */
+    private static class Replica {
+        final String name;
+        final int port;
+        final int metricsPort;
+        final Process process;
+
+        Replica(String name, int port, int metricsPort, Process process) {
+            this.name = name;
+            this.port = port;
+            this.metricsPort = metricsPort;
+            this.process = process;
+        }
+
+        String url() {
+            return "ws://127.0.0.1:" + port;
+        }
+
+        String httpUrl(String path) {
+            return "http://127.0.0.1:" + metricsPort + path;
+        }
+    }
+
+    private ClusterHarness() throws IOException {
+        workDirectory = Files.createTempDirectory("jdwp-proxy-cluster");
+        sessionDirectory = workDirectory.resolve("sessions");
+    }
+
+    public static void main(String[] args) throws Exception {
+        ClusterHarness harness = new ClusterHarness();
+        boolean passed;
+        try {
+            harness.run();
+            passed = true;
+        } catch (Exception | AssertionError e) {
+            System.out.println("FAIL " + e.getMessage());
+            e.printStackTrace(System.out);
+            passed = false;
+        } finally {
+            harness.destroyReplicas();
+        }
+        System.out.println(passed ? "PASS" : "FAILED, replica logs in " + harness.workDirectory);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private void run() throws Exception {
+        System.out.println("Working directory: " + workDirectory);
+        Replica a = startReplica("replica-a");
+        Replica b = startReplica("replica-b");
+        List<RoundRobinBalancer.Backend> backends = new ArrayList<>();
+        for (Replica replica : replicas) {
+            backends.add(new RoundRobinBalancer.Backend(replica.port, replica.httpUrl("/ready")));
+        }
+
+        try (FakeJdwpTarget target = new FakeJdwpTarget();
+             RoundRobinBalancer balancer = new RoundRobinBalancer(backends)) {
+            awaitReady(a);
+            awaitReady(b);
+            // 等负载均衡器的健康检查看到两个副本都已就绪
+            Thread.sleep(500);
+
+            int clientPort = freePort();
+            WebSocketDebugProxyClient client = new WebSocketDebugProxyClient(clientPort,
+                    "ws://127.0.0.1:" + balancer.getPort(), "127.0.0.1", target.getPort(), "cluster-harness");
+            Thread clientThread = new Thread(client::start, "Harness-ProxyClient");
+            clientThread.setDaemon(true);
+            clientThread.start();
+            awaitListening(clientPort);
+
+            try {
+                // 1. 建立会话
+                DebuggerConnection first = openDebugger(clientPort);
+                roundTrips(first);
+                Replica owner = ownerOfOnlySession();
+                Replica other = owner == a ? b : a;
+                check(true, "session 1 held by " + owner.name);
+
+                // 2. 断开连接，重连经另一个副本引导回 owner
+                balancer.dropAll();
+                roundTrips(first);
+                check(counter(owner, "jdwp_proxy_session_resumes_total") == 1,
+                        "session 1 resumed on " + owner.name);
+                check(counter(other, "jdwp_proxy_session_redirects_total") >= 1,
+                        other.name + " redirected the reconnect to " + owner.name);
+
+                // 3. 排空 owner：新会话去另一个副本，原有会话不受影响
+                post(owner.httpUrl("/drain"));
+                check(status(owner.httpUrl("/ready")) == 503, owner.name + " reports not ready while draining");
+                Thread.sleep(500);
+                DebuggerConnection second = openDebugger(clientPort);
+                roundTrips(second);
+                check(owners().values().stream().filter(other.url()::equals).count() == 1,
+                        "session 2 placed on " + other.name);
+                roundTrips(first);
+                check(owner.process.isAlive(), owner.name + " keeps serving session 1 while draining");
+
+                // 4. 原有会话结束后被排空的副本退出
+                first.close();
+                check(owner.process.waitFor(DRAIN_EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                        owner.name + " exited after its last session ended");
+                roundTrips(second);
+                second.close();
+            } finally {
+                client.stop();
+            }
+        }
+    }
+
+    private Replica startReplica(String name) throws IOException {
+        int port = freePort();
+        int metricsPort = freePort();
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dproxy.directory=" + sessionDirectory);
+        command.add("-Dproxy.replica.url=ws://127.0.0.1:" + port);
+        command.add("-Dproxy.metrics.port=" + metricsPort);
+        command.add("-Dproxy.drain.timeout=60");
+        command.add(WebSocketDebugProxyServer.class.getName());
+        command.add(String.valueOf(port));
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(workDirectory.resolve(name + ".log").toFile())
+                .start();
+        Replica replica = new Replica(name, port, metricsPort, process);
+        replicas.add(replica);
+        return replica;
+    }
+
+    private void destroyReplicas() {
+        for (Replica replica : replicas) {
+            replica.process.destroy();
+        }
+    }
+
+    private static DebuggerConnection openDebugger(int clientPort) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), clientPort);
+        socket.setSoTimeout(DEBUGGER_READ_TIMEOUT_MILLIS);
+        return new DebuggerConnection(socket);
+    }
+
+    private static void roundTrips(DebuggerConnection debugger) throws IOException {
+        for (int i = 0; i < ROUND_TRIPS; i++) {
+            debugger.version();
+        }
+    }
+
+    /**
+     * 会话目录中的 “会话 ID -> 副本地址”，与 FileSessionDirectory 的文件格式一致
+     */
+    private Map<String, String> owners() throws IOException {
+        Map<String, String> owners = new HashMap<>();
+        try (Stream<Path> files = Files.list(sessionDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith(".")) {
+                    owners.put(name, new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return owners;
+    }
+
+    private Replica ownerOfOnlySession() throws IOException {
+        Map<String, String> owners = owners();
+        check(owners.size() == 1, "one session registered in the directory (found " + owners.size() + ")");
+        String url = owners.values().iterator().next();
+        for (Replica replica : replicas) {
+            if (replica.url().equals(url)) {
+                return replica;
+            }
+        }
+        throw new AssertionError("Unknown owner " + url);
+    }
+
+    private static long counter(Replica replica, String name) throws IOException {
+        for (String line : get(replica.httpUrl("/metrics")).split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+            }
+        }
+        throw new AssertionError(replica.name + " has no metric " + name);
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new AssertionError(description);
+        }
+        System.out.println("OK   " + description);
+    }
+
+    private static void awaitReady(Replica replica) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (status(replica.httpUrl("/ready")) != 200) {
+            if (!replica.process.isAlive() || System.currentTimeMillis() > deadline) {
+                throw new IOException(replica.name + " did not become ready");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static int status(String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                return connection.getResponseCode();
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static String get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void post(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        try {
+            if (connection.getResponseCode() != 202) {
+                throw new IOException("POST " + url + " returned " + connection.getResponseCode());
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Port " + port + " did not open within " + STARTUP_TIMEOUT_MILLIS + " ms", e);
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.proxy.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 扮演 IDE 的 JDWP 连接：发命令包，同步等待对应的回复包
+ */
+public class DebuggerConnection implements Closeable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final ByteBuffer command = ByteBuffer.allocate(FakeJdwpTarget.HEADER_LENGTH + 4);
+    private byte[] reply = new byte[64 * 1024];
+    private int nextId;
+
+    DebuggerConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.out = socket.getOutputStream();
+
+        out.write(FakeJdwpTarget.HANDSHAKE);
+        out.flush();
+        byte[] handshake = new byte[FakeJdwpTarget.HANDSHAKE.length];
+        in.readFully(handshake);
+        if (!Arrays.equals(handshake, FakeJdwpTarget.HANDSHAKE)) {
+            throw new IOException("Unexpected handshake reply");
+        }
+    }
+
+    /**
+     * VirtualMachine.Version：小命令、小回复
+     * @return 回复包的字节数
+     */
+    public int version() throws IOException {
+        return roundTrip(FakeJdwpTarget.VERSION_COMMAND, -1);
+    }
+
+    /**
+     * AllClassesWithGeneric：小命令、大回复
+     * @param replyBody 目标返回的回复体字节数
+     * @return 回复包的字节数
+     */
+    public int allClasses(int replyBody) throws IOException {
+        return roundTrip(FakeJdwpTarget.ALL_CLASSES_WITH_GENERIC_COMMAND, replyBody);
+    }
+
+    private int roundTrip(int commandId, int argument) throws IOException {
+        int id = ++nextId;
+        command.clear();
+        command.putInt(0);
+        command.putInt(id);
+        command.put((byte) 0);
+        command.put((byte) FakeJdwpTarget.VM_COMMAND_SET);
+        command.put((byte) commandId);
+        if (argument >= 0) {
+            command.putInt(argument);
+        }
+        command.putInt(0, command.position());
+        out.write(command.array(), 0, command.position());
+        out.flush();
+
+        int length = in.readInt();
+        int replyId = in.readInt();
+        byte flags = in.readByte();
+        in.readShort();
+        if (replyId != id || flags != FakeJdwpTarget.REPLY_FLAG) {
+            throw new IOException("Unexpected reply id=" + replyId + " flags=" + flags + ", expected id=" + id);
+        }
+        int bodyLength = length - FakeJdwpTarget.HEADER_LENGTH;
+        if (bodyLength > reply.length) {
+            reply = new byte[bodyLength];
+        }
+        in.readFully(reply, 0, bodyLength);
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
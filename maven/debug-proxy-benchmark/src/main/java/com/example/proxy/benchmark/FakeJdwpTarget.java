@@ -0,0 +1,156 @@
+package com.example.proxy.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 假的 JDWP 目标 JVM
+ *
+ * 回显 JDWP-Handshake，然后对每个命令包返回一个回复包：
+ * AllClassesWithGeneric 返回指定字节数的类列表（大小由命令数据里的 int 指定），
+ * 其他命令返回一个很小的回复。只监听 loopback。
+ */
+public class FakeJdwpTarget implements Closeable {
+
+    public static final byte[] HANDSHAKE = "JDWP-Handshake".getBytes(StandardCharsets.US_ASCII);
+    public static final int HEADER_LENGTH = 11;
+    public static final byte REPLY_FLAG = (byte) 0x80;
+
+    // VirtualMachine.Version / VirtualMachine.AllClassesWithGeneric
+    public static final int VM_COMMAND_SET = 1;
+    public static final int VERSION_COMMAND = 1;
+    public static final int ALL_CLASSES_WITH_GENERIC_COMMAND = 20;
+
+    private static final byte[] SMALL_REPLY = buildSmallReply();
+    // 负载测试中会话成批建立，代理服务端同时连过来
+    private static final int BACKLOG = 1024;
+
+    private final ServerSocket serverSocket;
+    private volatile byte[] classListTemplate = new byte[0];
+
+    public FakeJdwpTarget() throws IOException {
+        this.serverSocket = new ServerSocket(0, BACKLOG, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "FakeJdwpTarget-Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread handler = new Thread(() -> serve(socket), "FakeJdwpTarget-" + socket.getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                // 关闭时退出
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+
+            byte[] handshake = new byte[HANDSHAKE.length];
+            in.readFully(handshake);
+            if (!Arrays.equals(handshake, HANDSHAKE)) {
+                return;
+            }
+            out.write(HANDSHAKE);
+            out.flush();
+
+            byte[] data = new byte[256];
+            while (true) {
+                int length = in.readInt();
+                int id = in.readInt();
+                in.readByte();
+                int commandSet = in.readUnsignedByte();
+                int command = in.readUnsignedByte();
+                int dataLength = length - HEADER_LENGTH;
+                if (dataLength > data.length) {
+                    data = new byte[dataLength];
+                }
+                in.readFully(data, 0, dataLength);
+
+                if (commandSet == VM_COMMAND_SET && command == ALL_CLASSES_WITH_GENERIC_COMMAND) {
+                    int size = ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16) | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+                    writeReply(out, id, classList(size));
+                } else {
+                    writeReply(out, id, SMALL_REPLY);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 调试器断开
+        }
+    }
+
+    private static void writeReply(DataOutputStream out, int id, byte[] body) throws IOException {
+        out.writeInt(HEADER_LENGTH + body.length);
+        out.writeInt(id);
+        out.writeByte(REPLY_FLAG);
+        out.writeShort(0);
+        out.write(body);
+    }
+
+    /**
+     * 类列表回复：内容和真实的 AllClassesWithGeneric 相似（大量重复的包名前缀），压缩率才有参考意义
+     */
+    private byte[] classList(int size) throws IOException {
+        byte[] template = classListTemplate;
+        if (template.length != size) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            for (int i = 0; bytes.size() < size; i++) {
+                String signature = "Lcom/example/service/module" + (i % 37) + "/internal/Class" + i + "Handler;";
+                byte[] utf8 = signature.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(1);
+                out.writeLong(0x10000L + i);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+                out.writeInt(0);
+                out.writeInt(7);
+            }
+            template = Arrays.copyOf(bytes.toByteArray(), size);
+            classListTemplate = template;
+        }
+        return template;
+    }
+
+    private static byte[] buildSmallReply() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            byte[] description = "Fake JDWP target".getBytes(StandardCharsets.UTF_8);
+            out.writeInt(description.length);
+            out.write(description);
+            out.writeInt(17);
+            out.writeInt(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
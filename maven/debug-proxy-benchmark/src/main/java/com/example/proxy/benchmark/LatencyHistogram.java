@@ -0,0 +1,91 @@
+package com.example.proxy.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的延迟直方图，单位微秒，供大量会话线程同时记录
+ *
+ * 按 2 的幂分段，每段再分 {@value #SUB_BUCKETS} 个等宽的桶：小于 {@value #SUB_BUCKETS} µs 时精确，
+ * 更大的值相对误差不超过 1/{@value #SUB_BUCKETS}。桶数固定，记录只是一次原子累加，不随样本数增长。
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // long 的每个二进制位一段
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos))));
+    }
+
+    /**
+     * 取出到目前为止的样本并清零，记录可以同时进行
+     */
+    public Snapshot drain() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.getAndSet(i, 0);
+        }
+        return new Snapshot(snapshot);
+    }
+
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * 某一时段的样本
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            this.total = sum;
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * @param quantile 0 到 1 之间，例如 0.999
+         * @return 该分位数所在桶的上界（微秒），没有样本时返回 0
+         */
+        public long percentile(double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i + 1 < counts.length ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.example.proxy.benchmark;
+
+import com.example.proxy.client.WebSocketDebugProxyClient;
+import com.example.proxy.server.WebSocketDebugProxyServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 代理服务端的容量测试：逐级增加并发调试会话，每一级统计吞吐、延迟分位数和服务端的堆、线程数
+ *
+ * <pre>
+ * 会话线程 (DebuggerConnection) -> WebSocketDebugProxyClient -> WebSocketDebugProxyServer（独立进程） -> FakeJdwpTarget
+ * </pre>
+ *
+ * 每个会话循环执行同一段脚本（{@link Script}），不需要真实的 JVM。服务端跑在独立进程中，
+ * 堆和线程数只算服务端自己的，从它的 /metrics 读取；客户端和假目标在本进程中。
+ * 已建立的会话在升级时继续运行，每一级先预热再计时。
+ *
+ * 运行：{@code java -Dload.sessions=10,100,1000 -cp target/benchmarks.jar com.example.proxy.benchmark.LoadGenerator}
+ *
+ * <ul>
+ *   <li>{@code load.sessions}：逐级的并发会话数，默认 {@value #DEFAULT_LEVELS}</li>
+ *   <li>{@code load.duration} / {@code load.warmup}：每一级计时和预热的秒数</li>
+ *   <li>{@code load.script}：会话脚本，默认 {@value #DEFAULT_SCRIPT}</li>
+ *   <li>{@code load.mux}：客户端使用多路复用连接</li>
+ *   <li>{@code load.serverOpts}：服务端进程的 JVM 参数，空格分隔，例如 {@code -Xmx512m -Dproxy.threads=virtual}</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    private static final String DEFAULT_LEVELS = "10,100,500,1000";
+    private static final String DEFAULT_SCRIPT = "version,version,version,classes:16384,sleep:50";
+    private static final long DEFAULT_DURATION_SECONDS = 10;
+    private static final long DEFAULT_WARMUP_SECONDS = 2;
+    private static final long STARTUP_TIMEOUT_MILLIS = 15_000;
+    private static final long ESTABLISH_TIMEOUT_MILLIS = 60_000;
+    private static final int DEBUGGER_READ_TIMEOUT_MILLIS = 30_000;
+    private static final int MAX_LOGGED_ERRORS = 5;
+
+    private final Script script;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger established = new AtomicInteger();
+    private int sessions;
+    private int clientPort;
+
+    private LoadGenerator(Script script) {
+        this.script = script;
+    }
+
+    /**
+     * 会话脚本：逗号分隔的步骤，循环执行
+     * <ul>
+     *   <li>{@code version}：VirtualMachine.Version，小命令、小回复</li>
+     *   <li>{@code classes:<字节数>}：AllClassesWithGeneric，回复体为指定大小</li>
+     *   <li>{@code sleep:<毫秒>}：模拟调试器的思考时间，不计入延迟</li>
+     * </ul>
+     */
+    static class Script {
+        private final List<String> names = new ArrayList<>();
+        private final List<Integer> arguments = new ArrayList<>();
+
+        static Script parse(String text) {
+            Script script = new Script();
+            for (String step : text.split(",")) {
+                String[] parts = step.trim().split(":", 2);
+                String name = parts[0];
+                int argument = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : -1;
+                if (!name.equals("version") && !(argument >= 0 && (name.equals("classes") || name.equals("sleep")))) {
+                    throw new IllegalArgumentException("Invalid script step: " + step);
+                }
+                script.names.add(name);
+                script.arguments.add(argument);
+            }
+            return script;
+        }
+
+        /**
+         * 执行一遍，每个命令的往返时间记入 latencies
+         */
+        void run(DebuggerConnection debugger, LatencyHistogram latencies) throws IOException, InterruptedException {
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                if (name.equals("sleep")) {
+                    Thread.sleep(arguments.get(i));
+                    continue;
+                }
+                long start = System.nanoTime();
+                if (name.equals("version")) {
+                    debugger.version();
+                } else {
+                    debugger.allClasses(arguments.get(i));
+                }
+                latencies.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // 每个会话的连接日志会淹没结果，也会拖慢测量
+        if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        }
+        int[] levels = parseLevels(System.getProperty("load.sessions", DEFAULT_LEVELS));
+        long durationSeconds = Long.getLong("load.duration", DEFAULT_DURATION_SECONDS);
+        long warmupSeconds = Long.getLong("load.warmup", DEFAULT_WARMUP_SECONDS);
+        Script script = Script.parse(System.getProperty("load.script", DEFAULT_SCRIPT));
+        boolean multiplexed = Boolean.getBoolean("load.mux");
+        String serverOpts = System.getProperty("load.serverOpts", "").trim();
+
+        Path workDirectory = Files.createTempDirectory("jdwp-proxy-load");
+        int serverPort = freePort();
+        int metricsPort = freePort();
+        Process server = startServer(serverPort, metricsPort, serverOpts, workDirectory.resolve("server.log"));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroy, "Load-StopServer"));
+        LoadGenerator generator = new LoadGenerator(script);
+        try (FakeJdwpTarget target = new FakeJdwpTarget()) {
+            awaitListening(serverPort, server);
+            String metricsUrl = "http://127.0.0.1:" + metricsPort + "/metrics";
+
+            generator.clientPort = freePort();
+            WebSocketDebugProxyClient client = new WebSocketDebugProxyClient(generator.clientPort,
+                    "ws://127.0.0.1:" + serverPort, "127.0.0.1", target.getPort(), "load-generator");
+            client.setMultiplexed(multiplexed);
+            Thread clientThread = new Thread(client::start, "Load-ProxyClient");
+            clientThread.setDaemon(true);
+            clientThread.start();
+            awaitListening(generator.clientPort, server);
+
+            System.out.println("Server log: " + workDirectory.resolve("server.log"));
+            System.out.printf(Locale.ROOT, "Script: %s, %s, %d s warmup + %d s per level, server options: %s%n",
+                    System.getProperty("load.script", DEFAULT_SCRIPT), multiplexed ? "multiplexed" : "one connection per session",
+                    warmupSeconds, durationSeconds, serverOpts.isEmpty() ? "(none)" : serverOpts);
+            System.out.printf(Locale.ROOT, "%9s %10s %9s %9s %9s %9s %8s %10s %8s%n", "sessions", "ops/s",
+                    "p50 ms", "p99 ms", "p99.9 ms", "ramp s", "errors", "heap MB", "threads");
+            for (int level : levels) {
+                generator.runLevel(level, warmupSeconds, durationSeconds, metricsUrl, server);
+            }
+        }
+        // 不逐个关闭会话：上千个会话同时断开只会产生一串无关的错误日志
+        System.exit(0);
+    }
+
+    /**
+     * 把会话数增加到 level，预热后计时
+     */
+    private void runLevel(int level, long warmupSeconds, long durationSeconds, String metricsUrl, Process server)
+            throws IOException, InterruptedException {
+        long rampStart = System.nanoTime();
+        while (sessions < level) {
+            openSession();
+        }
+        long deadline = System.currentTimeMillis() + ESTABLISH_TIMEOUT_MILLIS;
+        while (established.get() + errors.intValue() < level && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        double rampSeconds = (System.nanoTime() - rampStart) / 1e9;
+        if (!server.isAlive()) {
+            throw new IOException("Server exited with " + server.exitValue());
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        latencies.drain();
+        long errorsBefore = errors.sum();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        LatencyHistogram.Snapshot snapshot = latencies.drain();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        String metrics = get(metricsUrl);
+        System.out.printf(Locale.ROOT, "%9d %10.0f %9.2f %9.2f %9.2f %9.1f %8d %10.1f %8d%n", level,
+                snapshot.getCount() / elapsed, snapshot.percentile(0.5) / 1000.0, snapshot.percentile(0.99) / 1000.0,
+                snapshot.percentile(0.999) / 1000.0, rampSeconds, errors.sum() - errorsBefore,
+                metric(metrics, "jdwp_proxy_heap_used_bytes") / (1024.0 * 1024), (long) metric(metrics, "jdwp_proxy_threads"));
+    }
+
+    /**
+     * 依次建立会话：调试器的握手由客户端在本地回答，隧道在第一个命令时才需要就绪
+     */
+    private void openSession() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), clientPort);
+        socket.setSoTimeout(DEBUGGER_READ_TIMEOUT_MILLIS);
+        DebuggerConnection debugger = new DebuggerConnection(socket);
+        Thread thread = new Thread(() -> runSession(debugger), "Load-Session-" + ++sessions);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runSession(DebuggerConnection debugger) {
+        try {
+            script.run(debugger, latencies);
+            established.incrementAndGet();
+            while (true) {
+                script.run(debugger, latencies);
+            }
+        } catch (IOException e) {
+            if (errors.sum() < MAX_LOGGED_ERRORS) {
+                System.out.println("Session failed: " + e.getMessage());
+            }
+            errors.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int[] parseLevels(String text) {
+        String[] parts = text.split(",");
+        int[] levels = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            levels[i] = Integer.parseInt(parts[i].trim());
+            if (levels[i] <= 0 || i > 0 && levels[i] < levels[i - 1]) {
+                throw new IllegalArgumentException("Session levels must be positive and increasing: " + text);
+            }
+        }
+        return levels;
+    }
+
+    private static Process startServer(int port, int metricsPort, String serverOpts, Path log) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dorg.slf4j.simpleLogger.defaultLogLevel=warn");
+        command.add("-Dproxy.metrics.port=" + metricsPort);
+        if (!serverOpts.isEmpty()) {
+            for (String option : serverOpts.split("\\s+")) {
+                command.add(option);
+            }
+        }
+        command.add(WebSocketDebugProxyServer.class.getName());
+        command.add(String.valueOf(port));
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+    }
+
+    /**
+     * 指标文本中没有标签的样本值
+     */
+    private static double metric(String metrics, String name) {
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return Double.parseDouble(line.substring(name.length() + 1).trim());
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static String get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port, Process server) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Port " + port + " did not open within " + STARTUP_TIMEOUT_MILLIS + " ms", e);
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.proxy.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 回环地址上的 TCP 负载均衡器，模拟 Kubernetes Service 前的四层转发
+ *
+ * 新连接按轮询分给就绪的后端；后台定时请求每个后端的 /ready，返回 200 才算就绪（与就绪探针相同）。
+ * {@link #dropAll()} 断开所有正在转发的连接，模拟负载均衡或网络设备回收连接。
+ */
+public class RoundRobinBalancer implements Closeable {
+
+    private static final long HEALTH_CHECK_MILLIS = 200;
+
+    private final ServerSocket serverSocket;
+    private final List<Backend> backends = new ArrayList<>();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private int next;
+
+    /**
+     * 一个后端：转发端口和就绪检查地址
+     */
+    public static class Backend {
+        private final int port;
+        private final String readyUrl;
+        private volatile boolean ready;
+
+        public Backend(int port, String readyUrl) {
+            this.port = port;
+            this.readyUrl = readyUrl;
+        }
+
+        public int getPort() {
+            return port;
+        }
+    }
+
+    public RoundRobinBalancer(List<Backend> backends) throws IOException {
+        this.backends.addAll(backends);
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startDaemon("Balancer-HealthCheck", this::healthCheckLoop);
+        startDaemon("Balancer-Acceptor", this::acceptLoop);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * 断开所有正在转发的连接，两端都会看到连接异常关闭
+     */
+    public void dropAll() {
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void healthCheckLoop() {
+        while (!serverSocket.isClosed()) {
+            for (Backend backend : backends) {
+                backend.ready = isReady(backend.readyUrl);
+            }
+            try {
+                Thread.sleep(HEALTH_CHECK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static boolean isReady(String readyUrl) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(readyUrl).openConnection();
+            connection.setConnectTimeout(500);
+            connection.setReadTimeout(500);
+            try {
+                return connection.getResponseCode() == 200;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private synchronized Backend nextReadyBackend() {
+        for (int i = 0; i < backends.size(); i++) {
+            Backend backend = backends.get(next);
+            next = (next + 1) % backends.size();
+            if (backend.ready) {
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Backend backend = nextReadyBackend();
+            if (backend == null) {
+                closeQuietly(client);
+                continue;
+            }
+            try {
+                Socket upstream = new Socket(InetAddress.getLoopbackAddress(), backend.port);
+                sockets.add(client);
+                sockets.add(upstream);
+                startDaemon("Balancer-Up-" + client.getPort(), () -> pipe(client, upstream));
+                startDaemon("Balancer-Down-" + client.getPort(), () -> pipe(upstream, client));
+            } catch (IOException e) {
+                closeQuietly(client);
+            }
+        }
+    }
+
+    private void pipe(Socket from, Socket to) {
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream in = from.getInputStream()) {
+            OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // 任一端断开
+        } finally {
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        dropAll();
+    }
+}
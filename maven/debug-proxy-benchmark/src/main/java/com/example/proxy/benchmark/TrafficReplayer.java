@@ -0,0 +1,597 @@
+package com.example.proxy.benchmark;
+
+import com.example.proxy.client.WebSocketDebugProxyClient;
+import com.example.proxy.common.TrafficRecorder;
+import com.example.proxy.server.WebSocketDebugProxyServer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 回放 {@link TrafficRecorder} 记录的 JDWP 流量，在本地重现线上的调试会话
+ *
+ * <pre>
+ * 调试器一侧 -> WebSocketDebugProxyClient -> WebSocketDebugProxyServer -> 目标一侧
+ * </pre>
+ *
+ * 每个记录的会话两端各由回放线程扮演：调试器一侧按记录的顺序发出命令，目标一侧按命令 ID 给出记录的回复，
+ * 并按顺序发出记录的事件。一个包只在记录中排在它之前的对方的包都已到达后才发出，保持命令、回复和事件的因果顺序；
+ * 原速回放时还要等到记录的时间点（目标处理慢、调试器停顿都照原样重现），全速回放时不等，只受因果顺序和隧道本身的限制。
+ * 服务端和客户端（插件、Maven 版）的记录都可以回放：服务端的记录不含客户端本地缓存回答的请求，客户端的记录包括。
+ *
+ * 运行：{@code java -Dreplay.speed=0 -cp target/benchmarks.jar com.example.proxy.benchmark.TrafficReplayer <记录文件>}
+ *
+ * <ul>
+ *   <li>{@code replay.speed}：1 按原速（默认），2 两倍速，0 全速</li>
+ *   <li>{@code replay.mux}：客户端使用多路复用连接</li>
+ *   <li>{@code replay.server}：回放到已经运行的服务端（例如带性能分析参数启动的），默认在本进程中启动；
+ *       目标一侧只监听 loopback，服务端须在同一台机器上</li>
+ *   <li>{@code replay.timeout}：等待对方数据的最长秒数，超过时记为停顿并继续回放，默认 {@value #DEFAULT_TIMEOUT_SECONDS}</li>
+ * </ul>
+ */
+public class TrafficReplayer {
+
+    private static final long DEFAULT_TIMEOUT_SECONDS = 30;
+    // 代理私有的命令集（预取推送、计时包），不属于调试器与目标之间的流量
+    private static final int PROXY_COMMAND_SET = 0xC8;
+    // JDWP 错误码 NOT_IMPLEMENTED：记录中没有对应回复的命令
+    private static final short NOT_IMPLEMENTED = 99;
+
+    private final double speed;
+    private final long timeoutNanos;
+    // 所有会话的命令延迟
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private TrafficReplayer(double speed, long timeoutSeconds) {
+        this.speed = speed;
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: java [-Dreplay.speed=1|0] TrafficReplayer <recording>");
+            System.exit(1);
+        }
+        if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        }
+        double speed = Double.parseDouble(System.getProperty("replay.speed", "1"));
+        if (speed < 0) {
+            throw new IllegalArgumentException("replay.speed must not be negative");
+        }
+        boolean multiplexed = Boolean.getBoolean("replay.mux");
+        String serverUrl = System.getProperty("replay.server");
+        long timeoutSeconds = Long.getLong("replay.timeout", DEFAULT_TIMEOUT_SECONDS);
+
+        Path file = Paths.get(args[0]);
+        long startMillis;
+        List<RecordedSession> sessions;
+        try (TrafficRecorder.Reader reader = new TrafficRecorder.Reader(file)) {
+            startMillis = reader.getStartMillis();
+            sessions = load(reader);
+        }
+        System.out.printf(Locale.ROOT, "%s: recorded %s, %d sessions, replaying at %s%n", file,
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(startMillis)), sessions.size(),
+                speed == 0 ? "full speed" : speed + "x");
+        if (sessions.isEmpty()) {
+            System.exit(0);
+        }
+
+        WebSocketDebugProxyServer server = null;
+        if (serverUrl == null || serverUrl.isEmpty()) {
+            int serverPort = Tunnel.freePort();
+            server = new WebSocketDebugProxyServer(serverPort);
+            server.setReuseAddr(true);
+            server.start();
+            Tunnel.awaitListening(serverPort);
+            serverUrl = "ws://127.0.0.1:" + serverPort;
+        }
+
+        TrafficReplayer replayer = new TrafficReplayer(speed, timeoutSeconds);
+        List<SessionReplay> replays = new ArrayList<>();
+        for (RecordedSession session : sessions) {
+            replays.add(replayer.new SessionReplay(session, serverUrl, multiplexed));
+        }
+        long startNanos = System.nanoTime();
+        long firstMicros = sessions.get(0).openMicros;
+        List<Thread> threads = new ArrayList<>();
+        for (SessionReplay replay : replays) {
+            Thread thread = new Thread(() -> replay.run(startNanos, firstMicros), "Replay-Debugger-" + replay.session.index);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        replayer.report(replays);
+        for (SessionReplay replay : replays) {
+            replay.close();
+        }
+        if (server != null) {
+            server.stop(1000);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 读出全部记录，按会话拆成完整的 JDWP 包，计算每个包的因果前提
+     */
+    static List<RecordedSession> load(TrafficRecorder.Reader reader) throws IOException {
+        Map<Integer, RecordedSession> sessions = new LinkedHashMap<>();
+        TrafficRecorder.Entry entry;
+        while ((entry = reader.next()) != null) {
+            long timeMicros = entry.getTimeMicros();
+            RecordedSession session = sessions.computeIfAbsent(entry.getSession(),
+                    index -> new RecordedSession(index, timeMicros));
+            switch (entry.getType()) {
+                case TrafficRecorder.OPEN:
+                    String[] info = new String(entry.getData(), StandardCharsets.UTF_8).split("\n", 2);
+                    session.target = info.length > 1 ? info[1] : "";
+                    break;
+                case TrafficRecorder.TO_TARGET:
+                    session.add(true, entry.getTimeMicros(), session.toTarget.append(entry.getData()));
+                    break;
+                case TrafficRecorder.TO_CLIENT:
+                    session.add(false, entry.getTimeMicros(), session.toClient.append(entry.getData()));
+                    break;
+                default:
+                    break;
+            }
+        }
+        List<RecordedSession> result = new ArrayList<>();
+        for (RecordedSession session : sessions.values()) {
+            // 预先建立但没有用过的隧道
+            if (!session.packets.isEmpty()) {
+                result.add(session);
+            }
+        }
+        return result;
+    }
+
+    private void report(List<SessionReplay> replays) {
+        System.out.printf(Locale.ROOT, "%8s %-28s %9s %8s %11s %11s %14s %14s %7s%n", "session", "target", "commands",
+                "events", "recorded s", "replayed s", "rec p50/p99", "rep p50/p99", "stalls");
+        LatencyHistogram recordedTotal = new LatencyHistogram();
+        long stalls = 0;
+        long unmatched = 0;
+        for (SessionReplay replay : replays) {
+            RecordedSession session = replay.session;
+            session.recordLatencies(recordedTotal);
+            LatencyHistogram recorded = new LatencyHistogram();
+            session.recordLatencies(recorded);
+            System.out.printf(Locale.ROOT, "%8d %-28.28s %9d %8d %11.2f %11.2f %14s %14s %7d%s%n",
+                    session.index, session.target, session.commands(), session.events(),
+                    session.durationMicros() / 1e6, replay.durationNanos / 1e9,
+                    percentiles(recorded.drain()), percentiles(replay.latencies.drain()),
+                    replay.stalls, replay.error != null ? "  " + replay.error : "");
+            stalls += replay.stalls;
+            unmatched += replay.unmatched;
+        }
+        System.out.printf(Locale.ROOT, "total: recorded p50/p99/p99.9 %s, replayed %s, %d stalls, "
+                        + "%d commands without a recorded reply%n",
+                percentiles3(recordedTotal.drain()), percentiles3(latencies.drain()), stalls, unmatched);
+    }
+
+    private static String percentiles(LatencyHistogram.Snapshot snapshot) {
+        return String.format(Locale.ROOT, "%.1f/%.1f", snapshot.percentile(0.5) / 1000.0,
+                snapshot.percentile(0.99) / 1000.0);
+    }
+
+    private static String percentiles3(LatencyHistogram.Snapshot snapshot) {
+        return String.format(Locale.ROOT, "%.1f/%.1f/%.1f ms", snapshot.percentile(0.5) / 1000.0,
+                snapshot.percentile(0.99) / 1000.0, snapshot.percentile(0.999) / 1000.0);
+    }
+
+    /**
+     * 读一个完整的 JDWP 包
+     */
+    private static byte[] readPacket(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < FakeJdwpTarget.HEADER_LENGTH) {
+            throw new IOException("Invalid JDWP packet length " + length);
+        }
+        byte[] packet = new byte[length];
+        ByteBuffer.wrap(packet).putInt(length);
+        in.readFully(packet, 4, length - 4);
+        return packet;
+    }
+
+    private static int packetId(byte[] packet) {
+        return ByteBuffer.wrap(packet).getInt(4);
+    }
+
+    private static boolean isReply(byte[] packet) {
+        return packet[8] == FakeJdwpTarget.REPLY_FLAG;
+    }
+
+    /**
+     * 记录中的一个 JDWP 包
+     */
+    static final class Packet {
+        final boolean toTarget;
+        final long timeMicros;
+        final byte[] data;
+        final int id;
+        final boolean reply;
+        // 记录中排在它之前的对方的包数：这些包都到达后才能发出
+        final int gate;
+
+        Packet(boolean toTarget, long timeMicros, byte[] data, int gate) {
+            this.toTarget = toTarget;
+            this.timeMicros = timeMicros;
+            this.data = data;
+            this.id = packetId(data);
+            this.reply = isReply(data);
+            this.gate = gate;
+        }
+    }
+
+    /**
+     * 一个方向的字节流：记录的是原样转发的数据，按包长度重新切分，去掉开头的握手串
+     */
+    static final class PacketStream {
+        private byte[] buffer = new byte[0];
+        private int length;
+        private boolean started;
+
+        List<byte[]> append(byte[] chunk) {
+            if (length + chunk.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + chunk.length));
+            }
+            System.arraycopy(chunk, 0, buffer, length, chunk.length);
+            length += chunk.length;
+            int start = 0;
+            if (!started) {
+                int prefix = Math.min(length, FakeJdwpTarget.HANDSHAKE.length);
+                boolean handshake = Arrays.equals(buffer, 0, prefix, FakeJdwpTarget.HANDSHAKE, 0, prefix);
+                if (handshake && prefix < FakeJdwpTarget.HANDSHAKE.length) {
+                    return new ArrayList<>();
+                }
+                started = true;
+                if (handshake) {
+                    start = FakeJdwpTarget.HANDSHAKE.length;
+                }
+            }
+            List<byte[]> packets = new ArrayList<>();
+            while (length - start >= 4) {
+                int packetLength = ByteBuffer.wrap(buffer, start, 4).getInt();
+                if (packetLength < FakeJdwpTarget.HEADER_LENGTH || length - start < packetLength) {
+                    break;
+                }
+                packets.add(Arrays.copyOfRange(buffer, start, start + packetLength));
+                start += packetLength;
+            }
+            System.arraycopy(buffer, start, buffer, 0, length - start);
+            length -= start;
+            return packets;
+        }
+    }
+
+    /**
+     * 记录中的一个会话
+     */
+    static final class RecordedSession {
+        final int index;
+        final long openMicros;
+        String target = "";
+        final PacketStream toTarget = new PacketStream();
+        final PacketStream toClient = new PacketStream();
+        final List<Packet> packets = new ArrayList<>();
+        // 目标一侧的回复，按命令 ID
+        final Map<Integer, Packet> replies = new HashMap<>();
+        private int targetPackets;
+        private int clientPackets;
+
+        RecordedSession(int index, long openMicros) {
+            this.index = index;
+            this.openMicros = openMicros;
+        }
+
+        void add(boolean toTarget, long timeMicros, List<byte[]> data) {
+            for (byte[] bytes : data) {
+                if (!isReply(bytes) && (bytes[9] & 0xFF) == PROXY_COMMAND_SET) {
+                    continue;
+                }
+                Packet packet = new Packet(toTarget, timeMicros, bytes, toTarget ? clientPackets : targetPackets);
+                packets.add(packet);
+                if (toTarget) {
+                    targetPackets++;
+                } else {
+                    clientPackets++;
+                    if (packet.reply) {
+                        replies.put(packet.id, packet);
+                    }
+                }
+            }
+        }
+
+        int commands() {
+            return targetPackets;
+        }
+
+        int events() {
+            return clientPackets - replies.size();
+        }
+
+        long durationMicros() {
+            return packets.isEmpty() ? 0 : packets.get(packets.size() - 1).timeMicros - openMicros;
+        }
+
+        /**
+         * 记录时的命令延迟：命令与回复的时间差
+         */
+        void recordLatencies(LatencyHistogram histogram) {
+            Map<Integer, Long> sent = new HashMap<>();
+            for (Packet packet : packets) {
+                if (packet.toTarget && !packet.reply) {
+                    sent.put(packet.id, packet.timeMicros);
+                } else if (!packet.toTarget && packet.reply) {
+                    Long start = sent.remove(packet.id);
+                    if (start != null) {
+                        histogram.record(TimeUnit.MICROSECONDS.toNanos(packet.timeMicros - start));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 回放一个会话：本会话的代理客户端、扮演目标的监听端口和两端的回放线程
+     */
+    final class SessionReplay implements Closeable {
+        final RecordedSession session;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        private final ServerSocket targetSocket;
+        private final WebSocketDebugProxyClient client;
+        private final int clientPort;
+        private final Map<Integer, Long> sentNanos = new ConcurrentHashMap<>();
+        // 以下计数在 this 上同步
+        private int debuggerReceived;
+        private int targetReceived;
+        private final Set<Integer> targetCommandIds = new HashSet<>();
+        private boolean debuggerClosed;
+        private boolean targetClosed;
+        volatile long stalls;
+        volatile long unmatched;
+        volatile long durationNanos;
+        volatile String error;
+        private long baseNanos;
+        private long baseMicros;
+
+        SessionReplay(RecordedSession session, String serverUrl, boolean multiplexed) throws IOException,
+                InterruptedException {
+            this.session = session;
+            this.targetSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            this.clientPort = Tunnel.freePort();
+            this.client = new WebSocketDebugProxyClient(clientPort, serverUrl, "127.0.0.1",
+                    targetSocket.getLocalPort(), "replay-" + session.index);
+            client.setMultiplexed(multiplexed);
+            // 预取会让服务端向目标发出记录中没有的命令
+            client.setPrefetch(false);
+            Thread clientThread = new Thread(client::start, "Replay-ProxyClient-" + session.index);
+            clientThread.setDaemon(true);
+            clientThread.start();
+            Tunnel.awaitListening(clientPort);
+        }
+
+        /**
+         * 扮演调试器，返回时会话已回放完
+         * @param startNanos 回放开始的时刻，对应记录中的 firstMicros
+         */
+        void run(long startNanos, long firstMicros) {
+            baseNanos = startNanos;
+            baseMicros = firstMicros;
+            Thread target = new Thread(this::runTarget, "Replay-Target-" + session.index);
+            target.setDaemon(true);
+            target.start();
+            awaitRecordedTime(session.openMicros);
+            long start = System.nanoTime();
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), clientPort)) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                OutputStream out = socket.getOutputStream();
+                out.write(FakeJdwpTarget.HANDSHAKE);
+                out.flush();
+                byte[] handshake = new byte[FakeJdwpTarget.HANDSHAKE.length];
+                in.readFully(handshake);
+                Thread reader = new Thread(() -> readAsDebugger(in), "Replay-DebuggerReader-" + session.index);
+                reader.setDaemon(true);
+                reader.start();
+
+                int expected = 0;
+                for (Packet packet : session.packets) {
+                    if (!packet.toTarget) {
+                        expected++;
+                        continue;
+                    }
+                    if (!await(() -> debuggerReceived >= packet.gate || debuggerClosed)) {
+                        break;
+                    }
+                    awaitRecordedTime(packet.timeMicros);
+                    if (!packet.reply) {
+                        sentNanos.put(packet.id, System.nanoTime());
+                    }
+                    out.write(packet.data);
+                    out.flush();
+                }
+                int expectedReceived = expected;
+                await(() -> debuggerReceived >= expectedReceived || debuggerClosed);
+                durationNanos = System.nanoTime() - start;
+                synchronized (this) {
+                    if (debuggerReceived < expectedReceived) {
+                        error = "received " + debuggerReceived + " of " + expectedReceived + " packets";
+                    }
+                }
+            } catch (IOException e) {
+                error = e.getMessage();
+                durationNanos = System.nanoTime() - start;
+            }
+        }
+
+        private void readAsDebugger(DataInputStream in) {
+            try {
+                while (true) {
+                    byte[] packet = readPacket(in);
+                    if (isReply(packet)) {
+                        Long sent = sentNanos.remove(packetId(packet));
+                        if (sent != null) {
+                            long nanos = System.nanoTime() - sent;
+                            latencies.record(nanos);
+                            TrafficReplayer.this.latencies.record(nanos);
+                        }
+                    }
+                    synchronized (this) {
+                        debuggerReceived++;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    debuggerClosed = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * 扮演目标 JVM：回显握手，按命令 ID 回复，按记录的顺序发出事件
+         */
+        private void runTarget() {
+            try (Socket socket = targetSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                OutputStream out = socket.getOutputStream();
+                byte[] handshake = new byte[FakeJdwpTarget.HANDSHAKE.length];
+                in.readFully(handshake);
+                out.write(FakeJdwpTarget.HANDSHAKE);
+                out.flush();
+                Thread emitter = new Thread(() -> emitAsTarget(out), "Replay-TargetEmitter-" + session.index);
+                emitter.setDaemon(true);
+                emitter.start();
+                while (true) {
+                    byte[] packet = readPacket(in);
+                    if (isReply(packet)) {
+                        continue;
+                    }
+                    int id = packetId(packet);
+                    if (!session.replies.containsKey(id)) {
+                        unmatched++;
+                        writeError(out, id);
+                    }
+                    synchronized (this) {
+                        targetReceived++;
+                        targetCommandIds.add(id);
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    targetClosed = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void emitAsTarget(OutputStream out) {
+            try {
+                for (Packet packet : session.packets) {
+                    if (packet.toTarget) {
+                        continue;
+                    }
+                    boolean ready = packet.reply
+                            ? await(() -> targetCommandIds.contains(packet.id) || targetClosed)
+                            : await(() -> targetReceived >= packet.gate || targetClosed);
+                    if (!ready) {
+                        return;
+                    }
+                    awaitRecordedTime(packet.timeMicros);
+                    synchronized (out) {
+                        out.write(packet.data);
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // 会话结束
+            }
+        }
+
+        private void writeError(OutputStream out, int id) throws IOException {
+            ByteBuffer reply = ByteBuffer.allocate(FakeJdwpTarget.HEADER_LENGTH);
+            reply.putInt(FakeJdwpTarget.HEADER_LENGTH).putInt(id).put(FakeJdwpTarget.REPLY_FLAG).putShort(NOT_IMPLEMENTED);
+            synchronized (out) {
+                out.write(reply.array());
+                out.flush();
+            }
+        }
+
+        /**
+         * 等待对方的数据到达，超时记为停顿后继续
+         * @return 连接已断开时返回 false
+         */
+        private synchronized boolean await(BooleanSupplier condition) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            try {
+                while (!condition.getAsBoolean()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        stalls++;
+                        return true;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return !debuggerClosed && !targetClosed;
+        }
+
+        /**
+         * 原速回放时等到记录的时间点，全速回放时立即返回
+         */
+        private void awaitRecordedTime(long timeMicros) {
+            if (speed == 0) {
+                return;
+            }
+            long due = baseNanos + (long) (TimeUnit.MICROSECONDS.toNanos(timeMicros - baseMicros) / speed);
+            long remaining;
+            try {
+                while ((remaining = due - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            client.stop();
+            targetSocket.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.proxy.benchmark;
+
+import com.example.proxy.client.WebSocketDebugProxyClient;
+import com.example.proxy.common.TunnelDeflateExtension;
+import com.example.proxy.server.WebSocketDebugProxyServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * 进程内的完整隧道：FakeJdwpTarget <- WebSocketDebugProxyServer <- WebSocketDebugProxyClient
+ *
+ * 全部走 loopback，端口随机分配。基准测试通过 {@link #openDebugger()} 扮演 IDE。
+ */
+public class Tunnel implements Closeable {
+
+    private static final long STARTUP_TIMEOUT_MILLIS = 10_000;
+
+    private final FakeJdwpTarget target;
+    private final WebSocketDebugProxyServer server;
+    private final WebSocketDebugProxyClient client;
+    private final int clientPort;
+
+    public Tunnel(boolean multiplexed, int compressionLevel) throws IOException, InterruptedException {
+        target = new FakeJdwpTarget();
+
+        int serverPort = freePort();
+        server = new WebSocketDebugProxyServer(serverPort, TunnelDeflateExtension.createDraft(
+                compressionLevel, TunnelDeflateExtension.DEFAULT_THRESHOLD, true));
+        server.setReuseAddr(true);
+        server.start();
+        awaitListening(serverPort);
+
+        clientPort = freePort();
+        client = new WebSocketDebugProxyClient(clientPort, "ws://127.0.0.1:" + serverPort,
+                "127.0.0.1", target.getPort(), "benchmark");
+        client.setMultiplexed(multiplexed);
+        client.setCompression(compressionLevel, TunnelDeflateExtension.DEFAULT_THRESHOLD, true);
+        Thread clientThread = new Thread(client::start, "Benchmark-ProxyClient");
+        clientThread.setDaemon(true);
+        clientThread.start();
+        awaitListening(clientPort);
+    }
+
+    /**
+     * 以调试器身份连接到代理客户端，完成 JDWP 握手
+     */
+    public DebuggerConnection openDebugger() throws IOException {
+        return new DebuggerConnection(new Socket(InetAddress.getLoopbackAddress(), clientPort));
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void awaitListening(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Port " + port + " did not open within " + STARTUP_TIMEOUT_MILLIS + " ms", e);
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.stop();
+        try {
+            server.stop(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.proxy.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSocket 调试隧道的端到端基准测试
+ *
+ * 每次操作是一次完整的 JDWP 命令/回复往返：调试器 -> 代理客户端 -> WebSocket -> 代理服务端 -> 目标，再原路返回。
+ * 分配率用 -prof gc 查看：gc.alloc.rate.norm 统计的是进程内所有线程，包含两端的转发线程，即每个往返的分配字节数。
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class TunnelBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class TunnelState {
+        @Param({"false", "true"})
+        public boolean multiplexed;
+
+        @Param({"0", "6"})
+        public int compressionLevel;
+
+        Tunnel tunnel;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            tunnel = new Tunnel(multiplexed, compressionLevel);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            tunnel.close();
+        }
+    }
+
+    /**
+     * 每个基准线程一个调试会话
+     */
+    @State(Scope.Thread)
+    public static class Session {
+        DebuggerConnection debugger;
+
+        @Setup(Level.Trial)
+        public void attach(TunnelState state) throws IOException {
+            debugger = state.tunnel.openDebugger();
+        }
+
+        @TearDown(Level.Trial)
+        public void detach() throws IOException {
+            debugger.close();
+        }
+    }
+
+    /**
+     * 大回复的大小
+     */
+    @State(Scope.Benchmark)
+    public static class LargeReply {
+        @Param({"65536", "1048576"})
+        public int replySize;
+    }
+
+    /**
+     * 收到的字节数，按吞吐量折算为每秒字节数
+     *
+     * AuxCounters 状态的公共字段都会被当作计数器并在每轮清零，所以 replySize 不能放在这里。
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class ReplyBytes {
+        public long replyBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            replyBytes = 0;
+        }
+    }
+
+    /**
+     * 小命令的往返延迟（VirtualMachine.Version）
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int smallCommandRoundTrip(Session session) throws IOException {
+        return session.debugger.version();
+    }
+
+    /**
+     * 大回复的吞吐量（AllClassesWithGeneric），replyBytes 为每秒字节数
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int largeReplyThroughput(Session session, LargeReply reply, ReplyBytes counter) throws IOException {
+        int length = session.debugger.allClasses(reply.replySize);
+        counter.replyBytes += length;
+        return length;
+    }
+}
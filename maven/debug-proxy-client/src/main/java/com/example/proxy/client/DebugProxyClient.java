@@ -1,5 +1,7 @@
 package com.example.proxy.client;
 
+import com.example.proxy.common.BatchPolicy;
+
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -21,6 +23,7 @@ public class DebugProxyClient {
     private final int serverPort;
     private final Map<String, String> routingParams;
     private volatile boolean running = true;
+    private BatchPolicy batching = new BatchPolicy(BatchPolicy.DEFAULT_DELAY_MICROS, BatchPolicy.DEFAULT_IDLE_MICROS);
     
     public DebugProxyClient(int localPort, String serverHost, int serverPort) {
         this.localPort = localPort;
@@ -33,6 +36,13 @@ public class DebugProxyClient {
         routingParams.put(key, value);
     }
     
+    /**
+     * Configure write batching for both directions, see BatchPolicy
+     */
+    public void setBatching(long delayMicros, long idleMicros) {
+        this.batching = new BatchPolicy(delayMicros, idleMicros);
+    }
+    
     public static void main(String[] args) {
         args = new String[]{"127.0.01","18888","15005","my-pod","localhost","15006"};
         if (args.length < 2) {
@@ -58,6 +68,16 @@ public class DebugProxyClient {
             client.addRoutingParam("targetPort", args[5]);
         }
         
+        // -Dproxy.nio=true switches to the Selector-based engine
+        if (Boolean.getBoolean("proxy.nio")) {
+            int loops = Integer.getInteger("proxy.nio.loops", Runtime.getRuntime().availableProcessors());
+            new NioDebugProxyClient(localPort, serverHost, serverPort, client.routingParams, loops).start();
+            return;
+        }
+        
+        // -Dproxy.batch.delayMicros/idleMicros: coalesce bursts of reads into one write, 0 disables
+        client.setBatching(Long.getLong("proxy.batch.delayMicros", BatchPolicy.DEFAULT_DELAY_MICROS),
+                Long.getLong("proxy.batch.idleMicros", BatchPolicy.DEFAULT_IDLE_MICROS));
         client.start();
     }
     
@@ -66,6 +86,7 @@ public class DebugProxyClient {
         System.out.println("  Local port: " + localPort);
         System.out.println("  Server: " + serverHost + ":" + serverPort);
         System.out.println("  Routing params: " + routingParams);
+        System.out.println("  Batching: " + batching);
         
         try (ServerSocket serverSocket = new ServerSocket(localPort)) {
             System.out.println("Debug Proxy Client started successfully!");
@@ -76,7 +97,7 @@ public class DebugProxyClient {
                 System.out.println("Debugger connected from: " + debuggerSocket.getRemoteSocketAddress());
                 
                 // Handle connection in separate thread
-                Thread handler = new Thread(new ConnectionHandler(debuggerSocket, serverHost, serverPort, routingParams));
+                Thread handler = new Thread(new ConnectionHandler(debuggerSocket, serverHost, serverPort, routingParams, batching));
                 handler.setDaemon(true);
                 handler.start();
             }
@@ -94,12 +115,15 @@ public class DebugProxyClient {
         private final String serverHost;
         private final int serverPort;
         private final Map<String, String> routingParams;
+        private final BatchPolicy batching;
         
-        public ConnectionHandler(Socket debuggerSocket, String serverHost, int serverPort, Map<String, String> routingParams) {
+        public ConnectionHandler(Socket debuggerSocket, String serverHost, int serverPort, Map<String, String> routingParams,
+                                 BatchPolicy batching) {
             this.debuggerSocket = debuggerSocket;
             this.serverHost = serverHost;
             this.serverPort = serverPort;
             this.routingParams = new HashMap<>(routingParams);
+            this.batching = batching;
         }
         
         @Override
@@ -122,8 +146,8 @@ public class DebugProxyClient {
                 System.out.println("Server acknowledged connection");
                 
                 // Start bidirectional forwarding between debugger and server
-                Thread debuggerToServer = new Thread(() -> forward(debuggerSocket, serverSocket, "Debugger->Server"));
-                Thread serverToDebugger = new Thread(() -> forward(serverSocket, debuggerSocket, "Server->Debugger"));
+                Thread debuggerToServer = new Thread(() -> forward(debuggerSocket, serverSocket, "Debugger->Server", batching));
+                Thread serverToDebugger = new Thread(() -> forward(serverSocket, debuggerSocket, "Server->Debugger", batching));
                 
                 debuggerToServer.start();
                 serverToDebugger.start();
@@ -168,18 +192,30 @@ public class DebugProxyClient {
         }
         
         /**
-         * Forward data between two sockets
+         * Forward data between two sockets.
+         * While the source is producing data in bursts, reads are coalesced into one write (see BatchPolicy).
          */
-        private static void forward(Socket from, Socket to, String direction) {
+        private static void forward(Socket from, Socket to, String direction, BatchPolicy batching) {
             try (InputStream in = from.getInputStream();
                  OutputStream out = to.getOutputStream()) {
                 
+                BatchPolicy.Stream batch = batching.newStream();
                 byte[] buffer = new byte[8192];
                 int bytesRead;
                 
                 while ((bytesRead = in.read(buffer)) != -1) {
+                    int reads = 1;
+                    while (bytesRead < buffer.length && (in.available() > 0 || batch.awaitMore(in, true))) {
+                        int more = in.read(buffer, bytesRead, buffer.length - bytesRead);
+                        if (more == -1) {
+                            break;
+                        }
+                        bytesRead += more;
+                        reads++;
+                    }
                     out.write(buffer, 0, bytesRead);
                     out.flush();
+                    batch.flushed(reads);
                 }
             } catch (IOException e) {
                 // Connection closed - this is expected when debugging session ends
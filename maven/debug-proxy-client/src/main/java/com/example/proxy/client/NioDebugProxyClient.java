@@ -0,0 +1,215 @@
+package com.example.proxy.client;
+
+import com.example.proxy.common.BufferPool;
+import com.example.proxy.common.NioEventLoop;
+import com.example.proxy.common.NioRelay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Debug Proxy Client on a Selector-based event loop.
+ * Sends the same X-DEBUG-ROUTE handshake as DebugProxyClient, but all debugger connections
+ * share a small fixed set of loop threads instead of three threads per connection.
+ */
+public class NioDebugProxyClient {
+
+    private static final String ROUTING_HEADER = "X-DEBUG-ROUTE";
+    private static final int MAX_ACK_BYTES = 64 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final int localPort;
+    private final String serverHost;
+    private final int serverPort;
+    private final Map<String, String> routingParams;
+    private final int loopCount;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private NioEventLoop[] loops;
+    private int nextLoop;
+
+    public NioDebugProxyClient(int localPort, String serverHost, int serverPort,
+                               Map<String, String> routingParams, int loopCount) {
+        this.localPort = localPort;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.routingParams = new HashMap<>(routingParams);
+        this.loopCount = loopCount;
+    }
+
+    public void start() {
+        System.out.println("Debug Proxy Client (NIO, " + loopCount + " event loops) starting...");
+        System.out.println("  Local port: " + localPort);
+        System.out.println("  Server: " + serverHost + ":" + serverPort);
+        System.out.println("  Routing params: " + routingParams);
+
+        try (ServerSocketChannel localChannel = ServerSocketChannel.open()) {
+            localChannel.bind(new InetSocketAddress(localPort));
+            loops = NioEventLoop.startGroup("DebugProxyClient-Loop", loopCount);
+            System.out.println("Debug Proxy Client started successfully!");
+            System.out.println("IDEA/Debugger can now connect to localhost:" + localPort);
+
+            // Accepting stays blocking on the calling thread, like DebugProxyClient
+            while (localChannel.isOpen()) {
+                SocketChannel debuggerChannel = localChannel.accept();
+                System.out.println("Debugger connected from: " + debuggerChannel.getRemoteAddress());
+                debuggerChannel.configureBlocking(false);
+                debuggerChannel.socket().setTcpNoDelay(true);
+
+                NioEventLoop loop = loops[nextLoop++ % loops.length];
+                loop.execute(() -> {
+                    ConnectionHandler handler = new ConnectionHandler(loop, debuggerChannel);
+                    try {
+                        handler.connect();
+                    } catch (IOException e) {
+                        System.err.println("Error handling connection: " + e.getMessage());
+                        handler.close();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.err.println("Client error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (loops != null) {
+                for (NioEventLoop loop : loops) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode routing information using the custom protocol
+     */
+    private ByteBuffer encodeRoutingInfo() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeUTF(ROUTING_HEADER);
+        out.writeInt(routingParams.size());
+        for (Map.Entry<String, String> entry : routingParams.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+            System.out.println("  Sent routing param: " + entry.getKey() + " = " + entry.getValue());
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Handles one debugger connection until the server acknowledges the route, then hands it to an NioRelay
+     */
+    private class ConnectionHandler implements NioEventLoop.Handler {
+        private final NioEventLoop loop;
+        private final SocketChannel debuggerChannel;
+        private SocketChannel serverChannel;
+        private ByteBuffer routingInfo;
+        private ByteBuffer ack = ByteBuffer.allocate(64);
+        private boolean relaying;
+
+        ConnectionHandler(NioEventLoop loop, SocketChannel debuggerChannel) {
+            this.loop = loop;
+            this.debuggerChannel = debuggerChannel;
+        }
+
+        /**
+         * Start connecting to the proxy server; the debugger is not read until the route is acknowledged
+         */
+        void connect() throws IOException {
+            System.out.println("Connecting to proxy server: " + serverHost + ":" + serverPort);
+            routingInfo = encodeRoutingInfo();
+            serverChannel = SocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setTcpNoDelay(true);
+            if (serverChannel.connect(new InetSocketAddress(serverHost, serverPort))) {
+                loop.register(serverChannel, SelectionKey.OP_WRITE, this);
+            } else {
+                loop.register(serverChannel, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                serverChannel.finishConnect();
+                System.out.println("Connected to proxy server");
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isValid() && key.isWritable()) {
+                serverChannel.write(routingInfo);
+                if (!routingInfo.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+            if (key.isValid() && key.isReadable()) {
+                readAck();
+            }
+        }
+
+        private void readAck() throws IOException {
+            if (!ack.hasRemaining()) {
+                if (ack.capacity() >= MAX_ACK_BYTES) {
+                    throw new IOException("Server acknowledgment too large");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(ack.capacity() * 2, MAX_ACK_BYTES));
+                ack.flip();
+                larger.put(ack);
+                ack = larger;
+            }
+            if (serverChannel.read(ack) == -1) {
+                throw new EOFException("Server closed connection before acknowledging");
+            }
+
+            ByteArrayInputStream bytes = new ByteArrayInputStream(ack.array(), 0, ack.position());
+            String reply;
+            try {
+                reply = new DataInputStream(bytes).readUTF();
+            } catch (EOFException e) {
+                return;
+            }
+            if (!"OK".equals(reply)) {
+                throw new IOException("Server rejected connection: " + reply);
+            }
+            System.out.println("Server acknowledged connection");
+
+            int consumed = ack.position() - bytes.available();
+            ByteBuffer leftover = ByteBuffer.wrap(ack.array(), consumed, ack.position() - consumed);
+            new NioRelay("Debugger " + debuggerChannel.getRemoteAddress(), debuggerChannel, serverChannel, bufferPool)
+                    .start(loop, leftover, null);
+            relaying = true;
+        }
+
+        @Override
+        public void close() {
+            if (relaying) {
+                // The relay owns the channels now
+                return;
+            }
+            System.out.println("Debug session ended");
+            closeQuietly(debuggerChannel);
+            closeQuietly(serverChannel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
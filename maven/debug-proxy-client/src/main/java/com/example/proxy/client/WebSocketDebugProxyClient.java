@@ -1,20 +1,46 @@
 package com.example.proxy.client;
 
+import com.example.proxy.common.BatchPolicy;
+import com.example.proxy.common.Heartbeat;
+import com.example.proxy.common.JdwpMetadataSession;
+import com.example.proxy.common.JdwpPacketReader;
+import com.example.proxy.common.JdwpPrefetch;
+import com.example.proxy.common.JdwpPrefetchCache;
+import com.example.proxy.common.JdwpTracer;
+import com.example.proxy.common.OutboundQueue;
+import com.example.proxy.common.PersistentMetadataCache;
+import com.example.proxy.common.ReplayBuffer;
+import com.example.proxy.common.SessionThreads;
+import com.example.proxy.common.TrafficRecorder;
+import com.example.proxy.common.TunnelDeflateExtension;
+import com.example.proxy.common.WsMuxConnection;
+
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ServerHandshake;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * 简化版 WebSocket Debug Proxy Client
@@ -28,11 +54,41 @@ public class WebSocketDebugProxyClient {
     
     private static final Logger logger = LoggerFactory.getLogger(WebSocketDebugProxyClient.class);
     private static final int DEFAULT_LOCAL_PORT = 15005;
+    // 会话恢复的重连间隔，每次失败后加倍
+    private static final long RESUME_INITIAL_DELAY_MILLIS = 250;
+    private static final long RESUME_MAX_DELAY_MILLIS = 5000;
+    
+    private static final ScheduledExecutorService heartbeatTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     private final int localPort;
     private final String serverUrl;
     private final Map<String, String> targetInfo;
     private volatile boolean running = true;
+    private volatile ServerSocket serverSocket;
+    private boolean multiplexed = false;
+    // permessage-deflate：级别为 0 时不压缩
+    private int compressionLevel = 0;
+    private int compressionThreshold = TunnelDeflateExtension.DEFAULT_THRESHOLD;
+    private boolean compressionContextTakeover = true;
+    private SessionThreads sessionThreads = new SessionThreads(false);
+    // 磁盘上的类元数据缓存，null 表示不使用
+    private PersistentMetadataCache metadataCache;
+    // 使用服务端在挂起事件时推送的栈帧和局部变量
+    private boolean prefetch = false;
+    // 按 JDWP 命令统计延迟，null 表示不统计
+    private JdwpTracer tracer;
+    // WebSocket 异常断开后重连并继续会话
+    private boolean resume = true;
+    // 微批：JDI -> WebSocket 方向，并在握手中告诉服务端用于 JVM -> WebSocket 方向
+    private BatchPolicy batching = new BatchPolicy(BatchPolicy.DEFAULT_DELAY_MICROS, BatchPolicy.DEFAULT_IDLE_MICROS);
+    // 心跳间隔，0 表示关闭
+    private long heartbeatIntervalMillis = Heartbeat.DEFAULT_INTERVAL_MILLIS;
+    // 流量记录，null 表示不记录
+    private TrafficRecorder recorder;
     
     public WebSocketDebugProxyClient(int localPort, String serverUrl, String targetHost, int targetPort, String podName) {
         this.localPort = localPort;
@@ -65,50 +121,245 @@ public class WebSocketDebugProxyClient {
         WebSocketDebugProxyClient client = new WebSocketDebugProxyClient(
             localPort, serverUrl, targetHost, targetPort, podName
         );
+        // -Dproxy.mux=true: 所有调试会话共享一个 WebSocket 连接
+        client.setMultiplexed(Boolean.getBoolean("proxy.mux"));
+        // 压缩：-Dproxy.deflate.level=1..9（0 关闭），-Dproxy.deflate.threshold，-Dproxy.deflate.contextTakeover
+        client.setCompression(
+            Integer.getInteger("proxy.deflate.level", TunnelDeflateExtension.DEFAULT_LEVEL),
+            Integer.getInteger("proxy.deflate.threshold", TunnelDeflateExtension.DEFAULT_THRESHOLD),
+            !"false".equalsIgnoreCase(System.getProperty("proxy.deflate.contextTakeover"))
+        );
+        // -Dproxy.threads=virtual: 会话处理跑在虚拟线程上（JDK 21+）
+        client.setVirtualThreads("virtual".equalsIgnoreCase(System.getProperty("proxy.threads")));
+        // -Dproxy.cache.dir=<目录>: 类元数据缓存到磁盘，重新 attach 同一构建的目标时由本地回答
+        // -Dproxy.prefetch=true: 使用服务端的挂起事件预取
+        client.setPrefetch(Boolean.getBoolean("proxy.prefetch"));
+        // -Dproxy.resume=false: WebSocket 异常断开时直接结束会话，不重连
+        client.setResume(!"false".equalsIgnoreCase(System.getProperty("proxy.resume")));
+        // -Dproxy.batch.delayMicros/idleMicros: 成批到达的 JDWP 包合并成帧的最长等待和空闲时间，0 关闭
+        client.setBatching(Long.getLong("proxy.batch.delayMicros", BatchPolicy.DEFAULT_DELAY_MICROS),
+                Long.getLong("proxy.batch.idleMicros", BatchPolicy.DEFAULT_IDLE_MICROS));
+        // -Dproxy.heartbeat.intervalMillis: 心跳间隔，用于测量往返时间和判断连接是否断开，0 关闭
+        client.setHeartbeat(Long.getLong("proxy.heartbeat.intervalMillis", Heartbeat.DEFAULT_INTERVAL_MILLIS));
+        // -Dproxy.trace=true: 统计每种 JDWP 命令的延迟，会话结束时输出
+        if (Boolean.getBoolean("proxy.trace")) {
+            client.setTracer(new JdwpTracer());
+        }
+        String cacheDir = System.getProperty("proxy.cache.dir");
+        if (cacheDir != null && !cacheDir.isEmpty()) {
+            client.setMetadataCache(PersistentMetadataCache.open(Paths.get(cacheDir)));
+        }
+        // -Dproxy.record=<文件>: 记录调试器与代理之间的 JDWP 流量，-Dproxy.record.maxBytes: 文件大小上限
+        String recordFile = System.getProperty("proxy.record");
+        if (recordFile != null && !recordFile.isEmpty()) {
+            try {
+                TrafficRecorder recorder = TrafficRecorder.open(Paths.get(recordFile),
+                        Long.getLong("proxy.record.maxBytes", TrafficRecorder.DEFAULT_MAX_FILE_BYTES));
+                client.setRecorder(recorder);
+                // 进程被直接结束时写完队列中的记录
+                Runtime.getRuntime().addShutdownHook(new Thread(recorder::close, "CloseRecording"));
+            } catch (IOException e) {
+                logger.error("Cannot open recording {}: {}", recordFile, e.getMessage());
+            }
+        }
         
         client.start();
     }
     
+    /**
+     * 设置多路复用模式：所有调试会话共享一个 WebSocket 连接，每个会话是其中一个 channel
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+    
+    /**
+     * 设置WebSocket压缩（permessage-deflate），在握手时与服务器协商
+     * @param level 压缩级别 1-9，0 表示不压缩
+     * @param threshold 小于该字节数的消息不压缩
+     * @param contextTakeover 消息之间是否共享压缩上下文
+     */
+    public void setCompression(int level, int threshold, boolean contextTakeover) {
+        this.compressionLevel = level;
+        this.compressionThreshold = threshold;
+        this.compressionContextTakeover = contextTakeover;
+    }
+    
+    private Draft createDraft() {
+        return TunnelDeflateExtension.createDraft(compressionLevel, compressionThreshold, compressionContextTakeover);
+    }
+    
+    /**
+     * 设置会话处理线程的模式：虚拟线程在 JDK 21 以下自动回退为平台线程
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.sessionThreads = new SessionThreads(virtualThreads);
+    }
+    
+    /**
+     * 设置类元数据缓存，见插件的同名配置
+     */
+    public void setMetadataCache(PersistentMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+    
+    /**
+     * 设置挂起事件预取，见插件的同名配置
+     */
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+    
+    /**
+     * 设置 JDWP 命令延迟跟踪，见插件的同名配置
+     */
+    public void setTracer(JdwpTracer tracer) {
+        this.tracer = tracer;
+    }
+    
+    /**
+     * 设置会话恢复，见插件的同名配置
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+    
+    /**
+     * 设置微批，见插件的同名配置
+     */
+    public void setBatching(long delayMicros, long idleMicros) {
+        this.batching = new BatchPolicy(delayMicros, idleMicros);
+    }
+    
+    /**
+     * 设置心跳，见插件的同名配置；往返时间明显变化时写日志
+     * @param intervalMillis 心跳间隔，0 表示关闭
+     */
+    public void setHeartbeat(long intervalMillis) {
+        this.heartbeatIntervalMillis = intervalMillis;
+    }
+    
+    /**
+     * 设置流量记录，见插件的同名配置
+     * @param recorder null 表示不记录
+     */
+    public void setRecorder(TrafficRecorder recorder) {
+        this.recorder = recorder;
+    }
+    
     public void start() {
         logger.info("WebSocket Debug Proxy Client starting...");
         logger.info("  Local port: {}", localPort);
         logger.info("  Server URL: {}", serverUrl);
         logger.info("  Target: {}:{}", targetInfo.get("targetHost"), targetInfo.get("targetPort"));
         logger.info("  Pod: {}", targetInfo.get("podName"));
+        logger.info("  Multiplexed: {}", multiplexed);
+        logger.info("  Compression level: {}", compressionLevel);
+        logger.info("  Session threads: {}", sessionThreads.isVirtual() ? "virtual" : "platform");
+        logger.info("  Prefetch: {}", prefetch);
+        logger.info("  Trace: {}", tracer != null);
+        logger.info("  Resume: {}", resume && !multiplexed);
+        logger.info("  Batching: {}", batching);
+        logger.info("  Heartbeat: {}", heartbeatIntervalMillis > 0 ? heartbeatIntervalMillis + " ms" : "disabled");
+        logger.info("  Metadata cache: {}", metadataCache != null ? metadataCache.getDirectory() : "disabled");
+        logger.info("  Recording: {}", recorder != null ? recorder.getFile() : "disabled");
         
         try (ServerSocket serverSocket = new ServerSocket(localPort)) {
-            logger.info("Local JDWP server started on port {}", localPort);
-            logger.info("JDI/IDEA can now connect to localhost:{}", localPort);
+            this.serverSocket = serverSocket;
+            // 端口为 0 时由系统分配空闲端口
+            logger.info("Local JDWP server started on port {}", serverSocket.getLocalPort());
+            logger.info("JDI/IDEA can now connect to localhost:{}", serverSocket.getLocalPort());
             
             while (running) {
                 Socket jdiSocket = serverSocket.accept();
+                // JDWP 命令都是小包，不等 Nagle 合并
+                jdiSocket.setTcpNoDelay(true);
                 logger.info("JDI debugger connected from: {}", jdiSocket.getRemoteSocketAddress());
                 
                 // 为每个调试连接创建独立的 WebSocket 连接
-                Thread handler = new Thread(new DebugSessionHandler(jdiSocket));
-                handler.setDaemon(true);
-                handler.start();
+                DebugSessionHandler handler = new DebugSessionHandler(jdiSocket);
+                sessionThreads.start("DebugSession-" + handler.sessionId, handler);
             }
         } catch (IOException e) {
-            logger.error("Client error: {}", e.getMessage(), e);
+            if (running) {
+                logger.error("Client error: {}", e.getMessage(), e);
+            }
         }
     }
     
+    /**
+     * WebSocket 发送队列的容量：独占连接或多路复用连接
+     */
+    private interface Capacity {
+        void await() throws InterruptedIOException;
+    }
+    
     /**
      * 处理单个调试会话
      */
     private class DebugSessionHandler implements Runnable {
         private final Socket jdiSocket;
         private final String sessionId;
+        private final JdwpMetadataSession metadata;
+        private final JdwpPrefetchCache prefetchCache;
+        private final JdwpTracer.Session trace;
+        private final TrafficRecorder.Session recording;
+        private final BatchPolicy.Stream batch = batching.newStream();
+        private final Object jdiWriteLock = new Object();
+        // 独占连接的心跳，多路复用时使用共享连接的
+        private final Heartbeat heartbeat;
+        private ScheduledFuture<?> heartbeatTask;
+        private long reportedRttMicros = -1;
+        // 独占连接；服务器同意恢复时断开后用同一会话 ID 重连
+        private volatile WebSocketClient wsClient;
+        private volatile OutboundQueue outboundQueue;
+        private volatile ServerHandshake serverHandshake;
+        private volatile ReplayBuffer replay;
+        // 服务器为断开的会话保留的时间，握手时由服务器告知
+        private volatile long resumeGraceSeconds = ReplayBuffer.DEFAULT_GRACE_SECONDS;
+        private final AtomicBoolean resuming = new AtomicBoolean();
+        private volatile boolean closing;
+        // 握手已在本地回答，服务端转发来的目标回显不再写给调试器
+        private volatile boolean handshakeEchoPending;
         
         public DebugSessionHandler(Socket jdiSocket) {
             this.jdiSocket = jdiSocket;
             this.sessionId = UUID.randomUUID().toString();
+            this.metadata = metadataCache != null
+                    ? new JdwpMetadataSession(sessionId, metadataCache.newSession(), this::writeLocalReply)
+                    : null;
+            this.prefetchCache = prefetch ? new JdwpPrefetchCache(sessionId, this::writeLocalReply) : null;
+            this.trace = tracer != null ? tracer.newSession() : null;
+            this.recording = recorder != null ? recorder.openSession(sessionId,
+                    targetInfo.get("targetHost") + ":" + targetInfo.get("targetPort")) : null;
+            this.heartbeat = heartbeatIntervalMillis > 0 && !multiplexed ? new Heartbeat(heartbeatIntervalMillis) : null;
         }
         
         @Override
         public void run() {
-            WebSocketClient wsClient = null;
+            JdwpPacketReader reader;
+            byte[] handshake;
+            try {
+                // 不等隧道建立，调试器随后的 Version、IDSizes 等命令排在握手串后面一起发出
+                reader = new JdwpPacketReader(jdiSocket.getInputStream(), true, batch);
+                handshake = answerHandshake(reader);
+            } catch (IOException e) {
+                logger.info("Session {}: JDWP handshake failed: {}", sessionId, e.getMessage());
+                try {
+                    jdiSocket.close();
+                } catch (IOException closeEx) {
+                    // Ignore
+                }
+                return;
+            }
+            if (multiplexed) {
+                runOnChannel(reader, handshake);
+                return;
+            }
+            if (heartbeat != null) {
+                heartbeatTask = heartbeatTimer.scheduleWithFixedDelay(() -> heartbeat(heartbeat),
+                        Heartbeat.TICK_MILLIS, Heartbeat.TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
             try {
                 // 构建 WebSocket URI
                 URI serverUri = new URI(serverUrl);
@@ -130,11 +381,20 @@ public class WebSocketDebugProxyClient {
                 logger.info("Session {}: Debug session established", sessionId);
                 
                 // 启动 JDI -> WebSocket 转发
-                forwardJdiToWebSocket(jdiSocket, wsClient);
+                outboundQueue = new OutboundQueue(wsClient.getConnection(),
+                        OutboundQueue.DEFAULT_LOW_WATERMARK, OutboundQueue.DEFAULT_HIGH_WATERMARK);
+                forwardJdiToWebSocket(reader, handshake, this::send, this::awaitCapacity);
                 
             } catch (Exception e) {
                 logger.error("Session {}: Error: {}", sessionId, e.getMessage(), e);
             } finally {
+                closing = true;
+                if (heartbeatTask != null) {
+                    heartbeatTask.cancel(false);
+                }
+                if (replay != null) {
+                    replay.close();
+                }
                 if (wsClient != null) {
                     wsClient.close();
                 }
@@ -147,35 +407,310 @@ public class WebSocketDebugProxyClient {
             }
         }
         
+        /**
+         * 发送到独占连接：断开期间只记录，恢复后重发
+         */
+        private void send(byte[] data) {
+            if (replay != null) {
+                replay.send(data);
+            } else {
+                wsClient.send(data);
+            }
+        }
+        
+        private void awaitCapacity() throws InterruptedIOException {
+            if (replay != null) {
+                // 恢复期间暂停读取 JDI
+                replay.awaitCapacity();
+            }
+            outboundQueue.awaitCapacity();
+        }
+        
+        /**
+         * 心跳定时任务：独占连接上发送 PING、检查存活；按往返时间收紧微批等待
+         */
+        private void heartbeat(Heartbeat heartbeat) {
+            long now = System.nanoTime();
+            WebSocketClient client = wsClient;
+            if (heartbeat == this.heartbeat && client != null && client.isOpen()) {
+                if (heartbeat.isExpired(now)) {
+                    logger.warn("Session {}: No response from proxy server within {} ms, treating the connection as lost",
+                               sessionId, heartbeat.getTimeoutMillis());
+                    client.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timeout");
+                    return;
+                }
+                String ping = heartbeat.nextPing(now);
+                if (ping != null) {
+                    client.send(ping);
+                }
+            }
+            if (!heartbeat.isMeasured()) {
+                return;
+            }
+            batch.limitDelay(heartbeat.getBatchDelayLimitMicros());
+            if (heartbeat == this.heartbeat && Heartbeat.isSignificantChange(reportedRttMicros, heartbeat.getRttMicros())) {
+                reportedRttMicros = heartbeat.getRttMicros();
+                logger.info("Session {}: Tunnel {}", sessionId, heartbeat);
+            }
+        }
+        
+        /**
+         * WebSocket 异常断开后用同一会话 ID 重连，重发服务器没有收到的帧。
+         * 服务器已不保留该会话或超过服务器告知的宽限期时关闭会话
+         */
+        private void resumeSession() {
+            long deadline = System.currentTimeMillis() + resumeGraceSeconds * 1000;
+            long delay = RESUME_INITIAL_DELAY_MILLIS;
+            try {
+                boolean redirected = false;
+                while (!closing && System.currentTimeMillis() < deadline) {
+                    if (!redirected) {
+                        Thread.sleep(delay);
+                        delay = Math.min(delay * 2, RESUME_MAX_DELAY_MILLIS);
+                    }
+                    logger.info("Session {}: Reconnecting to proxy server...", sessionId);
+                    wsClient.addHeader(ReplayBuffer.RECEIVED_HEADER, String.valueOf(replay.getReceived()));
+                    // 改连的新客户端还没有连接过
+                    boolean connected = redirected ? wsClient.connectBlocking() : wsClient.reconnectBlocking();
+                    redirected = false;
+                    if (!connected) {
+                        continue;
+                    }
+                    String serverReceived = serverHandshake.getFieldValue(ReplayBuffer.RECEIVED_HEADER);
+                    String owner = serverHandshake.getFieldValue(ReplayBuffer.OWNER_HEADER);
+                    if (serverReceived.isEmpty() && !owner.isEmpty()) {
+                        // 负载均衡把重连分到了其他副本，改连持有会话的副本
+                        logger.info("Session {}: Session is held by {}, reconnecting there", sessionId, owner);
+                        WebSocketClient previous = wsClient;
+                        wsClient = createWebSocketClient(URI.create(owner));
+                        previous.close();
+                        redirected = true;
+                        continue;
+                    }
+                    if (serverReceived.isEmpty()) {
+                        logger.warn("Session {}: Session no longer exists on proxy server", sessionId);
+                        break;
+                    }
+                    outboundQueue = new OutboundQueue(wsClient.getConnection(),
+                            OutboundQueue.DEFAULT_LOW_WATERMARK, OutboundQueue.DEFAULT_HIGH_WATERMARK);
+                    if (!replay.attach(Long.parseLong(serverReceived), wsClient::send)) {
+                        logger.warn("Session {}: Cannot resume, unacknowledged data was lost", sessionId);
+                        break;
+                    }
+                    resuming.set(false);
+                    // 重发期间新连接又断开时，onClose 因为 resuming 而没有启动新的重连
+                    if (!wsClient.isOpen() && resuming.compareAndSet(false, true)) {
+                        continue;
+                    }
+                    logger.info("Session {}: Resumed, {} bytes awaiting acknowledgement", sessionId,
+                               replay.getUnacknowledgedBytes());
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!closing) {
+                logger.warn("Session {}: Cannot resume session, closing", sessionId);
+                replay.close();
+                try {
+                    jdiSocket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        
+        /**
+         * 在共享的多路复用连接上运行本会话
+         */
+        private void runOnChannel(JdwpPacketReader reader, byte[] handshake) {
+            WsMuxConnection connection = null;
+            WsMuxConnection.Channel channel = null;
+            try {
+                logger.info("Session {}: Opening channel on multiplexed connection...", sessionId);
+                connection = WsMuxConnection.acquire(serverUrl, createDraft(), heartbeatIntervalMillis);
+                channel = connection.openChannel(createHeaders(), new WsMuxConnection.ChannelListener() {
+                    @Override
+                    public void onData(ByteBuffer data) {
+                        forwardToJdi(data);
+                    }
+                    
+                    @Override
+                    public void onClose(String reason) {
+                        logger.info("Session {}: Channel closed: {}", sessionId, reason);
+                        try {
+                            jdiSocket.close();
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                    }
+                });
+                logger.info("Session {}: Debug session established on channel {}", sessionId, channel.getId());
+                Heartbeat shared = connection.getHeartbeat();
+                if (shared != null) {
+                    // 往返时间由共享连接测量并写日志，这里只收紧微批等待
+                    heartbeatTask = heartbeatTimer.scheduleWithFixedDelay(() -> heartbeat(shared),
+                            Heartbeat.TICK_MILLIS, Heartbeat.TICK_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                
+                forwardJdiToWebSocket(reader, handshake, channel::send, channel::awaitCapacity);
+                
+            } catch (Exception e) {
+                logger.error("Session {}: Error: {}", sessionId, e.getMessage(), e);
+            } finally {
+                if (heartbeatTask != null) {
+                    heartbeatTask.cancel(false);
+                }
+                if (channel != null) {
+                    channel.close();
+                }
+                if (connection != null) {
+                    WsMuxConnection.release(connection);
+                }
+                try {
+                    jdiSocket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                logger.info("Session {}: Closed", sessionId);
+            }
+        }
+        
+        /**
+         * 读取调试器的握手串并立即回显
+         * @return 握手帧，之后仍随第一批命令发往服务端
+         */
+        private byte[] answerHandshake(JdwpPacketReader reader) throws IOException {
+            byte[] handshake = reader.nextFrame();
+            if (handshake == null) {
+                throw new EOFException("Debugger disconnected before the handshake");
+            }
+            handshakeEchoPending = true;
+            writeToJdi(JdwpPacketReader.HANDSHAKE);
+            return handshake;
+        }
+        
+        /**
+         * 接收来自 server 的 JDWP 数据，转发到 JDI
+         */
+        private void forwardToJdi(ByteBuffer bytes) {
+            byte[] data = new byte[bytes.remaining()];
+            bytes.get(data);
+            if (handshakeEchoPending) {
+                // 第一帧是目标的握手回显，调试器已收到本地的回答
+                handshakeEchoPending = false;
+                data = JdwpPacketReader.stripHandshake(data);
+                if (data.length == 0) {
+                    return;
+                }
+            }
+            if (trace != null) {
+                // 计时包不交给调试器
+                data = trace.onTunnelReplies(data);
+                if (data.length == 0) {
+                    return;
+                }
+            }
+            if (prefetchCache != null) {
+                // 推送包不交给调试器
+                data = prefetchCache.onReplies(data);
+                if (data.length == 0) {
+                    return;
+                }
+            }
+            if (metadata != null) {
+                metadata.onReplies(data);
+            }
+            writeToJdi(data);
+        }
+        
+        /**
+         * 本地缓存回答的请求，不经过服务器
+         */
+        private void writeLocalReply(byte[] data) {
+            if (trace != null) {
+                trace.onLocalReplies(data);
+            }
+            writeToJdi(data);
+        }
+        
+        /**
+         * 写入 JDI 连接：服务器的回复和本地缓存的回复来自不同线程
+         */
+        private void writeToJdi(byte[] data) {
+            try {
+                synchronized (jdiWriteLock) {
+                    // 在锁内记录，记录的顺序与写给调试器的顺序一致
+                    if (recording != null) {
+                        recording.toClient(data);
+                    }
+                    OutputStream out = jdiSocket.getOutputStream();
+                    out.write(data);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                logger.error("Session {}: Error forwarding to JDI: {}", 
+                           sessionId, e.getMessage());
+                try {
+                    jdiSocket.close();
+                } catch (IOException closeEx) {
+                    // Ignore
+                }
+            }
+        }
+        
         /**
          * 创建 WebSocket 客户端
          */
         private WebSocketClient createWebSocketClient(URI serverUri) {
-            return new WebSocketClient(serverUri, createHeaders()) {
+            return new WebSocketClient(serverUri, createDraft(), createHeaders()) {
                 @Override
                 public void onOpen(ServerHandshake handshake) {
-                    logger.info("Session {}: WebSocket connection opened", sessionId);
+                    logger.info("Session {}: WebSocket connection opened ({})", sessionId,
+                           ((Draft_6455) getConnection().getDraft()).getExtension());
+                    serverHandshake = handshake;
+                    if (heartbeat != null) {
+                        heartbeat.connected(!handshake.getFieldValue(Heartbeat.HEADER).isEmpty());
+                    }
+                    // 在收到第一帧之前创建，帧计数从连接建立时开始
+                    if (replay == null && resume && ReplayBuffer.RESUME_VERSION.equals(
+                            handshake.getFieldValue(ReplayBuffer.RESUME_HEADER))) {
+                        resumeGraceSeconds = ReplayBuffer.graceFromHeader(
+                                handshake.getFieldValue(ReplayBuffer.GRACE_HEADER));
+                        replay = new ReplayBuffer(ReplayBuffer.DEFAULT_MAX_BYTES);
+                        replay.attach(0, this::send);
+                    }
                 }
                 
                 @Override
                 public void onMessage(String message) {
                     // 处理文本消息（控制命令）
+                    ReplayBuffer replay = DebugSessionHandler.this.replay;
+                    if (replay != null && replay.onText(message)) {
+                        return;
+                    }
+                    if (heartbeat != null && Heartbeat.PONG.equals(message)) {
+                        heartbeat.onPong(System.nanoTime());
+                        return;
+                    }
                     logger.debug("Session {}: Received text message: {}", sessionId, message);
                 }
                 
                 @Override
                 public void onMessage(ByteBuffer bytes) {
                     // 接收来自 server 的 JDWP 数据，转发到 JDI
-                    try {
-                        byte[] data = new byte[bytes.remaining()];
-                        bytes.get(data);
-                        OutputStream out = jdiSocket.getOutputStream();
-                        out.write(data);
-                        out.flush();
-                    } catch (IOException e) {
-                        logger.error("Session {}: Error forwarding to JDI: {}", 
-                                   sessionId, e.getMessage());
-                        close();
+                    if (heartbeat != null) {
+                        heartbeat.received(System.nanoTime());
+                    }
+                    ReplayBuffer replay = DebugSessionHandler.this.replay;
+                    if (replay == null) {
+                        forwardToJdi(bytes);
+                        return;
+                    }
+                    String ack = replay.received(bytes.remaining());
+                    forwardToJdi(bytes);
+                    if (ack != null) {
+                        send(ack);
                     }
                 }
                 
@@ -183,6 +718,25 @@ public class WebSocketDebugProxyClient {
                 public void onClose(int code, String reason, boolean remote) {
                     logger.info("Session {}: WebSocket closed: code={}, reason={}, remote={}", 
                                sessionId, code, reason, remote);
+                    if (DebugSessionHandler.this.wsClient != this) {
+                        // 重连时被改连其他副本替换掉的客户端
+                        return;
+                    }
+                    ReplayBuffer replay = DebugSessionHandler.this.replay;
+                    if (!closing && replay != null && code != CloseFrame.NORMAL) {
+                        replay.detach();
+                        if (resuming.compareAndSet(false, true)) {
+                            // 不能在 WebSocket 自己的线程中重连
+                            sessionThreads.start("Resume-" + sessionId, DebugSessionHandler.this::resumeSession);
+                        }
+                    } else if (!closing) {
+                        // 服务端结束了会话（目标断开、会话到期）或连接不能恢复：断开调试器
+                        try {
+                            jdiSocket.close();
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                    }
                 }
                 
                 @Override
@@ -203,31 +757,88 @@ public class WebSocketDebugProxyClient {
             headers.put("X-Target-Port", targetInfo.get("targetPort"));
             headers.put("X-Pod-Name", targetInfo.get("podName"));
             headers.put("X-Session-Id", sessionId);
+            headers.put(JdwpPacketReader.FRAME_MODE_HEADER, JdwpPacketReader.FRAME_MODE_PACKET);
+            headers.put(JdwpPacketReader.EARLY_HANDSHAKE_HEADER, JdwpPacketReader.EARLY_HANDSHAKE_VERSION);
+            headers.put(BatchPolicy.DELAY_HEADER, String.valueOf(batching.getDelayMicros()));
+            headers.put(BatchPolicy.IDLE_HEADER, String.valueOf(batching.getIdleMicros()));
+            if (prefetch) {
+                headers.put(JdwpPrefetch.PREFETCH_HEADER, JdwpPrefetch.PREFETCH_VERSION);
+            }
+            if (resume && !multiplexed) {
+                headers.put(ReplayBuffer.RESUME_HEADER, ReplayBuffer.RESUME_VERSION);
+            }
+            if (trace != null) {
+                headers.put(JdwpTracer.TRACE_HEADER, JdwpTracer.TRACE_VERSION);
+            }
+            if (heartbeat != null) {
+                headers.put(Heartbeat.HEADER, String.valueOf(heartbeat.getIntervalMillis()));
+            }
             
             return headers;
         }
         
         /**
          * 转发 JDI 的数据到 WebSocket
+         * @param handshake 已在本地回答的握手帧，作为第一帧发出
+         * @param capacity 发送队列已满时阻塞，暂停读取 JDI
          */
-        private void forwardJdiToWebSocket(Socket jdiSocket, WebSocketClient wsClient) {
-            try (InputStream in = jdiSocket.getInputStream()) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    // 将 JDI 的 JDWP 请求发送到 WebSocket
-                    byte[] data = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, data, 0, bytesRead);
-                    wsClient.send(data);
+        private void forwardJdiToWebSocket(JdwpPacketReader reader, byte[] handshake, Consumer<byte[]> sender,
+                                           Capacity capacity) {
+            try {
+                // 每个 WebSocket 帧只携带完整的 JDWP 包
+                for (byte[] frame = handshake; frame != null; frame = reader.nextFrame()) {
+                    if (recording != null) {
+                        recording.toTarget(frame);
+                    }
+                    if (trace != null) {
+                        trace.onCommands(frame);
+                    }
+                    if (prefetchCache != null) {
+                        frame = prefetchCache.onCommands(frame);
+                        if (frame.length == 0) {
+                            continue;
+                        }
+                    }
+                    if (metadata != null) {
+                        frame = metadata.onCommands(frame);
+                        if (frame.length == 0) {
+                            continue;
+                        }
+                    }
+                    capacity.await();
+                    sender.accept(frame);
                 }
             } catch (IOException e) {
                 logger.info("Session {}: JDI connection closed", sessionId);
             }
+            if (recording != null) {
+                recording.close();
+            }
+            if (metadata != null) {
+                logger.info("Session {}: {} metadata requests answered from cache", sessionId, metadata.getHits());
+            }
+            if (prefetchCache != null) {
+                logger.info("Session {}: {} requests answered from {} prefetches", sessionId,
+                           prefetchCache.getHits(), prefetchCache.getPushes());
+            }
+            if (trace != null) {
+                logger.info("Session {}: JDWP command latency\n{}", sessionId, tracer.dump());
+            }
         }
     }
     
+    /**
+     * 停止监听本地端口，已建立的会话不受影响
+     */
     public void stop() {
         running = false;
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
     }
 }
@@ -0,0 +1,150 @@
+package com.example.proxy.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 写入微批：源端成批产生数据时，把相隔很近的数据合并成一次发送
+ *
+ * 转发线程每凑齐一帧就发送一个 WebSocket 帧（或写一次 Socket）。目标 JVM 集中产生事件时
+ * （类加载时的 ClassPrepare、大量线程启动时的 ThreadStart），事件之间相隔几十到几百微秒，
+ * 每个事件单独成帧，帧数、系统调用和对端的写入次数随之暴涨。
+ *
+ * 只在流 “忙” 时等待：上一帧合并了多个包（数据是成批到达的），并且距上一帧不超过 delay。
+ * 这时凑齐一帧后先不发送，继续等后续数据，直到源端 idle 微秒没有新数据、从开始等待起超过 delay 微秒，
+ * 或帧达到大小上限。单独到达的包（单步、逐个求值这类一问一答）从不等待，延迟不变；
+ * 以回复结尾的帧也不等待，发出请求的一方正在等它。
+ *
+ * 客户端在握手中用 {@link #DELAY_HEADER} 和 {@link #IDLE_HEADER} 声明自己的设置，
+ * 服务端在目标 JVM -> 客户端 方向使用客户端的设置，但不超过服务端自己的设置。
+ */
+public class BatchPolicy {
+
+    /** 客户端声明的最长等待时间（微秒），0 表示不等待 */
+    public static final String DELAY_HEADER = "X-Batch-Delay";
+    /** 客户端声明的空闲时间（微秒） */
+    public static final String IDLE_HEADER = "X-Batch-Idle";
+
+    public static final long DEFAULT_DELAY_MICROS = 5000;
+    public static final long DEFAULT_IDLE_MICROS = 500;
+
+    public static final BatchPolicy DISABLED = new BatchPolicy(0, 0);
+
+    // 等待期间检查源端的间隔
+    private static final long POLL_NANOS = 50_000;
+
+    private final long delayMicros;
+    private final long idleMicros;
+
+    /**
+     * @param delayMicros 一帧最多等待的时间，0 表示不等待
+     * @param idleMicros 源端这么久没有新数据时立即发送，不超过 delayMicros
+     */
+    public BatchPolicy(long delayMicros, long idleMicros) {
+        if (delayMicros < 0 || idleMicros < 0) {
+            throw new IllegalArgumentException("Batch delay must not be negative");
+        }
+        this.delayMicros = delayMicros;
+        this.idleMicros = Math.min(idleMicros, delayMicros);
+    }
+
+    public boolean isEnabled() {
+        return delayMicros > 0 && idleMicros > 0;
+    }
+
+    public long getDelayMicros() {
+        return delayMicros;
+    }
+
+    public long getIdleMicros() {
+        return idleMicros;
+    }
+
+    /**
+     * 按对端声明的设置收紧：每一项取两者中较小的值，header 缺失或无效时不变
+     */
+    public BatchPolicy limitTo(String delay, String idle) {
+        if (delay == null || delay.isEmpty() || idle == null || idle.isEmpty()) {
+            return this;
+        }
+        try {
+            long requestedDelay = Long.parseLong(delay.trim());
+            long requestedIdle = Long.parseLong(idle.trim());
+            if (requestedDelay < 0 || requestedIdle < 0) {
+                return this;
+            }
+            return new BatchPolicy(Math.min(delayMicros, requestedDelay), Math.min(idleMicros, requestedIdle));
+        } catch (NumberFormatException e) {
+            return this;
+        }
+    }
+
+    /**
+     * 每个流（一个读取方向）一个，除 {@link Stream#limitDelay(long)} 外只在该方向的读取线程中使用
+     */
+    public Stream newStream() {
+        return new Stream();
+    }
+
+    @Override
+    public String toString() {
+        return isEnabled() ? "delay=" + delayMicros + "us, idle=" + idleMicros + "us" : "disabled";
+    }
+
+    public class Stream {
+        private boolean busy;
+        private long lastFlushNanos;
+        private boolean waiting;
+        private long deadlineNanos;
+        // 按链路往返时间收紧的等待上限，可由其他线程设置
+        private volatile long delayLimitMicros = Long.MAX_VALUE;
+
+        /**
+         * 把等待时间限制在 micros 以内（不超过配置值），见 {@link Heartbeat#getBatchDelayLimitMicros()}
+         */
+        public void limitDelay(long micros) {
+            delayLimitMicros = micros;
+        }
+
+        /**
+         * 帧已凑齐、源端暂时没有更多数据时调用
+         * @param allowed 当前帧能否等待（以回复结尾的帧不等待）
+         * @return 等到了新数据时返回 true，调用方读入后继续凑帧；返回 false 时立即发送
+         */
+        public boolean awaitMore(InputStream in, boolean allowed) throws IOException {
+            if (!isEnabled() || !allowed) {
+                return false;
+            }
+            long delay = Math.min(delayMicros, delayLimitMicros);
+            long now = System.nanoTime();
+            if (!waiting) {
+                if (!busy || now - lastFlushNanos > TimeUnit.MICROSECONDS.toNanos(delay)) {
+                    return false;
+                }
+                waiting = true;
+                deadlineNanos = now + TimeUnit.MICROSECONDS.toNanos(delay);
+            }
+            long idleDeadline = now + TimeUnit.MICROSECONDS.toNanos(Math.min(idleMicros, delay));
+            while (in.available() <= 0) {
+                long current = System.nanoTime();
+                if (current - idleDeadline >= 0 || current - deadlineNanos >= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(POLL_NANOS);
+            }
+            return true;
+        }
+
+        /**
+         * 发送一帧后调用
+         * @param parts 帧中合并的包数（不按包切分时为读取次数）
+         */
+        public void flushed(int parts) {
+            busy = parts > 1;
+            lastFlushNanos = System.nanoTime();
+            waiting = false;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.proxy.common;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 心跳：客户端定时发送 PING，服务端回答 PONG，客户端据此持续测量隧道的往返时间和抖动，
+ * 并由测量值得出存活超时和微批窗口
+ *
+ * 往返时间和抖动按 RFC 6298 平滑（SRTT、RTTVAR），存活超时为 {@value #TIMEOUT_MULTIPLIER} × (SRTT + 4 × RTTVAR)，
+ * 限制在 {@value #MIN_TIMEOUT_MILLIS} 到 {@value #MAX_TIMEOUT_MILLIS} 毫秒之间：高延迟但健康的链路不会被误判，
+ * 局域网上断开的连接几秒内就能发现。PING 超过存活超时没有回答、期间也没有收到任何数据时按连接断开处理；
+ * 大块数据传输时 PONG 排在数据后面，只要数据还在到达就不算超时。
+ * 微批窗口不超过往返时间的 1/{@value #BATCH_RTT_DIVISOR}，等待时间相对于往返时间总是很小。
+ *
+ * 客户端在握手中用 {@link #HEADER} 声明心跳间隔（毫秒），支持的服务端在响应中带回该 header。
+ * 之后客户端的 PING 附带自己测得的往返时间和抖动（微秒），服务端据此判断客户端是否失联，
+ * 并收紧目标 JVM -> 客户端 方向的微批窗口。不支持的服务端只收到不带参数的 PING。
+ */
+public class Heartbeat {
+
+    /** 客户端声明的心跳间隔（毫秒） */
+    public static final String HEADER = "X-Heartbeat";
+    public static final String PING = "PING";
+    public static final String PONG = "PONG";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 2000;
+    /** 定时检查的间隔，发送 PING 和判断超时都以此为粒度 */
+    public static final long TICK_MILLIS = 250;
+
+    static final long MIN_TIMEOUT_MILLIS = 2000;
+    static final long MAX_TIMEOUT_MILLIS = 60_000;
+    // 还没有测量值时的存活超时
+    static final long INITIAL_TIMEOUT_MILLIS = 10_000;
+    private static final int TIMEOUT_MULTIPLIER = 4;
+    private static final int BATCH_RTT_DIVISOR = 8;
+    private static final long MIN_BATCH_DELAY_MICROS = 1000;
+    // 往返时间与上次报告的值相差超过这个比例（且超过 1 毫秒）时视为明显变化
+    private static final double CHANGE_RATIO = 0.5;
+    private static final long MIN_CHANGE_MICROS = 1000;
+
+    private final long intervalNanos;
+    private boolean extended;
+    private boolean measured;
+    private long srttNanos;
+    private long rttvarNanos;
+    private boolean pingOutstanding;
+    private long pingSentNanos;
+    private volatile long lastReceivedNanos;
+
+    /**
+     * @param intervalMillis 发送 PING 的间隔
+     */
+    public Heartbeat(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Heartbeat interval must be positive");
+        }
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.lastReceivedNanos = System.nanoTime();
+        this.pingSentNanos = lastReceivedNanos - intervalNanos;
+    }
+
+    /**
+     * 解析握手中的心跳间隔
+     * @return header 缺失或无效时返回 null
+     */
+    public static Heartbeat fromHeader(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            long intervalMillis = Long.parseLong(value.trim());
+            return intervalMillis > 0 ? new Heartbeat(intervalMillis) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 带参数或不带参数的 PING
+     */
+    public static boolean isPing(String message) {
+        return message.equals(PING) || message.startsWith(PING + " ");
+    }
+
+    /**
+     * 往返时间与上次报告的值相比有明显变化，用于决定是否再次报告
+     * @param reportedMicros 上次报告的值，还没有报告过时为负数
+     */
+    public static boolean isSignificantChange(long reportedMicros, long rttMicros) {
+        return reportedMicros < 0 || Math.abs(rttMicros - reportedMicros)
+                > Math.max(MIN_CHANGE_MICROS, (long) (reportedMicros * CHANGE_RATIO));
+    }
+
+    public long getIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+    }
+
+    // ---- 客户端 ----
+
+    /**
+     * WebSocket 连接（或重连）建立时调用，之前连接上未回答的 PING 作废
+     * @param extended 服务端在握手响应中带回了 {@link #HEADER}，PING 可以附带测量值
+     */
+    public synchronized void connected(boolean extended) {
+        this.extended = extended;
+        pingOutstanding = false;
+        lastReceivedNanos = System.nanoTime();
+        // 连接建立后立即测量一次
+        pingSentNanos = lastReceivedNanos - intervalNanos;
+    }
+
+    /**
+     * 每 {@link #TICK_MILLIS} 调用一次
+     * @return 到了发送时间时返回要发送的 PING，否则返回 null
+     */
+    public synchronized String nextPing(long now) {
+        if (pingOutstanding || now - pingSentNanos < intervalNanos) {
+            return null;
+        }
+        pingOutstanding = true;
+        pingSentNanos = now;
+        if (!extended || !measured) {
+            return PING;
+        }
+        return PING + " " + TimeUnit.NANOSECONDS.toMicros(srttNanos) + " " + TimeUnit.NANOSECONDS.toMicros(rttvarNanos);
+    }
+
+    /**
+     * 收到 PONG
+     */
+    public synchronized void onPong(long now) {
+        received(now);
+        if (pingOutstanding) {
+            pingOutstanding = false;
+            sample(now - pingSentNanos);
+        }
+    }
+
+    /**
+     * PING 超过存活超时没有回答，期间也没有收到任何数据
+     */
+    public synchronized boolean isExpired(long now) {
+        return pingOutstanding && now - Math.max(pingSentNanos, lastReceivedNanos) > getTimeoutNanos();
+    }
+
+    private void sample(long rttNanos) {
+        if (!measured) {
+            srttNanos = rttNanos;
+            rttvarNanos = rttNanos / 2;
+            measured = true;
+            return;
+        }
+        rttvarNanos = (3 * rttvarNanos + Math.abs(srttNanos - rttNanos)) / 4;
+        srttNanos = (7 * srttNanos + rttNanos) / 8;
+    }
+
+    // ---- 服务端 ----
+
+    /**
+     * 收到 PING，记录客户端附带的测量值
+     */
+    public synchronized void onPing(String message, long now) {
+        received(now);
+        String[] parts = message.split(" ");
+        if (parts.length != 3) {
+            return;
+        }
+        try {
+            long srttMicros = Long.parseLong(parts[1]);
+            long rttvarMicros = Long.parseLong(parts[2]);
+            if (srttMicros >= 0 && rttvarMicros >= 0) {
+                srttNanos = TimeUnit.MICROSECONDS.toNanos(srttMicros);
+                rttvarNanos = TimeUnit.MICROSECONDS.toNanos(rttvarMicros);
+                measured = true;
+            }
+        } catch (NumberFormatException e) {
+            // 忽略无效的测量值
+        }
+    }
+
+    /**
+     * 超过一个心跳间隔加存活超时没有收到客户端的任何数据
+     */
+    public boolean isSilent(long now) {
+        return now - lastReceivedNanos > intervalNanos + getTimeoutNanos();
+    }
+
+    // ---- 两端共用 ----
+
+    /**
+     * 收到任何数据时调用
+     */
+    public void received(long now) {
+        lastReceivedNanos = now;
+    }
+
+    public synchronized boolean isMeasured() {
+        return measured;
+    }
+
+    public synchronized long getRttMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(srttNanos);
+    }
+
+    public synchronized long getJitterMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(rttvarNanos);
+    }
+
+    public long getTimeoutMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getTimeoutNanos());
+    }
+
+    private synchronized long getTimeoutNanos() {
+        if (!measured) {
+            return TimeUnit.MILLISECONDS.toNanos(INITIAL_TIMEOUT_MILLIS);
+        }
+        long timeout = TIMEOUT_MULTIPLIER * (srttNanos + 4 * rttvarNanos);
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_TIMEOUT_MILLIS),
+                Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_TIMEOUT_MILLIS), timeout));
+    }
+
+    /**
+     * 按往返时间得出的微批等待上限，还没有测量值时不限制
+     */
+    public synchronized long getBatchDelayLimitMicros() {
+        if (!measured) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(MIN_BATCH_DELAY_MICROS, TimeUnit.NANOSECONDS.toMicros(srttNanos) / BATCH_RTT_DIVISOR);
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (!measured) {
+            return "RTT unknown, timeout " + getTimeoutMillis() + " ms";
+        }
+        return String.format(Locale.ROOT, "RTT %.1f ms, jitter %.1f ms, timeout %d ms",
+                srttNanos / 1e6, rttvarNanos / 1e6, getTimeoutMillis());
+    }
+}
@@ -0,0 +1,850 @@
+package com.example.proxy.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 单个调试会话对元数据缓存的使用：解析两个方向上的 JDWP 包
+ *
+ * 调试器 -> JVM：可缓存的命令命中时直接回复，不再转发给目标。
+ * JVM -> 调试器：从 IDSizes、AllClasses、ClassesBySignature 等回复和 ClassPrepare 事件中
+ * 学习本会话的 referenceTypeID -> 签名映射，把可缓存的回复写入缓存；
+ * ClassUnload、RedefineClasses、VMDeath 时让缓存失效。
+ *
+ * 只有在"完整列表"（AllClasses 或 ClassesBySignature）中签名唯一的类才使用缓存，
+ * 同名类被不同 ClassLoader 加载时无法区分，一律转发。
+ * 每个会话在使用缓存之前，先用一条带 methodID/fieldID 的真实回复和缓存比对一次，
+ * 确认目标还是写入缓存的那个 JVM 进程。
+ *
+ * 缓存本身由 {@link Store} 提供：服务端是内存中按目标地址共享的缓存，客户端可以是磁盘上的持久缓存。
+ *
+ * 要求按 JDWP 包分帧（X-Frame-Mode: jdwp-packet）。
+ */
+public class JdwpMetadataSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(JdwpMetadataSession.class);
+
+    private static final int HEADER_LENGTH = JdwpPacketReader.HEADER_LENGTH;
+    private static final byte REPLY_FLAG = (byte) 0x80;
+    private static final long AMBIGUOUS = Long.MIN_VALUE;
+
+    // 命令集
+    private static final int VIRTUAL_MACHINE = 1;
+    private static final int REFERENCE_TYPE = 2;
+    private static final int METHOD = 6;
+    private static final int EVENT = 64;
+
+    // VirtualMachine 命令
+    private static final int VERSION = 1;
+    private static final int CLASSES_BY_SIGNATURE = 2;
+    private static final int ALL_CLASSES = 3;
+    private static final int ID_SIZES = 7;
+    private static final int REDEFINE_CLASSES = 18;
+    private static final int ALL_CLASSES_WITH_GENERIC = 20;
+
+    // ReferenceType 命令
+    private static final int SIGNATURE = 1;
+    private static final int FIELDS = 4;
+    private static final int METHODS = 5;
+    private static final int FIELDS_WITH_GENERIC = 14;
+    private static final int METHODS_WITH_GENERIC = 15;
+    private static final int CONSTANT_POOL = 18;
+
+    // Event.Composite 及事件类型
+    private static final int COMPOSITE = 100;
+    private static final int SINGLE_STEP = 1;
+    private static final int BREAKPOINT = 2;
+    private static final int FRAME_POP = 3;
+    private static final int EXCEPTION = 4;
+    private static final int USER_DEFINED = 5;
+    private static final int THREAD_START = 6;
+    private static final int THREAD_DEATH = 7;
+    private static final int CLASS_PREPARE = 8;
+    private static final int CLASS_UNLOAD = 9;
+    private static final int CLASS_LOAD = 10;
+    private static final int FIELD_ACCESS = 20;
+    private static final int FIELD_MODIFICATION = 21;
+    private static final int EXCEPTION_CATCH = 30;
+    private static final int METHOD_ENTRY = 40;
+    private static final int METHOD_EXIT = 41;
+    private static final int METHOD_EXIT_WITH_RETURN_VALUE = 42;
+    private static final int MONITOR_CONTENDED_ENTER = 43;
+    private static final int MONITOR_CONTENDED_ENTERED = 44;
+    private static final int MONITOR_WAIT = 45;
+    private static final int MONITOR_WAITED = 46;
+    private static final int VM_START = 90;
+    private static final int VM_DEATH = 99;
+
+    private final String sessionId;
+    private final Store store;
+    private final Consumer<byte[]> replySender;
+
+    // IDSizes 回复之前不缓存
+    private volatile int fieldIdSize = -1;
+    private volatile int methodIdSize = -1;
+    private volatile int objectIdSize = -1;
+    private volatile int referenceTypeIdSize = -1;
+
+    private boolean commandHandshakeSeen;
+    private boolean replyHandshakeSeen;
+    private volatile boolean disabled;
+
+    // 本会话的 referenceTypeID -> 签名
+    private final Map<Long, String> signatures = new ConcurrentHashMap<>();
+    // 本会话见过的 methodID -> 方法名和签名，Method 命令按名字缓存
+    private final Map<Long, byte[]> methodNames = new ConcurrentHashMap<>();
+    // 完整列表中得到的 签名 -> 唯一的 referenceTypeID（多个时为 AMBIGUOUS）
+    private final Map<String, Long> uniqueTypes = new ConcurrentHashMap<>();
+    private volatile boolean allClassesListed;
+    // VirtualMachine.Version 的回复，和已加载的类一起确定目标 JVM 的构建
+    private volatile byte[] version;
+    // 已验证的缓存 epoch，-1 表示未验证
+    private volatile long verifiedEpoch = -1;
+
+    // 等待回复的命令
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+    private volatile int hits;
+
+    /**
+     * @param replySender 把缓存命中的回复包发给调试器
+     */
+    public JdwpMetadataSession(String sessionId, Store store, Consumer<byte[]> replySender) {
+        this.sessionId = sessionId;
+        this.store = store;
+        this.replySender = replySender;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * 处理调试器发往 JVM 的一帧
+     * @return 仍需转发给 JVM 的字节，全部命中缓存时为空数组
+     */
+    public byte[] onCommands(byte[] frame) {
+        if (disabled) {
+            return frame;
+        }
+        if (!commandHandshakeSeen) {
+            commandHandshakeSeen = true;
+            return frame;
+        }
+        ByteArrayOutputStream forwarded = null;
+        int offset = 0;
+        while (offset < frame.length) {
+            int length = JdwpPacketReader.packetLength(frame, offset);
+            boolean answered = false;
+            if (!disabled) {
+                try {
+                    answered = onCommand(ByteBuffer.wrap(frame, offset, length).slice());
+                } catch (RuntimeException e) {
+                    disable("Cannot parse command: " + e);
+                }
+            }
+            if (answered && forwarded == null) {
+                forwarded = new ByteArrayOutputStream(frame.length);
+                forwarded.write(frame, 0, offset);
+            } else if (!answered && forwarded != null) {
+                forwarded.write(frame, offset, length);
+            }
+            offset += length;
+        }
+        return forwarded != null ? forwarded.toByteArray() : frame;
+    }
+
+    /**
+     * 处理 JVM 发往调试器的一帧，只观察不修改
+     */
+    public void onReplies(byte[] frame) {
+        if (disabled) {
+            return;
+        }
+        if (!replyHandshakeSeen) {
+            replyHandshakeSeen = true;
+            return;
+        }
+        try {
+            int offset = 0;
+            while (offset < frame.length) {
+                int length = JdwpPacketReader.packetLength(frame, offset);
+                ByteBuffer packet = ByteBuffer.wrap(frame, offset, length).slice();
+                if (packet.get(8) == REPLY_FLAG) {
+                    onReply(packet);
+                } else if ((packet.get(9) & 0xFF) == EVENT && (packet.get(10) & 0xFF) == COMPOSITE) {
+                    onEvents(packet);
+                }
+                offset += length;
+            }
+        } catch (RuntimeException e) {
+            // 可能漏掉了 ClassUnload，保守起见清空目标的缓存
+            store.clear();
+            disable("Cannot parse reply: " + e);
+        }
+    }
+
+    /**
+     * @return 已用缓存回复时返回 true
+     */
+    private boolean onCommand(ByteBuffer packet) {
+        int id = packet.getInt(4);
+        int commandSet = packet.get(9) & 0xFF;
+        int command = packet.get(10) & 0xFF;
+        packet.position(HEADER_LENGTH);
+
+        if (commandSet == VIRTUAL_MACHINE) {
+            switch (command) {
+                case VERSION:
+                case ID_SIZES:
+                case ALL_CLASSES:
+                case ALL_CLASSES_WITH_GENERIC:
+                    pending.put(id, new Pending(commandSet, command));
+                    break;
+                case CLASSES_BY_SIGNATURE:
+                    Pending bySignature = new Pending(commandSet, command);
+                    bySignature.signature = readString(packet);
+                    pending.put(id, bySignature);
+                    break;
+                case REDEFINE_CLASSES:
+                    pending.put(id, onRedefine(packet));
+                    break;
+                default:
+                    break;
+            }
+            return false;
+        }
+        if (!isCacheable(commandSet, command) || referenceTypeIdSize <= 0) {
+            return false;
+        }
+
+        long typeId = readId(packet, referenceTypeIdSize);
+        String signature = signatures.get(typeId);
+        if (signature == null && commandSet == REFERENCE_TYPE && command == SIGNATURE) {
+            // 从回复中学习这个类型
+            Pending learning = new Pending(commandSet, command);
+            learning.typeId = typeId;
+            pending.put(id, learning);
+            return false;
+        }
+        Long unique = signature != null ? uniqueTypes.get(signature) : null;
+        if (unique == null || unique != typeId) {
+            return false;
+        }
+        CommandKey key = commandKey(commandSet, command, packet);
+
+        boolean verified = verifiedEpoch == store.epoch();
+        if (verified || (store.identifiesBuild() && isBuildLevel(key))) {
+            byte[] body = store.get(signature, key);
+            if (body != null) {
+                replySender.accept(reply(id, body));
+                hits++;
+                learnMethods(key, body);
+                return true;
+            }
+        }
+        Pending cacheable = new Pending(commandSet, command);
+        cacheable.signature = signature;
+        cacheable.key = key;
+        cacheable.generation = store.generation();
+        cacheable.epoch = store.epoch();
+        pending.put(id, cacheable);
+        return false;
+    }
+
+    private void onReply(ByteBuffer packet) {
+        Pending command = pending.remove(packet.getInt(4));
+        if (command == null || packet.getShort(9) != 0) {
+            return;
+        }
+        packet.position(HEADER_LENGTH);
+
+        if (command.commandSet == VIRTUAL_MACHINE) {
+            switch (command.command) {
+                case VERSION:
+                    version = new byte[packet.remaining()];
+                    packet.get(version);
+                    break;
+                case ID_SIZES:
+                    fieldIdSize = packet.getInt();
+                    methodIdSize = packet.getInt();
+                    objectIdSize = packet.getInt();
+                    referenceTypeIdSize = packet.getInt();
+                    break;
+                case ALL_CLASSES:
+                case ALL_CLASSES_WITH_GENERIC:
+                    onAllClasses(packet, command.command == ALL_CLASSES_WITH_GENERIC);
+                    break;
+                case CLASSES_BY_SIGNATURE:
+                    onClassesBySignature(packet, command.signature);
+                    break;
+                case REDEFINE_CLASSES:
+                    // 重定义期间其他会话可能又写入了旧内容
+                    for (String signature : command.redefined) {
+                        store.invalidate(signature);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return;
+        }
+        if (command.commandSet == REFERENCE_TYPE && command.command == SIGNATURE && command.key == null) {
+            learn(command.typeId, readString(packet));
+            return;
+        }
+        if (command.key != null) {
+            byte[] body = new byte[packet.remaining()];
+            packet.get(body);
+            learnMethods(command.key, body);
+            storeReply(command, body);
+        }
+    }
+
+    /**
+     * 写入回复；会话尚未验证时先和缓存比对
+     */
+    private void storeReply(Pending command, byte[] body) {
+        long epoch = store.epoch();
+        if (verifiedEpoch != epoch) {
+            if (command.epoch != epoch) {
+                return;
+            }
+            if (store.identifiesBuild() && isBuildLevel(command.key)) {
+                // 同一构建的任何进程都会给出相同的回复，不需要验证
+                store.put(command.signature, command.key, body, command.generation);
+                return;
+            }
+            Verification result = store.verify(command.signature, command.key, body);
+            if (result == Verification.MISMATCHED) {
+                // 清空后由后续的回复重新填充
+                logger.info("Session {}: Target JVM changed, metadata cache cleared", sessionId);
+                verifiedEpoch = store.epoch();
+                return;
+            } else if (result == Verification.MATCHED && carriesJvmIds(command, body)) {
+                verifiedEpoch = epoch;
+                return;
+            } else if (!store.isEmpty()) {
+                // 还不能确定缓存来自同一个 JVM，不往里写
+                return;
+            } else {
+                verifiedEpoch = epoch;
+            }
+        }
+        store.put(command.signature, command.key, body, command.generation);
+    }
+
+    /**
+     * Method 命令的参数是 methodID：已知方法名时换成"名字 + 签名"，不同进程之间也能命中
+     */
+    private CommandKey commandKey(int commandSet, int command, ByteBuffer packet) {
+        if (commandSet == METHOD && methodIdSize > 0) {
+            byte[] name = methodNames.get(readId(packet.duplicate(), methodIdSize));
+            if (name != null) {
+                return new CommandKey(commandSet, command, name, true);
+            }
+        }
+        byte[] arguments = new byte[packet.remaining()];
+        packet.get(arguments);
+        return new CommandKey(commandSet, command, arguments, false);
+    }
+
+    /**
+     * 从 Methods 回复中记录 methodID 对应的方法
+     */
+    private void learnMethods(CommandKey key, byte[] body) {
+        if (key.commandSet != REFERENCE_TYPE || (key.command != METHODS && key.command != METHODS_WITH_GENERIC)) {
+            return;
+        }
+        ByteBuffer reply = ByteBuffer.wrap(body);
+        int count = reply.getInt();
+        for (int i = 0; i < count; i++) {
+            long methodId = readId(reply, methodIdSize);
+            int start = reply.position();
+            readString(reply);
+            readString(reply);
+            byte[] name = Arrays.copyOfRange(body, start, reply.position());
+            if (key.command == METHODS_WITH_GENERIC) {
+                readString(reply);
+            }
+            reply.getInt();
+            methodNames.put(methodId, name);
+        }
+    }
+
+    private void onAllClasses(ByteBuffer packet, boolean withGeneric) {
+        int count = packet.getInt();
+        Map<String, Long> listed = new HashMap<>(count * 2);
+        long[] classHashes = allClassesListed ? null : new long[count];
+        int stableClasses = 0;
+        for (int i = 0; i < count; i++) {
+            packet.get();
+            long typeId = readId(packet, referenceTypeIdSize);
+            String signature = readString(packet);
+            if (withGeneric) {
+                readString(packet);
+            }
+            packet.getInt();
+            signatures.put(typeId, signature);
+            listed.merge(signature, typeId, (a, b) -> AMBIGUOUS);
+            if (classHashes != null && !isGenerated(signature)) {
+                classHashes[stableClasses++] = hash(signature);
+            }
+        }
+        uniqueTypes.clear();
+        uniqueTypes.putAll(listed);
+        if (classHashes != null) {
+            long[] sorted = Arrays.copyOf(classHashes, stableClasses);
+            Arrays.sort(sorted);
+            store.identify(version, sorted);
+        }
+        allClassesListed = true;
+    }
+
+    private void onClassesBySignature(ByteBuffer packet, String signature) {
+        int count = packet.getInt();
+        long unique = AMBIGUOUS;
+        for (int i = 0; i < count; i++) {
+            packet.get();
+            long typeId = readId(packet, referenceTypeIdSize);
+            packet.getInt();
+            signatures.put(typeId, signature);
+            unique = count == 1 ? typeId : AMBIGUOUS;
+        }
+        if (count == 0) {
+            uniqueTypes.remove(signature);
+        } else {
+            uniqueTypes.put(signature, unique);
+        }
+    }
+
+    /**
+     * 从不完整的来源（Signature 回复、ClassPrepare 事件）得知一个类型
+     */
+    private void learn(long typeId, String signature) {
+        signatures.put(typeId, signature);
+        Long known = uniqueTypes.get(signature);
+        if (known == null) {
+            if (allClassesListed) {
+                // 完整列表之后新加载的类，此前没有同名类
+                uniqueTypes.put(signature, typeId);
+            }
+        } else if (known != typeId && known != AMBIGUOUS) {
+            // 出现了另一个 ClassLoader 加载的同名类，缓存的内容属于哪个类已无法区分
+            uniqueTypes.put(signature, AMBIGUOUS);
+            store.invalidate(signature);
+        }
+    }
+
+    private Pending onRedefine(ByteBuffer packet) {
+        Pending redefine = new Pending(VIRTUAL_MACHINE, REDEFINE_CLASSES);
+        redefine.redefined = new ArrayList<>();
+        int count = packet.getInt();
+        for (int i = 0; i < count; i++) {
+            long typeId = readId(packet, referenceTypeIdSize);
+            int classFileLength = packet.getInt();
+            packet.position(packet.position() + classFileLength);
+            String signature = signatures.get(typeId);
+            if (signature == null) {
+                // 不知道是哪个类，只能整体作废
+                store.clear();
+                continue;
+            }
+            store.invalidate(signature);
+            redefine.redefined.add(signature);
+        }
+        return redefine;
+    }
+
+    private void onEvents(ByteBuffer packet) {
+        packet.position(HEADER_LENGTH);
+        packet.get();
+        int count = packet.getInt();
+        for (int i = 0; i < count; i++) {
+            int kind = packet.get() & 0xFF;
+            packet.getInt();
+            switch (kind) {
+                case CLASS_PREPARE:
+                    skip(packet, objectIdSize);
+                    packet.get();
+                    long typeId = readId(packet, referenceTypeIdSize);
+                    String signature = readString(packet);
+                    packet.getInt();
+                    learn(typeId, signature);
+                    break;
+                case CLASS_UNLOAD:
+                    String unloaded = readString(packet);
+                    // 同名类仍可能有其他 ClassLoader 的版本，AMBIGUOUS 保持不变
+                    uniqueTypes.computeIfPresent(unloaded, (k, v) -> v == AMBIGUOUS ? v : null);
+                    store.invalidate(unloaded);
+                    break;
+                case VM_DEATH:
+                    store.clear();
+                    break;
+                default:
+                    skipEvent(packet, kind);
+            }
+        }
+    }
+
+    /**
+     * 跳过不关心的事件；遇到未知事件类型时无法继续解析
+     */
+    private void skipEvent(ByteBuffer packet, int kind) {
+        switch (kind) {
+            case VM_START:
+            case THREAD_START:
+            case THREAD_DEATH:
+                skip(packet, objectIdSize);
+                break;
+            case SINGLE_STEP:
+            case BREAKPOINT:
+            case METHOD_ENTRY:
+            case METHOD_EXIT:
+                skip(packet, objectIdSize);
+                skipLocation(packet);
+                break;
+            case METHOD_EXIT_WITH_RETURN_VALUE:
+                skip(packet, objectIdSize);
+                skipLocation(packet);
+                skipValue(packet);
+                break;
+            case MONITOR_CONTENDED_ENTER:
+            case MONITOR_CONTENDED_ENTERED:
+                skip(packet, objectIdSize);
+                skipValue(packet);
+                skipLocation(packet);
+                break;
+            case MONITOR_WAIT:
+                skip(packet, objectIdSize);
+                skipValue(packet);
+                skipLocation(packet);
+                packet.getLong();
+                break;
+            case MONITOR_WAITED:
+                skip(packet, objectIdSize);
+                skipValue(packet);
+                skipLocation(packet);
+                packet.get();
+                break;
+            case EXCEPTION:
+                skip(packet, objectIdSize);
+                skipLocation(packet);
+                skipValue(packet);
+                skipLocation(packet);
+                break;
+            case FIELD_ACCESS:
+                skip(packet, objectIdSize);
+                skipLocation(packet);
+                packet.get();
+                skip(packet, referenceTypeIdSize + fieldIdSize);
+                skipValue(packet);
+                break;
+            case FIELD_MODIFICATION:
+                skip(packet, objectIdSize);
+                skipLocation(packet);
+                packet.get();
+                skip(packet, referenceTypeIdSize + fieldIdSize);
+                skipValue(packet);
+                skipValue(packet);
+                break;
+            case FRAME_POP:
+            case USER_DEFINED:
+            case CLASS_LOAD:
+            case EXCEPTION_CATCH:
+            default:
+                // 这些事件不会出现在 Composite 中
+                throw new IllegalArgumentException("Unexpected event kind " + kind);
+        }
+    }
+
+    private void skipLocation(ByteBuffer packet) {
+        packet.get();
+        skip(packet, referenceTypeIdSize + methodIdSize + 8);
+    }
+
+    /**
+     * 跳过带 tag 的值
+     */
+    private void skipValue(ByteBuffer packet) {
+        byte tag = packet.get();
+        switch (tag) {
+            case 'V':
+                break;
+            case 'B':
+            case 'Z':
+                skip(packet, 1);
+                break;
+            case 'C':
+            case 'S':
+                skip(packet, 2);
+                break;
+            case 'F':
+            case 'I':
+                skip(packet, 4);
+                break;
+            case 'D':
+            case 'J':
+                skip(packet, 8);
+                break;
+            case '[':
+            case 'L':
+            case 's':
+            case 't':
+            case 'g':
+            case 'l':
+            case 'c':
+                skip(packet, objectIdSize);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    private void disable(String reason) {
+        disabled = true;
+        pending.clear();
+        logger.warn("Session {}: Metadata cache disabled: {}", sessionId, reason);
+    }
+
+    /**
+     * 键或回复里带有 methodID/fieldID：不同 JVM 进程中几乎不可能相同，可以用来确认目标没有换。
+     * 没有方法或字段的类，回复只有一个 0，任何进程都一样，不能用于验证。
+     */
+    private static boolean carriesJvmIds(Pending command, byte[] body) {
+        if (command.commandSet == METHOD) {
+            return !command.key.byName;
+        }
+        boolean members = command.command == FIELDS || command.command == METHODS
+                || command.command == FIELDS_WITH_GENERIC || command.command == METHODS_WITH_GENERIC;
+        return members && body.length > 4 && ByteBuffer.wrap(body).getInt() > 0;
+    }
+
+    /**
+     * 键和回复里都不含本进程才有意义的 ID，同一构建的不同 JVM 进程回复相同。
+     * 按 methodID 缓存的 Method 命令属于写入它的进程。
+     */
+    static boolean isBuildLevel(CommandKey key) {
+        if (key.commandSet != REFERENCE_TYPE) {
+            return key.commandSet == METHOD && key.byName;
+        }
+        return key.command != FIELDS && key.command != METHODS && key.command != FIELDS_WITH_GENERIC
+                && key.command != METHODS_WITH_GENERIC && key.command != CONSTANT_POOL;
+    }
+
+    /**
+     * 运行时生成的类（lambda、动态代理、反射访问器等）和数组类，加载与否取决于运行状况，不参与构建标识
+     */
+    private static boolean isGenerated(String signature) {
+        // 隐藏类的名字形如 Foo$$Lambda$4.0x00007f3aa9000a08，地址每个进程都不同
+        return signature.startsWith("[") || signature.contains(".0x") || signature.contains("/0x") || signature.contains("$$")
+                || signature.contains("$Proxy") || signature.startsWith("Ljdk/internal/reflect/Generated");
+    }
+
+    /**
+     * 64 位 FNV-1a
+     */
+    private static long hash(String signature) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < signature.length(); i++) {
+            hash ^= signature.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 回复只取决于类本身、类加载后不会变化的命令
+     */
+    private static boolean isCacheable(int commandSet, int command) {
+        if (commandSet == REFERENCE_TYPE) {
+            switch (command) {
+                case SIGNATURE:
+                case 3:     // Modifiers
+                case FIELDS:
+                case METHODS:
+                case 7:     // SourceFile
+                case 12:    // SourceDebugExtension
+                case 13:    // SignatureWithGeneric
+                case FIELDS_WITH_GENERIC:
+                case METHODS_WITH_GENERIC:
+                case 17:    // ClassFileVersion
+                case CONSTANT_POOL:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        if (commandSet == METHOD) {
+            switch (command) {
+                case 1:     // LineTable
+                case 2:     // VariableTable
+                case 3:     // Bytecodes
+                case 5:     // VariableTableWithGeneric
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] reply(int id, byte[] body) {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER_LENGTH + body.length);
+        packet.putInt(HEADER_LENGTH + body.length);
+        packet.putInt(id);
+        packet.put(REPLY_FLAG);
+        packet.putShort((short) 0);
+        packet.put(body);
+        return packet.array();
+    }
+
+    private static long readId(ByteBuffer packet, int size) {
+        long id = 0;
+        for (int i = 0; i < size; i++) {
+            id = (id << 8) | (packet.get() & 0xFF);
+        }
+        return id;
+    }
+
+    private static String readString(ByteBuffer packet) {
+        int length = packet.getInt();
+        String value = new String(packet.array(), packet.arrayOffset() + packet.position(), length,
+                                  StandardCharsets.UTF_8);
+        packet.position(packet.position() + length);
+        return value;
+    }
+
+    private static void skip(ByteBuffer packet, int bytes) {
+        packet.position(packet.position() + bytes);
+    }
+
+    /**
+     * 元数据缓存的存储
+     *
+     * epoch 在整体作废（目标换成了另一个 JVM 进程）时改变，会话的验证结果只在同一个 epoch 内有效；
+     * generation 在每次失效时改变，命令发出后若发生过失效，它的回复不再写入。
+     */
+    public interface Store {
+        long epoch();
+
+        long generation();
+
+        byte[] get(String signature, CommandKey key);
+
+        /**
+         * @param generation 命令发出时的 generation
+         */
+        void put(String signature, CommandKey key, byte[] body, long generation);
+
+        /**
+         * 用目标 JVM 的真实回复验证缓存，不一致时整体作废
+         */
+        Verification verify(String signature, CommandKey key, byte[] body);
+
+        /**
+         * 当前 epoch 中没有可用于验证的内容
+         */
+        boolean isEmpty();
+
+        /**
+         * 类被卸载、重定义或出现同名类时作废
+         */
+        void invalidate(String signature);
+
+        /**
+         * 目标 JVM 退出或被替换时作废
+         */
+        void clear();
+
+        /**
+         * 第一次拿到完整类列表时回调
+         * @param version VirtualMachine.Version 的回复，调试器没有请求时为 null
+         * @param classHashes 已加载类（不含运行时生成的类）签名的哈希，已排序
+         */
+        default void identify(byte[] version, long[] classHashes) {
+        }
+
+        /**
+         * 是否已确认目标 JVM 的构建：确认后，与进程无关的回复不经验证即可使用
+         */
+        default boolean identifiesBuild() {
+            return false;
+        }
+    }
+
+    /**
+     * 命令的缓存键：命令集、命令，以及 referenceTypeID 之后的参数（如 methodID）
+     */
+    public static final class CommandKey {
+        final int commandSet;
+        public final int command;
+        final byte[] arguments;
+        // arguments 是方法名和签名，而不是 methodID
+        final boolean byName;
+
+        public CommandKey(int commandSet, int command, byte[] arguments, boolean byName) {
+            this.commandSet = commandSet;
+            this.command = command;
+            this.arguments = arguments;
+            this.byName = byName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CommandKey)) {
+                return false;
+            }
+            CommandKey other = (CommandKey) o;
+            return commandSet == other.commandSet && command == other.command && byName == other.byName
+                    && Arrays.equals(arguments, other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return (commandSet * 31 + command) * 31 + Arrays.hashCode(arguments);
+        }
+    }
+
+    /**
+     * 验证结果
+     */
+    public enum Verification {
+        /** 缓存中没有这条回复 */
+        ABSENT,
+        /** 和缓存一致 */
+        MATCHED,
+        /** 和缓存不一致，已整体作废 */
+        MISMATCHED
+    }
+
+    /**
+     * 等待回复的命令
+     */
+    private static class Pending {
+        final int commandSet;
+        public final int command;
+        String signature;
+        long typeId;
+        CommandKey key;
+        long generation;
+        long epoch;
+        List<String> redefined;
+
+        Pending(int commandSet, int command) {
+            this.commandSet = commandSet;
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.proxy.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * JDWP 包读取器
+ *
+ * 按 JDWP 包头（4 字节长度 + 4 字节 id + 1 字节 flags + 2 字节 command/errorCode）切分字节流，
+ * 每次返回的帧只包含完整的包：一个包，或已经到达的多个包打包在一起，绝不会是半个包。
+ * 连接开始时的 "JDWP-Handshake" 单独作为一帧返回。
+ *
+ * 客户端在本地立即回答调试器的握手，不等隧道建立；握手串仍随第一批命令发往服务端，目标的回显由客户端丢弃。
+ * 客户端带 {@link #EARLY_HANDSHAKE_HEADER} 时，服务端在会话建立时就与目标握手，并丢弃客户端转发的握手串。
+ *
+ * 设置了 {@link BatchPolicy} 时，源端成批产生包的期间凑齐一帧后会再等一小段时间，把随后到达的包并入同一帧。
+ */
+public class JdwpPacketReader {
+
+    /** 客户端声明帧模式的握手 header */
+    public static final String FRAME_MODE_HEADER = "X-Frame-Mode";
+    /** 每个二进制帧只携带完整 JDWP 包 */
+    public static final String FRAME_MODE_PACKET = "jdwp-packet";
+    /** 客户端请求服务端在会话建立时与目标握手 */
+    public static final String EARLY_HANDSHAKE_HEADER = "X-Early-Handshake";
+    public static final String EARLY_HANDSHAKE_VERSION = "1";
+
+    public static final int HEADER_LENGTH = 11;
+    public static final byte[] HANDSHAKE = "JDWP-Handshake".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DEFAULT_MAX_FRAME_BYTES = 64 * 1024;
+    private static final int REPLY_FLAG = 0x80;
+
+    private final InputStream in;
+    private final int maxFrameBytes;
+    private final BatchPolicy.Stream batch;
+    private boolean handshakePending;
+    private boolean frameFull;
+    private int framePackets;
+    private boolean lastPacketIsReply;
+
+    private byte[] buffer = new byte[8192];
+    private int start;
+    private int end;
+
+    public JdwpPacketReader(InputStream in, boolean expectHandshake) {
+        this(in, expectHandshake, DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    public JdwpPacketReader(InputStream in, boolean expectHandshake, BatchPolicy.Stream batch) {
+        this(in, expectHandshake, DEFAULT_MAX_FRAME_BYTES, batch);
+    }
+
+    public JdwpPacketReader(InputStream in, boolean expectHandshake, int maxFrameBytes) {
+        this(in, expectHandshake, maxFrameBytes, BatchPolicy.DISABLED.newStream());
+    }
+
+    /**
+     * @param batch 本方向的微批状态，见 {@link BatchPolicy#newStream()}
+     */
+    public JdwpPacketReader(InputStream in, boolean expectHandshake, int maxFrameBytes, BatchPolicy.Stream batch) {
+        this.in = in;
+        this.handshakePending = expectHandshake;
+        this.maxFrameBytes = maxFrameBytes;
+        this.batch = batch;
+    }
+
+    /**
+     * 读取下一帧
+     * @return 完整包组成的帧；流正常结束时返回 null
+     */
+    public byte[] nextFrame() throws IOException {
+        while (true) {
+            int complete = handshakePending ? completeHandshake() : completePackets();
+            if (complete > 0 && (frameFull || handshakePending || in.available() <= 0) && !awaitMore()) {
+                batch.flushed(handshakePending ? 1 : framePackets);
+                handshakePending = false;
+                byte[] frame = Arrays.copyOfRange(buffer, start, start + complete);
+                start += complete;
+                return frame;
+            }
+            if (!fill()) {
+                if (start == end) {
+                    return null;
+                }
+                throw new EOFException("Stream ended inside a JDWP packet");
+            }
+        }
+    }
+
+    /**
+     * 微批：帧已凑齐但源端还在产生数据时继续等待，等到新数据时返回 true
+     */
+    private boolean awaitMore() throws IOException {
+        if (handshakePending || frameFull) {
+            return false;
+        }
+        return batch.awaitMore(in, !lastPacketIsReply);
+    }
+
+    /**
+     * 帧以握手串开头时返回其余部分，否则原样返回
+     */
+    public static byte[] stripHandshake(byte[] frame) {
+        if (frame.length < HANDSHAKE.length
+                || !Arrays.equals(frame, 0, HANDSHAKE.length, HANDSHAKE, 0, HANDSHAKE.length)) {
+            return frame;
+        }
+        return Arrays.copyOfRange(frame, HANDSHAKE.length, frame.length);
+    }
+
+    /**
+     * 缓冲区中握手串已完整到达时返回其长度
+     */
+    private int completeHandshake() throws IOException {
+        int available = end - start;
+        int check = Math.min(available, HANDSHAKE.length);
+        for (int i = 0; i < check; i++) {
+            if (buffer[start + i] != HANDSHAKE[i]) {
+                throw new IOException("Invalid JDWP handshake");
+            }
+        }
+        return available >= HANDSHAKE.length ? HANDSHAKE.length : 0;
+    }
+
+    /**
+     * 缓冲区开头连续完整包的总字节数（不超过 maxFrameBytes，除非第一个包本身更大）
+     */
+    private int completePackets() throws IOException {
+        int pos = start;
+        frameFull = false;
+        framePackets = 0;
+        while (end - pos >= 4) {
+            int length = packetLength(buffer, pos);
+            if (length < HEADER_LENGTH) {
+                throw new IOException("Invalid JDWP packet length: " + length);
+            }
+            if (end - pos < length) {
+                if (pos == start) {
+                    // 第一个包还没读完，确保缓冲区能容纳整个包
+                    ensureCapacity(length);
+                    return 0;
+                }
+                break;
+            }
+            if (pos > start && pos - start + length > maxFrameBytes) {
+                frameFull = true;
+                break;
+            }
+            lastPacketIsReply = (buffer[pos + 8] & REPLY_FLAG) != 0;
+            framePackets++;
+            pos += length;
+        }
+        return pos - start;
+    }
+
+    /**
+     * 向缓冲区读入更多数据
+     * @return 流结束时返回 false
+     */
+    private boolean fill() throws IOException {
+        if (end == buffer.length) {
+            compact();
+            if (end == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read == -1) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    private void ensureCapacity(int packetLength) {
+        if (packetLength > buffer.length - start) {
+            compact();
+            if (packetLength > buffer.length) {
+                buffer = Arrays.copyOf(buffer, packetLength);
+            }
+        }
+    }
+
+    private void compact() {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+    }
+
+    public static int packetLength(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.proxy.common;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 挂起事件预取：服务端与客户端共用的协议部分
+ *
+ * 断点、单步等挂起事件到达后，调试器会接连请求线程栈、局部变量表、变量值、对象类型等，
+ * 每一步都要穿过隧道。服务端在离目标 JVM 很近的地方先把这些回复取好，
+ * 用一个代理私有的 JDWP 命令包（命令集 {@link #COMMAND_SET}，调试器永远看不到）赶在事件之前推给客户端，
+ * 客户端据此直接回答调试器的后续请求。
+ *
+ * 推送包内容：
+ * <pre>
+ * [int 序号][int fieldID 长度][int methodID 长度][int objectID 长度][int referenceTypeID 长度][int frameID 长度]
+ * [int 条数] 每条 [byte 命令集][byte 命令][int 参数长度][参数][int 回复长度][回复]
+ * </pre>
+ * 序号是服务端开始预取时已收到的"改变状态的命令"（{@link #invalidates}）数量，
+ * 客户端已经发出更多这类命令时，推送的内容可能已经过时，直接丢弃。
+ *
+ * 只在按 JDWP 包分帧、且客户端在握手时带了 {@link #PREFETCH_HEADER} 时启用。
+ *
+ * 目标 JVM 每在回复中发出一次对象 ID 就为它加一次引用计数，调试器只为自己收到的 ID 发 DisposeObjects。
+ * 预取回复中调试器没有用到的对象 ID 由代理释放（{@link #disposeObjects}）：服务端释放没有推送出去的预取，
+ * 客户端在预取结果作废时释放没有用来回答调试器的部分。
+ * 代理自己发出的命令使用最高位为 1 的包 ID（调试器从 1 开始递增分配），服务端和客户端各用一半，回复不交给调试器。
+ */
+public final class JdwpPrefetch {
+
+    public static final String PREFETCH_HEADER = "X-Prefetch";
+    public static final String PREFETCH_VERSION = "1";
+
+    // JDWP 规定 128 以上的命令集留给厂商扩展
+    static final int COMMAND_SET = 0xC8;
+    static final int PUSH = 1;
+
+    public static final int VIRTUAL_MACHINE = 1;
+    static final int REFERENCE_TYPE = 2;
+    public static final int METHOD = 6;
+    public static final int OBJECT_REFERENCE = 9;
+    public static final int STRING_REFERENCE = 10;
+    public static final int THREAD_REFERENCE = 11;
+    static final int EVENT_REQUEST = 15;
+    public static final int STACK_FRAME = 16;
+    public static final int EVENT = 64;
+
+    public static final int ID_SIZES = 7;
+    public static final int DISPOSE_OBJECTS = 14;
+    public static final int VARIABLE_TABLE_WITH_GENERIC = 5;
+    public static final int REFERENCE_TYPE_OF = 1;
+    public static final int STRING_VALUE = 1;
+    public static final int THREAD_NAME = 1;
+    public static final int FRAMES = 6;
+    static final int FRAME_COUNT = 7;
+    public static final int GET_VALUES = 1;
+    public static final int THIS_OBJECT = 3;
+    public static final int COMPOSITE = 100;
+
+    // 代理命令的包 ID：服务端 0x80000000 起，客户端 0xC0000000 起
+    public static final int SERVER_ID_BASE = 0x80000000;
+    public static final int CLIENT_ID_BASE = 0xC0000000;
+    public static final int ID_MASK = 0x3FFFFFFF;
+
+    private JdwpPrefetch() {
+    }
+
+    /**
+     * 代理自己发出的命令（及其回复）的包 ID
+     */
+    public static boolean isProxyId(int id) {
+        return id < 0;
+    }
+
+    /**
+     * VirtualMachine.DisposeObjects：每个对象 ID 出现几次就释放几次引用
+     */
+    public static byte[] disposeObjects(int id, List<Long> objectIds, int objectIdSize) {
+        Map<Long, Integer> counts = new LinkedHashMap<>();
+        for (long objectId : objectIds) {
+            counts.merge(objectId, 1, Integer::sum);
+        }
+        ByteBuffer arguments = ByteBuffer.allocate(4 + counts.size() * (objectIdSize + 4));
+        arguments.putInt(counts.size());
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            writeId(arguments, entry.getKey(), objectIdSize);
+            arguments.putInt(entry.getValue());
+        }
+        return command(id, VIRTUAL_MACHINE, DISPOSE_OBJECTS, arguments.array());
+    }
+
+    /**
+     * 可能改变线程状态、栈帧、变量值或对象 ID 的命令：恢复执行、调用方法、修改值、释放对象 ID 等。
+     * 只有查询类命令不在此列，EventRequest 的增删不影响已取得的内容
+     */
+    public static boolean invalidates(int commandSet, int command) {
+        switch (commandSet) {
+            case VIRTUAL_MACHINE:
+                // Dispose、Suspend、Resume、Exit、DisposeObjects、RedefineClasses
+                return command == 6 || command == 8 || command == 9 || command == 10 || command == 14
+                        || command == 18;
+            case REFERENCE_TYPE:
+            case METHOD:
+            case STRING_REFERENCE:
+            case 12:    // ThreadGroupReference
+            case 14:    // ClassLoaderReference
+            case EVENT_REQUEST:
+            case 17:    // ClassObjectReference
+            case 18:    // ModuleReference
+                return false;
+            case 3:     // ClassType：Superclass 之外都会执行代码或修改值
+                return command != 1;
+            case OBJECT_REFERENCE:
+                // ReferenceType、GetValues、MonitorInfo、IsCollected、ReferringObjects
+                return !(command == 1 || command == 2 || command == 4 || command == 9 || command == 10);
+            case THREAD_REFERENCE:
+                // Suspend、Resume、Stop、Interrupt、ForceEarlyReturn
+                return command == 2 || command == 3 || command == 10 || command == 11 || command == 14;
+            case 13:    // ArrayReference.SetValues
+                return command == 3;
+            case STACK_FRAME:
+                // SetValues、PopFrames
+                return command == 2 || command == 4;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * 值的长度（不含标签）
+     */
+    public static int valueLength(byte tag, int objectIdSize) {
+        switch (tag) {
+            case 'V':
+                return 0;
+            case 'B':
+            case 'Z':
+                return 1;
+            case 'C':
+            case 'S':
+                return 2;
+            case 'I':
+            case 'F':
+                return 4;
+            case 'J':
+            case 'D':
+                return 8;
+            case '[':
+            case 'L':
+            case 's':
+            case 't':
+            case 'g':
+            case 'l':
+            case 'c':
+                return objectIdSize;
+            default:
+                throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    public static boolean isObjectTag(byte tag) {
+        return tag == '[' || tag == 'L' || tag == 's' || tag == 't' || tag == 'g' || tag == 'l' || tag == 'c';
+    }
+
+    public static long readId(ByteBuffer buffer, int size) {
+        long id = 0;
+        for (int i = 0; i < size; i++) {
+            id = (id << 8) | (buffer.get() & 0xFF);
+        }
+        return id;
+    }
+
+    public static void writeId(ByteBuffer buffer, long id, int size) {
+        for (int i = size - 1; i >= 0; i--) {
+            buffer.put((byte) (id >>> (i * 8)));
+        }
+    }
+
+    /**
+     * JDWP 包头之后的部分
+     */
+    public static ByteBuffer body(byte[] packet) {
+        return ByteBuffer.wrap(packet, 11, packet.length - 11).slice();
+    }
+
+    public static byte[] command(int id, int commandSet, int command, byte[] arguments) {
+        ByteBuffer packet = ByteBuffer.allocate(11 + arguments.length);
+        packet.putInt(11 + arguments.length).putInt(id).put((byte) 0);
+        packet.put((byte) commandSet).put((byte) command).put(arguments);
+        return packet.array();
+    }
+
+    static byte[] reply(int id, byte[] body) {
+        ByteBuffer packet = ByteBuffer.allocate(11 + body.length);
+        packet.putInt(11 + body.length).putInt(id).put((byte) 0x80).putShort((short) 0).put(body);
+        return packet.array();
+    }
+
+    /**
+     * 预取到的一条命令及其回复
+     */
+    public static final class Entry {
+        final int commandSet;
+        public final int command;
+        final byte[] arguments;
+        final byte[] reply;
+
+        public Entry(int commandSet, int command, byte[] arguments, byte[] reply) {
+            this.commandSet = commandSet;
+            this.command = command;
+            this.arguments = arguments;
+            this.reply = reply;
+        }
+    }
+
+    /**
+     * 一次推送
+     */
+    public static final class Push {
+        final int sequence;
+        // fieldID、methodID、objectID、referenceTypeID、frameID
+        final int[] idSizes;
+        final List<Entry> entries;
+
+        public Push(int sequence, int[] idSizes, List<Entry> entries) {
+            this.sequence = sequence;
+            this.idSizes = idSizes;
+            this.entries = entries;
+        }
+
+        public byte[] encode() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            ByteBuffer header = ByteBuffer.allocate(4 * 7);
+            header.putInt(sequence);
+            for (int size : idSizes) {
+                header.putInt(size);
+            }
+            header.putInt(entries.size());
+            body.write(header.array(), 0, header.capacity());
+            for (Entry entry : entries) {
+                ByteBuffer item = ByteBuffer.allocate(2 + 4 + entry.arguments.length + 4 + entry.reply.length);
+                item.put((byte) entry.commandSet).put((byte) entry.command);
+                item.putInt(entry.arguments.length).put(entry.arguments);
+                item.putInt(entry.reply.length).put(entry.reply);
+                body.write(item.array(), 0, item.capacity());
+            }
+            return command(0, COMMAND_SET, PUSH, body.toByteArray());
+        }
+
+        static Push decode(byte[] packet) {
+            ByteBuffer body = body(packet);
+            int sequence = body.getInt();
+            int[] idSizes = new int[5];
+            for (int i = 0; i < idSizes.length; i++) {
+                idSizes[i] = body.getInt();
+            }
+            int count = body.getInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int commandSet = body.get() & 0xFF;
+                int command = body.get() & 0xFF;
+                byte[] arguments = new byte[body.getInt()];
+                body.get(arguments);
+                byte[] reply = new byte[body.getInt()];
+                body.get(reply);
+                entries.add(new Entry(commandSet, command, arguments, reply));
+            }
+            return new Push(sequence, idSizes, entries);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.example.proxy.common;
+
+import com.example.proxy.common.JdwpPrefetch.Entry;
+import com.example.proxy.common.JdwpPrefetch.Push;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static com.example.proxy.common.JdwpPrefetch.*;
+
+/**
+ * 客户端的挂起事件预取结果：用服务端推送的回复直接回答调试器
+ *
+ * 推送包从 JVM -> 调试器方向的数据中剔除，调试器看不到。
+ * 调试器发出任何改变状态的命令（恢复执行、调用方法、修改值等）时全部作废。
+ * ThreadReference.Frames 可以按任意区间从完整栈帧中截取，StackFrame.GetValues 可以按任意顺序取已预取变量的子集。
+ *
+ * 推送中的对象和类 ID 在目标 JVM 中各占一次引用。作废时没有用来回答调试器的那部分，
+ * 以及到达时已经过时的推送，随调试器的下一帧命令发出 DisposeObjects 释放。
+ */
+public class JdwpPrefetchCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(JdwpPrefetchCache.class);
+
+    private static final byte REPLY_FLAG = (byte) 0x80;
+
+    private final String sessionId;
+    private final Consumer<byte[]> replySender;
+
+    private boolean commandHandshakeSeen;
+    private boolean replyHandshakeSeen;
+    private boolean disabled;
+
+    // 已发出的改变状态的命令数，与服务端的计数对应
+    private int invalidations;
+    // fieldID、methodID、objectID、referenceTypeID、frameID
+    private int[] idSizes;
+    // [命令集][命令][参数] -> 回复
+    private final Map<ByteBuffer, byte[]> replies = new HashMap<>();
+    // 线程 ID -> 全部栈帧
+    private final Map<ByteBuffer, byte[]> frames = new HashMap<>();
+    // 线程 ID + 栈帧 ID -> slot -> [签名首字符][带标签的值]
+    private final Map<ByteBuffer, Map<Integer, byte[]>> values = new HashMap<>();
+    // 还没有用来回答调试器的对象和类 ID：[命令集][命令][参数或栈帧、slot] -> ID
+    private final Map<ByteBuffer, Long> unconsumed = new HashMap<>();
+    // 等待释放的 ID，每次出现释放一次引用
+    private final List<Long> disposals = new ArrayList<>();
+    private int objectIdSize;
+    private int nextDisposeId;
+
+    private int pushes;
+    private int hits;
+
+    /**
+     * @param replySender 把预取命中的回复包发给调试器
+     */
+    public JdwpPrefetchCache(String sessionId, Consumer<byte[]> replySender) {
+        this.sessionId = sessionId;
+        this.replySender = replySender;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getPushes() {
+        return pushes;
+    }
+
+    /**
+     * 处理调试器发往 JVM 的一帧
+     * @return 仍需转发的字节，全部命中时为空数组
+     */
+    public synchronized byte[] onCommands(byte[] frame) {
+        if (!commandHandshakeSeen) {
+            commandHandshakeSeen = true;
+            return frame;
+        }
+        ByteArrayOutputStream forwarded = null;
+        int offset = 0;
+        while (offset < frame.length) {
+            int length = JdwpPacketReader.packetLength(frame, offset);
+            boolean answered = false;
+            int commandSet = frame[offset + 9] & 0xFF;
+            int command = frame[offset + 10] & 0xFF;
+            if (invalidates(commandSet, command)) {
+                invalidations++;
+                clear();
+            } else if (!disabled && idSizes != null) {
+                try {
+                    answered = answer(ByteBuffer.wrap(frame, offset, length).slice());
+                } catch (RuntimeException e) {
+                    disable("Cannot parse command: " + e);
+                }
+            }
+            if (answered && forwarded == null) {
+                forwarded = new ByteArrayOutputStream(frame.length);
+                forwarded.write(frame, 0, offset);
+            } else if (!answered && forwarded != null) {
+                forwarded.write(frame, offset, length);
+            }
+            offset += length;
+        }
+        if (disposals.isEmpty()) {
+            return forwarded != null ? forwarded.toByteArray() : frame;
+        }
+        // 释放命令跟在调试器的命令后面发出，回复由服务端丢弃
+        if (forwarded == null) {
+            forwarded = new ByteArrayOutputStream(frame.length + 64);
+            forwarded.write(frame, 0, frame.length);
+        }
+        byte[] dispose = disposeObjects(CLIENT_ID_BASE | (nextDisposeId++ & ID_MASK), disposals, objectIdSize);
+        forwarded.write(dispose, 0, dispose.length);
+        logger.debug("Session {}: Disposing {} unused prefetched references", sessionId, disposals.size());
+        disposals.clear();
+        return forwarded.toByteArray();
+    }
+
+    /**
+     * 处理 JVM 发往调试器的一帧
+     * @return 去掉推送包之后的字节
+     */
+    public synchronized byte[] onReplies(byte[] frame) {
+        if (!replyHandshakeSeen) {
+            replyHandshakeSeen = true;
+            return frame;
+        }
+        ByteArrayOutputStream forwarded = null;
+        int offset = 0;
+        while (offset < frame.length) {
+            int length = JdwpPacketReader.packetLength(frame, offset);
+            boolean push = frame[offset + 8] != REPLY_FLAG && (frame[offset + 9] & 0xFF) == COMMAND_SET;
+            // 代理命令的回复通常已被服务端丢弃
+            boolean proxyReply = frame[offset + 8] == REPLY_FLAG
+                    && isProxyId(ByteBuffer.wrap(frame).getInt(offset + 4));
+            if (push || proxyReply) {
+                // 其他代理私有包（如计时包）同样不交给调试器
+                if (push && !disabled && (frame[offset + 10] & 0xFF) == PUSH) {
+                    try {
+                        accept(Push.decode(Arrays.copyOfRange(frame, offset, offset + length)));
+                    } catch (RuntimeException e) {
+                        disable("Cannot parse push: " + e);
+                    }
+                }
+                if (forwarded == null) {
+                    forwarded = new ByteArrayOutputStream(frame.length);
+                    forwarded.write(frame, 0, offset);
+                }
+            } else if (forwarded != null) {
+                forwarded.write(frame, offset, length);
+            }
+            offset += length;
+        }
+        return forwarded != null ? forwarded.toByteArray() : frame;
+    }
+
+    private void accept(Push push) {
+        if (push.sequence != invalidations) {
+            // 推送在路上时调试器已经恢复了线程或修改了状态
+            Map<ByteBuffer, Long> references = new HashMap<>();
+            for (Entry entry : push.entries) {
+                collectReferences(entry, push.idSizes, references);
+            }
+            dispose(references.values(), push.idSizes);
+            return;
+        }
+        pushes++;
+        idSizes = push.idSizes;
+        objectIdSize = idSizes[2];
+        for (Entry entry : push.entries) {
+            if (entry.commandSet == THREAD_REFERENCE && entry.command == FRAMES) {
+                ByteBuffer arguments = ByteBuffer.wrap(entry.arguments);
+                byte[] thread = new byte[idSizes[2]];
+                arguments.get(thread);
+                if (arguments.getInt() == 0 && arguments.getInt() == -1) {
+                    frames.put(ByteBuffer.wrap(thread), entry.reply);
+                }
+            } else if (entry.commandSet == STACK_FRAME && entry.command == GET_VALUES) {
+                storeValues(entry);
+            } else {
+                replies.put(key(entry.commandSet, entry.command, ByteBuffer.wrap(entry.arguments)), entry.reply);
+            }
+            Map<ByteBuffer, Long> references = new HashMap<>();
+            collectReferences(entry, idSizes, references);
+            for (Map.Entry<ByteBuffer, Long> reference : references.entrySet()) {
+                Long previous = unconsumed.put(reference.getKey(), reference.getValue());
+                if (previous != null) {
+                    // 同一位置的旧值不会再用来回答
+                    disposals.add(previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一条预取回复中的对象和类 ID（null 除外），按回答调试器时能整体用掉的单位分开：
+     * 每个栈帧的类、每个变量的值、this、对象的类型
+     */
+    private static void collectReferences(Entry entry, int[] sizes, Map<ByteBuffer, Long> references) {
+        Map<ByteBuffer, Long> out = new HashMap<>();
+        ByteBuffer reply = ByteBuffer.wrap(entry.reply);
+        if (entry.commandSet == THREAD_REFERENCE && entry.command == FRAMES) {
+            byte[] thread = Arrays.copyOf(entry.arguments, sizes[2]);
+            int count = reply.getInt();
+            for (int i = 0; i < count; i++) {
+                reply.position(reply.position() + sizes[4] + 1);
+                long classId = readId(reply, sizes[3]);
+                reply.position(reply.position() + sizes[1] + 8);
+                ByteBuffer frame = ByteBuffer.allocate(thread.length + 4).put(thread).putInt(i);
+                frame.flip();
+                out.put(key(THREAD_REFERENCE, FRAMES, frame), classId);
+            }
+        } else if (entry.commandSet == STACK_FRAME && entry.command == GET_VALUES) {
+            int frameKeyLength = sizes[2] + sizes[4];
+            ByteBuffer arguments = ByteBuffer.wrap(entry.arguments);
+            arguments.position(frameKeyLength);
+            int count = reply.getInt();
+            if (arguments.getInt() != count) {
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = arguments.getInt();
+                arguments.get();
+                byte tag = reply.get();
+                if (isObjectTag(tag)) {
+                    out.put(slotKey(ByteBuffer.wrap(entry.arguments, 0, frameKeyLength), slot), readId(reply, sizes[2]));
+                } else {
+                    reply.position(reply.position() + valueLength(tag, sizes[2]));
+                }
+            }
+        } else if (entry.commandSet == STACK_FRAME && entry.command == THIS_OBJECT) {
+            reply.get();
+            out.put(key(entry.commandSet, entry.command, ByteBuffer.wrap(entry.arguments)), readId(reply, sizes[2]));
+        } else if (entry.commandSet == OBJECT_REFERENCE && entry.command == REFERENCE_TYPE_OF) {
+            reply.get();
+            out.put(key(entry.commandSet, entry.command, ByteBuffer.wrap(entry.arguments)), readId(reply, sizes[3]));
+        }
+        out.forEach((key, id) -> {
+            if (id != 0) {
+                references.put(key, id);
+            }
+        });
+    }
+
+    /**
+     * 按 slot 拆开 GetValues 的回复
+     */
+    private void storeValues(Entry entry) {
+        int frameKeyLength = idSizes[2] + idSizes[4];
+        ByteBuffer arguments = ByteBuffer.wrap(entry.arguments);
+        ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOf(entry.arguments, frameKeyLength));
+        arguments.position(frameKeyLength);
+        ByteBuffer reply = ByteBuffer.wrap(entry.reply);
+        int count = arguments.getInt();
+        if (reply.getInt() != count) {
+            return;
+        }
+        Map<Integer, byte[]> slots = values.computeIfAbsent(frame, k -> new HashMap<>());
+        for (int i = 0; i < count; i++) {
+            int slot = arguments.getInt();
+            byte signature = arguments.get();
+            int start = reply.position();
+            byte tag = reply.get();
+            reply.position(reply.position() + valueLength(tag, idSizes[2]));
+            byte[] value = new byte[1 + reply.position() - start];
+            value[0] = signature;
+            System.arraycopy(entry.reply, start, value, 1, value.length - 1);
+            slots.put(slot, value);
+        }
+    }
+
+    /**
+     * @return 已用预取结果回复时返回 true
+     */
+    private boolean answer(ByteBuffer packet) {
+        int id = packet.getInt(4);
+        int commandSet = packet.get(9) & 0xFF;
+        int command = packet.get(10) & 0xFF;
+        packet.position(11);
+        byte[] body;
+        if (commandSet == THREAD_REFERENCE && (command == FRAMES || command == FRAME_COUNT)) {
+            body = answerFrames(packet, command);
+        } else if (commandSet == STACK_FRAME && command == GET_VALUES) {
+            body = answerValues(packet);
+        } else {
+            body = replies.get(key(commandSet, command, packet));
+        }
+        if (body == null) {
+            return false;
+        }
+        if (commandSet == STACK_FRAME && command == THIS_OBJECT
+                || commandSet == OBJECT_REFERENCE && command == REFERENCE_TYPE_OF) {
+            packet.position(11);
+            unconsumed.remove(key(commandSet, command, packet));
+        }
+        replySender.accept(reply(id, body));
+        hits++;
+        return true;
+    }
+
+    private byte[] answerFrames(ByteBuffer arguments, int command) {
+        byte[] thread = new byte[idSizes[2]];
+        arguments.get(thread);
+        byte[] all = frames.get(ByteBuffer.wrap(thread));
+        if (all == null) {
+            return null;
+        }
+        int total = ByteBuffer.wrap(all).getInt();
+        if (command == FRAME_COUNT) {
+            return Arrays.copyOf(all, 4);
+        }
+        int start = arguments.getInt();
+        int length = arguments.getInt();
+        if (length == -1) {
+            length = total - start;
+        }
+        if (start < 0 || length < 0 || start + length > total) {
+            // 让目标 JVM 给出错误
+            return null;
+        }
+        int frameLength = idSizes[4] + 1 + idSizes[3] + idSizes[1] + 8;
+        for (int i = start; i < start + length; i++) {
+            ByteBuffer frame = ByteBuffer.allocate(thread.length + 4).put(thread).putInt(i);
+            frame.flip();
+            unconsumed.remove(key(THREAD_REFERENCE, FRAMES, frame));
+        }
+        ByteBuffer body = ByteBuffer.allocate(4 + length * frameLength);
+        body.putInt(length).put(all, 4 + start * frameLength, length * frameLength);
+        return body.array();
+    }
+
+    private byte[] answerValues(ByteBuffer arguments) {
+        int frameKeyLength = idSizes[2] + idSizes[4];
+        byte[] frame = new byte[frameKeyLength];
+        arguments.get(frame);
+        Map<Integer, byte[]> slots = values.get(ByteBuffer.wrap(frame));
+        if (slots == null) {
+            return null;
+        }
+        int count = arguments.getInt();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(count >>> 24);
+        body.write(count >>> 16);
+        body.write(count >>> 8);
+        body.write(count);
+        int[] answered = new int[count];
+        for (int i = 0; i < count; i++) {
+            answered[i] = arguments.getInt();
+            byte[] value = slots.get(answered[i]);
+            if (value == null || value[0] != arguments.get()) {
+                return null;
+            }
+            body.write(value, 1, value.length - 1);
+        }
+        for (int slot : answered) {
+            unconsumed.remove(slotKey(ByteBuffer.wrap(frame), slot));
+        }
+        return body.toByteArray();
+    }
+
+    private static ByteBuffer key(int commandSet, int command, ByteBuffer arguments) {
+        ByteBuffer key = ByteBuffer.allocate(2 + arguments.remaining());
+        key.put((byte) commandSet).put((byte) command).put(arguments.duplicate());
+        key.flip();
+        return key;
+    }
+
+    private static ByteBuffer slotKey(ByteBuffer frame, int slot) {
+        ByteBuffer arguments = ByteBuffer.allocate(frame.remaining() + 4);
+        arguments.put(frame.duplicate()).putInt(slot);
+        arguments.flip();
+        return key(STACK_FRAME, GET_VALUES, arguments);
+    }
+
+    /**
+     * 记下要释放的 ID，随下一帧命令发出
+     */
+    private void dispose(Collection<Long> ids, int[] sizes) {
+        disposals.addAll(ids);
+        objectIdSize = sizes[2];
+    }
+
+    private void clear() {
+        disposals.addAll(unconsumed.values());
+        unconsumed.clear();
+        replies.clear();
+        frames.clear();
+        values.clear();
+    }
+
+    private void disable(String reason) {
+        disabled = true;
+        clear();
+        logger.warn("Session {}: Prefetch disabled: {}", sessionId, reason);
+    }
+}
@@ -0,0 +1,363 @@
+package com.example.proxy.common;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 JDWP 命令统计延迟
+ *
+ * 用包 ID 把命令和回复对上，按命令集/命令分别记录延迟直方图：
+ * <ul>
+ *     <li>目标耗时：服务端把命令写给目标 JVM 到读到回复，反映目标 JVM 处理的快慢</li>
+ *     <li>总耗时：客户端从调试器收到命令到把回复交给调试器，即调试器看到的延迟</li>
+ *     <li>隧道耗时：总耗时减去目标耗时，主要是网络往返</li>
+ * </ul>
+ * 客户端在握手时带 {@link #TRACE_HEADER} 时，服务端在每个含回复的帧之前发一个代理私有的计时包
+ * （命令集 {@link JdwpPrefetch#COMMAND_SET}，命令 {@link #TIMING}），客户端据此拆分每个请求的耗时。
+ * 由本地缓存直接回答的请求单独计数。
+ *
+ * 计时包内容：[int 条数] 每条 [int 包 ID][long 目标耗时（纳秒）]
+ *
+ * 只在按 JDWP 包分帧时可用。
+ */
+public final class JdwpTracer {
+
+    public static final String TRACE_HEADER = "X-Trace";
+    public static final String TRACE_VERSION = "1";
+    static final int TIMING = 2;
+
+    private static final byte REPLY_FLAG = (byte) 0x80;
+    // 调试器已不再等待的请求（如 Dispose 之后）不会有回复，超过该数量时丢弃
+    private static final int MAX_PENDING = 65536;
+
+    private static final String[][] COMMAND_NAMES = new String[256][];
+
+    static {
+        names(1, "VirtualMachine", "Version", "ClassesBySignature", "AllClasses", "AllThreads",
+                "TopLevelThreadGroups", "Dispose", "IDSizes", "Suspend", "Resume", "Exit", "CreateString",
+                "Capabilities", "ClassPaths", "DisposeObjects", "HoldEvents", "ReleaseEvents", "CapabilitiesNew",
+                "RedefineClasses", "SetDefaultStratum", "AllClassesWithGeneric", "InstanceCounts", "AllModules");
+        names(2, "ReferenceType", "Signature", "ClassLoader", "Modifiers", "Fields", "Methods", "GetValues",
+                "SourceFile", "NestedTypes", "Status", "Interfaces", "ClassObject", "SourceDebugExtension",
+                "SignatureWithGeneric", "FieldsWithGeneric", "MethodsWithGeneric", "Instances", "ClassFileVersion",
+                "ConstantPool", "Module");
+        names(3, "ClassType", "Superclass", "SetValues", "InvokeMethod", "NewInstance");
+        names(4, "ArrayType", "NewInstance");
+        names(5, "InterfaceType", "InvokeMethod");
+        names(6, "Method", "LineTable", "VariableTable", "Bytecodes", "IsObsolete", "VariableTableWithGeneric");
+        names(9, "ObjectReference", "ReferenceType", "GetValues", "SetValues", null, "MonitorInfo", "InvokeMethod",
+                "DisableCollection", "EnableCollection", "IsCollected", "ReferringObjects");
+        names(10, "StringReference", "Value");
+        names(11, "ThreadReference", "Name", "Suspend", "Resume", "Status", "ThreadGroup", "Frames", "FrameCount",
+                "OwnedMonitors", "CurrentContendedMonitor", "Stop", "Interrupt", "SuspendCount",
+                "OwnedMonitorsStackDepthInfo", "ForceEarlyReturn", "IsVirtual");
+        names(12, "ThreadGroupReference", "Name", "Parent", "Children");
+        names(13, "ArrayReference", "Length", "GetValues", "SetValues");
+        names(14, "ClassLoaderReference", "VisibleClasses");
+        names(15, "EventRequest", "Set", "Clear", "ClearAllBreakpoints");
+        names(16, "StackFrame", "GetValues", "SetValues", "ThisObject", "PopFrames");
+        names(17, "ClassObjectReference", "ReflectedType");
+        names(18, "ModuleReference", "Name", "ClassLoader");
+    }
+
+    private static void names(int commandSet, String... names) {
+        COMMAND_NAMES[commandSet] = names;
+    }
+
+    /**
+     * 命令的可读名称，如 Method.VariableTable
+     */
+    static String commandName(int commandSet, int command) {
+        String[] names = COMMAND_NAMES[commandSet];
+        if (names != null && command > 0 && command < names.length && names[command] != null) {
+            return names[0] + "." + names[command];
+        }
+        return commandSet + "." + command;
+    }
+
+    // 命令集 << 8 | 命令 -> 统计
+    private final Map<Integer, CommandStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * 为一个调试会话跟踪未完成的请求，统计汇总到本对象
+     */
+    public Session newSession() {
+        return new Session();
+    }
+
+    /**
+     * 清空统计
+     */
+    public void reset() {
+        stats.clear();
+    }
+
+    private CommandStats stats(int key) {
+        return stats.computeIfAbsent(key, k -> new CommandStats());
+    }
+
+    /**
+     * 一个会话中已发出、尚未收到回复的请求
+     */
+    public class Session {
+        // 包 ID -> [命令集 << 8 | 命令, 发出时间]
+        private final Map<Integer, long[]> pending = new HashMap<>();
+        // 包 ID -> 目标耗时，来自服务端的计时包
+        private final Map<Integer, Long> targetNanos = new HashMap<>();
+        // 两个方向的第一帧都是握手串
+        private boolean commandHandshakeSeen;
+        private boolean replyHandshakeSeen;
+
+        private Session() {
+        }
+
+        /**
+         * 记录发出的命令：服务端在写给目标 JVM 前调用，客户端在收到调试器的命令时调用
+         */
+        public synchronized void onCommands(byte[] frame) {
+            if (!commandHandshakeSeen) {
+                commandHandshakeSeen = true;
+                return;
+            }
+            long now = System.nanoTime();
+            int offset = 0;
+            while (offset < frame.length) {
+                int length = JdwpPacketReader.packetLength(frame, offset);
+                if (frame[offset + 8] != REPLY_FLAG) {
+                    if (pending.size() >= MAX_PENDING) {
+                        pending.clear();
+                        targetNanos.clear();
+                    }
+                    int key = (frame[offset + 9] & 0xFF) << 8 | (frame[offset + 10] & 0xFF);
+                    pending.put(ByteBuffer.wrap(frame, offset + 4, 4).getInt(), new long[]{key, now});
+                }
+                offset += length;
+            }
+        }
+
+        /**
+         * 服务端：记录目标 JVM 的回复
+         * @return 帧中回复的计时包，帧中没有已跟踪的回复时返回 null
+         */
+        public synchronized byte[] onTargetReplies(byte[] frame) {
+            if (!replyHandshakeSeen) {
+                replyHandshakeSeen = true;
+                return null;
+            }
+            long now = System.nanoTime();
+            ByteBuffer timings = null;
+            int count = 0;
+            int offset = 0;
+            while (offset < frame.length) {
+                int length = JdwpPacketReader.packetLength(frame, offset);
+                if (frame[offset + 8] == REPLY_FLAG) {
+                    int id = ByteBuffer.wrap(frame, offset + 4, 4).getInt();
+                    long[] request = pending.remove(id);
+                    if (request != null) {
+                        long elapsed = now - request[1];
+                        CommandStats commandStats = stats((int) request[0]);
+                        commandStats.calls.increment();
+                        commandStats.target.record(elapsed);
+                        if (timings == null) {
+                            timings = ByteBuffer.allocate(4 + frame.length / 11 * 12);
+                            timings.putInt(0);
+                        }
+                        timings.putInt(id).putLong(elapsed);
+                        count++;
+                    }
+                }
+                offset += length;
+            }
+            if (timings == null) {
+                return null;
+            }
+            timings.putInt(0, count);
+            byte[] body = new byte[timings.position()];
+            timings.flip();
+            timings.get(body);
+            return JdwpPrefetch.command(0, JdwpPrefetch.COMMAND_SET, TIMING, body);
+        }
+
+        /**
+         * 客户端：记录经过隧道的回复，去掉其中的计时包
+         * @return 去掉计时包之后的字节
+         */
+        public synchronized byte[] onTunnelReplies(byte[] frame) {
+            if (!replyHandshakeSeen) {
+                replyHandshakeSeen = true;
+                return frame;
+            }
+            long now = System.nanoTime();
+            ByteArrayOutputStream forwarded = null;
+            int offset = 0;
+            while (offset < frame.length) {
+                int length = JdwpPacketReader.packetLength(frame, offset);
+                boolean timing = frame[offset + 8] != REPLY_FLAG
+                        && (frame[offset + 9] & 0xFF) == JdwpPrefetch.COMMAND_SET
+                        && (frame[offset + 10] & 0xFF) == TIMING;
+                if (timing) {
+                    ByteBuffer body = ByteBuffer.wrap(frame, offset + 11, length - 11);
+                    int count = body.getInt();
+                    for (int i = 0; i < count; i++) {
+                        targetNanos.put(body.getInt(), body.getLong());
+                    }
+                    if (forwarded == null) {
+                        forwarded = new ByteArrayOutputStream(frame.length);
+                        forwarded.write(frame, 0, offset);
+                    }
+                } else {
+                    if (frame[offset + 8] == REPLY_FLAG) {
+                        onReply(ByteBuffer.wrap(frame, offset + 4, 4).getInt(), now, false);
+                    }
+                    if (forwarded != null) {
+                        forwarded.write(frame, offset, length);
+                    }
+                }
+                offset += length;
+            }
+            return forwarded != null ? forwarded.toByteArray() : frame;
+        }
+
+        /**
+         * 客户端：记录由本地缓存直接回答的回复
+         */
+        public synchronized void onLocalReplies(byte[] frame) {
+            long now = System.nanoTime();
+            int offset = 0;
+            while (offset < frame.length) {
+                int length = JdwpPacketReader.packetLength(frame, offset);
+                if (frame[offset + 8] == REPLY_FLAG) {
+                    onReply(ByteBuffer.wrap(frame, offset + 4, 4).getInt(), now, true);
+                }
+                offset += length;
+            }
+        }
+
+        private void onReply(int id, long now, boolean local) {
+            long[] request = pending.remove(id);
+            Long target = targetNanos.remove(id);
+            if (request == null) {
+                return;
+            }
+            long total = now - request[1];
+            CommandStats commandStats = stats((int) request[0]);
+            commandStats.calls.increment();
+            commandStats.total.record(total);
+            if (local) {
+                commandStats.local.increment();
+            } else if (target != null) {
+                commandStats.target.record(target);
+                commandStats.tunnel.record(Math.max(0, total - target));
+            } else {
+                // 服务端缓存直接回答，或服务端不支持计时
+                commandStats.tunnel.record(total);
+            }
+        }
+    }
+
+    /**
+     * 单个命令的统计
+     */
+    private static final class CommandStats {
+        final LongAdder calls = new LongAdder();
+        final LongAdder local = new LongAdder();
+        final Latency total = new Latency();
+        final Latency target = new Latency();
+        final Latency tunnel = new Latency();
+    }
+
+    /**
+     * 按 2 的幂分桶的延迟直方图，从 16 微秒到约 9 分钟
+     */
+    private static final class Latency {
+        private static final int BUCKETS = 26;
+        private static final long FIRST_BOUND_NANOS = 16_000;
+
+        final LongAdder[] counts = new LongAdder[BUCKETS];
+        final LongAdder sumNanos = new LongAdder();
+        final LongAdder count = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Latency() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int bucket = 0;
+            long bound = FIRST_BOUND_NANOS;
+            while (bucket < BUCKETS - 1 && nanos > bound) {
+                bucket++;
+                bound <<= 1;
+            }
+            counts[bucket].increment();
+            sumNanos.add(nanos);
+            count.increment();
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * 百分位所在桶的上界
+         */
+        double percentileMillis(double percentile) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            long bound = FIRST_BOUND_NANOS;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i].sum();
+                if (seen >= rank) {
+                    return Math.min(bound, maxNanos.get()) / 1e6;
+                }
+                bound <<= 1;
+            }
+            return maxNanos.get() / 1e6;
+        }
+    }
+
+    /**
+     * 文本报告，按总耗时（客户端）或目标耗时（服务端）降序。百分位为桶上界的近似值
+     */
+    public String dump() {
+        List<Map.Entry<Integer, CommandStats>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort((a, b) -> Long.compare(weight(b.getValue()), weight(a.getValue())));
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.ROOT, "%-44s %8s %8s %10s  %-26s %-26s %-26s%n",
+                "JDWP command", "calls", "local", "sum ms",
+                "total p50/p90/p99/max", "target p50/p90/p99/max", "tunnel p50/p90/p99/max"));
+        for (Map.Entry<Integer, CommandStats> entry : entries) {
+            int key = entry.getKey();
+            CommandStats commandStats = entry.getValue();
+            out.append(String.format(Locale.ROOT, "%-44s %8d %8d %10.1f  %-26s %-26s %-26s%n",
+                    commandName(key >> 8, key & 0xFF), commandStats.calls.sum(), commandStats.local.sum(),
+                    weight(commandStats) / 1e6, percentiles(commandStats.total),
+                    percentiles(commandStats.target), percentiles(commandStats.tunnel)));
+        }
+        return out.toString();
+    }
+
+    private static long weight(CommandStats commandStats) {
+        long total = commandStats.total.sumNanos.sum();
+        return total > 0 ? total : commandStats.target.sumNanos.sum();
+    }
+
+    private static String percentiles(Latency latency) {
+        if (latency.count.sum() == 0) {
+            return "-";
+        }
+        return String.format(Locale.ROOT, "%.1f/%.1f/%.1f/%.1f", latency.percentileMillis(0.5),
+                latency.percentileMillis(0.9), latency.percentileMillis(0.99), latency.maxNanos.get() / 1e6);
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.proxy.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 多路复用帧
+ *
+ * 一个 WebSocket 连接承载多个调试会话时，每个二进制帧的格式为：
+ * <pre>
+ * +------------------+-----------+-----------------+
+ * | channel id (int) | type (1B) | payload ...     |
+ * +------------------+-----------+-----------------+
+ * </pre>
+ * OPEN 的 payload 是会话参数（与 X-DEBUG-ROUTE 相同的 count + UTF 键值对编码），
+ * DATA 的 payload 是 JDWP 字节，CLOSE/ERROR 的 payload 是 UTF 编码的原因。
+ * channel id 由客户端从 1 开始递增分配，必须为正数。
+ */
+public final class MuxFrame {
+
+    /** 客户端请求多路复用模式的握手 header */
+    public static final String MUX_HEADER = "X-Mux";
+    public static final String MUX_VERSION = "1";
+
+    public static final byte OPEN = 1;
+    public static final byte OPENED = 2;
+    public static final byte DATA = 3;
+    public static final byte CLOSE = 4;
+    public static final byte ERROR = 5;
+
+    public static final int HEADER_LENGTH = 5;
+
+    private final int channel;
+    private final byte type;
+    private final ByteBuffer payload;
+
+    private MuxFrame(int channel, byte type, ByteBuffer payload) {
+        this.channel = channel;
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    public byte[] payloadBytes() {
+        byte[] data = new byte[payload.remaining()];
+        payload.duplicate().get(data);
+        return data;
+    }
+
+    /**
+     * 解析收到的二进制帧，payload 与原缓冲区共享内容
+     */
+    public static MuxFrame decode(ByteBuffer frame) throws IOException {
+        if (frame.remaining() < HEADER_LENGTH) {
+            throw new IOException("Mux frame too short: " + frame.remaining());
+        }
+        int channel = frame.getInt();
+        if (channel <= 0) {
+            throw new IOException("Invalid mux channel id: " + channel);
+        }
+        byte type = frame.get();
+        return new MuxFrame(channel, type, frame.slice());
+    }
+
+    public static byte[] encode(int channel, byte type, byte[] payload) {
+        return encode(channel, type, payload, 0, payload.length);
+    }
+
+    public static byte[] encode(int channel, byte type, byte[] payload, int offset, int length) {
+        if (channel <= 0) {
+            throw new IllegalArgumentException("Invalid mux channel id: " + channel);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + length);
+        buffer.putInt(channel);
+        buffer.put(type);
+        buffer.put(payload, offset, length);
+        return buffer.array();
+    }
+
+    public static byte[] encodeReason(int channel, byte type, String reason) {
+        return encode(channel, type, (reason != null ? reason : "").getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String reason() {
+        return new String(payloadBytes(), StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encodeParams(Map<String, String> params) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(params.size());
+            for (Map.Entry<String, String> entry : params.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue() != null ? entry.getValue() : "");
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Map<String, String> params() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payloadBytes()));
+        Map<String, String> params = new LinkedHashMap<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            params.put(in.readUTF(), in.readUTF());
+        }
+        return params;
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.proxy.common;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single-threaded Selector loop. Every channel registered on a loop is only
+ * touched from that loop's thread; other threads hand work over with {@link #execute}.
+ */
+public class NioEventLoop implements Runnable {
+
+    /**
+     * Callback attached to a SelectionKey
+     */
+    public interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        /**
+         * Called when handle() throws; must release the channels it owns
+         */
+        void close();
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start a group of loops named prefix-0..prefix-(count-1)
+     */
+    public static NioEventLoop[] startGroup(String prefix, int count) throws IOException {
+        NioEventLoop[] loops = new NioEventLoop[count];
+        for (int i = 0; i < count; i++) {
+            loops[i] = new NioEventLoop(prefix + "-" + i);
+            loops[i].start();
+        }
+        return loops;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Register a channel; must be called from the loop thread
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handler handler = (Handler) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        handler.handle(key);
+                    } catch (IOException | RuntimeException e) {
+                        handler.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(thread.getName() + " selector error: " + e.getMessage());
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
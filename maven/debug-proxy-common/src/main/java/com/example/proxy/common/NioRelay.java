@@ -0,0 +1,158 @@
+package com.example.proxy.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking bidirectional relay between two connected SocketChannels on one event loop.
+ *
+ * Each side owns the buffer of data waiting to be written to it. When a write cannot
+ * complete, reading from the opposite side pauses until the buffer drains, so a slow peer
+ * never makes the relay queue more than one buffer per direction.
+ */
+public class NioRelay implements NioEventLoop.Handler {
+
+    private final BufferPool pool;
+    private final String name;
+    private final Side first;
+    private final Side second;
+    private boolean closed;
+
+    public NioRelay(String name, SocketChannel first, SocketChannel second, BufferPool pool) {
+        this.name = name;
+        this.pool = pool;
+        this.first = new Side(first);
+        this.second = new Side(second);
+        this.first.peer = this.second;
+        this.second.peer = this.first;
+    }
+
+    /**
+     * Start relaying; must run on the loop thread that the channels are (or will be) registered with.
+     * @param pendingForFirst bytes that must reach the first channel before anything relayed, may be null
+     * @param pendingForSecond bytes that must reach the second channel before anything relayed, may be null
+     */
+    public void start(NioEventLoop loop, ByteBuffer pendingForFirst, ByteBuffer pendingForSecond) throws IOException {
+        first.key = loop.register(first.channel, SelectionKey.OP_READ, this);
+        second.key = loop.register(second.channel, SelectionKey.OP_READ, this);
+        preload(first, pendingForFirst);
+        preload(second, pendingForSecond);
+    }
+
+    private void preload(Side to, ByteBuffer pending) throws IOException {
+        if (pending == null || !pending.hasRemaining()) {
+            return;
+        }
+        // Handshake leftovers can be larger than a pooled buffer; release() drops such buffers
+        to.out = pending.remaining() <= pool.getBufferSize() ? pool.acquire() : ByteBuffer.allocate(pending.remaining());
+        to.out.put(pending);
+        flush(to);
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        Side side = key == first.key ? first : second;
+        if (key.isValid() && key.isWritable()) {
+            flush(side);
+        }
+        if (key.isValid() && key.isReadable()) {
+            read(side);
+        }
+    }
+
+    /**
+     * Read from one side and write straight through to its peer
+     */
+    private void read(Side from) throws IOException {
+        Side to = from.peer;
+        if (to.out == null) {
+            to.out = pool.acquire();
+        }
+        int read = from.channel.read(to.out);
+        if (read == -1) {
+            from.inputClosed = true;
+            interest(from, SelectionKey.OP_READ, false);
+        }
+        flush(to);
+    }
+
+    /**
+     * Write pending data to a side; applies backpressure on its peer while data remains
+     */
+    private void flush(Side to) throws IOException {
+        Side from = to.peer;
+        if (to.out != null) {
+            to.out.flip();
+            to.channel.write(to.out);
+            to.out.compact();
+            if (to.out.position() > 0) {
+                interest(to, SelectionKey.OP_WRITE, true);
+                interest(from, SelectionKey.OP_READ, false);
+                return;
+            }
+            pool.release(to.out);
+            to.out = null;
+        }
+
+        interest(to, SelectionKey.OP_WRITE, false);
+        if (from.inputClosed) {
+            if (!to.outputShutdown) {
+                to.outputShutdown = true;
+                to.channel.shutdownOutput();
+            }
+            if (first.inputClosed && second.inputClosed) {
+                close();
+            }
+        } else {
+            interest(from, SelectionKey.OP_READ, true);
+        }
+    }
+
+    private void interest(Side side, int op, boolean enabled) {
+        if (side.key == null || !side.key.isValid()) {
+            return;
+        }
+        int ops = side.key.interestOps();
+        side.key.interestOps(enabled ? ops | op : ops & ~op);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        first.close();
+        second.close();
+        System.out.println(name + " relay closed");
+    }
+
+    private final class Side {
+        private final SocketChannel channel;
+        private Side peer;
+        private SelectionKey key;
+        // data waiting to be written to this side, kept in fill mode
+        private ByteBuffer out;
+        private boolean inputClosed;
+        private boolean outputShutdown;
+
+        private Side(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            pool.release(out);
+            out = null;
+        }
+    }
+}
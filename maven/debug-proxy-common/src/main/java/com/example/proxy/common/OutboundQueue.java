@@ -0,0 +1,314 @@
+package com.example.proxy.common;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketServerFactory;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebSocket 发送队列的水位控制
+ *
+ * Java-WebSocket 的 send() 只是把编码好的帧放进连接的 outQueue，队列没有上限：
+ * 对端读得慢（带宽小、IDE 卡住）或源端一次产生大量数据（目标 JVM 的 AllClasses 等大回复、事件风暴）时，
+ * 数据全部堆在代理的堆内存里。
+ *
+ * 读取源 Socket 的线程在发送前调用 {@link #awaitCapacity()}：队列超过高水位时暂停读取，
+ * 直到队列降到低水位以下，源端的 TCP 窗口随之关闭，数据留在源端。
+ * 单个超过高水位的帧仍会整帧放入队列，队列最多超出高水位一帧。
+ *
+ * 队列中的字节数按连接计数（{@link Meter}）：帧编码时记下大小（{@link MeteredDraft}），
+ * outQueue 先进先出，其中剩下 n 个缓冲区时，就是最近编码的 n 个帧还没写出，更早的帧从计数中扣掉。
+ * outQueue.size() 是常数时间，查询不遍历队列，也不需要包装客户端的 Socket（代理、wss 仍由 Java-WebSocket 处理）。
+ * 服务端写出时对照一次并唤醒暂停的线程（{@link #serverFactory()}）；客户端的写线程没有回调，
+ * 暂停的线程每 {@link #CLIENT_POLL_MILLIS} 毫秒对照一次。连接关闭时也会被唤醒。
+ * 只能在源 Socket 的读取线程中等待，WebSocket 自己的 I/O 线程要负责清空队列，不能在这里阻塞。
+ */
+public class OutboundQueue {
+
+    public static final long DEFAULT_LOW_WATERMARK = 1024 * 1024;
+    public static final long DEFAULT_HIGH_WATERMARK = 4 * 1024 * 1024;
+
+    // 兜底：连接断开而没有经过 Channel 关闭时，最迟这么久后发现
+    private static final long CLOSE_CHECK_MILLIS = 1000;
+    // 客户端暂停读取时对照 outQueue 的间隔：写线程写出时不通知，只能定时检查
+    private static final long CLIENT_POLL_MILLIS = 2;
+
+    private final WebSocket connection;
+    private final Meter meter;
+    private final long lowWatermark;
+    private final long highWatermark;
+
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong pausedNanos = new AtomicLong();
+
+    /**
+     * @param connection Draft 来自 {@link TunnelDeflateExtension#createDraft} 的连接；其他连接不计数，也不暂停
+     * @param lowWatermark 暂停后队列降到该字节数以下才恢复读取
+     * @param highWatermark 队列达到该字节数时暂停读取，0 表示不限制
+     */
+    public OutboundQueue(WebSocket connection, long lowWatermark, long highWatermark) {
+        if (highWatermark > 0 && (lowWatermark < 0 || lowWatermark > highWatermark)) {
+            throw new IllegalArgumentException("Low watermark must be between 0 and the high watermark");
+        }
+        this.connection = connection;
+        this.meter = connection.getDraft() instanceof MeteredDraft
+                ? ((MeteredDraft) connection.getDraft()).meter : null;
+        if (meter != null) {
+            meter.attach(((WebSocketImpl) connection).outQueue);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * 队列未满时立即返回；已满时阻塞到队列降到低水位以下或连接断开
+     */
+    public void awaitCapacity() throws InterruptedIOException {
+        if (meter == null || highWatermark <= 0 || meter.queuedBytes() < highWatermark) {
+            return;
+        }
+        pauses.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            meter.awaitDrained(lowWatermark, connection);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the WebSocket to drain");
+        } finally {
+            pausedNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 已交给 WebSocket、尚未写入 Socket 的字节数
+     */
+    public long getQueuedBytes() {
+        return meter != null ? meter.queuedBytes() : 0;
+    }
+
+    public long getPeakBytes() {
+        return meter != null ? meter.getPeak() : 0;
+    }
+
+    /**
+     * 因队列满而暂停读取的次数
+     */
+    public long getPauses() {
+        return pauses.get();
+    }
+
+    public long getPausedMillis() {
+        return pausedNanos.get() / 1_000_000;
+    }
+
+    /**
+     * 连接已关闭：唤醒暂停的读取线程
+     */
+    public void close() {
+        if (meter != null) {
+            meter.closed();
+        }
+    }
+
+    /**
+     * 服务端连接的工厂：写入 Socket 的字节从连接的队列计数中扣减
+     */
+    public static WebSocketServerFactory serverFactory() {
+        return new WebSocketServerFactory() {
+            @Override
+            public WebSocketImpl createWebSocket(WebSocketAdapter adapter, Draft draft) {
+                return new WebSocketImpl(adapter, draft);
+            }
+
+            @Override
+            public WebSocketImpl createWebSocket(WebSocketAdapter adapter, List<Draft> drafts) {
+                return new WebSocketImpl(adapter, drafts);
+            }
+
+            @Override
+            public ByteChannel wrapChannel(SocketChannel channel, SelectionKey key) {
+                return new MeteredChannel(channel, (WebSocketImpl) key.attachment());
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * 一个连接已入队、尚未写入 Socket 的字节数
+     */
+    static final class Meter {
+        // 可能还在 outQueue 中的帧的大小，按编码顺序
+        private final ArrayDeque<Integer> frames = new ArrayDeque<>();
+        private long queued;
+        private long peak;
+        // 有线程在等待时为它等待的低水位，否则为 -1
+        private long wakeAt = -1;
+        private boolean closed;
+        // 连接的 outQueue，OutboundQueue 创建时登记
+        private volatile Queue<ByteBuffer> outQueue;
+        // 服务端写出时会调用 written，等待的线程不必定时对照
+        private volatile boolean notifying;
+
+        void attach(Queue<ByteBuffer> outQueue) {
+            this.outQueue = outQueue;
+        }
+
+        synchronized void queued(int bytes) {
+            // 先对照一次，没有线程查询时记录也不会随连接无限增长
+            Queue<ByteBuffer> queue = outQueue;
+            if (queue != null) {
+                drained(queue.size());
+            }
+            frames.addLast(bytes);
+            queued += bytes;
+            peak = Math.max(peak, queued);
+        }
+
+        /**
+         * 服务端写出一个缓冲区后调用，remaining 为还没写完的缓冲区数
+         */
+        synchronized void written(int remaining) {
+            notifying = true;
+            drained(remaining);
+        }
+
+        long queuedBytes() {
+            Queue<ByteBuffer> queue = outQueue;
+            synchronized (this) {
+                return queue != null ? drained(queue.size()) : queued;
+            }
+        }
+
+        /**
+         * outQueue 中还剩 remaining 个缓冲区：它们是最近编码的帧，更早的帧已经写出。
+         * 握手不在记录中，编码后还没放进 outQueue 的帧可能被提前扣掉，计数只会暂时偏小，队列清空时归零
+         */
+        private long drained(int remaining) {
+            while (frames.size() > remaining) {
+                queued -= frames.removeFirst();
+            }
+            if (queued <= wakeAt) {
+                wakeAt = -1;
+                notifyAll();
+            }
+            return queued;
+        }
+
+        synchronized long getPeak() {
+            return peak;
+        }
+
+        synchronized void closed() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized void awaitDrained(long lowWatermark, WebSocket connection) throws InterruptedException {
+            while (queuedBytes() > lowWatermark && !closed && connection.isOpen()) {
+                wakeAt = lowWatermark;
+                wait(notifying ? CLOSE_CHECK_MILLIS : CLIENT_POLL_MILLIS);
+            }
+            wakeAt = -1;
+        }
+    }
+
+    /**
+     * 计数发送队列的 Draft：Java-WebSocket 为每个连接复制一份（copyInstance），计数器随之按连接独立。
+     * 每个帧（包括 ping、close）编码后放入 outQueue，编码结果的大小就是入队的字节数
+     */
+    static final class MeteredDraft extends Draft_6455 {
+        private final Meter meter = new Meter();
+
+        MeteredDraft(List<IExtension> extensions) {
+            super(extensions);
+        }
+
+        private MeteredDraft(List<IExtension> extensions, List<IProtocol> protocols, int maxFrameSize) {
+            super(extensions, protocols, maxFrameSize);
+        }
+
+        @Override
+        public ByteBuffer createBinaryFrame(Framedata framedata) {
+            ByteBuffer frame = super.createBinaryFrame(framedata);
+            meter.queued(frame.remaining());
+            return frame;
+        }
+
+        @Override
+        public Draft copyInstance() {
+            List<IExtension> extensions = new ArrayList<>();
+            for (IExtension extension : getKnownExtensions()) {
+                extensions.add(extension.copyInstance());
+            }
+            List<IProtocol> protocols = new ArrayList<>();
+            for (IProtocol protocol : getKnownProtocols()) {
+                protocols.add(protocol.copyInstance());
+            }
+            return new MeteredDraft(extensions, protocols, getMaxFrameSize());
+        }
+    }
+
+    /**
+     * 服务端连接的 Channel：Java-WebSocket 逐个写出 outQueue 中的缓冲区，写完一个才从队列中取走
+     */
+    private static final class MeteredChannel implements ByteChannel {
+        private final SocketChannel channel;
+        private final WebSocketImpl connection;
+
+        MeteredChannel(SocketChannel channel, WebSocketImpl connection) {
+            this.channel = channel;
+            this.connection = connection;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = channel.write(src);
+            if (connection.getDraft() instanceof MeteredDraft) {
+                int remaining = connection.outQueue.size() - (src.hasRemaining() ? 0 : 1);
+                ((MeteredDraft) connection.getDraft()).meter.written(Math.max(remaining, 0));
+            }
+            return written;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                if (connection.getDraft() instanceof MeteredDraft) {
+                    ((MeteredDraft) connection.getDraft()).meter.closed();
+                }
+            }
+        }
+    }
+}
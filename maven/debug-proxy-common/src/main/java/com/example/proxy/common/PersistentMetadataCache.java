@@ -0,0 +1,626 @@
+package com.example.proxy.common;
+
+import com.example.proxy.common.JdwpMetadataSession.CommandKey;
+import com.example.proxy.common.JdwpMetadataSession.Verification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 磁盘上的 JDWP 元数据缓存，IDE 重启、重新 attach 之后仍然可用
+ *
+ * 按目标 JVM 的构建分文件：同一个 JVM 版本描述（VirtualMachine.Version）下，
+ * 每个文件记录创建时已加载的类集合，attach 时选择与当前类集合互相包含、重合最多的文件；
+ * 都不匹配时新建。运行时生成的类不参与比较，应用运行中陆续加载新类不会导致换文件。
+ *
+ * 文件只追加写入，读取通过内存映射；每条记录带 CRC，写到一半的尾部在打开时截掉。
+ * Methods/Fields 等包含 methodID/fieldID 的回复只在写入它的那个 JVM 进程内有效：
+ * 文件记录一个 epoch，会话验证发现换了进程时递增，旧 epoch 的这类回复不再使用；
+ * SourceFile、LineTable 等与进程无关的回复在同一构建内一直有效。
+ */
+public class PersistentMetadataCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentMetadataCache.class);
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024 * 1024;
+
+    private static final String FILE_SUFFIX = ".jdwpcache";
+    private static final int MAGIC = 0x4A444D43;
+    private static final int FORMAT_VERSION = 1;
+    // 每个 JVM 版本下最多保留的文件数，超出时删除最久未修改的
+    private static final int MAX_FILES_PER_VERSION = 8;
+
+    private static final byte ENTRY = 1;
+    private static final byte INVALIDATE = 2;
+    private static final byte EPOCH = 3;
+
+    private static final Map<Path, PersistentMetadataCache> caches = new HashMap<>();
+
+    private final Path directory;
+    private final long maxFileBytes;
+    private final Map<Path, CacheFile> files = new HashMap<>();
+
+    private PersistentMetadataCache(Path directory, long maxFileBytes) {
+        this.directory = directory;
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * 获取指定目录的缓存，同一目录在进程内共享
+     */
+    public static PersistentMetadataCache open(Path directory) {
+        return open(directory, DEFAULT_MAX_FILE_BYTES);
+    }
+
+    /**
+     * @param maxFileBytes 单个缓存文件的大小上限，写满后不再追加
+     */
+    public static PersistentMetadataCache open(Path directory, long maxFileBytes) {
+        synchronized (caches) {
+            return caches.computeIfAbsent(directory.toAbsolutePath().normalize(),
+                    dir -> new PersistentMetadataCache(dir, maxFileBytes));
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 删除全部缓存内容：目标换了代码但类集合不变时，缓存无法自行发现
+     */
+    public void clear() throws IOException {
+        synchronized (files) {
+            for (CacheFile file : files.values()) {
+                file.reset();
+            }
+            if (!Files.isDirectory(directory)) {
+                return;
+            }
+            try (DirectoryStream<Path> versions = Files.newDirectoryStream(directory)) {
+                for (Path versionDir : versions) {
+                    if (!Files.isDirectory(versionDir)) {
+                        continue;
+                    }
+                    for (Path path : list(versionDir)) {
+                        if (!files.containsKey(path)) {
+                            Files.deleteIfExists(path);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 为一个调试会话创建存储：拿到 Version 和完整类列表之后才绑定到具体文件
+     */
+    public JdwpMetadataSession.Store newSession() {
+        return new SessionStore();
+    }
+
+    /**
+     * 选择或创建与目标构建匹配的文件
+     */
+    private CacheFile select(byte[] version, long[] classHashes) throws IOException {
+        Path versionDir = directory.resolve(hex(digest(version != null ? version : new byte[0])).substring(0, 16));
+        Files.createDirectories(versionDir);
+
+        Path exact = versionDir.resolve(hex(digest(classHashes)).substring(0, 32) + FILE_SUFFIX);
+        synchronized (files) {
+            Path chosen = Files.exists(exact) ? exact : null;
+            if (chosen == null) {
+                long bestOverlap = 0;
+                for (Path candidate : list(versionDir)) {
+                    long overlap = containment(readClassHashes(candidate), classHashes);
+                    if (overlap > bestOverlap) {
+                        bestOverlap = overlap;
+                        chosen = candidate;
+                    }
+                }
+            }
+            if (chosen == null) {
+                chosen = exact;
+                prune(versionDir);
+            }
+            CacheFile file = files.get(chosen);
+            if (file == null) {
+                file = new CacheFile(chosen, classHashes);
+                files.put(chosen, file);
+            }
+            return file;
+        }
+    }
+
+    /**
+     * 一个集合包含另一个时返回较小集合的大小，否则返回 0
+     */
+    private static long containment(long[] a, long[] b) {
+        if (a == null) {
+            return 0;
+        }
+        long[] small = a.length <= b.length ? a : b;
+        long[] large = small == a ? b : a;
+        int j = 0;
+        for (long hash : small) {
+            while (j < large.length && large[j] < hash) {
+                j++;
+            }
+            if (j == large.length || large[j] != hash) {
+                return 0;
+            }
+            j++;
+        }
+        return small.length;
+    }
+
+    private void prune(Path versionDir) throws IOException {
+        List<Path> existing = list(versionDir);
+        if (existing.size() < MAX_FILES_PER_VERSION) {
+            return;
+        }
+        existing.sort(Comparator.comparingLong(path -> path.toFile().lastModified()));
+        for (int i = 0; i <= existing.size() - MAX_FILES_PER_VERSION; i++) {
+            if (!files.containsKey(existing.get(i))) {
+                Files.deleteIfExists(existing.get(i));
+            }
+        }
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + FILE_SUFFIX)) {
+            for (Path path : stream) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 读取文件头中的类集合，文件损坏时返回 null
+     */
+    private static long[] readClassHashes(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < 12 || header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int count = header.getInt();
+            ByteBuffer hashes = ByteBuffer.allocate(count * 8);
+            channel.read(hashes, 12);
+            hashes.flip();
+            long[] result = new long[count];
+            hashes.asLongBuffer().get(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] digest(long[] hashes) {
+        ByteBuffer bytes = ByteBuffer.allocate(hashes.length * 8);
+        bytes.asLongBuffer().put(hashes);
+        return digest(bytes.array());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 会话的存储：绑定文件之前什么都不缓存
+     */
+    private class SessionStore implements JdwpMetadataSession.Store {
+        private volatile CacheFile file;
+
+        @Override
+        public long epoch() {
+            CacheFile bound = file;
+            return bound != null ? bound.epoch() : -2;
+        }
+
+        @Override
+        public long generation() {
+            CacheFile bound = file;
+            return bound != null ? bound.generation() : 0;
+        }
+
+        @Override
+        public byte[] get(String signature, CommandKey key) {
+            CacheFile bound = file;
+            return bound != null ? bound.get(signature, key) : null;
+        }
+
+        @Override
+        public void put(String signature, CommandKey key, byte[] body, long generation) {
+            CacheFile bound = file;
+            if (bound != null) {
+                bound.put(signature, key, body, generation);
+            }
+        }
+
+        @Override
+        public Verification verify(String signature, CommandKey key, byte[] body) {
+            CacheFile bound = file;
+            return bound != null ? bound.verify(signature, key, body) : Verification.ABSENT;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            CacheFile bound = file;
+            return bound != null && bound.isEmpty();
+        }
+
+        @Override
+        public void invalidate(String signature) {
+            CacheFile bound = file;
+            if (bound != null) {
+                bound.invalidate(signature);
+            }
+        }
+
+        @Override
+        public void clear() {
+            CacheFile bound = file;
+            if (bound != null) {
+                bound.clear();
+            }
+        }
+
+        @Override
+        public void identify(byte[] version, long[] classHashes) {
+            try {
+                file = select(version, classHashes);
+                logger.info("Using metadata cache {} ({} classes)", file.path, classHashes.length);
+            } catch (IOException e) {
+                logger.warn("Cannot open metadata cache in {}: {}", directory, e.getMessage());
+            }
+        }
+
+        @Override
+        public boolean identifiesBuild() {
+            return file != null;
+        }
+    }
+
+    /**
+     * 文件中一条回复的位置：映射区内的偏移，或打开之后追加的内容
+     */
+    private static final class Entry {
+        final long epoch;
+        final int offset;
+        final int length;
+        public final byte[] body;
+
+        Entry(long epoch, int offset, int length, byte[] body) {
+            this.epoch = epoch;
+            this.offset = offset;
+            this.length = length;
+            this.body = body;
+        }
+    }
+
+    /**
+     * 一个缓存文件
+     */
+    private class CacheFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer mapped;
+        private final Map<String, Map<CommandKey, Entry>> classes = new HashMap<>();
+        private long epoch;
+        private long generation;
+        private long size;
+        private int headerSize;
+        // 当前 epoch 中与进程相关的回复数
+        private int processEntries;
+
+        CacheFile(Path path, long[] classHashes) throws IOException {
+            this(path, classHashes, true);
+        }
+
+        CacheFile(Path path, long[] classHashes, boolean compact) throws IOException {
+            this.path = path;
+            if (!Files.exists(path)) {
+                writeHeader(path, classHashes);
+            } else if (compact) {
+                compactIfNeeded(path);
+            }
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            size = load();
+            if (size < channel.size()) {
+                // 上次写到一半
+                channel.truncate(size);
+            }
+        }
+
+        synchronized long epoch() {
+            return epoch;
+        }
+
+        synchronized long generation() {
+            return generation;
+        }
+
+        synchronized byte[] get(String signature, CommandKey key) {
+            Map<CommandKey, Entry> replies = classes.get(signature);
+            Entry entry = replies != null ? replies.get(key) : null;
+            if (entry == null || !isValid(entry, key)) {
+                return null;
+            }
+            if (entry.body != null) {
+                return entry.body;
+            }
+            byte[] body = new byte[entry.length];
+            ByteBuffer view = mapped.duplicate();
+            view.position(entry.offset);
+            view.get(body);
+            return body;
+        }
+
+        synchronized void put(String signature, CommandKey key, byte[] body, long generation) {
+            if (generation != this.generation) {
+                return;
+            }
+            byte[] sig = signature.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(1 + 8 + 4 + sig.length + 3 + 4 + key.arguments.length + 4 + body.length);
+            record.put(ENTRY).putLong(epoch).putInt(sig.length).put(sig);
+            record.put((byte) key.commandSet).put((byte) key.command).put((byte) (key.byName ? 1 : 0));
+            record.putInt(key.arguments.length).put(key.arguments);
+            record.putInt(body.length).put(body);
+            if (!append(record.array())) {
+                return;
+            }
+            Entry previous = classes.computeIfAbsent(signature, k -> new HashMap<>())
+                    .put(key, new Entry(epoch, 0, body.length, body));
+            if (!JdwpMetadataSession.isBuildLevel(key)
+                    && (previous == null || !isValid(previous, key))) {
+                processEntries++;
+            }
+        }
+
+        synchronized Verification verify(String signature, CommandKey key, byte[] body) {
+            byte[] cached = get(signature, key);
+            if (cached == null) {
+                return Verification.ABSENT;
+            }
+            if (Arrays.equals(cached, body)) {
+                return Verification.MATCHED;
+            }
+            clear();
+            return Verification.MISMATCHED;
+        }
+
+        synchronized boolean isEmpty() {
+            return processEntries == 0;
+        }
+
+        synchronized void invalidate(String signature) {
+            generation++;
+            if (classes.remove(signature) != null) {
+                byte[] sig = signature.getBytes(StandardCharsets.UTF_8);
+                append(ByteBuffer.allocate(1 + 4 + sig.length).put(INVALIDATE).putInt(sig.length).put(sig).array());
+                countProcessEntries();
+            }
+        }
+
+        /**
+         * 换了 JVM 进程：与进程相关的回复全部作废，与进程无关的保留
+         */
+        synchronized void clear() {
+            generation++;
+            epoch++;
+            processEntries = 0;
+            append(ByteBuffer.allocate(1 + 8).put(EPOCH).putLong(epoch).array());
+        }
+
+        /**
+         * 截断到文件头，映射区中的旧内容不再被引用
+         */
+        synchronized void reset() throws IOException {
+            classes.clear();
+            generation++;
+            epoch++;
+            processEntries = 0;
+            size = headerSize;
+            FileLock lock = channel.lock();
+            try {
+                channel.truncate(headerSize);
+            } finally {
+                lock.release();
+            }
+            append(ByteBuffer.allocate(1 + 8).put(EPOCH).putLong(epoch).array());
+        }
+
+        private boolean isValid(Entry entry, CommandKey key) {
+            return entry.epoch == epoch || JdwpMetadataSession.isBuildLevel(key);
+        }
+
+        private void countProcessEntries() {
+            processEntries = 0;
+            for (Map<CommandKey, Entry> replies : classes.values()) {
+                for (Map.Entry<CommandKey, Entry> reply : replies.entrySet()) {
+                    if (!JdwpMetadataSession.isBuildLevel(reply.getKey())
+                            && reply.getValue().epoch == epoch) {
+                        processEntries++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 追加一条记录：[长度][内容][CRC32]，多个 IDE 进程之间用文件锁互斥
+         */
+        private boolean append(byte[] content) {
+            if (size + content.length + 8 > maxFileBytes) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            ByteBuffer record = ByteBuffer.allocate(content.length + 8);
+            record.putInt(content.length).put(content).putInt((int) crc.getValue());
+            record.flip();
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    long position = channel.size();
+                    while (record.hasRemaining()) {
+                        position += channel.write(record, position);
+                    }
+                    size = position;
+                    return true;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot write metadata cache {}: {}", path, e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * 读取映射区中的全部记录，返回最后一条完整记录的结束位置
+         */
+        private int load() {
+            ByteBuffer buffer = mapped.duplicate();
+            buffer.position(8);
+            int count = buffer.getInt();
+            buffer.position(buffer.position() + count * 8);
+            headerSize = buffer.position();
+            int end = headerSize;
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length <= 0 || length + 4 > buffer.remaining()) {
+                    break;
+                }
+                int start = buffer.position();
+                CRC32 crc = new CRC32();
+                ByteBuffer content = buffer.duplicate();
+                content.limit(start + length);
+                crc.update(content);
+                if ((int) crc.getValue() != buffer.getInt(start + length)) {
+                    break;
+                }
+                readRecord(buffer);
+                buffer.position(start + length + 4);
+                end = buffer.position();
+            }
+            countProcessEntries();
+            return end;
+        }
+
+        private void readRecord(ByteBuffer buffer) {
+            byte type = buffer.get();
+            if (type == ENTRY) {
+                long entryEpoch = buffer.getLong();
+                String signature = readString(buffer);
+                int commandSet = buffer.get() & 0xFF;
+                int command = buffer.get() & 0xFF;
+                boolean byName = buffer.get() != 0;
+                byte[] arguments = new byte[buffer.getInt()];
+                buffer.get(arguments);
+                int length = buffer.getInt();
+                classes.computeIfAbsent(signature, k -> new HashMap<>())
+                        .put(new CommandKey(commandSet, command, arguments, byName),
+                             new Entry(entryEpoch, buffer.position(), length, null));
+            } else if (type == INVALIDATE) {
+                classes.remove(readString(buffer));
+            } else if (type == EPOCH) {
+                epoch = buffer.getLong();
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeHeader(Path path, long[] classHashes) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12 + classHashes.length * 8);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(classHashes.length);
+        for (long hash : classHashes) {
+            header.putLong(hash);
+        }
+        Path temp = Files.createTempFile(path.getParent(), "new", ".tmp");
+        Files.write(temp, header.array());
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // 另一个 IDE 进程同时创建了同一个文件
+            Files.delete(temp);
+        }
+    }
+
+    /**
+     * 文件超过上限一半时重写，去掉被覆盖、失效和旧 epoch 的记录
+     */
+    private void compactIfNeeded(Path path) throws IOException {
+        if (Files.size(path) < maxFileBytes / 2) {
+            return;
+        }
+        // 借用 CacheFile 读取现有内容，再按当前有效内容重写
+        long[] classHashes = readClassHashes(path);
+        if (classHashes == null) {
+            Files.delete(path);
+            writeHeader(path, new long[0]);
+            return;
+        }
+        CacheFile old = new CacheFile(path, classHashes, false);
+        Path temp = Files.createTempFile(path.getParent(), "compact", ".tmp");
+        Files.delete(temp);
+        writeHeader(temp, classHashes);
+        CacheFile compacted = new CacheFile(temp, classHashes, false);
+        compacted.epoch = old.epoch;
+        compacted.append(ByteBuffer.allocate(1 + 8).put(EPOCH).putLong(old.epoch).array());
+        for (Map.Entry<String, Map<CommandKey, Entry>> replies : old.classes.entrySet()) {
+            for (Map.Entry<CommandKey, Entry> reply : replies.getValue().entrySet()) {
+                if (old.isValid(reply.getValue(), reply.getKey())) {
+                    compacted.put(replies.getKey(), reply.getKey(), old.get(replies.getKey(), reply.getKey()),
+                                  compacted.generation);
+                }
+            }
+        }
+        old.channel.close();
+        compacted.channel.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.proxy.common;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 可恢复会话的重放缓冲区：一个方向上已发送、对端尚未确认的二进制帧
+ *
+ * 每个方向的帧按发送顺序从 1 开始编号，双方各自记录已收到的帧数。
+ * 收到的字节每超过 {@link #ACK_INTERVAL_BYTES} 时，以文本消息 "ACK 帧数" 通知对端，对端丢弃已确认的帧。
+ * 连接断开后客户端用同一个 X-Session-Id 重连，握手时双方通过 {@link #RECEIVED_HEADER} 交换已收到的帧数，
+ * 各自从对端缺少的第一帧开始重发，调试器和目标 JVM 都不会察觉连接断过。
+ *
+ * 缓冲区满（未确认的字节达到上限）或连接断开期间，源端的读取线程在 {@link #awaitCapacity()} 中等待。
+ * 控制消息（确认等）用文本帧，不计入编号。
+ */
+public final class ReplayBuffer {
+
+    // 客户端声明支持恢复，服务端在握手响应中带上表示同意
+    public static final String RESUME_HEADER = "X-Resume";
+    public static final String RESUME_VERSION = "1";
+    // 服务端同意恢复时带上它为断开的会话保留的秒数，客户端在这段时间内重连
+    public static final String GRACE_HEADER = "X-Resume-Grace";
+    // 重连握手：请求中是客户端已收到的帧数，响应中是服务端已收到的帧数
+    public static final String RECEIVED_HEADER = "X-Resume-Received";
+    // 重连到了不持有会话的副本：响应中是持有副本的地址，客户端改连该地址
+    public static final String OWNER_HEADER = "X-Resume-Owner";
+    static final String ACK_PREFIX = "ACK ";
+
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    public static final long DEFAULT_GRACE_SECONDS = 60;
+
+    private static final long ACK_INTERVAL_BYTES = 64 * 1024;
+
+    private final long maxBytes;
+    private final ArrayDeque<byte[]> unacknowledged = new ArrayDeque<>();
+    // 已被确认的帧数，即 unacknowledged 中第一帧的编号减一
+    private long acknowledged;
+    private long sent;
+    private long bytes;
+    // 当前连接的发送方法，断开期间为 null
+    private Consumer<byte[]> sender;
+    private boolean closed;
+
+    private long received;
+    private long receivedSinceAck;
+
+    /**
+     * @param maxBytes 未确认字节的上限，达到时暂停读取源端
+     */
+    public ReplayBuffer(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 握手响应中的宽限期；没有该字段（旧版本服务端）或值无效时为 {@link #DEFAULT_GRACE_SECONDS}
+     */
+    public static long graceFromHeader(String value) {
+        if (value == null || value.isEmpty()) {
+            return DEFAULT_GRACE_SECONDS;
+        }
+        try {
+            long graceSeconds = Long.parseLong(value.trim());
+            return graceSeconds > 0 ? graceSeconds : DEFAULT_GRACE_SECONDS;
+        } catch (NumberFormatException e) {
+            return DEFAULT_GRACE_SECONDS;
+        }
+    }
+
+    /**
+     * 记录并发送一帧；断开期间只记录，恢复后重发
+     */
+    public synchronized void send(byte[] frame) {
+        if (closed) {
+            return;
+        }
+        unacknowledged.addLast(frame);
+        sent++;
+        bytes += frame.length;
+        if (sender != null) {
+            try {
+                sender.accept(frame);
+            } catch (RuntimeException e) {
+                // 连接已断开，帧留在缓冲区中
+                sender = null;
+            }
+        }
+    }
+
+    /**
+     * 连接建立或恢复：重发对端没有收到的帧，之后的帧直接发送
+     * @param peerReceived 对端已收到的帧数
+     * @return 缓冲区已关闭、对端缺少的帧已被丢弃或编号超出已发送的范围时返回 false
+     */
+    public synchronized boolean attach(long peerReceived, Consumer<byte[]> sender) {
+        if (closed || peerReceived < acknowledged || peerReceived > sent) {
+            return false;
+        }
+        acknowledge(peerReceived);
+        try {
+            for (byte[] frame : new ArrayList<>(unacknowledged)) {
+                sender.accept(frame);
+            }
+        } catch (RuntimeException e) {
+            // 新连接也已断开，等下一次恢复
+            return true;
+        }
+        this.sender = sender;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 连接断开，之后的帧只记录
+     */
+    public synchronized void detach() {
+        sender = null;
+    }
+
+    synchronized boolean isAttached() {
+        return sender != null;
+    }
+
+    /**
+     * 处理对端的确认
+     */
+    synchronized void acknowledge(long count) {
+        while (acknowledged < count && !unacknowledged.isEmpty()) {
+            bytes -= unacknowledged.removeFirst().length;
+            acknowledged++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * 解析对端的确认消息
+     * @return 不是确认消息时返回 false
+     */
+    public boolean onText(String message) {
+        if (!message.startsWith(ACK_PREFIX)) {
+            return false;
+        }
+        try {
+            acknowledge(Long.parseLong(message.substring(ACK_PREFIX.length()).trim()));
+        } catch (NumberFormatException e) {
+            // 忽略格式错误的确认
+        }
+        return true;
+    }
+
+    /**
+     * 记录收到的一帧
+     * @return 需要向对端发送确认时返回确认消息，否则返回 null
+     */
+    public synchronized String received(int length) {
+        received++;
+        receivedSinceAck += length;
+        if (receivedSinceAck < ACK_INTERVAL_BYTES) {
+            return null;
+        }
+        receivedSinceAck = 0;
+        return ACK_PREFIX + received;
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public synchronized long getUnacknowledgedBytes() {
+        return bytes;
+    }
+
+    /**
+     * 连接可用且缓冲区未满时立即返回，否则阻塞到恢复、对端确认或缓冲区关闭
+     */
+    public synchronized void awaitCapacity() throws InterruptedIOException {
+        try {
+            while (!closed && (sender == null || bytes >= maxBytes)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the session to resume");
+        }
+    }
+
+    /**
+     * 会话结束，释放等待的线程并丢弃缓冲的帧
+     */
+    public synchronized void close() {
+        closed = true;
+        sender = null;
+        unacknowledged.clear();
+        bytes = 0;
+        notifyAll();
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.proxy.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话转发线程的创建方式
+ *
+ * 平台线程：每个会话一个守护线程（默认）。
+ * 虚拟线程：JDK 21+ 上每个会话一个虚拟线程，阻塞在 read 上时不占用平台线程和线程栈。
+ * 模块按 Java 11 编译，虚拟线程通过反射创建，低版本 JDK 上自动回退到平台线程。
+ *
+ * 连接目标、写入目标这类会阻塞但不常驻的任务用 {@link #execute}：平台线程时放在按需扩展的线程池里，
+ * 空闲一段时间后回收；虚拟线程时每个任务一个线程。
+ */
+public class SessionThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionThreads.class);
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            // JDK 21 以下没有虚拟线程
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+
+    private static final long IDLE_SECONDS = 60;
+
+    private final boolean virtual;
+    // 平台线程时执行短任务的线程池，没有任务时不占线程
+    private final ExecutorService tasks;
+
+    public SessionThreads(boolean virtual) {
+        if (virtual && OF_VIRTUAL == null) {
+            logger.warn("Virtual threads require JDK 21+ (running on {}), using platform threads",
+                       System.getProperty("java.version"));
+        }
+        this.virtual = virtual && OF_VIRTUAL != null;
+        AtomicInteger count = new AtomicInteger();
+        this.tasks = this.virtual ? null : new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "SessionTask-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * 创建并启动一个会话线程
+     */
+    public Thread start(String name, Runnable task) {
+        Thread thread;
+        if (virtual) {
+            thread = newVirtualThread(name, task);
+        } else {
+            thread = new Thread(task, name);
+            thread.setDaemon(true);
+        }
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * 执行一个短任务，任务可以阻塞
+     * @param name 虚拟线程的名字，平台线程时线程池中的线程按序号命名
+     */
+    public void execute(String name, Runnable task) {
+        if (virtual) {
+            newVirtualThread(name, task).start();
+        } else {
+            tasks.execute(task);
+        }
+    }
+
+    /**
+     * 停止接受新的短任务，已在执行的任务继续
+     */
+    public void shutdown() {
+        if (tasks != null) {
+            tasks.shutdown();
+        }
+    }
+
+    private static Thread newVirtualThread(String name, Runnable task) {
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = BUILDER_NAME.invoke(builder, name);
+            return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual thread", e);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.example.proxy.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * JDWP 隧道流量记录：每个会话两个方向转发的数据连同时间戳追加到一个紧凑的二进制日志，
+ * 之后可以按原速或全速回放（基准模块的 TrafficReplayer），在本地重现线上的慢会话
+ *
+ * 转发线程只把记录放进无锁队列，数组按引用保存（交出后不再修改，与 WebSocket.send 的约定相同），
+ * 由一个后台线程顺序写入内存映射的文件，每写满 {@value #SEGMENT_BYTES} 字节映射下一段。
+ * 待写的字节超过上限（磁盘跟不上）或文件达到大小上限时丢弃记录并计数：转发从不等待记录。
+ *
+ * 文件格式：
+ * 文件头 [8 字节 "JDWPTRAC"][int 版本][long 开始时间（Unix 毫秒）]
+ * 每条记录 [byte 类型][varint 会话序号][zigzag varint 与上一条的时间差（微秒）][varint 长度][内容]
+ * <ul>
+ *     <li>{@link #OPEN}：内容为 UTF-8 的 "会话 ID\n目标"</li>
+ *     <li>{@link #TO_TARGET}、{@link #TO_CLIENT}：原样转发的字节，可能包含多个或半个 JDWP 包，第一条前面可能有握手串</li>
+ *     <li>{@link #CLOSE}：没有内容</li>
+ * </ul>
+ * 映射了但还没写到的部分为 0，读到类型 0 即结束，进程中途退出时已写入的记录仍然可读。
+ */
+public class TrafficRecorder implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrafficRecorder.class);
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 16L * 1024 * 1024;
+
+    public static final byte OPEN = 1;
+    public static final byte TO_TARGET = 2;
+    public static final byte TO_CLIENT = 3;
+    public static final byte CLOSE = 4;
+
+    private static final byte[] MAGIC = "JDWPTRAC".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_BYTES = MAGIC.length + Integer.BYTES + Long.BYTES;
+    // 类型 + 会话序号 + 时间差 + 长度，各 varint 的最大长度
+    private static final int MAX_RECORD_HEADER_BYTES = 1 + 5 + 10 + 5;
+    private static final int SEGMENT_BYTES = 8 * 1024 * 1024;
+    // 队列中每条记录除内容外的大致内存占用
+    private static final int ENTRY_OVERHEAD_BYTES = 48;
+    private static final long WRITER_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long maxFileBytes;
+    private final long maxQueuedBytes;
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile boolean full;
+    private volatile long recordedBytes;
+    // 以下字段只在写线程中使用
+    private final byte[] header = new byte[MAX_RECORD_HEADER_BYTES];
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private long lastMicros;
+
+    private TrafficRecorder(Path file, FileChannel channel, long maxFileBytes, long maxQueuedBytes) throws IOException {
+        if (maxFileBytes <= FILE_HEADER_BYTES || maxQueuedBytes <= 0) {
+            throw new IllegalArgumentException("Recording limits too small");
+        }
+        this.file = file;
+        this.channel = channel;
+        this.maxFileBytes = maxFileBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(SEGMENT_BYTES, maxFileBytes));
+        segment.put(MAGIC).putInt(FORMAT_VERSION).putLong(System.currentTimeMillis());
+        this.recordedBytes = segment.position();
+        this.writer = new Thread(this::run, "TrafficRecorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 创建记录文件，已存在时覆盖
+     */
+    public static TrafficRecorder open(Path file) throws IOException {
+        return open(file, DEFAULT_MAX_FILE_BYTES);
+    }
+
+    /**
+     * @param maxFileBytes 文件大小上限，写满后丢弃之后的记录
+     */
+    public static TrafficRecorder open(Path file, long maxFileBytes) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new TrafficRecorder(file, channel, maxFileBytes, DEFAULT_MAX_QUEUED_BYTES);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * 开始记录一个会话
+     * @param target 目标 JVM 地址或 Pod 名，回放时只用于显示
+     */
+    public Session openSession(String sessionId, String target) {
+        Session session = new Session(sessions.incrementAndGet());
+        byte[] info = (sessionId + "\n" + target).getBytes(StandardCharsets.UTF_8);
+        append(OPEN, session.id, info);
+        return session;
+    }
+
+    /**
+     * 因队列或文件已满而丢弃的记录数
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 已写入文件的字节数
+     */
+    public long getRecordedBytes() {
+        return recordedBytes;
+    }
+
+    /**
+     * 写完队列中的记录后关闭文件，之后的记录被丢弃
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            segment.force();
+            try {
+                channel.truncate(recordedBytes);
+            } catch (IOException e) {
+                // Windows 上映射还没释放时不能截断，末尾的 0 在读取时被忽略
+            }
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Error closing recording {}: {}", file, e.getMessage());
+        }
+        logger.info("Recorded {} bytes of JDWP traffic to {}, {} records dropped", recordedBytes, file, getDropped());
+    }
+
+    private void append(byte type, int session, byte[] data) {
+        if (closed || full) {
+            dropped.increment();
+            return;
+        }
+        long size = data.length + ENTRY_OVERHEAD_BYTES;
+        if (queuedBytes.addAndGet(size) > maxQueuedBytes) {
+            queuedBytes.addAndGet(-size);
+            dropped.increment();
+            return;
+        }
+        queue.add(new Pending(type, session, System.nanoTime(), data));
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Pending pending = queue.poll();
+                if (pending == null) {
+                    if (closed) {
+                        return;
+                    }
+                    LockSupport.parkNanos(this, WRITER_IDLE_NANOS);
+                    continue;
+                }
+                queuedBytes.addAndGet(-(pending.data.length + ENTRY_OVERHEAD_BYTES));
+                write(pending);
+            }
+        } catch (IOException e) {
+            logger.warn("Recording to {} failed, recording stopped: {}", file, e.getMessage());
+            full = true;
+            queue.clear();
+        }
+    }
+
+    private void write(Pending pending) throws IOException {
+        long micros = TimeUnit.NANOSECONDS.toMicros(pending.nanos - startNanos);
+        int length = 0;
+        header[length++] = pending.type;
+        length = putVarint(header, length, pending.session);
+        // 不同线程入队的先后与时间戳可能差几微秒，时间差可以为负
+        long delta = micros - lastMicros;
+        length = putVarint(header, length, (delta << 1) ^ (delta >> 63));
+        length = putVarint(header, length, pending.data.length);
+        if (segmentStart + segment.position() + length + pending.data.length > maxFileBytes) {
+            if (!full) {
+                full = true;
+                logger.warn("Recording {} reached {} bytes, further traffic is not recorded", file, maxFileBytes);
+            }
+            dropped.increment();
+            return;
+        }
+        lastMicros = micros;
+        put(header, length);
+        put(pending.data, pending.data.length);
+        recordedBytes = segmentStart + segment.position();
+    }
+
+    /**
+     * 写入当前段，写满时映射下一段：记录可以跨段
+     */
+    private void put(byte[] data, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!segment.hasRemaining()) {
+                segmentStart += segment.capacity();
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart,
+                        Math.min(SEGMENT_BYTES, maxFileBytes - segmentStart));
+            }
+            int n = Math.min(length - offset, segment.remaining());
+            segment.put(data, offset, n);
+            offset += n;
+        }
+    }
+
+    private static int putVarint(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * 一个会话的记录入口，可以在转发线程中直接调用
+     */
+    public final class Session {
+        private final int id;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Session(int id) {
+            this.id = id;
+        }
+
+        /**
+         * 客户端（调试器）发往目标 JVM 的数据
+         */
+        public void toTarget(byte[] data) {
+            append(TO_TARGET, id, data);
+        }
+
+        /**
+         * 发往客户端（调试器）的数据，包括代理本地回答的回复
+         */
+        public void toClient(byte[] data) {
+            append(TO_CLIENT, id, data);
+        }
+
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                append(CLOSE, id, new byte[0]);
+            }
+        }
+    }
+
+    private static final class Pending {
+        final byte type;
+        final int session;
+        final long nanos;
+        final byte[] data;
+
+        Pending(byte type, int session, long nanos, byte[] data) {
+            this.type = type;
+            this.session = session;
+            this.nanos = nanos;
+            this.data = data;
+        }
+    }
+
+    /**
+     * 顺序读取记录文件
+     */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startMillis;
+        private long micros;
+
+        public Reader(Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException("Not a JDWP traffic recording: " + file);
+                }
+                int version = in.readInt();
+                if (version != FORMAT_VERSION) {
+                    throw new IOException("Unsupported recording version " + version + ": " + file);
+                }
+                this.startMillis = in.readLong();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * 开始记录的时间（Unix 毫秒）
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return 下一条记录，读完时返回 null；写到一半的最后一条记录视为结束
+         */
+        public Entry next() throws IOException {
+            try {
+                int type = in.read();
+                if (type <= 0) {
+                    return null;
+                }
+                int session = (int) readVarint();
+                long delta = readVarint();
+                micros += (delta >>> 1) ^ -(delta & 1);
+                byte[] data = new byte[(int) readVarint()];
+                in.readFully(data);
+                return new Entry((byte) type, session, micros, data);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in recording");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * 读出的一条记录
+     */
+    public static final class Entry {
+        private final byte type;
+        private final int session;
+        private final long timeMicros;
+        private final byte[] data;
+
+        Entry(byte type, int session, long timeMicros, byte[] data) {
+            this.type = type;
+            this.session = session;
+            this.timeMicros = timeMicros;
+            this.data = data;
+        }
+
+        /**
+         * {@link #OPEN}、{@link #TO_TARGET}、{@link #TO_CLIENT} 或 {@link #CLOSE}
+         */
+        public byte getType() {
+            return type;
+        }
+
+        /**
+         * 会话序号，同一文件内唯一
+         */
+        public int getSession() {
+            return session;
+        }
+
+        /**
+         * 距开始记录的微秒数
+         */
+        public long getTimeMicros() {
+            return timeMicros;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.proxy.common;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.extensions.CompressionExtension;
+import org.java_websocket.extensions.ExtensionRequestData;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.ContinuousFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * permessage-deflate 压缩扩展（RFC 7692）
+ *
+ * 握手时协商，对端不支持时自动退回不压缩。与库自带的 PerMessageDeflateExtension 相比：
+ * 可以设置压缩级别；小于阈值的消息（事件包等）不压缩；支持上下文接管，
+ * 即消息之间共享 LZ77 窗口，重复的类签名在后续消息里只需要一个回溯引用。
+ *
+ * 开启上下文接管时，压缩输出必须按压缩顺序发送：同一连接上多个线程发送时，调用方需要串行化 send()。
+ */
+public class TunnelDeflateExtension extends CompressionExtension {
+
+    public static final String EXTENSION_NAME = "permessage-deflate";
+    public static final int DEFAULT_LEVEL = 6;
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int level;
+    private final int threshold;
+    private final boolean contextTakeover;
+
+    // 协商结果：发送方向每条消息后重置 deflater / 接收方向每条消息后重置 inflater
+    private boolean resetDeflater;
+    private boolean resetInflater;
+    private Deflater deflater;
+    private Inflater inflater;
+    // 分片消息的状态：第一个分片决定整条消息是否压缩
+    private boolean compressingMessage;
+    private boolean decompressingMessage;
+
+    /**
+     * @param level 压缩级别 1-9
+     * @param threshold 小于该字节数的消息不压缩
+     * @param contextTakeover 是否在消息之间保留压缩上下文
+     */
+    public TunnelDeflateExtension(int level, int threshold, boolean contextTakeover) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        }
+        this.level = level;
+        this.threshold = threshold;
+        this.contextTakeover = contextTakeover;
+        this.resetDeflater = !contextTakeover;
+        this.resetInflater = !contextTakeover;
+    }
+
+    /**
+     * 创建带压缩扩展的 Draft；level 为 0 时返回不压缩的 Draft。发送队列按连接计数，见 {@link OutboundQueue}
+     */
+    public static Draft createDraft(int level, int threshold, boolean contextTakeover) {
+        if (level <= 0) {
+            return new OutboundQueue.MeteredDraft(Collections.emptyList());
+        }
+        return new OutboundQueue.MeteredDraft(Collections.singletonList(
+                new TunnelDeflateExtension(level, threshold, contextTakeover)));
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public boolean isContextTakeover() {
+        return contextTakeover;
+    }
+
+    @Override
+    public synchronized void encodeFrame(Framedata frame) {
+        if (!(frame instanceof DataFrame)) {
+            return;
+        }
+        ByteBuffer payload = frame.getPayloadData();
+        if (!(frame instanceof ContinuousFrame)) {
+            compressingMessage = payload.remaining() >= threshold;
+            if (compressingMessage) {
+                ((DataFrame) frame).setRSV1(true);
+            }
+        }
+        if (!compressingMessage) {
+            return;
+        }
+
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        byte[] input = new byte[payload.remaining()];
+        payload.duplicate().get(input);
+        deflater.setInput(input);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        do {
+            length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, length);
+        } while (length == buffer.length);
+
+        byte[] compressed = out.toByteArray();
+        int compressedLength = compressed.length;
+        if (frame.isFin()) {
+            // SYNC_FLUSH 总是以 00 00 ff ff 结尾，消息的最后一个分片去掉它
+            compressedLength -= TAIL.length;
+            if (resetDeflater) {
+                deflater.reset();
+            }
+        }
+        ((DataFrame) frame).setPayload(ByteBuffer.wrap(compressed, 0, compressedLength));
+    }
+
+    @Override
+    public void decodeFrame(Framedata frame) throws InvalidDataException {
+        if (!(frame instanceof DataFrame)) {
+            return;
+        }
+        if (!(frame instanceof ContinuousFrame)) {
+            decompressingMessage = frame.isRSV1();
+        } else if (frame.isRSV1()) {
+            throw new InvalidDataException(CloseFrame.POLICY_VALIDATION, "RSV1 bit can only be set for the first frame.");
+        }
+        if (!decompressingMessage) {
+            return;
+        }
+
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        ByteBuffer payload = frame.getPayloadData();
+        byte[] input = new byte[payload.remaining()];
+        payload.duplicate().get(input);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4 + 16);
+        try {
+            inflate(input, out);
+            if (frame.isFin()) {
+                inflate(TAIL, out);
+                if (resetInflater) {
+                    inflater.reset();
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new InvalidDataException(CloseFrame.POLICY_VALIDATION, e.getMessage());
+        }
+        ((DataFrame) frame).setPayload(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private void inflate(byte[] input, ByteArrayOutputStream out) throws DataFormatException {
+        inflater.setInput(input);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = inflater.inflate(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+    }
+
+    @Override
+    public String getProvidedExtensionAsClient() {
+        if (contextTakeover) {
+            return EXTENSION_NAME;
+        }
+        return EXTENSION_NAME + "; " + CLIENT_NO_CONTEXT_TAKEOVER + "; " + SERVER_NO_CONTEXT_TAKEOVER;
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsClient(String inputExtension) {
+        for (String offer : inputExtension.split(",")) {
+            ExtensionRequestData data = ExtensionRequestData.parseExtensionRequest(offer);
+            if (!EXTENSION_NAME.equalsIgnoreCase(data.getExtensionName())) {
+                continue;
+            }
+            Map<String, String> params = data.getExtensionParameters();
+            // Deflater 不能缩小窗口，服务器要求时不能接受
+            if (params.containsKey(CLIENT_MAX_WINDOW_BITS) && !"15".equals(params.get(CLIENT_MAX_WINDOW_BITS))) {
+                return false;
+            }
+            resetDeflater = !contextTakeover || params.containsKey(CLIENT_NO_CONTEXT_TAKEOVER);
+            resetInflater = !contextTakeover || params.containsKey(SERVER_NO_CONTEXT_TAKEOVER);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean acceptProvidedExtensionAsServer(String inputExtension) {
+        for (String offer : inputExtension.split(",")) {
+            ExtensionRequestData data = ExtensionRequestData.parseExtensionRequest(offer);
+            if (!EXTENSION_NAME.equalsIgnoreCase(data.getExtensionName())) {
+                continue;
+            }
+            Map<String, String> params = data.getExtensionParameters();
+            if (params.containsKey(SERVER_MAX_WINDOW_BITS) && !"15".equals(params.get(SERVER_MAX_WINDOW_BITS))) {
+                continue;
+            }
+            resetDeflater = !contextTakeover || params.containsKey(SERVER_NO_CONTEXT_TAKEOVER);
+            resetInflater = !contextTakeover || params.containsKey(CLIENT_NO_CONTEXT_TAKEOVER);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String getProvidedExtensionAsServer() {
+        StringBuilder response = new StringBuilder(EXTENSION_NAME);
+        if (resetDeflater) {
+            response.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if (!contextTakeover) {
+            response.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        return response.toString();
+    }
+
+    @Override
+    public IExtension copyInstance() {
+        return new TunnelDeflateExtension(level, threshold, contextTakeover);
+    }
+
+    @Override
+    public synchronized void reset() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        resetDeflater = !contextTakeover;
+        resetInflater = !contextTakeover;
+        compressingMessage = false;
+        decompressingMessage = false;
+    }
+
+    @Override
+    public String toString() {
+        return "TunnelDeflateExtension{level=" + level + ", threshold=" + threshold
+                + ", contextTakeover=" + contextTakeover + "}";
+    }
+}
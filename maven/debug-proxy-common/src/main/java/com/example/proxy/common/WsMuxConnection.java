@@ -0,0 +1,330 @@
+package com.example.proxy.common;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ServerHandshake;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多路复用WebSocket连接
+ *
+ * 同一个IDE连到同一个代理服务器的所有调试会话共享一个长连接，
+ * 每个会话是连接上的一个channel，有各自的打开、关闭和错误信号
+ */
+public class WsMuxConnection {
+
+    private static final Logger logger = LoggerFactory.getLogger(WsMuxConnection.class);
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private static final long OPEN_TIMEOUT_SECONDS = 30;
+    // 最后一个会话结束后保留连接的时间，便于马上重新attach
+    private static final long IDLE_LINGER_SECONDS = 60;
+
+    private static final Map<String, WsMuxConnection> connections = new HashMap<>();
+    // 延迟关闭和心跳共用
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "WsMuxConnection-Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String serverUrl;
+    private final Draft draft;
+    // 间隔为 0 时为 null
+    private final Heartbeat heartbeat;
+    private ScheduledFuture<?> heartbeatTask;
+    private long reportedRttMicros = -1;
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger nextChannelId = new AtomicInteger();
+    private WebSocketClient wsClient;
+    // 所有channel共用连接的发送队列
+    private OutboundQueue outboundQueue;
+    private int refCount;
+    private ScheduledFuture<?> lingerTask;
+
+    private WsMuxConnection(String serverUrl, Draft draft, long heartbeatIntervalMillis) {
+        this.serverUrl = serverUrl;
+        this.draft = draft;
+        this.heartbeat = heartbeatIntervalMillis > 0 ? new Heartbeat(heartbeatIntervalMillis) : null;
+    }
+
+    /**
+     * 获取到指定服务器的共享连接，不存在或已断开时新建
+     * @param draft 新建连接时使用的协议（含压缩扩展），复用已有连接时忽略
+     * @param heartbeatIntervalMillis 新建连接的心跳间隔，0 表示不发心跳，复用已有连接时忽略
+     */
+    public static WsMuxConnection acquire(String serverUrl, Draft draft, long heartbeatIntervalMillis)
+            throws Exception {
+        synchronized (connections) {
+            WsMuxConnection connection = connections.get(serverUrl);
+            if (connection == null || !connection.isOpen()) {
+                connection = new WsMuxConnection(serverUrl, draft, heartbeatIntervalMillis);
+                connection.connect();
+                connections.put(serverUrl, connection);
+            }
+            connection.refCount++;
+            if (connection.lingerTask != null) {
+                connection.lingerTask.cancel(false);
+                connection.lingerTask = null;
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * 释放共享连接，最后一个使用者释放后延迟关闭
+     */
+    public static void release(WsMuxConnection connection) {
+        synchronized (connections) {
+            if (--connection.refCount > 0) {
+                return;
+            }
+            connection.lingerTask = timer.schedule(() -> {
+                synchronized (connections) {
+                    if (connection.refCount <= 0) {
+                        connections.remove(connection.serverUrl, connection);
+                        connection.wsClient.close();
+                        logger.info("Multiplexed connection to {} closed after idle", connection.serverUrl);
+                    }
+                }
+            }, IDLE_LINGER_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void connect() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(MuxFrame.MUX_HEADER, MuxFrame.MUX_VERSION);
+        if (heartbeat != null) {
+            headers.put(Heartbeat.HEADER, String.valueOf(heartbeat.getIntervalMillis()));
+        }
+
+        wsClient = new WebSocketClient(new URI(serverUrl), draft, headers) {
+            @Override
+            public void onOpen(ServerHandshake handshake) {
+                logger.info("Multiplexed connection to {} opened", serverUrl);
+                if (heartbeat != null) {
+                    heartbeat.connected(!handshake.getFieldValue(Heartbeat.HEADER).isEmpty());
+                }
+            }
+
+            @Override
+            public void onMessage(String message) {
+                if (heartbeat != null && Heartbeat.PONG.equals(message)) {
+                    heartbeat.onPong(System.nanoTime());
+                    return;
+                }
+                logger.debug("Received text message: {}", message);
+            }
+
+            @Override
+            public void onMessage(ByteBuffer bytes) {
+                if (heartbeat != null) {
+                    heartbeat.received(System.nanoTime());
+                }
+                try {
+                    onFrame(MuxFrame.decode(bytes));
+                } catch (IOException e) {
+                    logger.error("Invalid mux frame: {}", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+                logger.info("Multiplexed connection to {} closed: code={}, reason={}, remote={}",
+                           serverUrl, code, reason, remote);
+                if (heartbeatTask != null) {
+                    heartbeatTask.cancel(false);
+                }
+                closeAllChannels("Connection closed: " + reason);
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                logger.error("Multiplexed connection error: {}", ex.getMessage(), ex);
+            }
+        };
+
+        logger.info("Connecting multiplexed connection to {}", serverUrl);
+        if (!wsClient.connectBlocking(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IOException("Failed to connect to proxy server: " + serverUrl);
+        }
+        outboundQueue = new OutboundQueue(wsClient.getConnection(),
+                OutboundQueue.DEFAULT_LOW_WATERMARK, OutboundQueue.DEFAULT_HIGH_WATERMARK);
+        if (heartbeat != null) {
+            heartbeatTask = timer.scheduleWithFixedDelay(this::heartbeat,
+                    Heartbeat.TICK_MILLIS, Heartbeat.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 心跳定时任务：发送 PING，超过存活超时没有收到任何数据时断开，所有 channel 随之关闭
+     */
+    private void heartbeat() {
+        if (!wsClient.isOpen()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (heartbeat.isExpired(now)) {
+            logger.warn("No response from {} within {} ms, closing multiplexed connection",
+                       serverUrl, heartbeat.getTimeoutMillis());
+            wsClient.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timeout");
+            return;
+        }
+        String ping = heartbeat.nextPing(now);
+        if (ping != null) {
+            wsClient.send(ping);
+        }
+        if (heartbeat.isMeasured() && Heartbeat.isSignificantChange(reportedRttMicros, heartbeat.getRttMicros())) {
+            reportedRttMicros = heartbeat.getRttMicros();
+            logger.info("Multiplexed connection to {}: {}", serverUrl, heartbeat);
+        }
+    }
+
+    public boolean isOpen() {
+        return wsClient != null && wsClient.isOpen();
+    }
+
+    /**
+     * 连接的心跳，未开启时为 null
+     */
+    public Heartbeat getHeartbeat() {
+        return heartbeat;
+    }
+
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * 打开一个channel，等待服务器连接上目标JVM
+     * @param params 会话参数（与独占连接的握手header相同）
+     */
+    public Channel openChannel(Map<String, String> params, ChannelListener listener) throws IOException {
+        int id = nextChannelId.incrementAndGet();
+        Channel channel = new Channel(id, listener);
+        channels.put(id, channel);
+        send(MuxFrame.encode(id, MuxFrame.OPEN, MuxFrame.encodeParams(params)));
+
+        try {
+            channel.opened.get(OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return channel;
+        } catch (ExecutionException e) {
+            channels.remove(id);
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            channel.close();
+            throw new IOException("Timed out opening channel on " + serverUrl);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            channel.close();
+            throw new IOException("Interrupted while opening channel");
+        }
+    }
+
+    /**
+     * 各会话线程的发送串行化：压缩上下文要求帧按压缩顺序发出
+     */
+    private synchronized void send(byte[] frame) {
+        wsClient.send(frame);
+    }
+
+    private void onFrame(MuxFrame frame) {
+        Channel channel = channels.get(frame.getChannel());
+        if (channel == null) {
+            logger.debug("Frame type {} for unknown channel {}", frame.getType(), frame.getChannel());
+            return;
+        }
+
+        switch (frame.getType()) {
+            case MuxFrame.OPENED:
+                channel.opened.complete(null);
+                break;
+            case MuxFrame.DATA:
+                channel.listener.onData(frame.getPayload());
+                break;
+            case MuxFrame.CLOSE:
+            case MuxFrame.ERROR:
+                channels.remove(channel.id);
+                if (!channel.opened.completeExceptionally(new IOException(frame.reason()))) {
+                    channel.listener.onClose(frame.reason());
+                }
+                break;
+            default:
+                logger.warn("Unexpected mux frame type {} on channel {}", frame.getType(), channel.id);
+        }
+    }
+
+    private void closeAllChannels(String reason) {
+        for (Channel channel : channels.values()) {
+            channels.remove(channel.id);
+            if (!channel.opened.completeExceptionally(new IOException(reason))) {
+                channel.listener.onClose(reason);
+            }
+        }
+    }
+
+    /**
+     * channel上的数据和关闭事件回调
+     */
+    public interface ChannelListener {
+        void onData(ByteBuffer data);
+
+        void onClose(String reason);
+    }
+
+    /**
+     * 多路复用连接上的一个调试会话
+     */
+    public class Channel {
+        private final int id;
+        private final ChannelListener listener;
+        private final CompletableFuture<Void> opened = new CompletableFuture<>();
+
+        private Channel(int id, ChannelListener listener) {
+            this.id = id;
+            this.listener = listener;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public void send(byte[] data) {
+            WsMuxConnection.this.send(MuxFrame.encode(id, MuxFrame.DATA, data));
+        }
+
+        /**
+         * 共享连接的发送队列已满时阻塞，只在读取调试器数据的线程中调用
+         */
+        public void awaitCapacity() throws InterruptedIOException {
+            outboundQueue.awaitCapacity();
+        }
+
+        /**
+         * 关闭本channel，不影响同一连接上的其他会话
+         */
+        public void close() {
+            if (channels.remove(id) != null && wsClient.isOpen()) {
+                WsMuxConnection.this.send(MuxFrame.encodeReason(id, MuxFrame.CLOSE, "Closed by client"));
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.proxy.common;
+
+import com.example.proxy.common.JdwpPrefetch.Entry;
+import com.example.proxy.common.JdwpPrefetch.Push;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.proxy.common.JdwpPrefetch.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JdwpPrefetchCacheTest {
+
+    private static final int[] ID_SIZES = {8, 8, 8, 8, 8};
+    private static final byte[] HANDSHAKE = "JDWP-Handshake".getBytes(StandardCharsets.US_ASCII);
+    private static final int RESUME = 9;
+    private static final int VERSION = 1;
+
+    private final List<byte[]> localReplies = new ArrayList<>();
+    private JdwpPrefetchCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new JdwpPrefetchCache("test", localReplies::add);
+        cache.onCommands(HANDSHAKE);
+        cache.onReplies(HANDSHAKE);
+    }
+
+    private static byte[] frameArguments() {
+        return ByteBuffer.allocate(16).putLong(7).putLong(3).array();
+    }
+
+    private static byte[] pushWithThis(int sequence, long objectId) {
+        byte[] reply = ByteBuffer.allocate(9).put((byte) 'L').putLong(objectId).array();
+        Entry entry = new Entry(STACK_FRAME, THIS_OBJECT, frameArguments(), reply);
+        return new Push(sequence, ID_SIZES, Collections.singletonList(entry)).encode();
+    }
+
+    /**
+     * 转发给目标 JVM 的字节中跟在调试器命令后的 DisposeObjects，没有时返回 null
+     */
+    private static ByteBuffer disposal(byte[] forwarded, int commandLength) {
+        if (forwarded.length == commandLength) {
+            return null;
+        }
+        ByteBuffer packet = ByteBuffer.wrap(forwarded, commandLength, forwarded.length - commandLength).slice();
+        assertTrue(isProxyId(packet.getInt(4)));
+        assertEquals(VIRTUAL_MACHINE, packet.get(9));
+        assertEquals(DISPOSE_OBJECTS, packet.get(10));
+        packet.position(11);
+        return packet;
+    }
+
+    @Test
+    public void unusedObjectIsDisposedAfterResume() {
+        assertEquals(0, cache.onReplies(pushWithThis(0, 42)).length);
+
+        byte[] resume = command(1, VIRTUAL_MACHINE, RESUME, new byte[0]);
+        ByteBuffer dispose = disposal(cache.onCommands(resume), resume.length);
+        assertEquals(1, dispose.getInt());
+        assertEquals(42, dispose.getLong());
+        assertEquals(1, dispose.getInt());
+
+        // 只释放一次
+        byte[] version = command(2, VIRTUAL_MACHINE, VERSION, new byte[0]);
+        assertEquals(version.length, cache.onCommands(version).length);
+    }
+
+    @Test
+    public void answeredObjectIsLeftToTheDebugger() {
+        cache.onReplies(pushWithThis(0, 42));
+
+        byte[] thisObject = command(1, STACK_FRAME, THIS_OBJECT, frameArguments());
+        assertEquals(0, cache.onCommands(thisObject).length);
+        assertEquals(1, localReplies.size());
+
+        byte[] resume = command(2, VIRTUAL_MACHINE, RESUME, new byte[0]);
+        assertEquals(resume.length, cache.onCommands(resume).length);
+    }
+
+    @Test
+    public void stalePushIsDisposedWithNextCommand() {
+        byte[] resume = command(1, VIRTUAL_MACHINE, RESUME, new byte[0]);
+        cache.onCommands(resume);
+        // 服务端在收到 Resume 之前开始的预取
+        cache.onReplies(pushWithThis(0, 42));
+
+        byte[] version = command(2, VIRTUAL_MACHINE, VERSION, new byte[0]);
+        ByteBuffer dispose = disposal(cache.onCommands(version), version.length);
+        assertEquals(1, dispose.getInt());
+        assertEquals(42, dispose.getLong());
+    }
+
+    @Test
+    public void nullObjectIsNotDisposed() {
+        cache.onReplies(pushWithThis(0, 0));
+
+        byte[] resume = command(1, VIRTUAL_MACHINE, RESUME, new byte[0]);
+        assertEquals(resume.length, cache.onCommands(resume).length);
+    }
+
+    @Test
+    public void proxyRepliesAreNotForwarded() {
+        byte[] reply = reply(CLIENT_ID_BASE | 5, new byte[0]);
+        byte[] version = reply(1, new byte[]{1, 2});
+
+        byte[] frame = ByteBuffer.allocate(reply.length + version.length).put(reply).put(version).array();
+        byte[] forwarded = cache.onReplies(frame);
+        assertEquals(version.length, forwarded.length);
+        assertEquals(1, ByteBuffer.wrap(forwarded).getInt(4));
+    }
+
+    @Test
+    public void disposeObjectsCountsRepeatedIds() {
+        List<Long> ids = new ArrayList<>();
+        ids.add(5L);
+        ids.add(6L);
+        ids.add(5L);
+        ByteBuffer packet = ByteBuffer.wrap(disposeObjects(SERVER_ID_BASE, ids, 8));
+        packet.position(11);
+        assertEquals(2, packet.getInt());
+        assertEquals(5, packet.getLong());
+        assertEquals(2, packet.getInt());
+        assertEquals(6, packet.getLong());
+        assertEquals(1, packet.getInt());
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.proxy.common;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MuxFrameTest {
+
+    private static MuxFrame roundTrip(byte[] encoded) throws IOException {
+        return MuxFrame.decode(ByteBuffer.wrap(encoded));
+    }
+
+    @Test
+    public void dataRoundTrip() throws IOException {
+        byte[] payload = {0, 1, 2, (byte) 0xff};
+        byte[] encoded = MuxFrame.encode(7, MuxFrame.DATA, payload);
+        assertEquals(MuxFrame.HEADER_LENGTH + payload.length, encoded.length);
+
+        MuxFrame frame = roundTrip(encoded);
+        assertEquals(7, frame.getChannel());
+        assertEquals(MuxFrame.DATA, frame.getType());
+        assertArrayEquals(payload, frame.payloadBytes());
+    }
+
+    @Test
+    public void encodeTakesSliceOfPayload() throws IOException {
+        byte[] buffer = {9, 9, 1, 2, 3, 9};
+        MuxFrame frame = roundTrip(MuxFrame.encode(1, MuxFrame.DATA, buffer, 2, 3));
+        assertArrayEquals(new byte[]{1, 2, 3}, frame.payloadBytes());
+    }
+
+    @Test
+    public void emptyPayloadRoundTrip() throws IOException {
+        MuxFrame frame = roundTrip(MuxFrame.encode(3, MuxFrame.OPENED, new byte[0]));
+        assertEquals(MuxFrame.OPENED, frame.getType());
+        assertEquals(0, frame.getPayload().remaining());
+    }
+
+    @Test
+    public void reasonRoundTrip() throws IOException {
+        assertEquals("目标不可达", roundTrip(MuxFrame.encodeReason(2, MuxFrame.ERROR, "目标不可达")).reason());
+        assertEquals("", roundTrip(MuxFrame.encodeReason(2, MuxFrame.CLOSE, null)).reason());
+    }
+
+    @Test
+    public void paramsRoundTripKeepOrder() throws IOException {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("X-Target-Host", "10.0.0.5");
+        params.put("X-Target-Port", "5005");
+        params.put("X-Empty", null);
+
+        Map<String, String> decoded = roundTrip(MuxFrame.encode(1, MuxFrame.OPEN, MuxFrame.encodeParams(params))).params();
+        assertArrayEquals(params.keySet().toArray(), decoded.keySet().toArray());
+        assertEquals("10.0.0.5", decoded.get("X-Target-Host"));
+        assertEquals("", decoded.get("X-Empty"));
+    }
+
+    @Test
+    public void decodeSharesBufferWithoutConsumingPayload() throws IOException {
+        ByteBuffer message = ByteBuffer.wrap(MuxFrame.encode(1, MuxFrame.DATA, new byte[]{4, 5}));
+        MuxFrame frame = MuxFrame.decode(message);
+        frame.payloadBytes();
+        assertArrayEquals(new byte[]{4, 5}, frame.payloadBytes());
+    }
+
+    @Test
+    public void headerShorterThanFiveBytesIsRejected() {
+        for (int length = 0; length < MuxFrame.HEADER_LENGTH; length++) {
+            try {
+                MuxFrame.decode(ByteBuffer.allocate(length));
+                fail("Accepted " + length + "-byte header");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("too short"));
+            }
+        }
+    }
+
+    @Test
+    public void unknownTypeIsLeftToTheReceiver() throws IOException {
+        // 类型由收到帧的一方判断，未知类型记录日志后忽略
+        MuxFrame frame = MuxFrame.decode(ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 99}));
+        assertEquals(99, frame.getType());
+    }
+
+    @Test
+    public void truncatedParamsAreRejected() throws IOException {
+        byte[] params = MuxFrame.encodeParams(Map.of("X-Target-Host", "localhost"));
+        byte[] truncated = new byte[params.length - 3];
+        System.arraycopy(params, 0, truncated, 0, truncated.length);
+        try {
+            roundTrip(MuxFrame.encode(1, MuxFrame.OPEN, truncated)).params();
+            fail("Accepted truncated params");
+        } catch (EOFException e) {
+            // 预期
+        }
+    }
+
+    @Test
+    public void channelIdBounds() throws IOException {
+        assertEquals(1, roundTrip(MuxFrame.encode(1, MuxFrame.DATA, new byte[0])).getChannel());
+        assertEquals(Integer.MAX_VALUE,
+                roundTrip(MuxFrame.encode(Integer.MAX_VALUE, MuxFrame.DATA, new byte[0])).getChannel());
+        // 大端序：高位字节在前
+        assertArrayEquals(new byte[]{0x01, 0x02, 0x03, 0x04, MuxFrame.CLOSE},
+                MuxFrame.encode(0x01020304, MuxFrame.CLOSE, new byte[0]));
+    }
+
+    @Test
+    public void nonPositiveChannelIdIsRejected() {
+        for (int channel : new int[]{0, -1, Integer.MIN_VALUE}) {
+            try {
+                MuxFrame.encode(channel, MuxFrame.DATA, new byte[0]);
+                fail("Encoded channel " + channel);
+            } catch (IllegalArgumentException e) {
+                // 预期
+            }
+            ByteBuffer frame = ByteBuffer.allocate(MuxFrame.HEADER_LENGTH).putInt(channel).put(MuxFrame.DATA);
+            frame.flip();
+            try {
+                MuxFrame.decode(frame);
+                fail("Decoded channel " + channel);
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("channel id"));
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.proxy.common;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayBufferTest {
+
+    private static byte[] frame(int length, int marker) {
+        byte[] frame = new byte[length];
+        frame[0] = (byte) marker;
+        return frame;
+    }
+
+    @Test
+    public void inOrderAckDropsAcknowledgedFrames() {
+        ReplayBuffer buffer = new ReplayBuffer(1024);
+        List<byte[]> sent = new ArrayList<>();
+        assertTrue(buffer.attach(0, sent::add));
+
+        buffer.send(frame(10, 1));
+        buffer.send(frame(20, 2));
+        buffer.send(frame(30, 3));
+        assertEquals(3, sent.size());
+        assertEquals(60, buffer.getUnacknowledgedBytes());
+
+        assertTrue(buffer.onText("ACK 1"));
+        assertEquals(50, buffer.getUnacknowledgedBytes());
+        assertTrue(buffer.onText("ACK 3"));
+        assertEquals(0, buffer.getUnacknowledgedBytes());
+    }
+
+    @Test
+    public void staleAndMalformedAcksAreIgnored() {
+        ReplayBuffer buffer = new ReplayBuffer(1024);
+        buffer.attach(0, frame -> { });
+        buffer.send(frame(10, 1));
+        buffer.send(frame(20, 2));
+
+        buffer.onText("ACK 2");
+        buffer.onText("ACK 1");
+        assertEquals(0, buffer.getUnacknowledgedBytes());
+
+        buffer.send(frame(5, 3));
+        assertTrue(buffer.onText("ACK x"));
+        assertFalse(buffer.onText("HELLO"));
+        assertEquals(5, buffer.getUnacknowledgedBytes());
+    }
+
+    @Test
+    public void ackBeyondSentOnlyDropsWhatWasSent() {
+        ReplayBuffer buffer = new ReplayBuffer(1024);
+        buffer.attach(0, frame -> { });
+        buffer.send(frame(10, 1));
+        buffer.send(frame(20, 2));
+
+        buffer.acknowledge(5);
+        assertEquals(0, buffer.getUnacknowledgedBytes());
+
+        // 之后的帧不会被多出来的确认吞掉
+        buffer.send(frame(30, 3));
+        assertEquals(30, buffer.getUnacknowledgedBytes());
+        buffer.detach();
+        List<byte[]> resent = new ArrayList<>();
+        assertTrue(buffer.attach(2, resent::add));
+        assertEquals(1, resent.size());
+        assertEquals(3, resent.get(0)[0]);
+    }
+
+    @Test
+    public void attachRejectsPeerCountBeyondSent() {
+        ReplayBuffer buffer = new ReplayBuffer(1024);
+        buffer.attach(0, frame -> { });
+        buffer.send(frame(10, 1));
+        buffer.detach();
+
+        assertFalse(buffer.attach(2, frame -> { }));
+        assertFalse(buffer.isAttached());
+    }
+
+    @Test
+    public void attachRejectsPeerCountBehindAcknowledged() {
+        ReplayBuffer buffer = new ReplayBuffer(1024);
+        buffer.attach(0, frame -> { });
+        for (int i = 1; i <= 4; i++) {
+            buffer.send(frame(10, i));
+        }
+        buffer.onText("ACK 3");
+        buffer.detach();
+
+        // 对端缺少的第 3 帧已被丢弃：客户端报告 "unacknowledged data was lost"
+        assertFalse(buffer.attach(2, frame -> { }));
+        assertTrue(buffer.attach(3, frame -> { }));
+    }
+
+    @Test
+    public void replayFromPartialAckResendsMissingFramesInOrder() {
+        ReplayBuffer buffer = new ReplayBuffer(1024);
+        buffer.attach(0, frame -> { });
+        for (int i = 1; i <= 5; i++) {
+            buffer.send(frame(10, i));
+        }
+        buffer.onText("ACK 2");
+        buffer.detach();
+        // 断开期间只记录
+        buffer.send(frame(10, 6));
+
+        List<byte[]> resent = new ArrayList<>();
+        assertTrue(buffer.attach(3, resent::add));
+        assertEquals(3, resent.size());
+        assertArrayEquals(new byte[]{4, 5, 6},
+                new byte[]{resent.get(0)[0], resent.get(1)[0], resent.get(2)[0]});
+        assertEquals(30, buffer.getUnacknowledgedBytes());
+
+        buffer.send(frame(10, 7));
+        assertEquals(4, resent.size());
+        assertEquals(7, resent.get(3)[0]);
+    }
+
+    @Test
+    public void sendFailureKeepsFrameForReplay() {
+        ReplayBuffer buffer = new ReplayBuffer(1024);
+        buffer.attach(0, frame -> {
+            throw new IllegalStateException("closed");
+        });
+        buffer.send(frame(10, 1));
+        assertFalse(buffer.isAttached());
+
+        List<byte[]> resent = new ArrayList<>();
+        assertTrue(buffer.attach(0, resent::add));
+        assertEquals(1, resent.size());
+    }
+
+    @Test
+    public void receivedCounterWrapsAroundAtAckInterval() {
+        ReplayBuffer buffer = new ReplayBuffer(1024);
+        int frame = 16 * 1024;
+
+        assertNull(buffer.received(frame));
+        assertNull(buffer.received(frame));
+        assertNull(buffer.received(frame));
+        assertEquals("ACK 4", buffer.received(frame));
+        // 确认后重新累计，帧数继续递增
+        assertNull(buffer.received(frame));
+        assertNull(buffer.received(frame));
+        assertNull(buffer.received(frame));
+        assertEquals("ACK 8", buffer.received(frame));
+        assertEquals(8, buffer.getReceived());
+    }
+
+    @Test
+    public void manySendAckCyclesKeepBufferEmpty() {
+        ReplayBuffer buffer = new ReplayBuffer(100);
+        buffer.attach(0, frame -> { });
+        for (int i = 1; i <= 10_000; i++) {
+            buffer.send(frame(50, i));
+            buffer.onText("ACK " + i);
+        }
+        assertEquals(0, buffer.getUnacknowledgedBytes());
+        buffer.detach();
+        assertTrue(buffer.attach(10_000, frame -> { }));
+        assertFalse(buffer.attach(9_999, frame -> { }));
+    }
+
+    @Test
+    public void overflowBlocksUntilAcknowledged() throws Exception {
+        ReplayBuffer buffer = new ReplayBuffer(100);
+        buffer.attach(0, frame -> { });
+        buffer.send(frame(60, 1));
+        buffer.send(frame(60, 2));
+        assertEquals(120, buffer.getUnacknowledgedBytes());
+
+        Thread waiter = startWaiter(buffer);
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+
+        buffer.onText("ACK 1");
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    public void detachedBufferBlocksUntilResumedOrClosed() throws Exception {
+        ReplayBuffer buffer = new ReplayBuffer(100);
+        buffer.attach(0, frame -> { });
+        buffer.detach();
+
+        Thread waiter = startWaiter(buffer);
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+        buffer.attach(0, frame -> { });
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+
+        buffer.detach();
+        waiter = startWaiter(buffer);
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+        buffer.close();
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertFalse(buffer.attach(0, frame -> { }));
+    }
+
+    @Test
+    public void graceFromHeaderFallsBackToDefault() {
+        assertEquals(7, ReplayBuffer.graceFromHeader("7"));
+        assertEquals(ReplayBuffer.DEFAULT_GRACE_SECONDS, ReplayBuffer.graceFromHeader(""));
+        assertEquals(ReplayBuffer.DEFAULT_GRACE_SECONDS, ReplayBuffer.graceFromHeader(null));
+        assertEquals(ReplayBuffer.DEFAULT_GRACE_SECONDS, ReplayBuffer.graceFromHeader("0"));
+        assertEquals(ReplayBuffer.DEFAULT_GRACE_SECONDS, ReplayBuffer.graceFromHeader("soon"));
+    }
+
+    private static Thread startWaiter(ReplayBuffer buffer) {
+        Thread waiter = new Thread(() -> {
+            try {
+                buffer.awaitCapacity();
+            } catch (InterruptedIOException e) {
+                // 测试结束
+            }
+        });
+        waiter.setDaemon(true);
+        waiter.start();
+        return waiter;
+    }
+}
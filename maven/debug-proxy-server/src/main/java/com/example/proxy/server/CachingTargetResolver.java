@@ -0,0 +1,196 @@
+package com.example.proxy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 按名字缓存的目标解析
+ *
+ * 解析结果缓存 ttl，解析失败缓存 negativeTtl，期间同一个名字的 attach 不再访问 DNS 或 API。
+ * 同一个名字同时只有一次解析在进行，其余调用等待同一个结果：故障恢复后整个团队同时重连时每个名字只解析一次。
+ * 最近用过的名字在到期前由后台线程重新解析，attach 时总能命中缓存；重新解析失败时继续使用旧地址，
+ * negativeTtl 后再试。长时间没有用过的名字移出缓存。
+ */
+class CachingTargetResolver implements TargetResolver {
+    private static final Logger logger = LoggerFactory.getLogger(CachingTargetResolver.class);
+
+    static final long DEFAULT_TTL_SECONDS = 30;
+    static final long DEFAULT_NEGATIVE_TTL_SECONDS = 5;
+    /** 超过这么多个 ttl 没有 attach 的名字不再后台刷新，并移出缓存 */
+    private static final int IDLE_TTLS = 10;
+
+    /** 查询结果，用作指标标签 */
+    static final String HIT = "hit";
+    static final String MISS = "miss";
+    static final String COALESCED = "coalesced";
+    static final String FAILED = "failed";
+    static final String REFRESHED = "refreshed";
+
+    private final TargetResolver delegate;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final long refreshNanos;
+    private final Consumer<String> onLookup;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "TargetResolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param onLookup 每次查询后以结果回调，用于统计
+     */
+    CachingTargetResolver(TargetResolver delegate, long ttlSeconds, long negativeTtlSeconds,
+                          Consumer<String> onLookup) {
+        this(delegate, ttlSeconds, negativeTtlSeconds, TimeUnit.SECONDS, onLookup);
+    }
+
+    /**
+     * @param unit ttl 和 negativeTtl 的单位，后台刷新周期至少为一个单位
+     */
+    CachingTargetResolver(TargetResolver delegate, long ttl, long negativeTtl, TimeUnit unit,
+                          Consumer<String> onLookup) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        this.delegate = delegate;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.negativeTtlNanos = unit.toNanos(Math.max(0, negativeTtl));
+        this.onLookup = onLookup;
+        // 每 ttl/3 检查一次，剩余不到两个周期的名字重新解析，到期之前总会刷新到
+        long period = Math.max(1, ttl / 3);
+        this.refreshNanos = unit.toNanos(period * 2);
+        refresher.scheduleWithFixedDelay(this::refresh, period, period, unit);
+    }
+
+    @Override
+    public InetSocketAddress resolve(String name) throws IOException {
+        long now = System.nanoTime();
+        Entry entry = cache.get(name);
+        String result = HIT;
+        if (entry == null || now - entry.expiresAt >= 0) {
+            CompletableFuture<Entry> created = new CompletableFuture<>();
+            CompletableFuture<Entry> pending = loading.putIfAbsent(name, created);
+            if (pending == null) {
+                entry = load(name, created);
+                result = MISS;
+            } else {
+                entry = await(name, pending);
+                result = COALESCED;
+            }
+        }
+        entry.lastUsed = now;
+        if (entry.address == null) {
+            onLookup.accept(FAILED);
+            throw new UnknownHostException(entry.error);
+        }
+        onLookup.accept(result);
+        return entry.address;
+    }
+
+    /**
+     * 调用方已在 loading 中登记 created：解析、写入缓存并唤醒等待同一名字的调用
+     */
+    private Entry load(String name, CompletableFuture<Entry> created) {
+        Entry previous = cache.get(name);
+        Entry entry;
+        try {
+            entry = new Entry(delegate.resolve(name), null, System.nanoTime() + ttlNanos);
+        } catch (IOException e) {
+            long retryAt = System.nanoTime() + negativeTtlNanos;
+            if (previous != null && previous.address != null) {
+                // 解析服务暂时不可用时继续使用旧地址，Pod 确实换了地址时连接失败，由客户端重试
+                logger.warn("Cannot resolve '{}', keeping {}: {}", name, previous.address, e.getMessage());
+                entry = new Entry(previous.address, null, retryAt);
+            } else {
+                entry = new Entry(null, e.getMessage(), retryAt);
+            }
+        } catch (RuntimeException e) {
+            loading.remove(name, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+        // 后台刷新不算使用
+        entry.lastUsed = previous != null ? previous.lastUsed : System.nanoTime();
+        cache.put(name, entry);
+        loading.remove(name, created);
+        created.complete(entry);
+        return entry;
+    }
+
+    private static Entry await(String name, CompletableFuture<Entry> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while resolving '" + name + "'");
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot resolve '" + name + "'", e.getCause());
+        }
+    }
+
+    private void refresh() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Entry> cached : cache.entrySet()) {
+            String name = cached.getKey();
+            Entry entry = cached.getValue();
+            if (now - entry.lastUsed > ttlNanos * IDLE_TTLS) {
+                cache.remove(name, entry);
+                continue;
+            }
+            if (entry.address == null || entry.expiresAt - now > refreshNanos) {
+                continue;
+            }
+            CompletableFuture<Entry> created = new CompletableFuture<>();
+            if (loading.putIfAbsent(name, created) == null) {
+                try {
+                    load(name, created);
+                    onLookup.accept(REFRESHED);
+                } catch (RuntimeException e) {
+                    logger.warn("Cannot refresh '{}': {}", name, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止后台刷新
+     */
+    void close() {
+        refresher.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    private static final class Entry {
+        /** null 表示解析失败 */
+        final InetSocketAddress address;
+        final String error;
+        final long expiresAt;
+        volatile long lastUsed;
+
+        Entry(InetSocketAddress address, String error, long expiresAt) {
+            this.address = address;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
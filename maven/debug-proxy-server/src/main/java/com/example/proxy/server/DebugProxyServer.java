@@ -1,5 +1,7 @@
 package com.example.proxy.server;
 
+import com.example.proxy.common.BatchPolicy;
+
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -18,6 +20,7 @@ public class DebugProxyServer {
     
     private final int port;
     private volatile boolean running = true;
+    private BatchPolicy batching = new BatchPolicy(BatchPolicy.DEFAULT_DELAY_MICROS, BatchPolicy.DEFAULT_IDLE_MICROS);
     
     public DebugProxyServer(int port) {
         this.port = port;
@@ -25,10 +28,28 @@ public class DebugProxyServer {
     
     public static void main(String[] args) {
         int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        
+        // -Dproxy.nio=true switches to the Selector-based engine
+        if (Boolean.getBoolean("proxy.nio")) {
+            int loops = Integer.getInteger("proxy.nio.loops", Runtime.getRuntime().availableProcessors());
+            new NioDebugProxyServer(port, loops).start();
+            return;
+        }
+        
         DebugProxyServer server = new DebugProxyServer(port);
+        // -Dproxy.batch.delayMicros/idleMicros: coalesce bursts of reads into one write, 0 disables
+        server.setBatching(Long.getLong("proxy.batch.delayMicros", BatchPolicy.DEFAULT_DELAY_MICROS),
+                Long.getLong("proxy.batch.idleMicros", BatchPolicy.DEFAULT_IDLE_MICROS));
         server.start();
     }
     
+    /**
+     * Configure write batching for both directions, see BatchPolicy
+     */
+    public void setBatching(long delayMicros, long idleMicros) {
+        this.batching = new BatchPolicy(delayMicros, idleMicros);
+    }
+    
     public void start() {
         System.out.println("Debug Proxy Server starting on port " + port + "...");
         
@@ -41,7 +62,7 @@ public class DebugProxyServer {
                 System.out.println("Received connection from: " + clientSocket.getRemoteSocketAddress());
                 
                 // Handle each connection in a separate thread
-                Thread handler = new Thread(new ConnectionHandler(clientSocket));
+                Thread handler = new Thread(new ConnectionHandler(clientSocket, batching));
                 handler.setDaemon(true);
                 handler.start();
             }
@@ -56,9 +77,11 @@ public class DebugProxyServer {
      */
     private static class ConnectionHandler implements Runnable {
         private final Socket clientSocket;
+        private final BatchPolicy batching;
         
-        public ConnectionHandler(Socket clientSocket) {
+        public ConnectionHandler(Socket clientSocket, BatchPolicy batching) {
             this.clientSocket = clientSocket;
+            this.batching = batching;
         }
         
         @Override
@@ -83,8 +106,8 @@ public class DebugProxyServer {
                     out.flush();
                     
                     // Start bidirectional forwarding
-                    Thread clientToTarget = new Thread(() -> forward(clientSocket, targetSocket, "Client->Target"));
-                    Thread targetToClient = new Thread(() -> forward(targetSocket, clientSocket, "Target->Client"));
+                    Thread clientToTarget = new Thread(() -> forward(clientSocket, targetSocket, "Client->Target", batching));
+                    Thread targetToClient = new Thread(() -> forward(targetSocket, clientSocket, "Target->Client", batching));
                     
                     clientToTarget.start();
                     targetToClient.start();
@@ -136,18 +159,30 @@ public class DebugProxyServer {
         }
         
         /**
-         * Forward data between two sockets
+         * Forward data between two sockets.
+         * While the source is producing data in bursts, reads are coalesced into one write (see BatchPolicy).
          */
-        private static void forward(Socket from, Socket to, String direction) {
+        private static void forward(Socket from, Socket to, String direction, BatchPolicy batching) {
             try (InputStream in = from.getInputStream();
                  OutputStream out = to.getOutputStream()) {
                 
+                BatchPolicy.Stream batch = batching.newStream();
                 byte[] buffer = new byte[8192];
                 int bytesRead;
                 
                 while ((bytesRead = in.read(buffer)) != -1) {
+                    int reads = 1;
+                    while (bytesRead < buffer.length && (in.available() > 0 || batch.awaitMore(in, true))) {
+                        int more = in.read(buffer, bytesRead, buffer.length - bytesRead);
+                        if (more == -1) {
+                            break;
+                        }
+                        bytesRead += more;
+                        reads++;
+                    }
                     out.write(buffer, 0, bytesRead);
                     out.flush();
+                    batch.flushed(reads);
                 }
             } catch (IOException e) {
                 // Connection closed or error - this is expected when debugging session ends
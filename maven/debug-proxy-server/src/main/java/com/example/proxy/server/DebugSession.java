@@ -0,0 +1,542 @@
+package com.example.proxy.server;
+
+import com.example.proxy.common.BatchPolicy;
+import com.example.proxy.common.Heartbeat;
+import com.example.proxy.common.JdwpMetadataSession;
+import com.example.proxy.common.JdwpPacketReader;
+import com.example.proxy.common.JdwpTracer;
+import com.example.proxy.common.SessionThreads;
+import com.example.proxy.common.TrafficRecorder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 调试会话，管理客户端通道和 JVM Socket 之间的双向转发
+ *
+ * 客户端通道可以是独占的 WebSocket 连接，也可以是多路复用连接中的一个 channel
+ *
+ * 会话的期限（空闲、存活时间、等待目标回应）登记在服务端共用的 {@link TimingWheel} 上，见 {@link #watch}。
+ *
+ * 连接目标和写入目标都不在 WebSocket 的解码线程上进行：{@link #start} 在会话任务线程上解析主机名并连接，
+ * 客户端发来的数据先进入会话的写队列，由会话任务线程按顺序写入目标。
+ * 目标不可达或不再读取时只影响本会话，同一解码线程上的其他会话照常转发。
+ */
+class DebugSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(DebugSession.class);
+
+    /** 会话到期关闭的原因，用作指标标签 */
+    static final String EXPIRED_IDLE = "idle";
+    static final String EXPIRED_LIFETIME = "lifetime";
+    static final String EXPIRED_HANDSHAKE = "handshake";
+
+    /**
+     * 发往客户端的出口
+     */
+    interface Outbound {
+        void send(byte[] data);
+
+        /**
+         * 发送队列已满时阻塞，只在 JVM 读取线程中调用
+         */
+        void awaitCapacity() throws InterruptedIOException;
+
+        /**
+         * 会话结束（JVM 断开、到期或被关闭）时回调一次，原因见 {@link DebugSession#getCloseReason()}
+         */
+        void closed(DebugSession session);
+    }
+
+    private final String sessionId;
+    private final String podName;
+    private final Outbound outbound;
+    private final String targetHost;
+    private final int targetPort;
+    private final ProxyMetrics.Target targetMetrics;
+    private final Socket jvmSocket = new Socket();
+    private final boolean packetFraming;
+    private final SessionThreads threads;
+    private final JdwpMetadataSession metadata;
+    private final JdwpPrefetcher prefetcher;
+    private final ProxyMetrics.Session metrics;
+    private final JdwpTracer.Session trace;
+    private final boolean sendTimings;
+    // 会话建立时已与目标握手，客户端转发来的握手串不再写入 JVM
+    private final boolean earlyHandshake;
+    private boolean clientHandshakePending;
+    private final BatchPolicy.Stream batch;
+    private final Object jvmWriteLock = new Object();
+    private volatile boolean running = true;
+    private Thread forwardingThread;
+    private volatile String closeReason = "Target disconnected";
+
+    // 期限，见 watch()；Timeout 只在持有 this 时读写
+    private TimingWheel timers;
+    private long maxIdleNanos;
+    private long handshakeTimeoutNanos;
+    private Consumer<String> onExpired;
+    private TimingWheel.Timeout idleTimeout;
+    private TimingWheel.Timeout lifetimeTimeout;
+    private TimingWheel.Timeout handshakeTimeout;
+    // 两个方向最近一次有数据的时间，转发时只写这个字段，空闲检查到期时再按它重新安排
+    private volatile long lastActivityNanos = System.nanoTime();
+    private boolean targetWritten;
+    private volatile boolean targetAnswered;
+    // 流量记录，null 表示不记录
+    private volatile TrafficRecorder.Session recording;
+    // 按 Pod 名解析目标地址，null 表示使用 targetHost
+    private volatile TargetResolver resolver;
+
+    // 客户端 -> JVM 的写队列：连上目标之前的数据也先排在这里，同一时间只有一个任务在写
+    private final Queue<byte[]> toTarget = new ConcurrentLinkedQueue<>();
+    private final AtomicLong toTargetBytes = new AtomicLong();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private long maxQueuedBytes;
+    private volatile boolean connected;
+
+    /**
+     * @param metadataCache 目标 JVM 的元数据缓存，null 表示不使用（仅在按 JDWP 包分帧时可用）
+     * @param prefetchFrames 挂起事件时预取局部变量的栈帧数，0 表示不预取（仅在按 JDWP 包分帧时可用）
+     * @param targetMetrics 目标 JVM 的指标，本会话的流量指标在其下登记，关闭会话时结束
+     * @param trace JDWP 命令延迟跟踪，null 表示不跟踪（仅在按 JDWP 包分帧时可用）
+     * @param sendTimings 是否把目标耗时以计时包发给客户端
+     * @param earlyHandshake 是否在会话建立时与目标握手（仅在按 JDWP 包分帧时可用）
+     * @param batching JVM -> 客户端 方向的微批（仅在按 JDWP 包分帧时可用）
+     */
+    DebugSession(String sessionId, String podName, Outbound outbound, String targetHost, int targetPort,
+                 boolean packetFraming, SessionThreads threads, JdwpMetadataCache.Target metadataCache,
+                 int prefetchFrames, ProxyMetrics.Target targetMetrics, JdwpTracer.Session trace,
+                 boolean sendTimings, boolean earlyHandshake, BatchPolicy batching) {
+        this.sessionId = sessionId;
+        this.podName = podName;
+        this.outbound = outbound;
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.packetFraming = packetFraming;
+        this.threads = threads;
+        this.targetMetrics = targetMetrics;
+        this.metrics = targetMetrics.openSession(sessionId);
+        this.trace = packetFraming ? trace : null;
+        this.sendTimings = sendTimings;
+        this.earlyHandshake = earlyHandshake && packetFraming;
+        this.clientHandshakePending = this.earlyHandshake;
+        this.batch = batching.newStream();
+        this.metadata = metadataCache != null && packetFraming
+                ? new JdwpMetadataSession(sessionId, metadataCache, this::send) : null;
+        this.prefetcher = prefetchFrames > 0 && packetFraming
+                ? new JdwpPrefetcher(sessionId, prefetchFrames, this::sendToClient, this::writeToJvm) : null;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getPodName() {
+        return podName;
+    }
+
+    /**
+     * 会话结束的原因，发给客户端的关闭帧中使用
+     */
+    public String getCloseReason() {
+        return closeReason;
+    }
+
+    /**
+     * 记录本会话与客户端之间的流量：客户端发来的原始数据（本地缓存回答之前）和发给客户端的全部数据
+     */
+    void record(TrafficRecorder.Session recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * 连接前按 Pod 名解析目标地址，代替客户端给出的主机名；解析结果的端口为 0 时使用客户端给出的端口
+     */
+    void resolveWith(TargetResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * 在时间轮上登记会话的期限，到期时关闭会话；各项为 0 表示不限制
+     * @param maxIdleSeconds 两个方向都没有数据的最长时间
+     * @param maxLifetimeSeconds 会话的最长存活时间
+     * @param handshakeTimeoutSeconds 第一次写入目标后等待目标回应的时间：
+     *                                目标接受了连接却不回应（进程卡死、连到了错误的端口）时不必等到空闲期限
+     * @param onExpired 会话因期限关闭时回调，参数为原因（{@link #EXPIRED_IDLE} 等）
+     */
+    void watch(TimingWheel timers, long maxIdleSeconds, long maxLifetimeSeconds, long handshakeTimeoutSeconds,
+               Consumer<String> onExpired) {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            this.timers = timers;
+            this.onExpired = onExpired;
+            this.maxIdleNanos = TimeUnit.SECONDS.toNanos(maxIdleSeconds);
+            this.handshakeTimeoutNanos = TimeUnit.SECONDS.toNanos(handshakeTimeoutSeconds);
+            if (maxIdleSeconds > 0) {
+                idleTimeout = timers.schedule(this::checkIdle, maxIdleSeconds, TimeUnit.SECONDS);
+            }
+            if (maxLifetimeSeconds > 0) {
+                lifetimeTimeout = timers.schedule(() -> expire(EXPIRED_LIFETIME,
+                        "Maximum lifetime of " + maxLifetimeSeconds + " s reached"), maxLifetimeSeconds, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * 空闲检查到期：期间有过数据时按最近一次活动重新安排，转发路径上不必取消和重新登记
+     */
+    private void checkIdle() {
+        long idle = System.nanoTime() - lastActivityNanos;
+        if (idle >= maxIdleNanos) {
+            expire(EXPIRED_IDLE, "Idle for " + TimeUnit.NANOSECONDS.toSeconds(idle) + " s");
+            return;
+        }
+        synchronized (this) {
+            if (running) {
+                idleTimeout = timers.schedule(this::checkIdle, maxIdleNanos - idle, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * 第一次写入目标时开始等待回应
+     */
+    private synchronized void awaitTargetAnswer() {
+        if (running && timers != null && handshakeTimeoutNanos > 0 && !targetAnswered) {
+            handshakeTimeout = timers.schedule(() -> expire(EXPIRED_HANDSHAKE, "Target did not answer within "
+                    + TimeUnit.NANOSECONDS.toSeconds(handshakeTimeoutNanos) + " s"), handshakeTimeoutNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 收到目标的数据
+     */
+    private void targetActive() {
+        lastActivityNanos = System.nanoTime();
+        if (!targetAnswered) {
+            targetAnswered = true;
+            synchronized (this) {
+                cancel(handshakeTimeout);
+                handshakeTimeout = null;
+            }
+        }
+    }
+
+    private static void cancel(TimingWheel.Timeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private void expire(String reason, String message) {
+        if (!running) {
+            return;
+        }
+        logger.warn("Session {}: {}, closing", sessionId, message);
+        closeReason = message;
+        onExpired.accept(reason);
+        close();
+    }
+
+    /**
+     * 按客户端测得的往返时间收紧 JVM -> 客户端 方向的微批等待，见 {@link Heartbeat}
+     */
+    public void limitBatchDelay(long micros) {
+        batch.limitDelay(micros);
+    }
+
+    /**
+     * 连接目标 JVM 并开始双向转发，连接在会话任务线程上进行，本方法立即返回。
+     * 连接失败时以 “Cannot connect to target: ...”、按 Pod 名解析失败时以 “Cannot resolve target: ...” 为原因关闭会话
+     * @param connectTimeoutMillis 建立 TCP 连接的超时，0 表示由系统决定
+     * @param maxQueuedBytes 写队列的上限，目标停止读取、队列超过上限时关闭会话，0 表示不限制
+     * @param onConnected 连上目标、开始转发之前回调
+     */
+    void start(int connectTimeoutMillis, long maxQueuedBytes, Runnable onConnected) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        threads.execute("Connect-" + sessionId, () -> {
+            long connectStart = System.nanoTime();
+            InetSocketAddress address;
+            try {
+                address = targetAddress();
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Session {}: Cannot resolve pod '{}': {}", sessionId, podName, e.getMessage());
+                    closeReason = "Cannot resolve target: " + e.getMessage();
+                    close();
+                }
+                return;
+            }
+            try {
+                // 目标所在节点失联时由系统的 keepalive 最终发现，会话期限通常更早生效
+                jvmSocket.setKeepAlive(true);
+                jvmSocket.connect(address, connectTimeoutMillis);
+            } catch (IOException e) {
+                if (running) {
+                    targetMetrics.connectFailed();
+                    logger.error("Session {}: Cannot connect to target {}: {}", sessionId, address, e.getMessage());
+                    closeReason = "Cannot connect to target: " + e.getMessage();
+                    close();
+                }
+                return;
+            }
+            targetMetrics.connected(System.nanoTime() - connectStart);
+            logger.info("Session {}: Connected to target JVM", sessionId);
+            onConnected.run();
+            startForwarding();
+            connected = true;
+            scheduleWrite();
+        });
+    }
+
+    /**
+     * 主机名和 Pod 名都在这里解析，DNS 卡住也只占用本会话的任务线程
+     */
+    private InetSocketAddress targetAddress() throws IOException {
+        TargetResolver resolver = this.resolver;
+        if (resolver == null) {
+            return new InetSocketAddress(targetHost, targetPort);
+        }
+        InetSocketAddress resolved = resolver.resolve(podName);
+        int port = resolved.getPort() > 0 ? resolved.getPort() : targetPort;
+        InetSocketAddress address = resolved.isUnresolved()
+                ? new InetSocketAddress(resolved.getHostString(), port)
+                : new InetSocketAddress(resolved.getAddress(), port);
+        logger.info("Session {}: Resolved pod '{}' to {}", sessionId, podName, address);
+        return address;
+    }
+
+    /**
+     * 启动 JVM -> 客户端 的转发
+     */
+    private void startForwarding() {
+        if (earlyHandshake) {
+            // 在转发客户端的任何命令之前写入，目标的回显照常转发给客户端
+            try {
+                writeToJvm(JdwpPacketReader.HANDSHAKE);
+            } catch (IOException e) {
+                logger.error("Session {}: Error sending handshake to JVM: {}", sessionId, e.getMessage());
+                close();
+                return;
+            }
+        }
+        forwardingThread = threads.start("JVM-to-WebSocket-" + sessionId, () -> {
+            try (InputStream in = jvmSocket.getInputStream()) {
+                if (packetFraming) {
+                    forwardPackets(in);
+                    return;
+                }
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+
+                while (running && (bytesRead = in.read(buffer)) != -1) {
+                    targetActive();
+                    // 将 JVM 的响应发送回客户端
+                    byte[] data = new byte[bytesRead];
+                    System.arraycopy(buffer, 0, data, 0, bytesRead);
+                    // 客户端读得慢时暂停读取 JVM
+                    outbound.awaitCapacity();
+                    send(data);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Session {}: Error reading from JVM: {}", sessionId, e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        });
+    }
+
+    /**
+     * 按 JDWP 包边界转发：每个帧只包含完整的包
+     */
+    private void forwardPackets(InputStream in) throws IOException {
+        // JVM 先回显握手串，之后才是 JDWP 包
+        JdwpPacketReader reader = new JdwpPacketReader(in, true, batch);
+        byte[] frame;
+        while (running && (frame = reader.nextFrame()) != null) {
+            targetActive();
+            outbound.awaitCapacity();
+            if (trace != null) {
+                // 计时包赶在回复之前到达客户端
+                byte[] timings = trace.onTargetReplies(frame);
+                if (timings != null && sendTimings) {
+                    send(timings);
+                }
+            }
+            if (prefetcher != null) {
+                // 挂起事件可能被暂存，预取的回复不转发
+                prefetcher.onJvmFrame(frame);
+            } else {
+                sendToClient(frame);
+            }
+        }
+    }
+
+    private void sendToClient(byte[] frame) {
+        if (metadata != null) {
+            metadata.onReplies(frame);
+        }
+        send(frame);
+    }
+
+    private void send(byte[] data) {
+        metrics.toClient(data.length);
+        TrafficRecorder.Session recording = this.recording;
+        if (recording != null) {
+            recording.toClient(data);
+        }
+        outbound.send(data);
+    }
+
+    /**
+     * 转发数据到 JVM (客户端 -> JVM 方向)：放入写队列后立即返回
+     * @throws IOException 会话已关闭，或目标不再读取、写队列超过上限
+     */
+    public void forwardToJvm(byte[] data) throws IOException {
+        if (!running) {
+            throw new IOException("Session closed");
+        }
+        lastActivityNanos = System.nanoTime();
+        metrics.toTarget(data.length);
+        TrafficRecorder.Session recording = this.recording;
+        if (recording != null) {
+            recording.toTarget(data);
+        }
+        long queued = toTargetBytes.addAndGet(data.length);
+        if (maxQueuedBytes > 0 && queued > maxQueuedBytes) {
+            closeReason = "Target is not reading (" + queued + " bytes queued)";
+            throw new IOException(closeReason);
+        }
+        toTarget.add(data);
+        scheduleWrite();
+    }
+
+    /**
+     * 连上目标后，写队列非空且没有任务在写时提交一个写任务
+     */
+    private void scheduleWrite() {
+        if (running && connected && !toTarget.isEmpty() && writing.compareAndSet(false, true)) {
+            threads.execute("WebSocket-to-JVM-" + sessionId, this::writeQueued);
+        }
+    }
+
+    private void writeQueued() {
+        try {
+            byte[] data;
+            while (running && (data = toTarget.poll()) != null) {
+                toTargetBytes.addAndGet(-data.length);
+                writeCommands(data);
+            }
+        } catch (IOException e) {
+            if (running) {
+                logger.error("Session {}: Error forwarding data to JVM: {}", sessionId, e.getMessage());
+            }
+            close();
+        } finally {
+            writing.set(false);
+        }
+        // 放下标记之前入队的数据由下一个任务写出
+        scheduleWrite();
+    }
+
+    /**
+     * 写入客户端的一段数据：先经过缓存、预取和跟踪，只在写任务中调用
+     */
+    private void writeCommands(byte[] data) throws IOException {
+        if (metadata != null) {
+            // 命中缓存的命令已直接回复
+            data = metadata.onCommands(data);
+            if (data.length == 0) {
+                return;
+            }
+        }
+        if (prefetcher != null) {
+            prefetcher.onCommands(data);
+        }
+        if (trace != null) {
+            trace.onCommands(data);
+        }
+        if (clientHandshakePending) {
+            // 客户端转发的第一帧是调试器的握手串，经过上面各环节后丢弃
+            clientHandshakePending = false;
+            data = JdwpPacketReader.stripHandshake(data);
+            if (data.length == 0) {
+                return;
+            }
+        }
+        writeToJvm(data);
+    }
+
+    /**
+     * 写入 JVM：调试器的命令和预取命令来自不同线程
+     */
+    private void writeToJvm(byte[] data) throws IOException {
+        synchronized (jvmWriteLock) {
+            if (!targetWritten) {
+                targetWritten = true;
+                awaitTargetAnswer();
+            }
+            OutputStream out = jvmSocket.getOutputStream();
+            out.write(data);
+            out.flush();
+        }
+    }
+
+    /**
+     * 关闭会话
+     */
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            cancel(idleTimeout);
+            cancel(lifetimeTimeout);
+            cancel(handshakeTimeout);
+        }
+
+        try {
+            jvmSocket.close();
+        } catch (IOException e) {
+            logger.debug("Error closing JVM socket: {}", e.getMessage());
+        }
+
+        if (forwardingThread != null) {
+            forwardingThread.interrupt();
+        }
+
+        if (metadata != null) {
+            logger.info("Session {}: {} metadata requests answered from cache", sessionId, metadata.getHits());
+        }
+        if (prefetcher != null) {
+            logger.info("Session {}: {} suspending events prefetched", sessionId, prefetcher.getPushes());
+        }
+
+        TrafficRecorder.Session recording = this.recording;
+        if (recording != null) {
+            recording.close();
+        }
+        metrics.close();
+        outbound.closed(this);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.proxy.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.regex.Pattern;
+
+/**
+ * 按 DNS 解析 Pod / 服务名：名字代入域名模板后查询，例如 Kubernetes 中
+ * {@code %s.my-app-headless.default.svc.cluster.local} 解析 StatefulSet 的 Pod，{@code %s.default.svc.cluster.local} 解析服务
+ *
+ * 名字来自客户端，只接受字母、数字、'-' 和 '.'，不能借模板查询任意域名之外的内容。
+ * JVM 自身也会缓存 DNS 结果（networkaddress.cache.ttl），服务端的缓存在它之上按名字合并并发查询。
+ */
+public class DnsTargetResolver implements TargetResolver {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9]([A-Za-z0-9.-]{0,252})");
+
+    private final String template;
+
+    /**
+     * @param template 含一个 {@code %s} 的域名模板，{@code %s} 表示名字本身就是域名
+     */
+    public DnsTargetResolver(String template) {
+        if (!template.contains("%s")) {
+            throw new IllegalArgumentException("DNS template must contain %s: " + template);
+        }
+        this.template = template;
+    }
+
+    @Override
+    public InetSocketAddress resolve(String name) throws UnknownHostException {
+        if (!NAME.matcher(name).matches()) {
+            throw new UnknownHostException("Invalid name '" + name + "'");
+        }
+        return new InetSocketAddress(InetAddress.getByName(template.replace("%s", name)), 0);
+    }
+
+    @Override
+    public String toString() {
+        return "dns:" + template;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.proxy.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+/**
+ * 基于共享目录的会话目录：每个会话一个文件，内容是持有副本的地址
+ *
+ * 同一台机器上的多个副本进程，或挂载同一个 ReadWriteMany 卷的多个 Pod 可以共用。
+ * 写入先写临时文件再改名，读到的总是完整内容。会话 ID 来自客户端，只接受字母、数字、'-' 和 '_'，
+ * 其他 ID 不登记（这些会话仍可在原副本上恢复，只是不能被转到其他副本）。
+ * 副本崩溃时它登记的文件会留下，查到的地址连不上，客户端在宽限期后放弃恢复。
+ */
+public class FileSessionDirectory implements SessionDirectory {
+
+    private static final Pattern SESSION_ID = Pattern.compile("[A-Za-z0-9_-]{1,128}");
+
+    private final Path directory;
+
+    public FileSessionDirectory(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public void register(String sessionId, String owner) throws IOException {
+        Path file = file(sessionId);
+        if (file == null) {
+            return;
+        }
+        Path temp = Files.createTempFile(directory, ".session", ".tmp");
+        try {
+            Files.write(temp, owner.getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public void unregister(String sessionId, String owner) throws IOException {
+        Path file = file(sessionId);
+        if (file != null && owner.equals(read(file))) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Override
+    public String lookup(String sessionId) throws IOException {
+        Path file = file(sessionId);
+        return file != null ? read(file) : null;
+    }
+
+    private Path file(String sessionId) {
+        return SESSION_ID.matcher(sessionId).matches() ? directory.resolve(sessionId) : null;
+    }
+
+    private static String read(Path file) throws IOException {
+        try {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
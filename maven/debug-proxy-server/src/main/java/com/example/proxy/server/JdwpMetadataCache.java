@@ -0,0 +1,146 @@
+package com.example.proxy.server;
+
+import com.example.proxy.common.JdwpMetadataSession;
+import com.example.proxy.common.JdwpMetadataSession.CommandKey;
+import com.example.proxy.common.JdwpMetadataSession.Verification;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 类元数据回复的共享缓存
+ *
+ * 同一个目标 JVM 的所有调试会话共享：ReferenceType.Methods/Fields/SourceFile、Method.LineTable/VariableTable
+ * 等回复在类被卸载或重定义之前不会变化，第二个会话起不必再让目标 JVM 重新序列化一遍。
+ *
+ * JDWP 的 referenceTypeID 在每次 attach 时重新分配，不能跨会话使用，所以缓存按"目标地址 + 类签名"组织，
+ * 由每个会话的 {@link JdwpMetadataSession} 把本会话的 referenceTypeID 翻译成签名。
+ * methodID/fieldID 是 JVM 内部指针，在目标进程存活期间不变，可以原样出现在键和回复里。
+ */
+class JdwpMetadataCache {
+
+    private final long maxBytesPerTarget;
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBytesPerTarget 每个目标 JVM 缓存的回复总字节数上限，超出后按最久未使用的类淘汰
+     */
+    JdwpMetadataCache(long maxBytesPerTarget) {
+        this.maxBytesPerTarget = maxBytesPerTarget;
+    }
+
+    /**
+     * @param address 目标 JVM 的 host:port
+     */
+    Target target(String address) {
+        return targets.computeIfAbsent(address, key -> new Target());
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 一个目标 JVM 的缓存
+     *
+     * 没有构建标识：即使是与进程无关的回复，每个会话也要先验证过才使用。
+     */
+    final class Target implements JdwpMetadataSession.Store {
+        // 按访问顺序排列，淘汰时以类为单位
+        private final LinkedHashMap<String, Map<CommandKey, byte[]>> classes = new LinkedHashMap<>(64, 0.75f, true);
+        private long bytes;
+        private long generation;
+        private long epoch;
+
+        @Override
+        public synchronized long generation() {
+            return generation;
+        }
+
+        @Override
+        public synchronized long epoch() {
+            return epoch;
+        }
+
+        @Override
+        public synchronized byte[] get(String signature, CommandKey key) {
+            Map<CommandKey, byte[]> replies = classes.get(signature);
+            byte[] body = replies != null ? replies.get(key) : null;
+            (body != null ? hits : misses).incrementAndGet();
+            return body;
+        }
+
+        @Override
+        public synchronized void put(String signature, CommandKey key, byte[] body, long generation) {
+            if (generation != this.generation) {
+                return;
+            }
+            byte[] previous = classes.computeIfAbsent(signature, k -> new HashMap<>()).put(key, body);
+            bytes += body.length - (previous != null ? previous.length : 0);
+            evict();
+        }
+
+        /**
+         * 用目标 JVM 的真实回复验证缓存：不一致说明目标已经换成了另一个进程（重启或同地址的其他副本），
+         * 或者类被 JDWP 之外的方式重定义过，整个目标的缓存作废
+         */
+        @Override
+        public synchronized Verification verify(String signature, CommandKey key, byte[] body) {
+            Map<CommandKey, byte[]> replies = classes.get(signature);
+            byte[] cached = replies != null ? replies.get(key) : null;
+            if (cached == null) {
+                return Verification.ABSENT;
+            }
+            if (Arrays.equals(cached, body)) {
+                return Verification.MATCHED;
+            }
+            clear();
+            return Verification.MISMATCHED;
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return classes.isEmpty();
+        }
+
+        @Override
+        public synchronized void invalidate(String signature) {
+            generation++;
+            Map<CommandKey, byte[]> replies = classes.remove(signature);
+            if (replies != null) {
+                for (byte[] body : replies.values()) {
+                    bytes -= body.length;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void clear() {
+            generation++;
+            epoch++;
+            classes.clear();
+            bytes = 0;
+        }
+
+        private void evict() {
+            Iterator<Map<CommandKey, byte[]>> it = classes.values().iterator();
+            while (bytes > maxBytesPerTarget && it.hasNext()) {
+                for (byte[] body : it.next().values()) {
+                    bytes -= body.length;
+                }
+                it.remove();
+            }
+        }
+    }
+}
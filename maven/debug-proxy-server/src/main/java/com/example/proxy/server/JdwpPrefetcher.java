@@ -0,0 +1,481 @@
+package com.example.proxy.server;
+
+import com.example.proxy.common.JdwpPacketReader;
+import com.example.proxy.common.JdwpPrefetch.Entry;
+import com.example.proxy.common.JdwpPrefetch.Push;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static com.example.proxy.common.JdwpPrefetch.*;
+
+/**
+ * 服务端的挂起事件预取
+ *
+ * 在 JVM -> 客户端方向识别挂起事件，暂存事件，向目标 JVM 依次请求事件线程的栈帧、this、
+ * 局部变量表、可见局部变量的值以及这些对象的类型和字符串内容，全部完成后先推送预取结果，再放行事件。
+ * 预取期间到达的其他事件排在它后面，保持事件顺序；普通回复照常转发。
+ *
+ * 预取命令使用最高位为 1 的包 ID，调试器从 1 开始递增分配 ID，不会冲突；这些回复不会转发给客户端。
+ * 过时或中途放弃、没有推送出去的预取，回复中带出的对象 ID 由这里用 DisposeObjects 释放。
+ */
+class JdwpPrefetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(JdwpPrefetcher.class);
+
+    private static final byte REPLY_FLAG = (byte) 0x80;
+    // 每次预取最多跟进的对象数
+    private static final int MAX_OBJECTS = 64;
+
+    /**
+     * 写往目标 JVM，与调试器的命令共用连接
+     */
+    interface JvmWriter {
+        void write(byte[] packet) throws IOException;
+    }
+
+    private final String sessionId;
+    private final int maxFrames;
+    private final Consumer<byte[]> toClient;
+    private final JvmWriter toJvm;
+
+    private boolean commandHandshakeSeen;
+    private boolean replyHandshakeSeen;
+    private volatile boolean disabled;
+
+    // 已收到的改变状态的命令数
+    private volatile int invalidations;
+    // 调试器 IDSizes 命令的包 ID
+    private final Set<Integer> idSizesRequests = ConcurrentHashMap.newKeySet();
+    // fieldID、methodID、objectID、referenceTypeID、frameID
+    private volatile int[] idSizes;
+
+    // 以下只在 JVM 读取线程中访问
+    private final Deque<byte[]> held = new ArrayDeque<>();
+    private Prefetch current;
+    private int nextId;
+    private int pushes;
+
+    /**
+     * @param maxFrames 预取局部变量的栈帧数（从栈顶起）
+     */
+    JdwpPrefetcher(String sessionId, int maxFrames, Consumer<byte[]> toClient, JvmWriter toJvm) {
+        this.sessionId = sessionId;
+        this.maxFrames = maxFrames;
+        this.toClient = toClient;
+        this.toJvm = toJvm;
+    }
+
+    int getPushes() {
+        return pushes;
+    }
+
+    /**
+     * 观察调试器发往 JVM 的一帧
+     */
+    void onCommands(byte[] frame) {
+        if (!commandHandshakeSeen) {
+            commandHandshakeSeen = true;
+            return;
+        }
+        int offset = 0;
+        while (offset < frame.length) {
+            int length = JdwpPacketReader.packetLength(frame, offset);
+            int commandSet = frame[offset + 9] & 0xFF;
+            int command = frame[offset + 10] & 0xFF;
+            if (commandSet == VIRTUAL_MACHINE && command == ID_SIZES) {
+                idSizesRequests.add(ByteBuffer.wrap(frame).getInt(offset + 4));
+            }
+            // 客户端释放预取对象的命令不会改变调试器看到的状态，双方都不计数
+            if (invalidates(commandSet, command) && !isProxyId(ByteBuffer.wrap(frame).getInt(offset + 4))) {
+                synchronized (this) {
+                    invalidations++;
+                }
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * 处理 JVM 发往客户端的一帧，由 JVM 读取线程调用
+     */
+    void onJvmFrame(byte[] frame) {
+        if (!replyHandshakeSeen || disabled) {
+            replyHandshakeSeen = true;
+            toClient.accept(frame);
+            return;
+        }
+        if (current == null && !needsInspection(frame)) {
+            toClient.accept(frame);
+            return;
+        }
+        ByteArrayOutputStream forward = new ByteArrayOutputStream(frame.length);
+        int offset = 0;
+        while (offset < frame.length) {
+            int length = JdwpPacketReader.packetLength(frame, offset);
+            byte[] packet = Arrays.copyOfRange(frame, offset, offset + length);
+            offset += length;
+            if (disabled) {
+                forward.write(packet, 0, packet.length);
+                continue;
+            }
+            try {
+                onPacket(packet, forward);
+            } catch (RuntimeException e) {
+                logger.warn("Session {}: Prefetch disabled: {}", sessionId, e.toString());
+                disabled = true;
+                Prefetch abandoned = current;
+                current = null;
+                if (abandoned != null) {
+                    dispose(abandoned);
+                }
+                forward.write(packet, 0, packet.length);
+                while (!held.isEmpty()) {
+                    byte[] event = held.poll();
+                    forward.write(event, 0, event.length);
+                }
+            }
+        }
+        if (forward.size() > 0) {
+            toClient.accept(forward.toByteArray());
+        }
+    }
+
+    /**
+     * 帧中是否有需要处理的包：事件、IDSizes 和代理命令的回复
+     */
+    private boolean needsInspection(byte[] frame) {
+        int offset = 0;
+        while (offset < frame.length) {
+            if (frame[offset + 8] == REPLY_FLAG) {
+                if (!idSizesRequests.isEmpty() || isProxyId(ByteBuffer.wrap(frame).getInt(offset + 4))) {
+                    return true;
+                }
+            } else if ((frame[offset + 9] & 0xFF) == EVENT) {
+                return true;
+            }
+            offset += JdwpPacketReader.packetLength(frame, offset);
+        }
+        return false;
+    }
+
+    private void onPacket(byte[] packet, ByteArrayOutputStream forward) {
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        int id = buffer.getInt(4);
+        if (packet[8] == REPLY_FLAG) {
+            if (current != null && current.pending.containsKey(id)) {
+                onPrefetchReply(current.pending.remove(id), buffer.getShort(9), packet);
+                if (current.pending.isEmpty()) {
+                    finish(forward);
+                }
+                return;
+            }
+            if (isProxyId(id)) {
+                // 已放弃的预取、释放对象的回复
+                return;
+            }
+            if (idSizesRequests.remove(id) && buffer.getShort(9) == 0) {
+                ByteBuffer body = body(packet);
+                int[] sizes = new int[5];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = body.getInt();
+                }
+                idSizes = sizes;
+            }
+            forward.write(packet, 0, packet.length);
+            return;
+        }
+        if ((packet[9] & 0xFF) == EVENT && (packet[10] & 0xFF) == COMPOSITE) {
+            if (current != null) {
+                held.add(packet);
+                return;
+            }
+            if (!start(packet)) {
+                forward.write(packet, 0, packet.length);
+            }
+            return;
+        }
+        forward.write(packet, 0, packet.length);
+    }
+
+    /**
+     * 挂起事件：暂存事件并发出第一批预取命令
+     * @return 不是挂起事件或无法预取时返回 false
+     */
+    private boolean start(byte[] event) {
+        int[] sizes = idSizes;
+        if (sizes == null) {
+            return false;
+        }
+        ByteBuffer body = body(event);
+        byte suspendPolicy = body.get();
+        int count = body.getInt();
+        if (suspendPolicy == 0 || count == 0 || !hasThread(body.get() & 0xFF)) {
+            return false;
+        }
+        body.getInt();
+        byte[] thread = new byte[sizes[2]];
+        body.get(thread);
+
+        Prefetch prefetch = new Prefetch(thread, sizes);
+        synchronized (this) {
+            prefetch.sequence = invalidations;
+        }
+        current = prefetch;
+        // JDI 第一次取栈时请求全部栈帧
+        ByteBuffer frames = ByteBuffer.allocate(thread.length + 8);
+        frames.put(thread).putInt(0).putInt(-1);
+        send(THREAD_REFERENCE, FRAMES, frames.array(), null);
+        send(THREAD_REFERENCE, THREAD_NAME, thread, null);
+        if (prefetch.pending.isEmpty()) {
+            current = null;
+            return false;
+        }
+        held.add(event);
+        return true;
+    }
+
+    /**
+     * 事件开头是线程的事件类型：单步、断点、异常、字段访问、方法进入/退出
+     */
+    private static boolean hasThread(int kind) {
+        return kind == 1 || kind == 2 || kind == 4 || kind == 20 || kind == 21 || kind == 40 || kind == 41
+                || kind == 42;
+    }
+
+    /**
+     * 发出一条预取命令；写入失败（JVM 已断开，如调试器发出了 Dispose）时放弃本次预取，事件照常放行
+     */
+    private void send(int commandSet, int command, byte[] arguments, Request context) {
+        if (current.failed) {
+            return;
+        }
+        int id = SERVER_ID_BASE | (nextId++ & ID_MASK);
+        Request request = context != null ? context : new Request();
+        request.commandSet = commandSet;
+        request.command = command;
+        request.arguments = arguments;
+        try {
+            toJvm.write(command(id, commandSet, command, arguments));
+            current.pending.put(id, request);
+        } catch (IOException e) {
+            logger.debug("Session {}: Prefetch abandoned: {}", sessionId, e.getMessage());
+            current.failed = true;
+            current.pending.clear();
+        }
+    }
+
+    private void onPrefetchReply(Request request, short errorCode, byte[] packet) {
+        if (errorCode != 0) {
+            return;
+        }
+        Prefetch prefetch = current;
+        byte[] reply = Arrays.copyOfRange(packet, 11, packet.length);
+        prefetch.entries.add(new Entry(request.commandSet, request.command, request.arguments, reply));
+        int[] sizes = prefetch.idSizes;
+        ByteBuffer body = ByteBuffer.wrap(reply);
+
+        if (request.commandSet == THREAD_REFERENCE && request.command == FRAMES) {
+            int count = body.getInt();
+            for (int i = 0; i < count; i++) {
+                long frameId = readId(body, sizes[4]);
+                body.get();
+                long classId = readId(body, sizes[3]);
+                long methodId = readId(body, sizes[1]);
+                long index = body.getLong();
+                prefetch.reference(classId);
+                if (i >= maxFrames) {
+                    continue;
+                }
+
+                ByteBuffer thisObject = ByteBuffer.allocate(prefetch.thread.length + sizes[4]);
+                thisObject.put(prefetch.thread);
+                writeId(thisObject, frameId, sizes[4]);
+                send(STACK_FRAME, THIS_OBJECT, thisObject.array(), null);
+
+                ByteBuffer variables = ByteBuffer.allocate(sizes[3] + sizes[1]);
+                writeId(variables, classId, sizes[3]);
+                writeId(variables, methodId, sizes[1]);
+                Request context = new Request();
+                context.frameId = frameId;
+                context.index = index;
+                send(METHOD, VARIABLE_TABLE_WITH_GENERIC, variables.array(), context);
+            }
+        } else if (request.commandSet == METHOD) {
+            requestVisibleValues(request, body);
+        } else if (request.commandSet == OBJECT_REFERENCE && request.command == REFERENCE_TYPE_OF) {
+            body.get();
+            prefetch.reference(readId(body, sizes[3]));
+        } else if (request.commandSet == STACK_FRAME && request.command == THIS_OBJECT) {
+            byte tag = body.get();
+            long objectId = readId(body, sizes[2]);
+            prefetch.reference(objectId);
+            followObject(tag, objectId);
+        } else if (request.commandSet == STACK_FRAME && request.command == GET_VALUES) {
+            int count = body.getInt();
+            for (int i = 0; i < count; i++) {
+                byte tag = body.get();
+                if (isObjectTag(tag)) {
+                    long objectId = readId(body, sizes[2]);
+                    prefetch.reference(objectId);
+                    followObject(tag, objectId);
+                } else {
+                    body.position(body.position() + valueLength(tag, sizes[2]));
+                }
+            }
+        }
+    }
+
+    /**
+     * 按变量表取出在当前位置可见的局部变量
+     */
+    private void requestVisibleValues(Request request, ByteBuffer table) {
+        int[] sizes = current.idSizes;
+        table.getInt();
+        int count = table.getInt();
+        ByteArrayOutputStream slots = new ByteArrayOutputStream();
+        int visible = 0;
+        for (int i = 0; i < count; i++) {
+            long start = table.getLong();
+            skipString(table);
+            byte signature = table.get(table.position() + 4);
+            skipString(table);
+            skipString(table);
+            int length = table.getInt();
+            int slot = table.getInt();
+            if (request.index >= start && request.index < start + length) {
+                ByteBuffer item = ByteBuffer.allocate(5);
+                item.putInt(slot).put(signature);
+                slots.write(item.array(), 0, 5);
+                visible++;
+            }
+        }
+        if (visible == 0) {
+            return;
+        }
+        ByteBuffer arguments = ByteBuffer.allocate(current.thread.length + sizes[4] + 4 + slots.size());
+        arguments.put(current.thread);
+        writeId(arguments, request.frameId, sizes[4]);
+        arguments.putInt(visible).put(slots.toByteArray());
+        send(STACK_FRAME, GET_VALUES, arguments.array(), null);
+    }
+
+    /**
+     * 调试器显示对象前总要先取它的类型，字符串还要取内容
+     */
+    private void followObject(byte tag, long objectId) {
+        if (objectId == 0 || current.objects.size() >= MAX_OBJECTS || !current.objects.add(objectId)) {
+            return;
+        }
+        ByteBuffer arguments = ByteBuffer.allocate(current.idSizes[2]);
+        writeId(arguments, objectId, current.idSizes[2]);
+        send(OBJECT_REFERENCE, REFERENCE_TYPE_OF, arguments.array(), null);
+        if (tag == 's') {
+            send(STRING_REFERENCE, STRING_VALUE, arguments.array(), null);
+        }
+    }
+
+    /**
+     * 预取完成：推送结果，放行暂存的事件；排在后面的挂起事件继续预取
+     */
+    private void finish(ByteArrayOutputStream forward) {
+        Prefetch prefetch = current;
+        current = null;
+        boolean stale = prefetch.failed;
+        synchronized (this) {
+            stale |= invalidations != prefetch.sequence;
+        }
+        if (!stale) {
+            byte[] push = new Push(prefetch.sequence, prefetch.idSizes, prefetch.entries).encode();
+            forward.write(push, 0, push.length);
+            pushes++;
+        } else {
+            dispose(prefetch);
+        }
+        // 先放行本次预取的事件
+        byte[] event = held.poll();
+        forward.write(event, 0, event.length);
+        while (!held.isEmpty()) {
+            byte[] next = held.poll();
+            if (start(next)) {
+                // start 把事件放到了队尾，移回队首以保持顺序
+                held.pollLast();
+                held.addFirst(next);
+                return;
+            }
+            forward.write(next, 0, next.length);
+        }
+    }
+
+    /**
+     * 释放没有推送出去的预取在目标 JVM 中占用的对象引用；JVM 已断开时不必释放
+     */
+    private void dispose(Prefetch prefetch) {
+        if (prefetch.failed || prefetch.objectIds.isEmpty()) {
+            return;
+        }
+        int id = SERVER_ID_BASE | (nextId++ & ID_MASK);
+        try {
+            toJvm.write(disposeObjects(id, prefetch.objectIds, prefetch.idSizes[2]));
+        } catch (IOException e) {
+            logger.debug("Session {}: Cannot dispose prefetched objects: {}", sessionId, e.getMessage());
+        }
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * 一次预取
+     */
+    private static final class Prefetch {
+        final byte[] thread;
+        final int[] idSizes;
+        final Map<Integer, Request> pending = new HashMap<>();
+        final List<Entry> entries = new ArrayList<>();
+        final Set<Long> objects = new HashSet<>();
+        // 回复中每次出现的对象和类的 ID，目标 JVM 为每次出现加一次引用
+        final List<Long> objectIds = new ArrayList<>();
+        int sequence;
+        boolean failed;
+
+        Prefetch(byte[] thread, int[] idSizes) {
+            this.thread = thread;
+            this.idSizes = idSizes;
+        }
+
+        void reference(long objectId) {
+            if (objectId != 0) {
+                objectIds.add(objectId);
+            }
+        }
+    }
+
+    /**
+     * 一条预取命令
+     */
+    private static final class Request {
+        int commandSet;
+        int command;
+        byte[] arguments;
+        // 变量表请求所属的栈帧及其位置
+        long frameId;
+        long index;
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.proxy.server;
+
+import com.example.proxy.common.JdwpTracer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 指标的 HTTP 出口：GET /metrics 返回 Prometheus 文本格式，GET /trace 返回按 JDWP 命令统计的延迟
+ *
+ * 同时提供副本的运维接口：GET /ready 在排空时返回 503（用作就绪探针），POST /drain 开始排空。
+ * 使用 JDK 自带的 HttpServer，单线程处理请求，不引入额外依赖。
+ */
+class MetricsEndpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer httpServer;
+
+    /**
+     * @param ready 副本是否接受新会话
+     * @param drain 开始排空，不阻塞
+     */
+    MetricsEndpoint(int port, ProxyMetrics metrics, JdwpTracer tracer, BooleanSupplier ready, Runnable drain)
+            throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/metrics", exchange -> handle(exchange, metrics::scrape));
+        httpServer.createContext("/trace", exchange -> handle(exchange, tracer::dump));
+        httpServer.createContext("/ready", exchange -> handleReady(exchange, ready));
+        httpServer.createContext("/drain", exchange -> handleDrain(exchange, drain));
+    }
+
+    void start() {
+        httpServer.start();
+        logger.info("Metrics available at http://0.0.0.0:{}/metrics", httpServer.getAddress().getPort());
+    }
+
+    void stop() {
+        httpServer.stop(0);
+    }
+
+    private static void handleReady(HttpExchange exchange, BooleanSupplier ready) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            boolean isReady = ready.getAsBoolean();
+            respond(exchange, isReady ? 200 : 503, isReady ? "ready\n" : "draining\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void handleDrain(HttpExchange exchange, Runnable drain) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            drain.run();
+            respond(exchange, 202, "draining\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String content) throws IOException {
+        byte[] body = content.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void handle(HttpExchange exchange, Supplier<String> content) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = content.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
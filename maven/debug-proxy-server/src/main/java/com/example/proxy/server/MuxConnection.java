@@ -0,0 +1,167 @@
+package com.example.proxy.server;
+
+import com.example.proxy.common.MuxFrame;
+import com.example.proxy.common.OutboundQueue;
+
+import org.java_websocket.WebSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 多路复用连接：一个 IDE 的所有调试会话共享同一个 WebSocket
+ *
+ * 每个会话对应一个 channel，有各自的 OPEN/OPENED/DATA/CLOSE/ERROR 信号，
+ * 某个 channel 出错只关闭该 channel，不影响同一连接上的其他会话。
+ */
+class MuxConnection {
+
+    private static final Logger logger = LoggerFactory.getLogger(MuxConnection.class);
+
+    private final WebSocketDebugProxyServer server;
+    private final WebSocket webSocket;
+    private final OutboundQueue outboundQueue;
+    private final Map<Integer, DebugSession> channels = new ConcurrentHashMap<>();
+    // 按客户端测得的往返时间收紧的微批等待，之后打开的 channel 同样适用
+    private volatile long batchDelayLimitMicros = Long.MAX_VALUE;
+
+    MuxConnection(WebSocketDebugProxyServer server, WebSocket webSocket, OutboundQueue outboundQueue) {
+        this.server = server;
+        this.webSocket = webSocket;
+        this.outboundQueue = outboundQueue;
+    }
+
+    int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * 按客户端测得的往返时间收紧所有 channel 的微批等待
+     */
+    void limitBatchDelay(long micros) {
+        batchDelayLimitMicros = micros;
+        for (DebugSession session : channels.values()) {
+            session.limitBatchDelay(micros);
+        }
+    }
+
+    /**
+     * 处理客户端发来的一个多路复用帧
+     */
+    void onFrame(ByteBuffer message) throws IOException {
+        MuxFrame frame = MuxFrame.decode(message);
+        int channel = frame.getChannel();
+
+        switch (frame.getType()) {
+            case MuxFrame.OPEN:
+                openChannel(channel, frame.params());
+                break;
+            case MuxFrame.DATA:
+                DebugSession session = channels.get(channel);
+                if (session == null) {
+                    logger.warn("Data for unknown channel {}", channel);
+                    send(MuxFrame.encodeReason(channel, MuxFrame.ERROR, "Unknown channel"));
+                    return;
+                }
+                try {
+                    session.forwardToJvm(frame.payloadBytes());
+                } catch (IOException e) {
+                    logger.error("Session {}: Error forwarding data to JVM: {}",
+                                session.getSessionId(), e.getMessage());
+                    channels.remove(channel);
+                    session.close();
+                    send(MuxFrame.encodeReason(channel, MuxFrame.ERROR, e.getMessage()));
+                }
+                break;
+            case MuxFrame.CLOSE:
+                DebugSession closed = channels.remove(channel);
+                if (closed != null) {
+                    closed.close();
+                    logger.info("Session {}: Channel {} closed by client", closed.getSessionId(), channel);
+                }
+                break;
+            default:
+                logger.warn("Unexpected mux frame type {} on channel {}", frame.getType(), channel);
+        }
+    }
+
+    private void openChannel(int channel, Map<String, String> params) {
+        if (channels.containsKey(channel)) {
+            send(MuxFrame.encodeReason(channel, MuxFrame.ERROR, "Channel already open"));
+            return;
+        }
+        if (server.isDraining()) {
+            send(MuxFrame.encodeReason(channel, MuxFrame.ERROR, "Server is draining"));
+            return;
+        }
+        try {
+            DebugSession session = server.openSession(params::get, new ChannelOutbound(channel));
+            session.limitBatchDelay(batchDelayLimitMicros);
+            channels.put(channel, session);
+            // 连上目标后才回复 OPENED，连接失败时客户端收到带原因的 CLOSE
+            server.startSession(session, () -> {
+                send(MuxFrame.encode(channel, MuxFrame.OPENED, new byte[0]));
+                logger.info("Session {}: Channel {} established", session.getSessionId(), channel);
+            });
+        } catch (Exception e) {
+            logger.error("Channel {}: Cannot open session: {}", channel, e.getMessage());
+            send(MuxFrame.encodeReason(channel, MuxFrame.ERROR, "Cannot connect to target: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * 各会话线程的发送串行化：压缩上下文要求帧按压缩顺序发出
+     */
+    private synchronized void send(byte[] frame) {
+        if (webSocket.isOpen()) {
+            webSocket.send(frame);
+        }
+    }
+
+    /**
+     * WebSocket 断开时关闭所有 channel
+     */
+    void closeAll() {
+        for (Integer channel : channels.keySet()) {
+            DebugSession session = channels.remove(channel);
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * 单个 channel 的出口：DATA 帧带上 channel id，JVM 断开时通知客户端
+     */
+    private class ChannelOutbound implements DebugSession.Outbound {
+        private final int channel;
+
+        ChannelOutbound(int channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void send(byte[] data) {
+            MuxConnection.this.send(MuxFrame.encode(channel, MuxFrame.DATA, data));
+        }
+
+        @Override
+        public void awaitCapacity() throws InterruptedIOException {
+            // 共用连接的发送队列：一个会话的大回复会让同一连接上的其他会话一起暂停
+            outboundQueue.awaitCapacity();
+        }
+
+        @Override
+        public void closed(DebugSession session) {
+            if (channels.remove(channel, session)) {
+                MuxConnection.this.send(MuxFrame.encodeReason(channel, MuxFrame.CLOSE, session.getCloseReason()));
+                logger.info("Session {}: Channel {} closed", session.getSessionId(), channel);
+            }
+        }
+    }
+}
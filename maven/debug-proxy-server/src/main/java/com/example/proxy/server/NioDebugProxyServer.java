@@ -0,0 +1,217 @@
+package com.example.proxy.server;
+
+import com.example.proxy.common.BufferPool;
+import com.example.proxy.common.NioEventLoop;
+import com.example.proxy.common.NioRelay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Debug Proxy Server on a Selector-based event loop.
+ * Speaks the same X-DEBUG-ROUTE handshake as DebugProxyServer, but all connections share
+ * a small fixed set of loop threads instead of three threads per connection.
+ */
+public class NioDebugProxyServer {
+
+    private static final String ROUTING_HEADER = "X-DEBUG-ROUTE";
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final int port;
+    private final int loopCount;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private NioEventLoop[] loops;
+    private int nextLoop;
+
+    public NioDebugProxyServer(int port, int loopCount) {
+        this.port = port;
+        this.loopCount = loopCount;
+    }
+
+    public void start() {
+        System.out.println("Debug Proxy Server (NIO, " + loopCount + " event loops) starting on port " + port + "...");
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            loops = NioEventLoop.startGroup("DebugProxyServer-Loop", loopCount);
+            System.out.println("Debug Proxy Server started successfully!");
+            System.out.println("Waiting for connections...");
+
+            // Accepting stays blocking on the calling thread, like DebugProxyServer
+            while (serverChannel.isOpen()) {
+                SocketChannel clientChannel = serverChannel.accept();
+                System.out.println("Received connection from: " + clientChannel.getRemoteAddress());
+                clientChannel.configureBlocking(false);
+                clientChannel.socket().setTcpNoDelay(true);
+
+                NioEventLoop loop = loops[nextLoop++ % loops.length];
+                loop.execute(() -> {
+                    ConnectionHandler handler = new ConnectionHandler(loop, clientChannel);
+                    try {
+                        handler.clientKey = loop.register(clientChannel, SelectionKey.OP_READ, handler);
+                    } catch (IOException e) {
+                        handler.close();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (loops != null) {
+                for (NioEventLoop loop : loops) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles one connection until the routing handshake is done, then hands it to an NioRelay
+     */
+    private class ConnectionHandler implements NioEventLoop.Handler {
+        private final NioEventLoop loop;
+        private final SocketChannel clientChannel;
+        private SelectionKey clientKey;
+        private SocketChannel targetChannel;
+        private ByteBuffer header = ByteBuffer.allocate(256);
+        private ByteBuffer leftover;
+        private String podName = "unknown";
+        private boolean relaying;
+
+        ConnectionHandler(NioEventLoop loop, SocketChannel clientChannel) {
+            this.loop = loop;
+            this.clientChannel = clientChannel;
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.channel() == clientChannel) {
+                readHeader();
+            } else if (key.isConnectable()) {
+                finishConnect(key);
+            }
+        }
+
+        private void readHeader() throws IOException {
+            if (!header.hasRemaining()) {
+                if (header.capacity() >= MAX_HEADER_BYTES) {
+                    throw new IOException("Routing header too large");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(header.capacity() * 2, MAX_HEADER_BYTES));
+                header.flip();
+                larger.put(header);
+                header = larger;
+            }
+            if (clientChannel.read(header) == -1) {
+                throw new EOFException("Connection closed during routing handshake");
+            }
+
+            Map<String, String> routingInfo = parseRoutingInfo();
+            if (routingInfo == null) {
+                return;
+            }
+
+            String targetHost = routingInfo.getOrDefault("targetHost", "localhost");
+            int targetPort = Integer.parseInt(routingInfo.getOrDefault("targetPort", "5005"));
+            podName = routingInfo.getOrDefault("podName", "unknown");
+            System.out.println("Routing to pod: " + podName + " at " + targetHost + ":" + targetPort);
+
+            // Nothing more is read from the client until the target is connected
+            clientKey.interestOps(0);
+            targetChannel = SocketChannel.open();
+            targetChannel.configureBlocking(false);
+            targetChannel.socket().setTcpNoDelay(true);
+            if (targetChannel.connect(new InetSocketAddress(targetHost, targetPort))) {
+                startRelay();
+            } else {
+                loop.register(targetChannel, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        /**
+         * Parse routing information from the bytes received so far
+         * @return the routing parameters, or null if the header is not complete yet
+         */
+        private Map<String, String> parseRoutingInfo() throws IOException {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(header.array(), 0, header.position());
+            DataInputStream in = new DataInputStream(bytes);
+            Map<String, String> info = new HashMap<>();
+            try {
+                String routingHeader = in.readUTF();
+                if (!routingHeader.equals(ROUTING_HEADER)) {
+                    throw new IOException("Invalid routing header: " + routingHeader);
+                }
+                int paramCount = in.readInt();
+                for (int i = 0; i < paramCount; i++) {
+                    info.put(in.readUTF(), in.readUTF());
+                }
+            } catch (EOFException e) {
+                return null;
+            }
+
+            for (Map.Entry<String, String> entry : info.entrySet()) {
+                System.out.println("  Routing param: " + entry.getKey() + " = " + entry.getValue());
+            }
+            int consumed = header.position() - bytes.available();
+            leftover = ByteBuffer.wrap(header.array(), consumed, header.position() - consumed);
+            return info;
+        }
+
+        private void finishConnect(SelectionKey key) throws IOException {
+            try {
+                targetChannel.finishConnect();
+            } catch (IOException e) {
+                System.err.println("Error connecting to target: " + e.getMessage());
+                throw e;
+            }
+            key.interestOps(0);
+            startRelay();
+        }
+
+        private void startRelay() throws IOException {
+            System.out.println("Connected to target: " + targetChannel.getRemoteAddress());
+
+            ByteArrayOutputStream ack = new ByteArrayOutputStream();
+            new DataOutputStream(ack).writeUTF("OK");
+
+            new NioRelay("Pod " + podName, clientChannel, targetChannel, bufferPool)
+                    .start(loop, ByteBuffer.wrap(ack.toByteArray()), leftover);
+            relaying = true;
+        }
+
+        @Override
+        public void close() {
+            if (relaying) {
+                // The relay owns the channels now
+                return;
+            }
+            System.out.println("Connection closed for pod: " + podName);
+            closeQuietly(clientChannel);
+            closeQuietly(targetChannel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
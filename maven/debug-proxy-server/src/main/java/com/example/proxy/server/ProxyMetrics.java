@@ -0,0 +1,349 @@
+package com.example.proxy.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 代理服务端的运行指标，按 Prometheus 文本格式输出
+ *
+ * 计数器都是 LongAdder：转发线程每个帧只做几次无锁累加，不同会话之间没有竞争。
+ * 按目标 JVM（host:port）汇总的指标一直保留；按会话的指标只包含活动会话，会话结束后移除，
+ * 避免会话 ID 让时间序列无限增长。
+ */
+class ProxyMetrics {
+
+    static final String TO_TARGET = "to_target";
+    static final String TO_CLIENT = "to_client";
+
+    // 连接目标 JVM：局域网内通常是毫秒级，跨网络或目标繁忙时到秒级
+    private static final double[] CONNECT_BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10};
+    // 调试会话：从几秒的临时 attach 到挂一整天
+    private static final double[] DURATION_BUCKETS = {1, 10, 60, 300, 900, 1800, 3600, 4 * 3600, 24 * 3600};
+
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+    private final Map<Session, Boolean> sessions = new ConcurrentHashMap<>();
+    private final LongAdder outboundPauses = new LongAdder();
+    private final LongAdder outboundPausedMillis = new LongAdder();
+    private final LongAdder sessionResumes = new LongAdder();
+    private final LongAdder sessionRedirects = new LongAdder();
+    // 到期关闭的会话，按原因
+    private final Map<String, LongAdder> sessionExpirations = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> targetLookups = new ConcurrentHashMap<>();
+    private volatile LongSupplier connections = () -> 0;
+    private volatile LongSupplier outboundQueuedBytes = () -> 0;
+
+    /**
+     * @param connections 当前 WebSocket 连接数
+     * @param outboundQueuedBytes 所有连接发送队列中的字节数
+     */
+    void setGauges(LongSupplier connections, LongSupplier outboundQueuedBytes) {
+        this.connections = connections;
+        this.outboundQueuedBytes = outboundQueuedBytes;
+    }
+
+    Target target(String address) {
+        return targets.computeIfAbsent(address, Target::new);
+    }
+
+    /**
+     * 连接关闭时记录其发送队列的暂停情况
+     */
+    void outboundPaused(long pauses, long pausedMillis) {
+        outboundPauses.add(pauses);
+        outboundPausedMillis.add(pausedMillis);
+    }
+
+    /**
+     * 可恢复会话在新连接上恢复
+     */
+    void sessionResumed() {
+        sessionResumes.increment();
+    }
+
+    /**
+     * 重连到本副本的客户端被引导到持有会话的副本
+     */
+    void sessionRedirected() {
+        sessionRedirects.increment();
+    }
+
+    /**
+     * 会话因期限被关闭
+     * @param reason idle、lifetime 或 handshake
+     */
+    void sessionExpired(String reason) {
+        sessionExpirations.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    /**
+     * 按 Pod 名解析目标
+     * @param result hit、miss、coalesced、failed 或 refreshed（后台刷新）
+     */
+    void targetLookup(String result) {
+        targetLookups.computeIfAbsent(result, r -> new LongAdder()).increment();
+    }
+
+    /**
+     * 一个目标 JVM 的汇总指标
+     */
+    class Target {
+        private final String address;
+        private final LongAdder active = new LongAdder();
+        private final LongAdder opened = new LongAdder();
+        private final LongAdder connectFailures = new LongAdder();
+        private final Traffic traffic = new Traffic();
+        private final Histogram connectSeconds = new Histogram(CONNECT_BUCKETS);
+        private final Histogram durationSeconds = new Histogram(DURATION_BUCKETS);
+
+        private Target(String address) {
+            this.address = address;
+        }
+
+        void connected(long connectNanos) {
+            connectSeconds.observe(connectNanos / 1e9);
+        }
+
+        void connectFailed() {
+            connectFailures.increment();
+        }
+
+        /**
+         * 会话开始，在 {@link Session#close()} 时结束
+         */
+        Session openSession(String sessionId) {
+            Session session = new Session(this, sessionId);
+            active.increment();
+            opened.increment();
+            sessions.put(session, Boolean.TRUE);
+            return session;
+        }
+    }
+
+    /**
+     * 一个调试会话的指标，同时累加到所属目标
+     */
+    class Session {
+        private final Target target;
+        private final String sessionId;
+        private final long startNanos = System.nanoTime();
+        private final Traffic traffic = new Traffic();
+        private boolean closed;
+
+        private Session(Target target, String sessionId) {
+            this.target = target;
+            this.sessionId = sessionId;
+        }
+
+        void toTarget(int bytes) {
+            traffic.toTarget(bytes);
+            target.traffic.toTarget(bytes);
+        }
+
+        void toClient(int bytes) {
+            traffic.toClient(bytes);
+            target.traffic.toClient(bytes);
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            sessions.remove(this);
+            target.active.decrement();
+            target.durationSeconds.observe((System.nanoTime() - startNanos) / 1e9);
+        }
+    }
+
+    /**
+     * 两个方向的字节数和帧数
+     */
+    private static class Traffic {
+        final LongAdder bytesToTarget = new LongAdder();
+        final LongAdder bytesToClient = new LongAdder();
+        final LongAdder framesToTarget = new LongAdder();
+        final LongAdder framesToClient = new LongAdder();
+
+        void toTarget(int bytes) {
+            bytesToTarget.add(bytes);
+            framesToTarget.increment();
+        }
+
+        void toClient(int bytes) {
+            bytesToClient.add(bytes);
+            framesToClient.increment();
+        }
+    }
+
+    /**
+     * 固定桶的直方图
+     */
+    private static class Histogram {
+        final double[] bounds;
+        final LongAdder[] counts;
+        final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts[i].increment();
+            sum.add(value);
+        }
+    }
+
+    /**
+     * Prometheus 文本格式（version 0.0.4）
+     */
+    String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+
+        gauge(out, "jdwp_proxy_connections", "Open WebSocket connections");
+        out.append("jdwp_proxy_connections ").append(connections.getAsLong()).append('\n');
+        gauge(out, "jdwp_proxy_outbound_queued_bytes", "Bytes queued in WebSocket send queues");
+        out.append("jdwp_proxy_outbound_queued_bytes ").append(outboundQueuedBytes.getAsLong()).append('\n');
+        // 进程资源：容量规划时与活动会话数对照
+        gauge(out, "jdwp_proxy_heap_used_bytes", "Heap used by the proxy server");
+        out.append("jdwp_proxy_heap_used_bytes ")
+                .append(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()).append('\n');
+        gauge(out, "jdwp_proxy_threads", "Live threads in the proxy server");
+        out.append("jdwp_proxy_threads ").append(ManagementFactory.getThreadMXBean().getThreadCount()).append('\n');
+        counter(out, "jdwp_proxy_outbound_pauses_total",
+                "Times reading from a target paused because the send queue was full (closed connections)");
+        out.append("jdwp_proxy_outbound_pauses_total ").append(outboundPauses.sum()).append('\n');
+        counter(out, "jdwp_proxy_outbound_paused_seconds_total",
+                "Time reading from targets was paused (closed connections)");
+        out.append("jdwp_proxy_outbound_paused_seconds_total ")
+                .append(outboundPausedMillis.sum() / 1000.0).append('\n');
+
+        counter(out, "jdwp_proxy_session_resumes_total", "Debug sessions resumed after the WebSocket dropped");
+        out.append("jdwp_proxy_session_resumes_total ").append(sessionResumes.sum()).append('\n');
+        counter(out, "jdwp_proxy_session_redirects_total",
+                "Reconnecting clients redirected to the replica holding their session");
+        out.append("jdwp_proxy_session_redirects_total ").append(sessionRedirects.sum()).append('\n');
+        counter(out, "jdwp_proxy_sessions_expired_total", "Debug sessions closed by an idle, lifetime or handshake limit");
+        for (Map.Entry<String, LongAdder> entry : sessionExpirations.entrySet()) {
+            sample(out, "jdwp_proxy_sessions_expired_total", "reason=\"" + escape(entry.getKey()) + "\"",
+                    entry.getValue().sum());
+        }
+        counter(out, "jdwp_proxy_target_lookups_total", "Target lookups by pod name");
+        for (Map.Entry<String, LongAdder> entry : targetLookups.entrySet()) {
+            sample(out, "jdwp_proxy_target_lookups_total", "result=\"" + escape(entry.getKey()) + "\"",
+                    entry.getValue().sum());
+        }
+
+        gauge(out, "jdwp_proxy_sessions_active", "Active debug sessions");
+        for (Target target : targets.values()) {
+            sample(out, "jdwp_proxy_sessions_active", target(target), target.active.sum());
+        }
+        counter(out, "jdwp_proxy_sessions_total", "Debug sessions opened");
+        for (Target target : targets.values()) {
+            sample(out, "jdwp_proxy_sessions_total", target(target), target.opened.sum());
+        }
+        counter(out, "jdwp_proxy_target_connect_failures_total", "Failed connections to target JVMs");
+        for (Target target : targets.values()) {
+            sample(out, "jdwp_proxy_target_connect_failures_total", target(target), target.connectFailures.sum());
+        }
+
+        counter(out, "jdwp_proxy_bytes_total", "Bytes forwarded");
+        for (Target target : targets.values()) {
+            bytes(out, "jdwp_proxy_bytes_total", target(target), target.traffic);
+        }
+        counter(out, "jdwp_proxy_frames_total", "WebSocket frames forwarded");
+        for (Target target : targets.values()) {
+            frames(out, "jdwp_proxy_frames_total", target(target), target.traffic);
+        }
+        counter(out, "jdwp_proxy_session_bytes_total", "Bytes forwarded by active sessions");
+        for (Session session : sessions.keySet()) {
+            bytes(out, "jdwp_proxy_session_bytes_total", session(session), session.traffic);
+        }
+        counter(out, "jdwp_proxy_session_frames_total", "WebSocket frames forwarded by active sessions");
+        for (Session session : sessions.keySet()) {
+            frames(out, "jdwp_proxy_session_frames_total", session(session), session.traffic);
+        }
+
+        histogram(out, "jdwp_proxy_target_connect_seconds", "Time to connect to the target JVM");
+        for (Target target : targets.values()) {
+            histogram(out, "jdwp_proxy_target_connect_seconds", target(target), target.connectSeconds);
+        }
+        histogram(out, "jdwp_proxy_session_duration_seconds", "Duration of closed debug sessions");
+        for (Target target : targets.values()) {
+            histogram(out, "jdwp_proxy_session_duration_seconds", target(target), target.durationSeconds);
+        }
+        return out.toString();
+    }
+
+    private static String target(Target target) {
+        return "target=\"" + escape(target.address) + "\"";
+    }
+
+    private static String session(Session session) {
+        return "session=\"" + escape(session.sessionId) + "\"," + target(session.target);
+    }
+
+    private static void gauge(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+    }
+
+    private static void counter(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+    }
+
+    private static void histogram(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static void bytes(StringBuilder out, String name, String labels, Traffic traffic) {
+        sample(out, name, labels + ",direction=\"" + TO_TARGET + "\"", traffic.bytesToTarget.sum());
+        sample(out, name, labels + ",direction=\"" + TO_CLIENT + "\"", traffic.bytesToClient.sum());
+    }
+
+    private static void frames(StringBuilder out, String name, String labels, Traffic traffic) {
+        sample(out, name, labels + ",direction=\"" + TO_TARGET + "\"", traffic.framesToTarget.sum());
+        sample(out, name, labels + ",direction=\"" + TO_CLIENT + "\"", traffic.framesToClient.sum());
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < histogram.bounds.length; i++) {
+            cumulative += histogram.counts[i].sum();
+            sample(out, name + "_bucket", labels + ",le=\"" + histogram.bounds[i] + "\"", cumulative);
+        }
+        cumulative += histogram.counts[histogram.bounds.length].sum();
+        sample(out, name + "_bucket", labels + ",le=\"+Inf\"", cumulative);
+        sample(out, name + "_sum", labels, histogram.sum.sum());
+        sample(out, name + "_count", labels, cumulative);
+    }
+
+    /**
+     * 标签值中的反斜杠、双引号和换行需要转义；会话 ID 来自客户端
+     */
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.proxy.server;
+
+import com.example.proxy.common.OutboundQueue;
+import com.example.proxy.common.ReplayBuffer;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 可恢复的独占连接会话
+ *
+ * WebSocket 异常断开（VPN、公司代理回收空闲连接等）时不关闭目标 JVM 的连接，
+ * 在宽限期内等待客户端用同一个会话 ID 重连。断开期间发往客户端的帧留在 {@link ReplayBuffer} 中，
+ * 缓冲区满后暂停读取目标 JVM；重连后双方从对端缺少的帧开始重发。
+ *
+ * 客户端主动关闭（close code 1000）、目标 JVM 断开、会话到期或宽限期已过时会话结束。
+ */
+class ResumableSession implements DebugSession.Outbound {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResumableSession.class);
+
+    private final String sessionId;
+    private final ReplayBuffer replay;
+    private final long graceSeconds;
+    private final ScheduledExecutorService timer;
+    private final Consumer<ResumableSession> onClosed;
+    // 接收方向：当前连接之外的帧丢弃，计数与转发到 JVM 的顺序一致
+    private final Object receiveLock = new Object();
+    private DebugSession session;
+    private WebSocket connection;
+    private volatile OutboundQueue outboundQueue;
+    private ScheduledFuture<?> expiry;
+    private volatile boolean closed;
+
+    /**
+     * @param maxBytes 发往客户端、未确认字节的上限
+     * @param graceSeconds 连接断开后等待客户端重连的时间
+     * @param onClosed 会话结束时回调一次
+     */
+    ResumableSession(String sessionId, long maxBytes, long graceSeconds, ScheduledExecutorService timer,
+                     Consumer<ResumableSession> onClosed) {
+        this.sessionId = sessionId;
+        this.replay = new ReplayBuffer(maxBytes);
+        this.graceSeconds = graceSeconds;
+        this.timer = timer;
+        this.onClosed = onClosed;
+    }
+
+    String getSessionId() {
+        return sessionId;
+    }
+
+    DebugSession getDebugSession() {
+        return session;
+    }
+
+    /**
+     * 会话在第一个连接上建立
+     */
+    void start(DebugSession session, WebSocket connection, OutboundQueue outboundQueue) {
+        this.session = session;
+        synchronized (receiveLock) {
+            this.connection = connection;
+        }
+        this.outboundQueue = outboundQueue;
+        replay.attach(0, connection::send);
+    }
+
+    /**
+     * 重连握手：之后只接收新连接的帧，旧连接（服务端可能还没发现它已断开）被关闭
+     * @return 已收到的客户端帧数，放在握手响应中
+     */
+    long claim(WebSocket connection) {
+        WebSocket previous;
+        long received;
+        synchronized (receiveLock) {
+            previous = this.connection;
+            this.connection = connection;
+            replay.detach();
+            received = replay.getReceived();
+        }
+        if (previous != null && previous != connection) {
+            previous.close(CloseFrame.GOING_AWAY, "Session resumed on another connection");
+        }
+        return received;
+    }
+
+    /**
+     * 重连建立：重发客户端没有收到的帧
+     * @param clientReceived 客户端已收到的帧数
+     * @return 不能恢复（会话已结束或帧已丢失）时返回 false
+     */
+    boolean resume(WebSocket connection, OutboundQueue outboundQueue, long clientReceived) {
+        synchronized (receiveLock) {
+            if (this.connection != connection) {
+                return false;
+            }
+        }
+        synchronized (this) {
+            if (expiry != null) {
+                expiry.cancel(false);
+                expiry = null;
+            }
+        }
+        this.outboundQueue = outboundQueue;
+        return replay.attach(clientReceived, connection::send);
+    }
+
+    /**
+     * 连接关闭
+     * @param abnormal 异常断开；客户端主动关闭时为 false
+     * @return 会话保留（等待重连或已转到新连接）时返回 true，调用方应关闭会话时返回 false
+     */
+    boolean detach(WebSocket connection, boolean abnormal) {
+        synchronized (receiveLock) {
+            if (this.connection != connection) {
+                return true;
+            }
+            if (!abnormal || closed) {
+                return false;
+            }
+            this.connection = null;
+            replay.detach();
+        }
+        synchronized (this) {
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            expiry = timer.schedule(this::expire, graceSeconds, TimeUnit.SECONDS);
+        }
+        logger.info("Session {}: Connection lost, waiting {} s for the client to resume", sessionId, graceSeconds);
+        return true;
+    }
+
+    private void expire() {
+        synchronized (receiveLock) {
+            if (connection != null) {
+                return;
+            }
+        }
+        logger.info("Session {}: Not resumed within {} s", sessionId, graceSeconds);
+        session.close();
+    }
+
+    /**
+     * 客户端发来的二进制帧，只接受当前连接的帧
+     */
+    void onFrame(WebSocket connection, byte[] data) throws IOException {
+        synchronized (receiveLock) {
+            if (this.connection != connection) {
+                return;
+            }
+            String ack = replay.received(data.length);
+            session.forwardToJvm(data);
+            if (ack != null) {
+                connection.send(ack);
+            }
+        }
+    }
+
+    /**
+     * 客户端发来的文本消息
+     * @return 是本会话的控制消息时返回 true
+     */
+    boolean onText(String message) {
+        return replay.onText(message);
+    }
+
+    @Override
+    public void send(byte[] data) {
+        replay.send(data);
+    }
+
+    @Override
+    public void awaitCapacity() throws InterruptedIOException {
+        // 断开期间和未确认的帧过多时暂停读取 JVM
+        replay.awaitCapacity();
+        OutboundQueue queue = outboundQueue;
+        if (queue != null) {
+            queue.awaitCapacity();
+        }
+    }
+
+    @Override
+    public void closed(DebugSession session) {
+        closed = true;
+        synchronized (this) {
+            if (expiry != null) {
+                expiry.cancel(false);
+                expiry = null;
+            }
+        }
+        replay.close();
+        onClosed.accept(this);
+        // 目标断开或会话到期：当前连接正常关闭，客户端不再重连
+        WebSocket current;
+        synchronized (receiveLock) {
+            current = connection;
+        }
+        if (current != null) {
+            current.close(CloseFrame.NORMAL, session.getCloseReason());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.proxy.server;
+
+import com.example.proxy.common.BatchPolicy;
+import com.example.proxy.common.OutboundQueue;
+import com.example.proxy.common.ReplayBuffer;
+import com.example.proxy.common.TrafficRecorder;
+import com.example.proxy.common.TunnelDeflateExtension;
+
+import java.util.Properties;
+
+/**
+ * 服务端启动参数：从命令行（监听端口）和 -Dproxy.* 系统属性读取一次，交给 {@link WebSocketDebugProxyServer#create}
+ *
+ * 每项的含义见服务器对应的 setter。没有给出或不是数字的属性取默认值，与 {@link Integer#getInteger} 相同。
+ */
+final class ServerOptions {
+
+    final int port;
+
+    // -Dproxy.deflate.level=1..9（0 关闭），-Dproxy.deflate.threshold，-Dproxy.deflate.contextTakeover
+    final int deflateLevel;
+    final int deflateThreshold;
+    final boolean deflateContextTakeover;
+
+    // -Dproxy.decoders: WebSocket 解码线程数，默认为 CPU 核数
+    final int decoders;
+
+    // -Dproxy.threads=virtual: 会话转发跑在虚拟线程上（JDK 21+）
+    final boolean virtualThreads;
+
+    // -Dproxy.cache=true: 缓存类元数据回复，-Dproxy.cache.maxBytes 为每个目标 JVM 的上限；0 表示关闭
+    final long cacheMaxBytes;
+
+    // -Dproxy.prefetch.frames: 挂起事件时预取局部变量的栈帧数，0 关闭预取
+    final int prefetchFrames;
+
+    // -Dproxy.resume.grace: WebSocket 异常断开后保留会话等待客户端重连的秒数，0 关闭；
+    // -Dproxy.resume.bufferBytes: 每个会话发往客户端、未确认的字节上限
+    final long resumeGraceSeconds;
+    final long resumeBufferBytes;
+
+    // -Dproxy.outbound.highWatermark/lowWatermark: 发往客户端的队列超过高水位时暂停读取 JVM
+    final long outboundLowWatermark;
+    final long outboundHighWatermark;
+
+    // -Dproxy.batch.delayMicros/idleMicros: 目标 JVM 成批产生事件时合并成帧的最长等待和空闲时间，0 关闭
+    final long batchDelayMicros;
+    final long batchIdleMicros;
+
+    // -Dproxy.connectionLostTimeout: 不发心跳的客户端的 WebSocket ping 超时秒数，0 关闭；
+    // 发心跳的客户端按它测得的往返时间判断
+    final int connectionLostTimeoutSeconds;
+
+    // -Dproxy.session.maxIdle: 两个方向都没有数据的会话保留的秒数，-Dproxy.session.maxLifetime: 会话最长存活秒数，
+    // -Dproxy.session.handshakeTimeout: 目标接受连接后必须回应的秒数；0 表示不限制
+    final long sessionMaxIdleSeconds;
+    final long sessionMaxLifetimeSeconds;
+    final long handshakeTimeoutSeconds;
+
+    // -Dproxy.target.connectTimeout: 连接目标 JVM 的超时秒数，-Dproxy.target.queueBytes: 每个会话发往目标、
+    // 尚未写出的字节上限，目标停止读取时超过上限的会话被关闭；0 表示不限制
+    final int targetConnectTimeoutSeconds;
+    final long targetQueueBytes;
+
+    // -Dproxy.resolver: 客户端只给出 Pod 名（X-Pod-Name）时解析目标地址，dns:<域名模板>（%s 代入 Pod 名，
+    // 如 dns:%s.my-app-headless.default.svc.cluster.local）或 file:<properties 文件>（每行 名称=host[:port]）；
+    // -Dproxy.resolver.ttl / negativeTtl: 解析结果 / 解析失败的缓存秒数，ttl 为 0 时不缓存。null 表示不解析
+    final String resolver;
+    final long resolverTtlSeconds;
+    final long resolverNegativeTtlSeconds;
+
+    // -Dproxy.directory: 多副本共享的会话目录（共享文件系统上的目录），
+    // -Dproxy.replica.url: 客户端直接访问本副本的地址，重连到其他副本的客户端被引导到这里
+    final String directory;
+    final String replicaUrl;
+
+    // -Dproxy.record=<文件>: 记录所有会话的 JDWP 流量，-Dproxy.record.maxBytes: 文件大小上限
+    final String recordFile;
+    final long recordMaxBytes;
+
+    // -Dproxy.drain.timeout: 收到 SIGTERM 时先排空，最多等待已有会话这么多秒（0 表示直接停止）
+    final long drainTimeoutSeconds;
+
+    // -Dproxy.trace=true: 跟踪所有会话的 JDWP 命令延迟，在指标端口的 /trace 上查看
+    final boolean trace;
+
+    // -Dproxy.metrics.port: 在该端口的 /metrics 上提供 Prometheus 指标，null 表示不提供
+    final Integer metricsPort;
+
+    /**
+     * @throws IllegalArgumentException 端口不是数字，或给出会话目录而没有给出副本地址
+     */
+    static ServerOptions fromSystemProperties(String[] args) {
+        return parse(args, System.getProperties());
+    }
+
+    /**
+     * @throws IllegalArgumentException 端口不是数字，或给出会话目录而没有给出副本地址
+     */
+    static ServerOptions parse(String[] args, Properties properties) {
+        return new ServerOptions(args, properties);
+    }
+
+    private ServerOptions(String[] args, Properties properties) {
+        try {
+            port = args.length > 0 ? Integer.parseInt(args[0]) : WebSocketDebugProxyServer.DEFAULT_PORT;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port " + args[0]);
+        }
+
+        deflateLevel = intValue(properties, "proxy.deflate.level", TunnelDeflateExtension.DEFAULT_LEVEL);
+        deflateThreshold = intValue(properties, "proxy.deflate.threshold", TunnelDeflateExtension.DEFAULT_THRESHOLD);
+        deflateContextTakeover = !"false".equalsIgnoreCase(properties.getProperty("proxy.deflate.contextTakeover"));
+        decoders = intValue(properties, "proxy.decoders", Runtime.getRuntime().availableProcessors());
+        virtualThreads = "virtual".equalsIgnoreCase(properties.getProperty("proxy.threads"));
+        cacheMaxBytes = flag(properties, "proxy.cache")
+                ? longValue(properties, "proxy.cache.maxBytes", WebSocketDebugProxyServer.DEFAULT_CACHE_BYTES_PER_TARGET)
+                : 0;
+        prefetchFrames = intValue(properties, "proxy.prefetch.frames", WebSocketDebugProxyServer.DEFAULT_PREFETCH_FRAMES);
+        resumeGraceSeconds = longValue(properties, "proxy.resume.grace", ReplayBuffer.DEFAULT_GRACE_SECONDS);
+        resumeBufferBytes = longValue(properties, "proxy.resume.bufferBytes", ReplayBuffer.DEFAULT_MAX_BYTES);
+        outboundLowWatermark = longValue(properties, "proxy.outbound.lowWatermark", OutboundQueue.DEFAULT_LOW_WATERMARK);
+        outboundHighWatermark = longValue(properties, "proxy.outbound.highWatermark",
+                OutboundQueue.DEFAULT_HIGH_WATERMARK);
+        batchDelayMicros = longValue(properties, "proxy.batch.delayMicros", BatchPolicy.DEFAULT_DELAY_MICROS);
+        batchIdleMicros = longValue(properties, "proxy.batch.idleMicros", BatchPolicy.DEFAULT_IDLE_MICROS);
+        connectionLostTimeoutSeconds = intValue(properties, "proxy.connectionLostTimeout",
+                WebSocketDebugProxyServer.DEFAULT_CONNECTION_LOST_TIMEOUT_SECONDS);
+        sessionMaxIdleSeconds = longValue(properties, "proxy.session.maxIdle",
+                WebSocketDebugProxyServer.DEFAULT_SESSION_MAX_IDLE_SECONDS);
+        sessionMaxLifetimeSeconds = longValue(properties, "proxy.session.maxLifetime", 0);
+        handshakeTimeoutSeconds = longValue(properties, "proxy.session.handshakeTimeout",
+                WebSocketDebugProxyServer.DEFAULT_HANDSHAKE_TIMEOUT_SECONDS);
+        targetConnectTimeoutSeconds = intValue(properties, "proxy.target.connectTimeout",
+                WebSocketDebugProxyServer.DEFAULT_TARGET_CONNECT_TIMEOUT_SECONDS);
+        targetQueueBytes = longValue(properties, "proxy.target.queueBytes",
+                WebSocketDebugProxyServer.DEFAULT_TARGET_QUEUE_BYTES);
+
+        resolver = nonEmpty(properties.getProperty("proxy.resolver"));
+        resolverTtlSeconds = longValue(properties, "proxy.resolver.ttl", CachingTargetResolver.DEFAULT_TTL_SECONDS);
+        resolverNegativeTtlSeconds = longValue(properties, "proxy.resolver.negativeTtl",
+                CachingTargetResolver.DEFAULT_NEGATIVE_TTL_SECONDS);
+
+        directory = properties.getProperty("proxy.directory");
+        replicaUrl = nonEmpty(properties.getProperty("proxy.replica.url"));
+        if (directory != null && replicaUrl == null) {
+            throw new IllegalArgumentException("-Dproxy.directory requires -Dproxy.replica.url");
+        }
+
+        recordFile = nonEmpty(properties.getProperty("proxy.record"));
+        recordMaxBytes = longValue(properties, "proxy.record.maxBytes", TrafficRecorder.DEFAULT_MAX_FILE_BYTES);
+        drainTimeoutSeconds = longValue(properties, "proxy.drain.timeout", 0);
+        trace = flag(properties, "proxy.trace");
+        Long metrics = decode(properties.getProperty("proxy.metrics.port"));
+        metricsPort = metrics != null && metrics == metrics.intValue() ? Integer.valueOf(metrics.intValue()) : null;
+    }
+
+    private static int intValue(Properties properties, String key, int defaultValue) {
+        Long value = decode(properties.getProperty(key));
+        return value != null && value == value.intValue() ? value.intValue() : defaultValue;
+    }
+
+    private static long longValue(Properties properties, String key, long defaultValue) {
+        Long value = decode(properties.getProperty(key));
+        return value != null ? value : defaultValue;
+    }
+
+    private static boolean flag(Properties properties, String key) {
+        return "true".equalsIgnoreCase(properties.getProperty(key));
+    }
+
+    private static Long decode(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.decode(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String nonEmpty(String value) {
+        return value != null && !value.isEmpty() ? value : null;
+    }
+}
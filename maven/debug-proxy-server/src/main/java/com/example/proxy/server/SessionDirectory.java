@@ -0,0 +1,28 @@
+package com.example.proxy.server;
+
+import java.io.IOException;
+
+/**
+ * 会话目录：多个服务端副本共享的 “会话 ID -> 持有该会话的副本” 映射
+ *
+ * 可恢复会话建立时登记，结束时注销。客户端断线重连被负载均衡分到其他副本时，
+ * 该副本查目录，在握手响应中告诉客户端会话所在副本的地址，客户端直接连过去恢复。
+ * 副本地址是客户端能直接访问的 WebSocket URL。
+ */
+public interface SessionDirectory {
+
+    /**
+     * 登记会话由 owner 持有，已有的登记被覆盖
+     */
+    void register(String sessionId, String owner) throws IOException;
+
+    /**
+     * 会话结束，只在登记仍属于 owner 时删除
+     */
+    void unregister(String sessionId, String owner) throws IOException;
+
+    /**
+     * @return 持有会话的副本地址，没有登记时返回 null
+     */
+    String lookup(String sessionId) throws IOException;
+}
@@ -0,0 +1,85 @@
+package com.example.proxy.server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 按静态表解析 Pod 名：{@code 名字=host[:port]}，没有写端口时使用客户端给出的端口
+ *
+ * 表可以直接给出，也可以来自 properties 文件；文件修改后在下一次解析时重新读取，
+ * 没有 DNS 或 Kubernetes API 的环境（本机测试、压测）可以用它代替。
+ */
+public class StaticTargetResolver implements TargetResolver {
+
+    private final Path file;
+    private FileTime loaded;
+    private Map<String, String> targets;
+
+    public StaticTargetResolver(Map<String, String> targets) {
+        this.file = null;
+        this.targets = new HashMap<>(targets);
+    }
+
+    private StaticTargetResolver(Path file) throws IOException {
+        this.file = file;
+        reload();
+    }
+
+    /**
+     * 从 properties 文件读取，每行 {@code 名字=host[:port]}
+     */
+    public static StaticTargetResolver load(Path file) throws IOException {
+        return new StaticTargetResolver(file);
+    }
+
+    @Override
+    public InetSocketAddress resolve(String name) throws IOException {
+        String target;
+        synchronized (this) {
+            if (file != null && !Files.getLastModifiedTime(file).equals(loaded)) {
+                reload();
+            }
+            target = targets.get(name);
+        }
+        if (target == null) {
+            throw new UnknownHostException("No target for '" + name + "'");
+        }
+        int colon = target.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(target, 0);
+        }
+        try {
+            return new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new UnknownHostException("Invalid target '" + target + "' for '" + name + "'");
+        }
+    }
+
+    private void reload() throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, String> loadedTargets = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            loadedTargets.put(name, properties.getProperty(name).trim());
+        }
+        targets = loadedTargets;
+        loaded = modified;
+    }
+
+    @Override
+    public String toString() {
+        return file != null ? "file:" + file : "static" + targets.keySet();
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.proxy.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * 目标解析：客户端只给出 Pod 或服务名（X-Pod-Name）、没有给出 X-Target-Host 时，由服务端把名字解析为目标 JVM 的地址
+ *
+ * 实现可以查 DNS、Kubernetes API 或静态表。服务端在会话任务线程上调用，不占用 WebSocket 解码线程；
+ * 结果由服务端按名字缓存，见 {@link WebSocketDebugProxyServer#setTargetResolver}。
+ */
+public interface TargetResolver {
+
+    /**
+     * @return 目标地址；端口为 0 时使用客户端给出的端口
+     * @throws java.net.UnknownHostException 名字不存在
+     */
+    InetSocketAddress resolve(String name) throws IOException;
+}
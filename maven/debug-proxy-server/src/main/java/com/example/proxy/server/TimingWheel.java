@@ -0,0 +1,249 @@
+package com.example.proxy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 哈希时间轮：为大量会话的期限（空闲、存活时间、握手）计时
+ *
+ * 时间按 tick 划分，轮上有 2 的幂个槽位，定时任务挂在 “到期 tick mod 槽位数” 的槽位上，
+ * 超过一圈的记下剩余圈数。工作线程每个 tick 醒来一次，只处理当前槽位：
+ * 安排和取消都是 O(1)（只进出无锁队列，由工作线程挂上和摘下），每个 tick 的开销与登记的任务总数无关，
+ * 几万个会话也不需要扫描线程。代价是精度：到期时间按 tick 取整，最多晚一个 tick，对秒级以上的期限无关紧要。
+ *
+ * 到期任务在工作线程中执行，应当很快返回（关闭 Socket、记录日志）。
+ */
+class TimingWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    // 每个 tick 最多挂上的新任务数，防止大量登记时饿死到期处理
+    private static final int MAX_ADDED_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean stopped;
+    // 只在工作线程中使用
+    private long tick;
+
+    /**
+     * @param tickMillis 一个 tick 的长度，即计时精度
+     * @param bucketCount 槽位数，向上取整到 2 的幂；tick × 槽位数 覆盖常见期限时大多数任务不用转圈
+     */
+    TimingWheel(String name, long tickMillis, int bucketCount) {
+        if (tickMillis <= 0 || bucketCount <= 0) {
+            throw new IllegalArgumentException("Tick and bucket count must be positive");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = 1;
+        while (size < bucketCount) {
+            size <<= 1;
+        }
+        this.buckets = new Bucket[size];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = buckets.length - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 安排 delay 之后执行 task，可以在任何线程中调用
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay)));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * 已安排、还没有到期或取消的任务数
+     */
+    long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * 停止工作线程，未到期的任务不再执行
+     */
+    void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (!stopped) {
+            if (!awaitNextTick()) {
+                break;
+            }
+            removeCancelled();
+            transferAdded();
+            buckets[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    /**
+     * 等到当前 tick 结束
+     * @return 已停止时返回 false
+     */
+    private boolean awaitNextTick() {
+        long deadline = (tick + 1) * tickNanos;
+        while (true) {
+            long remaining = deadline - (System.nanoTime() - startNanos);
+            if (remaining <= 0) {
+                return true;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (stopped) {
+                return false;
+            }
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_ADDED_PER_TICK; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state.get() != Timeout.SCHEDULED) {
+                continue;
+            }
+            long expiresAt = timeout.deadlineNanos / tickNanos;
+            timeout.remainingRounds = (expiresAt - tick) / buckets.length;
+            // 已经过期的挂到当前槽位，本 tick 就执行
+            buckets[(int) (Math.max(expiresAt, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * 已安排的任务
+     */
+    final class Timeout {
+        static final int SCHEDULED = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(SCHEDULED);
+        // 以下字段只在工作线程中使用
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * 取消任务，释放对 task 的引用在下一个 tick 完成
+         * @return 任务已执行或已取消时返回 false
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(SCHEDULED, CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(SCHEDULED, EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.warn("Timing wheel task failed", e);
+            }
+        }
+    }
+
+    /**
+     * 一个槽位：双向链表，挂上和摘下都是 O(1)
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * 执行本圈到期的任务，其余的圈数减一
+         */
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.state.get() == Timeout.CANCELLED) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -1,19 +1,40 @@
 package com.example.proxy.server;
 
+import com.example.proxy.common.BatchPolicy;
+import com.example.proxy.common.Heartbeat;
+import com.example.proxy.common.JdwpPacketReader;
+import com.example.proxy.common.JdwpPrefetch;
+import com.example.proxy.common.JdwpTracer;
+import com.example.proxy.common.MuxFrame;
+import com.example.proxy.common.OutboundQueue;
+import com.example.proxy.common.ReplayBuffer;
+import com.example.proxy.common.SessionThreads;
+import com.example.proxy.common.TrafficRecorder;
+import com.example.proxy.common.TunnelDeflateExtension;
+
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
 import org.java_websocket.server.WebSocketServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * 简化版 WebSocket Debug Proxy Server
@@ -24,60 +45,583 @@ import java.util.concurrent.ConcurrentHashMap;
 public class WebSocketDebugProxyServer extends WebSocketServer {
     
     private static final Logger logger = LoggerFactory.getLogger(WebSocketDebugProxyServer.class);
-    private static final int DEFAULT_PORT = 18888;
+    static final int DEFAULT_PORT = 18888;
+    static final long DEFAULT_CACHE_BYTES_PER_TARGET = 32L * 1024 * 1024;
+    static final int DEFAULT_PREFETCH_FRAMES = 1;
+    private static final long DRAIN_POLL_MILLIS = 1000;
+    private static final int STOP_TIMEOUT_MILLIS = 1000;
+    static final int DEFAULT_CONNECTION_LOST_TIMEOUT_SECONDS = 30;
+    static final long DEFAULT_SESSION_MAX_IDLE_SECONDS = 3600;
+    static final long DEFAULT_HANDSHAKE_TIMEOUT_SECONDS = 30;
+    // 比客户端等待多路复用 channel 打开的 30 秒短，客户端能收到连接失败的原因
+    static final int DEFAULT_TARGET_CONNECT_TIMEOUT_SECONDS = 10;
+    static final long DEFAULT_TARGET_QUEUE_BYTES = 16L * 1024 * 1024;
+    // 只给出 Pod 名、没有给出端口的会话连接的 JDWP 端口
+    private static final int DEFAULT_TARGET_PORT = 5005;
+    // 会话期限的精度，512 个槽位覆盖约 8.5 分钟，更长的期限在轮上转圈
+    private static final long SESSION_TIMER_TICK_MILLIS = 1000;
+    private static final int SESSION_TIMER_BUCKETS = 512;
     
     // 会话管理：WebSocket 连接 -> JVM Socket 映射
     private final Map<WebSocket, DebugSession> sessions = new ConcurrentHashMap<>();
     
+    // 多路复用连接：一个 WebSocket 连接 -> 多个会话
+    private final Map<WebSocket, MuxConnection> muxConnections = new ConcurrentHashMap<>();
+    
+    // 会话转发线程：平台线程或虚拟线程
+    private SessionThreads sessionThreads = new SessionThreads(false);
+    
+    // 类元数据缓存，null 表示关闭
+    private JdwpMetadataCache metadataCache;
+    
+    // 可恢复会话：会话 ID -> 会话（含等待重连的），当前连接 -> 会话
+    private final Map<String, ResumableSession> resumableSessions = new ConcurrentHashMap<>();
+    private final Map<WebSocket, ResumableSession> resumableConnections = new ConcurrentHashMap<>();
+    // 恢复宽限期和心跳检查共用
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ProxyTimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long resumeGraceSeconds = ReplayBuffer.DEFAULT_GRACE_SECONDS;
+    private long resumeBufferBytes = ReplayBuffer.DEFAULT_MAX_BYTES;
+    private volatile boolean stopping;
+    
+    // 多副本部署：可恢复会话登记在共享的会话目录中，replicaUrl 是客户端直接访问本副本的地址
+    private SessionDirectory sessionDirectory;
+    private String replicaUrl;
+    
+    // 排空：不再接受新会话，已有会话结束后停止；等待时间为 0 表示一直等待
+    private volatile boolean draining;
+    private long drainTimeoutSeconds;
+    
+    // 挂起事件时预取局部变量的栈帧数，0 表示不预取
+    private int prefetchFrames = DEFAULT_PREFETCH_FRAMES;
+    
+    // 每个连接的发送队列：多路复用连接上的会话共用一个
+    private final Map<WebSocket, OutboundQueue> outboundQueues = new ConcurrentHashMap<>();
+    private long outboundLowWatermark = OutboundQueue.DEFAULT_LOW_WATERMARK;
+    private long outboundHighWatermark = OutboundQueue.DEFAULT_HIGH_WATERMARK;
+    
+    // 目标 JVM -> 客户端 方向的微批上限，客户端可在握手中要求更小的值
+    private BatchPolicy batching = new BatchPolicy(BatchPolicy.DEFAULT_DELAY_MICROS, BatchPolicy.DEFAULT_IDLE_MICROS);
+    
+    // 会话期限：空闲、存活时间和等待目标回应，0 表示不限制
+    private final TimingWheel sessionTimers = new TimingWheel("SessionTimers", SESSION_TIMER_TICK_MILLIS,
+            SESSION_TIMER_BUCKETS);
+    private long sessionMaxIdleSeconds = DEFAULT_SESSION_MAX_IDLE_SECONDS;
+    private long sessionMaxLifetimeSeconds;
+    private long handshakeTimeoutSeconds = DEFAULT_HANDSHAKE_TIMEOUT_SECONDS;
+    
+    // 声明了心跳（X-Heartbeat）的连接：按客户端测得的往返时间判断是否失联
+    private final Map<WebSocket, Heartbeat> heartbeats = new ConcurrentHashMap<>();
+    
+    // 运行指标，总是采集；通过 startMetrics 对外提供
+    private final ProxyMetrics metrics = new ProxyMetrics();
+    private MetricsEndpoint metricsEndpoint;
+    
+    // 按 JDWP 命令统计的延迟：服务端开启时跟踪所有会话，否则只跟踪要求计时的客户端
+    private final JdwpTracer tracer = new JdwpTracer();
+    private boolean trace;
+    
+    // 流量记录，null 表示不记录
+    private TrafficRecorder recorder;
+    
+    // 连接目标 JVM 的超时，和每个会话发往目标的写队列上限
+    private int targetConnectTimeoutSeconds = DEFAULT_TARGET_CONNECT_TIMEOUT_SECONDS;
+    private long targetQueueBytes = DEFAULT_TARGET_QUEUE_BYTES;
+    
+    // 客户端只给出 Pod 名时的目标解析，null 表示要求客户端给出 X-Target-Host
+    private TargetResolver targetResolver;
+    
     public WebSocketDebugProxyServer(int port) {
-        super(new InetSocketAddress(port));
+        this(port, TunnelDeflateExtension.createDraft(0, 0, false));
+    }
+    
+    /**
+     * @param draft 协议，带 TunnelDeflateExtension 时可与客户端协商压缩；
+     *              来自 {@link TunnelDeflateExtension#createDraft} 时发送队列才有水位控制
+     */
+    public WebSocketDebugProxyServer(int port, Draft draft) {
+        this(port, draft, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * @param decoders 解码 WebSocket 帧、回调 onMessage 的线程数。连接和写入目标都不在这些线程上进行，
+     *                 线程数只需跟上解帧（和解压）的 CPU 开销
+     */
+    public WebSocketDebugProxyServer(int port, Draft draft, int decoders) {
+        super(new InetSocketAddress(port), decoders, Collections.singletonList(draft));
+        setWebSocketFactory(OutboundQueue.serverFactory());
+        metrics.setGauges(() -> getConnections().size(), this::getOutboundQueuedBytes);
+        setConnectionLostTimeout(DEFAULT_CONNECTION_LOST_TIMEOUT_SECONDS);
         logger.info("WebSocket Debug Proxy Server initialized on port {}", port);
     }
     
     public static void main(String[] args) {
-        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
-        
-        WebSocketDebugProxyServer server = new WebSocketDebugProxyServer(port);
+        ServerOptions options;
+        WebSocketDebugProxyServer created;
+        try {
+            options = ServerOptions.fromSystemProperties(args);
+            created = create(options);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        WebSocketDebugProxyServer server = created;
         server.start();
         
-        logger.info("WebSocket Debug Proxy Server started on port {}", port);
+        if (options.drainTimeoutSeconds > 0) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.drain();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "Drain"));
+        }
+        
+        if (options.metricsPort != null) {
+            try {
+                server.startMetrics(options.metricsPort);
+            } catch (IOException e) {
+                logger.error("Cannot start metrics endpoint on port {}: {}", options.metricsPort, e.getMessage());
+            }
+        }
+        
+        logger.info("WebSocket Debug Proxy Server started on port {}", options.port);
         logger.info("Waiting for connections...");
     }
     
+    /**
+     * 按启动参数创建服务器（未启动），并打开目标解析、会话目录和流量记录
+     * @throws IOException 解析表或会话目录无法打开；流量记录无法打开时只记录日志
+     * @throws IllegalArgumentException 参数无效
+     */
+    static WebSocketDebugProxyServer create(ServerOptions options) throws IOException {
+        logger.info("Compression: level={}, threshold={}, contextTakeover={}",
+                options.deflateLevel, options.deflateThreshold, options.deflateContextTakeover);
+        WebSocketDebugProxyServer server = new WebSocketDebugProxyServer(options.port,
+                TunnelDeflateExtension.createDraft(options.deflateLevel, options.deflateThreshold,
+                        options.deflateContextTakeover),
+                options.decoders);
+        server.setVirtualThreads(options.virtualThreads);
+        server.setMetadataCache(options.cacheMaxBytes);
+        server.setPrefetchFrames(options.prefetchFrames);
+        server.setResume(options.resumeGraceSeconds, options.resumeBufferBytes);
+        server.setOutboundWatermarks(options.outboundLowWatermark, options.outboundHighWatermark);
+        server.setBatching(options.batchDelayMicros, options.batchIdleMicros);
+        server.setConnectionLostTimeout(options.connectionLostTimeoutSeconds);
+        server.setSessionLimits(options.sessionMaxIdleSeconds, options.sessionMaxLifetimeSeconds,
+                options.handshakeTimeoutSeconds);
+        server.setTargetLimits(options.targetConnectTimeoutSeconds, options.targetQueueBytes);
+        server.setDrainTimeout(options.drainTimeoutSeconds);
+        server.setTrace(options.trace);
+        
+        if (options.resolver != null) {
+            TargetResolver resolver;
+            try {
+                resolver = createResolver(options.resolver);
+            } catch (IOException | IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid -Dproxy.resolver " + options.resolver + ": "
+                        + e.getMessage(), e);
+            }
+            server.setTargetResolver(resolver, options.resolverTtlSeconds, options.resolverNegativeTtlSeconds);
+            logger.info("Resolving pod names with {}", options.resolver);
+        }
+        if (options.directory != null) {
+            try {
+                server.setSessionDirectory(new FileSessionDirectory(Paths.get(options.directory)), options.replicaUrl);
+            } catch (IOException e) {
+                throw new IOException("Cannot open session directory " + options.directory + ": " + e.getMessage(), e);
+            }
+            logger.info("Replica {} using session directory {}", options.replicaUrl, options.directory);
+        }
+        if (options.recordFile != null) {
+            try {
+                TrafficRecorder recorder = TrafficRecorder.open(Paths.get(options.recordFile), options.recordMaxBytes);
+                server.setRecorder(recorder);
+                // 进程被直接结束时写完队列中的记录
+                Runtime.getRuntime().addShutdownHook(new Thread(recorder::close, "CloseRecording"));
+                logger.info("Recording JDWP traffic to {}", options.recordFile);
+            } catch (IOException e) {
+                logger.error("Cannot open recording {}: {}", options.recordFile, e.getMessage());
+            }
+        }
+        return server;
+    }
+    
+    /**
+     * @param spec dns:<域名模板> 或 file:<properties 文件>
+     */
+    private static TargetResolver createResolver(String spec) throws IOException {
+        if (spec.startsWith("dns:")) {
+            return new DnsTargetResolver(spec.substring("dns:".length()));
+        }
+        if (spec.startsWith("file:")) {
+            return StaticTargetResolver.load(Paths.get(spec.substring("file:".length())));
+        }
+        throw new IllegalArgumentException("expected dns:<template> or file:<path>");
+    }
+    
+    /**
+     * 设置会话转发线程的模式：虚拟线程在 JDK 21 以下自动回退为平台线程
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        sessionThreads.shutdown();
+        this.sessionThreads = new SessionThreads(virtualThreads);
+    }
+    
+    /**
+     * 开启类元数据缓存：连到同一目标 JVM 的会话共享 Methods、LineTable 等回复
+     * @param maxBytesPerTarget 每个目标 JVM 的缓存上限，0 表示关闭
+     */
+    public void setMetadataCache(long maxBytesPerTarget) {
+        this.metadataCache = maxBytesPerTarget > 0 ? new JdwpMetadataCache(maxBytesPerTarget) : null;
+    }
+    
+    /**
+     * 设置挂起事件预取：断点、单步等事件到达时，服务端先取好栈帧和局部变量推给客户端。
+     * 只对声明支持预取（X-Prefetch）的客户端生效
+     * @param frames 预取局部变量的栈帧数（从栈顶起），0 表示关闭
+     */
+    public void setPrefetchFrames(int frames) {
+        this.prefetchFrames = frames;
+    }
+    
+    /**
+     * 设置可恢复会话：声明支持恢复（X-Resume）的客户端的 WebSocket 异常断开后，
+     * 保留目标 JVM 的连接，等待客户端用同一个会话 ID 重连。只对独占连接生效
+     * @param graceSeconds 等待重连的时间，0 表示关闭
+     * @param bufferBytes 每个会话发往客户端、未确认的字节上限，达到时暂停读取目标 JVM
+     */
+    public void setResume(long graceSeconds, long bufferBytes) {
+        this.resumeGraceSeconds = graceSeconds;
+        this.resumeBufferBytes = bufferBytes;
+    }
+    
+    /**
+     * 设置每个连接发送队列的水位：队列达到高水位时暂停读取目标 JVM，降到低水位以下再恢复
+     * @param highWatermark 0 表示不限制
+     */
+    public void setOutboundWatermarks(long lowWatermark, long highWatermark) {
+        if (highWatermark > 0 && (lowWatermark < 0 || lowWatermark > highWatermark)) {
+            throw new IllegalArgumentException("Low watermark must be between 0 and the high watermark");
+        }
+        this.outboundLowWatermark = lowWatermark;
+        this.outboundHighWatermark = highWatermark;
+    }
+    
+    /**
+     * 设置目标 JVM -> 客户端 方向的微批，见 {@link BatchPolicy}；客户端声明的值更小时按客户端的值
+     * @param delayMicros 一帧最多等待的时间，0 表示关闭
+     * @param idleMicros 目标 JVM 这么久没有新数据时立即发送
+     */
+    public void setBatching(long delayMicros, long idleMicros) {
+        this.batching = new BatchPolicy(delayMicros, idleMicros);
+    }
+    
+    /**
+     * 设置会话期限，到期的会话被关闭，客户端收到带原因的关闭帧；各项为 0 表示不限制
+     * @param maxIdleSeconds 两个方向都没有数据的最长时间，包括停在断点上无人操作的会话
+     * @param maxLifetimeSeconds 会话的最长存活时间
+     * @param handshakeTimeoutSeconds 第一次写入目标后等待目标回应的时间
+     */
+    public void setSessionLimits(long maxIdleSeconds, long maxLifetimeSeconds, long handshakeTimeoutSeconds) {
+        if (maxIdleSeconds < 0 || maxLifetimeSeconds < 0 || handshakeTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("Session limits must not be negative");
+        }
+        this.sessionMaxIdleSeconds = maxIdleSeconds;
+        this.sessionMaxLifetimeSeconds = maxLifetimeSeconds;
+        this.handshakeTimeoutSeconds = handshakeTimeoutSeconds;
+    }
+    
+    /**
+     * 设置目标 JVM 的连接超时和写队列上限；连接和写入都在会话任务线程上进行，不占用 WebSocket 解码线程
+     * @param connectTimeoutSeconds 解析主机名后建立 TCP 连接的超时，0 表示由系统决定
+     * @param queueBytes 每个会话发往目标、尚未写出的字节上限，超过时关闭会话，0 表示不限制
+     */
+    public void setTargetLimits(int connectTimeoutSeconds, long queueBytes) {
+        if (connectTimeoutSeconds < 0 || queueBytes < 0) {
+            throw new IllegalArgumentException("Target limits must not be negative");
+        }
+        this.targetConnectTimeoutSeconds = connectTimeoutSeconds;
+        this.targetQueueBytes = queueBytes;
+    }
+    
+    /**
+     * 设置 JDWP 命令延迟跟踪：按命令记录目标 JVM 的处理耗时。
+     * 关闭时仍会跟踪握手时要求计时（X-Trace）的客户端会话
+     */
+    public void setTrace(boolean trace) {
+        this.trace = trace;
+    }
+    
+    /**
+     * 把所有会话与客户端之间的流量记录到文件，用 TrafficReplayer 回放；服务器停止时关闭
+     * @param recorder null 表示不记录
+     */
+    public void setRecorder(TrafficRecorder recorder) {
+        this.recorder = recorder;
+    }
+    
+    /**
+     * 允许客户端只给出 Pod 名（X-Pod-Name，X-Target-Host 为空）：服务端在连接目标之前解析，
+     * 结果按名字缓存，同一名字的并发解析合并为一次，最近用过的名字在到期前后台刷新
+     * @param ttlSeconds 解析结果的缓存时间，0 表示每次连接都解析
+     * @param negativeTtlSeconds 解析失败的缓存时间，也是刷新失败后重试的间隔
+     */
+    public void setTargetResolver(TargetResolver resolver, long ttlSeconds, long negativeTtlSeconds) {
+        if (targetResolver instanceof CachingTargetResolver) {
+            ((CachingTargetResolver) targetResolver).close();
+        }
+        this.targetResolver = resolver != null && ttlSeconds > 0
+                ? new CachingTargetResolver(resolver, ttlSeconds, negativeTtlSeconds, metrics::targetLookup)
+                : resolver;
+    }
+    
+    /**
+     * 设置多副本部署的会话目录：可恢复会话登记在目录中，客户端重连到本副本、而会话在其他副本上时，
+     * 握手响应中带上会话所在副本的地址（X-Resume-Owner），客户端改连该地址恢复会话
+     * @param replicaUrl 客户端直接访问本副本的 WebSocket 地址
+     */
+    public void setSessionDirectory(SessionDirectory sessionDirectory, String replicaUrl) {
+        this.sessionDirectory = sessionDirectory;
+        this.replicaUrl = replicaUrl;
+    }
+    
+    /**
+     * 设置排空时等待已有会话结束的最长时间
+     * @param seconds 0 表示一直等待
+     */
+    public void setDrainTimeout(long seconds) {
+        this.drainTimeoutSeconds = seconds;
+    }
+    
+    /**
+     * 排空并停止：拒绝新的连接和 channel，已有会话（包括等待重连的）继续工作，
+     * 全部结束或超过排空时间后停止服务器。重复调用时等待同一次排空
+     * @return 所有会话都已结束时返回 true，超时返回 false
+     */
+    public boolean drain() throws InterruptedException {
+        if (!draining) {
+            draining = true;
+            logger.info("Draining: refusing new sessions, {} active", getActiveSessionCount());
+        }
+        long deadline = drainTimeoutSeconds > 0
+                ? System.currentTimeMillis() + drainTimeoutSeconds * 1000 : Long.MAX_VALUE;
+        while (!stopping && getActiveSessionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(DRAIN_POLL_MILLIS);
+        }
+        int remaining = getActiveSessionCount();
+        if (!stopping) {
+            if (remaining > 0) {
+                logger.warn("Drain timed out, closing {} sessions", remaining);
+            } else {
+                logger.info("Drained, stopping");
+            }
+            stop(STOP_TIMEOUT_MILLIS);
+        }
+        return remaining == 0;
+    }
+    
+    public boolean isDraining() {
+        return draining;
+    }
+    
+    /**
+     * 活动会话数：独占连接、多路复用 channel 和等待重连的会话
+     */
+    int getActiveSessionCount() {
+        int count = resumableSessions.size();
+        for (DebugSession session : sessions.values()) {
+            if (!resumableSessions.containsKey(session.getSessionId())) {
+                count++;
+            }
+        }
+        for (MuxConnection mux : muxConnections.values()) {
+            count += mux.getChannelCount();
+        }
+        return count;
+    }
+    
+    /**
+     * 按 JDWP 命令统计的目标 JVM 耗时报告
+     */
+    public String dumpTrace() {
+        return tracer.dump();
+    }
+    
+    /**
+     * 在指定端口的 /metrics 上以 Prometheus 文本格式提供运行指标，/trace 上提供 JDWP 命令延迟报告
+     */
+    public synchronized void startMetrics(int port) throws IOException {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        metricsEndpoint = new MetricsEndpoint(port, metrics, tracer, () -> !draining, this::drainInBackground);
+        metricsEndpoint.start();
+    }
+    
+    /**
+     * 通过指标端口的 /drain 触发，排空完成后停止
+     */
+    private void drainInBackground() {
+        Thread thread = new Thread(() -> {
+            try {
+                drain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    @Override
+    public void stop(int timeout, String closeMessage) throws InterruptedException {
+        // 服务端关闭连接时不再等待重连
+        stopping = true;
+        synchronized (this) {
+            if (metricsEndpoint != null) {
+                metricsEndpoint.stop();
+                metricsEndpoint = null;
+            }
+        }
+        super.stop(timeout, closeMessage);
+        sessionThreads.shutdown();
+        if (targetResolver instanceof CachingTargetResolver) {
+            ((CachingTargetResolver) targetResolver).close();
+        }
+        timer.shutdownNow();
+        sessionTimers.stop();
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+    
+    /**
+     * 所有连接已交给 WebSocket、尚未写出的字节数
+     */
+    long getOutboundQueuedBytes() {
+        long queued = 0;
+        for (OutboundQueue queue : outboundQueues.values()) {
+            queued += queue.getQueuedBytes();
+        }
+        return queued;
+    }
+    
+    /**
+     * 握手时处理会话恢复：新会话在响应中声明支持恢复，重连时把会话转到新连接并告知已收到的帧数
+     */
+    @Override
+    public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft,
+            ClientHandshake request) throws InvalidDataException {
+        ServerHandshakeBuilder response = super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+        String sessionId = request.getFieldValue("X-Session-Id");
+        if (request.hasFieldValue(ReplayBuffer.RECEIVED_HEADER)) {
+            ResumableSession resumable = resumableSessions.get(sessionId);
+            if (resumable != null) {
+                response.put(ReplayBuffer.RECEIVED_HEADER, String.valueOf(resumable.claim(conn)));
+            } else {
+                String owner = lookupOwner(sessionId);
+                if (owner != null) {
+                    logger.info("Session {}: Held by replica {}, redirecting the client", sessionId, owner);
+                    response.put(ReplayBuffer.OWNER_HEADER, owner);
+                    metrics.sessionRedirected();
+                }
+            }
+        } else if (draining) {
+            // 负载均衡发现本副本未就绪之前到达的新连接
+            throw new InvalidDataException(CloseFrame.TRY_AGAIN_LATER, "Server is draining");
+        } else if (isResumable(request)) {
+            response.put(ReplayBuffer.RESUME_HEADER, ReplayBuffer.RESUME_VERSION);
+            response.put(ReplayBuffer.GRACE_HEADER, Long.toString(resumeGraceSeconds));
+        }
+        if (Heartbeat.fromHeader(request.getFieldValue(Heartbeat.HEADER)) != null) {
+            response.put(Heartbeat.HEADER, request.getFieldValue(Heartbeat.HEADER));
+        }
+        return response;
+    }
+    
+    /**
+     * @return 会话在其他副本上时返回该副本的地址
+     */
+    private String lookupOwner(String sessionId) {
+        if (sessionDirectory == null || sessionId.isEmpty()) {
+            return null;
+        }
+        try {
+            String owner = sessionDirectory.lookup(sessionId);
+            return owner != null && !owner.equals(replicaUrl) ? owner : null;
+        } catch (IOException e) {
+            logger.warn("Session {}: Cannot look up session directory: {}", sessionId, e.getMessage());
+            return null;
+        }
+    }
+    
+    private boolean isResumable(ClientHandshake request) {
+        String sessionId = request.getFieldValue("X-Session-Id");
+        return resumeGraceSeconds > 0 && !sessionId.isEmpty() && !resumableSessions.containsKey(sessionId)
+                && ReplayBuffer.RESUME_VERSION.equals(request.getFieldValue(ReplayBuffer.RESUME_HEADER))
+                && !MuxFrame.MUX_VERSION.equals(request.getFieldValue(MuxFrame.MUX_HEADER));
+    }
+    
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        logger.info("New WebSocket connection from: {} ({})", conn.getRemoteSocketAddress(),
+                   ((Draft_6455) conn.getDraft()).getExtension());
+        OutboundQueue outboundQueue = new OutboundQueue(conn, outboundLowWatermark, outboundHighWatermark);
+        outboundQueues.put(conn, outboundQueue);
+        Heartbeat heartbeat = Heartbeat.fromHeader(handshake.getFieldValue(Heartbeat.HEADER));
+        if (heartbeat != null) {
+            heartbeats.put(conn, heartbeat);
+        }
+        
+        // 多路复用连接：会话通过 OPEN 帧逐个建立
+        if (MuxFrame.MUX_VERSION.equals(handshake.getFieldValue(MuxFrame.MUX_HEADER))) {
+            muxConnections.put(conn, new MuxConnection(this, conn, outboundQueue));
+            logger.info("Multiplexed connection established from: {}", conn.getRemoteSocketAddress());
+            return;
+        }
+        
+        if (handshake.hasFieldValue(ReplayBuffer.RECEIVED_HEADER)) {
+            resumeSession(conn, handshake, outboundQueue);
+            return;
+        }
+        
         try {
-            logger.info("New WebSocket connection from: {}", conn.getRemoteSocketAddress());
-            
-            // 解析目标 JVM 信息
-            String targetHost = handshake.getFieldValue("X-Target-Host");
-            String targetPortStr = handshake.getFieldValue("X-Target-Port");
-            String podName = handshake.getFieldValue("X-Pod-Name");
-            String sessionId = handshake.getFieldValue("X-Session-Id");
-            
-            if (targetHost == null || targetPortStr == null) {
-                logger.error("Missing target host or port in handshake");
-                conn.close(1008, "Missing target information");
+            if (isResumable(handshake)) {
+                openResumableSession(conn, handshake, outboundQueue);
                 return;
             }
-            
-            int targetPort = Integer.parseInt(targetPortStr);
-            logger.info("Session {}: Connecting to pod '{}' at {}:{}", 
-                       sessionId, podName, targetHost, targetPort);
-            
-            // 连接到目标 JVM
-            Socket jvmSocket = new Socket(targetHost, targetPort);
-            logger.info("Session {}: Connected to target JVM", sessionId);
-            
-            // 创建会话
-            DebugSession session = new DebugSession(sessionId, podName, conn, jvmSocket);
+            DebugSession session = openSession(handshake::getFieldValue, new DebugSession.Outbound() {
+                @Override
+                public void send(byte[] data) {
+                    conn.send(data);
+                }
+                
+                @Override
+                public void awaitCapacity() throws InterruptedIOException {
+                    outboundQueue.awaitCapacity();
+                }
+                
+                @Override
+                public void closed(DebugSession session) {
+                    // 目标断开或会话到期时关闭连接，客户端随之断开调试器
+                    conn.close(CloseFrame.NORMAL, session.getCloseReason());
+                }
+            });
             sessions.put(conn, session);
             
-            // 启动 JVM -> WebSocket 转发线程
-            session.startForwarding();
-            
-            logger.info("Session {}: Debug session established successfully", sessionId);
+            // 在会话任务线程上连接目标 JVM，之后才开始 JVM -> WebSocket 转发
+            startSession(session, () -> logger.info("Session {}: Debug session established successfully",
+                    session.getSessionId()));
             
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid handshake: {}", e.getMessage());
+            conn.close(1008, e.getMessage());
         } catch (Exception e) {
             logger.error("Error handling WebSocket connection: {}", e.getMessage(), e);
             try {
@@ -88,8 +632,141 @@ public class WebSocketDebugProxyServer extends WebSocketServer {
         }
     }
     
+    /**
+     * 建立可恢复会话，WebSocket 异常断开后保留一段时间
+     */
+    private void openResumableSession(WebSocket conn, ClientHandshake handshake, OutboundQueue outboundQueue) {
+        String sessionId = handshake.getFieldValue("X-Session-Id");
+        ResumableSession resumable = new ResumableSession(sessionId, resumeBufferBytes, resumeGraceSeconds,
+                timer, this::resumableSessionClosed);
+        DebugSession session = openSession(handshake::getFieldValue, resumable);
+        resumable.start(session, conn, outboundQueue);
+        resumableSessions.put(sessionId, resumable);
+        if (sessionDirectory != null) {
+            try {
+                sessionDirectory.register(sessionId, replicaUrl);
+            } catch (IOException e) {
+                logger.warn("Session {}: Cannot register in session directory: {}", sessionId, e.getMessage());
+            }
+        }
+        resumableConnections.put(conn, resumable);
+        sessions.put(conn, session);
+        startSession(session, () -> logger.info("Session {}: Debug session established successfully (resumable)",
+                sessionId));
+    }
+    
+    private void resumableSessionClosed(ResumableSession resumable) {
+        String sessionId = resumable.getSessionId();
+        resumableSessions.remove(sessionId, resumable);
+        if (sessionDirectory != null) {
+            try {
+                sessionDirectory.unregister(sessionId, replicaUrl);
+            } catch (IOException e) {
+                logger.warn("Session {}: Cannot unregister from session directory: {}", sessionId, e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 客户端重连：会话已在握手时转到本连接，重发客户端没有收到的帧
+     */
+    private void resumeSession(WebSocket conn, ClientHandshake handshake, OutboundQueue outboundQueue) {
+        String sessionId = handshake.getFieldValue("X-Session-Id");
+        ResumableSession resumable = resumableSessions.get(sessionId);
+        long clientReceived;
+        try {
+            clientReceived = Long.parseLong(handshake.getFieldValue(ReplayBuffer.RECEIVED_HEADER));
+        } catch (NumberFormatException e) {
+            conn.close(CloseFrame.POLICY_VALIDATION, "Invalid " + ReplayBuffer.RECEIVED_HEADER);
+            return;
+        }
+        if (resumable == null || !resumable.resume(conn, outboundQueue, clientReceived)) {
+            logger.info("Session {}: Cannot resume", sessionId);
+            conn.close(CloseFrame.POLICY_VALIDATION, "Session expired");
+            return;
+        }
+        resumableConnections.put(conn, resumable);
+        sessions.put(conn, resumable.getDebugSession());
+        metrics.sessionResumed();
+        logger.info("Session {}: Resumed from {}", sessionId, conn.getRemoteSocketAddress());
+    }
+    
+    /**
+     * 解析目标 JVM 信息并创建会话，登记好会话后调用 {@link #startSession} 连接目标
+     * @param fields 会话参数：独占连接取自握手 header，多路复用连接取自 OPEN 帧
+     */
+    DebugSession openSession(Function<String, String> fields, DebugSession.Outbound outbound) {
+        String targetHost = fields.apply("X-Target-Host");
+        String targetPortStr = fields.apply("X-Target-Port");
+        String podName = fields.apply("X-Pod-Name");
+        String sessionId = fields.apply("X-Session-Id");
+        boolean packetFraming = JdwpPacketReader.FRAME_MODE_PACKET.equals(
+                fields.apply(JdwpPacketReader.FRAME_MODE_HEADER));
+        boolean prefetch = JdwpPrefetch.PREFETCH_VERSION.equals(fields.apply(JdwpPrefetch.PREFETCH_HEADER));
+        boolean clientTrace = JdwpTracer.TRACE_VERSION.equals(fields.apply(JdwpTracer.TRACE_HEADER));
+        boolean earlyHandshake = JdwpPacketReader.EARLY_HANDSHAKE_VERSION.equals(
+                fields.apply(JdwpPacketReader.EARLY_HANDSHAKE_HEADER));
+        BatchPolicy sessionBatching = batching.limitTo(
+                fields.apply(BatchPolicy.DELAY_HEADER), fields.apply(BatchPolicy.IDLE_HEADER));
+        
+        // 握手 header 缺失时 getFieldValue 返回空串；配置了解析时可以只给 Pod 名，端口缺省为 JDWP 的 5005
+        boolean byName = (targetHost == null || targetHost.isEmpty()) && targetResolver != null
+                && podName != null && !podName.isEmpty();
+        if (!byName && (targetHost == null || targetHost.isEmpty() || targetPortStr == null || targetPortStr.isEmpty())) {
+            throw new IllegalArgumentException("Missing target information");
+        }
+        
+        int targetPort = targetPortStr == null || targetPortStr.isEmpty()
+                ? DEFAULT_TARGET_PORT : Integer.parseInt(targetPortStr);
+        // 指标、元数据缓存和流量记录按目标区分：按名字解析的会话用 Pod 名代替主机名
+        String target = (byName ? podName : targetHost) + ":" + targetPort;
+        if (byName) {
+            logger.info("Session {}: Connecting to pod '{}' (resolved by name), port {}", sessionId, podName, targetPort);
+        } else {
+            logger.info("Session {}: Connecting to pod '{}' at {}:{}", 
+                       sessionId, podName, targetHost, targetPort);
+        }
+        
+        JdwpMetadataCache.Target cacheTarget = metadataCache != null ? metadataCache.target(target) : null;
+        DebugSession session = new DebugSession(sessionId, podName, outbound, targetHost, targetPort, packetFraming,
+                sessionThreads, cacheTarget, prefetch ? prefetchFrames : 0, metrics.target(target),
+                trace || clientTrace ? tracer.newSession() : null, clientTrace, earlyHandshake, sessionBatching);
+        session.watch(sessionTimers, sessionMaxIdleSeconds, sessionMaxLifetimeSeconds, handshakeTimeoutSeconds,
+                metrics::sessionExpired);
+        if (byName) {
+            session.resolveWith(targetResolver);
+        }
+        if (recorder != null) {
+            session.record(recorder.openSession(sessionId, target));
+        }
+        return session;
+    }
+    
+    /**
+     * 连接目标 JVM 并开始转发，立即返回；连接失败时会话以失败原因关闭
+     * @param onConnected 连上目标后、开始转发之前在会话任务线程上回调
+     */
+    void startSession(DebugSession session, Runnable onConnected) {
+        session.start((int) TimeUnit.SECONDS.toMillis(targetConnectTimeoutSeconds), targetQueueBytes, onConnected);
+    }
+    
     @Override
     public void onMessage(WebSocket conn, ByteBuffer message) {
+        Heartbeat heartbeat = heartbeats.get(conn);
+        if (heartbeat != null) {
+            heartbeat.received(System.nanoTime());
+        }
+        MuxConnection mux = muxConnections.get(conn);
+        if (mux != null) {
+            try {
+                mux.onFrame(message);
+            } catch (IOException e) {
+                logger.error("Invalid mux frame: {}", e.getMessage());
+                conn.close(1002, "Invalid mux frame");
+            }
+            return;
+        }
+        
         // 接收来自 client 的 JDWP 数据，转发到 JVM
         DebugSession session = sessions.get(conn);
         if (session == null) {
@@ -101,11 +778,16 @@ public class WebSocketDebugProxyServer extends WebSocketServer {
         try {
             byte[] data = new byte[message.remaining()];
             message.get(data);
-            session.forwardToJvm(data);
+            ResumableSession resumable = resumableConnections.get(conn);
+            if (resumable != null) {
+                resumable.onFrame(conn, data);
+            } else {
+                session.forwardToJvm(data);
+            }
         } catch (IOException e) {
             logger.error("Session {}: Error forwarding data to JVM: {}", 
                         session.getSessionId(), e.getMessage(), e);
-            closeSession(conn);
+            closeSession(conn, false);
         }
     }
     
@@ -113,9 +795,52 @@ public class WebSocketDebugProxyServer extends WebSocketServer {
     public void onMessage(WebSocket conn, String message) {
         // 文本消息用于控制命令（如心跳）
         logger.debug("Received text message: {}", message);
+        Heartbeat heartbeat = heartbeats.get(conn);
+        if (heartbeat != null) {
+            heartbeat.received(System.nanoTime());
+        }
         
-        if ("PING".equals(message)) {
-            conn.send("PONG");
+        ResumableSession resumable = resumableConnections.get(conn);
+        if (resumable != null && resumable.onText(message)) {
+            return;
+        }
+        if (Heartbeat.isPing(message)) {
+            conn.send(Heartbeat.PONG);
+            if (heartbeat != null) {
+                heartbeat.onPing(message, System.nanoTime());
+                limitBatchDelay(conn, heartbeat.getBatchDelayLimitMicros());
+            }
+        }
+    }
+    
+    /**
+     * 按客户端测得的往返时间收紧该连接上所有会话的微批等待
+     */
+    private void limitBatchDelay(WebSocket conn, long micros) {
+        MuxConnection mux = muxConnections.get(conn);
+        if (mux != null) {
+            mux.limitBatchDelay(micros);
+            return;
+        }
+        DebugSession session = sessions.get(conn);
+        if (session != null) {
+            session.limitBatchDelay(micros);
+        }
+    }
+    
+    /**
+     * 关闭超过存活超时没有任何消息的心跳连接，可恢复会话照常保留等待重连
+     */
+    private void checkHeartbeats() {
+        long now = System.nanoTime();
+        for (Map.Entry<WebSocket, Heartbeat> entry : heartbeats.entrySet()) {
+            Heartbeat heartbeat = entry.getValue();
+            if (heartbeat.isSilent(now)) {
+                WebSocket conn = entry.getKey();
+                logger.warn("No heartbeat from {} ({}), closing connection", conn.getRemoteSocketAddress(), heartbeat);
+                heartbeats.remove(conn);
+                conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timeout");
+            }
         }
     }
     
@@ -123,109 +848,54 @@ public class WebSocketDebugProxyServer extends WebSocketServer {
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
         logger.info("WebSocket connection closed: code={}, reason={}, remote={}", 
                    code, reason, remote);
-        closeSession(conn);
+        closeSession(conn, code != CloseFrame.NORMAL);
     }
     
     @Override
     public void onError(WebSocket conn, Exception ex) {
         logger.error("WebSocket error: {}", ex.getMessage(), ex);
         if (conn != null) {
-            closeSession(conn);
+            closeSession(conn, true);
         }
     }
     
     @Override
     public void onStart() {
-        logger.info("WebSocket server started successfully");
-        setConnectionLostTimeout(30);
-    }
-    
-    private void closeSession(WebSocket conn) {
-        DebugSession session = sessions.remove(conn);
-        if (session != null) {
-            session.close();
-            logger.info("Session {}: Closed", session.getSessionId());
-        }
+        logger.info("WebSocket server started successfully ({} session threads)",
+                   sessionThreads.isVirtual() ? "virtual" : "platform");
+        timer.scheduleWithFixedDelay(this::checkHeartbeats, Heartbeat.TICK_MILLIS, Heartbeat.TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
     }
     
     /**
-     * 调试会话，管理 WebSocket 和 JVM Socket 之间的双向转发
+     * @param abnormal 连接异常断开，可恢复会话保留等待重连
      */
-    private static class DebugSession {
-        private final String sessionId;
-        private final String podName;
-        private final WebSocket webSocket;
-        private final Socket jvmSocket;
-        private volatile boolean running = true;
-        private Thread forwardingThread;
-        
-        public DebugSession(String sessionId, String podName, WebSocket webSocket, Socket jvmSocket) {
-            this.sessionId = sessionId;
-            this.podName = podName;
-            this.webSocket = webSocket;
-            this.jvmSocket = jvmSocket;
+    private void closeSession(WebSocket conn, boolean abnormal) {
+        heartbeats.remove(conn);
+        OutboundQueue outboundQueue = outboundQueues.remove(conn);
+        if (outboundQueue != null) {
+            outboundQueue.close();
+            metrics.outboundPaused(outboundQueue.getPauses(), outboundQueue.getPausedMillis());
         }
-        
-        public String getSessionId() {
-            return sessionId;
+        if (outboundQueue != null && outboundQueue.getPauses() > 0) {
+            logger.info("Outbound queue of {} was full {} times ({} ms paused, peak {} bytes)",
+                       conn.getRemoteSocketAddress(), outboundQueue.getPauses(),
+                       outboundQueue.getPausedMillis(), outboundQueue.getPeakBytes());
         }
-        
-        /**
-         * 启动 JVM -> WebSocket 的转发
-         */
-        public void startForwarding() {
-            forwardingThread = new Thread(() -> {
-                try (InputStream in = jvmSocket.getInputStream()) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    
-                    while (running && (bytesRead = in.read(buffer)) != -1) {
-                        // 将 JVM 的响应发送回 WebSocket 客户端
-                        byte[] data = new byte[bytesRead];
-                        System.arraycopy(buffer, 0, data, 0, bytesRead);
-                        webSocket.send(data);
-                    }
-                } catch (IOException e) {
-                    if (running) {
-                        logger.error("Session {}: Error reading from JVM: {}", sessionId, e.getMessage());
-                    }
-                } finally {
-                    close();
-                }
-            }, "JVM-to-WebSocket-" + sessionId);
-            
-            forwardingThread.setDaemon(true);
-            forwardingThread.start();
+        MuxConnection mux = muxConnections.remove(conn);
+        if (mux != null) {
+            mux.closeAll();
+            logger.info("Multiplexed connection closed");
+            return;
         }
-        
-        /**
-         * 转发数据到 JVM (WebSocket -> JVM 方向)
-         */
-        public void forwardToJvm(byte[] data) throws IOException {
-            if (!running) {
-                throw new IOException("Session closed");
-            }
-            
-            OutputStream out = jvmSocket.getOutputStream();
-            out.write(data);
-            out.flush();
+        DebugSession session = sessions.remove(conn);
+        ResumableSession resumable = resumableConnections.remove(conn);
+        if (resumable != null && resumable.detach(conn, abnormal && !stopping)) {
+            return;
         }
-        
-        /**
-         * 关闭会话
-         */
-        public void close() {
-            running = false;
-            
-            try {
-                jvmSocket.close();
-            } catch (IOException e) {
-                logger.debug("Error closing JVM socket: {}", e.getMessage());
-            }
-            
-            if (forwardingThread != null) {
-                forwardingThread.interrupt();
-            }
+        if (session != null) {
+            session.close();
+            logger.info("Session {}: Closed", session.getSessionId());
         }
     }
 }
@@ -0,0 +1,200 @@
+package com.example.proxy.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingTargetResolverTest {
+
+    private static final InetSocketAddress FIRST = InetSocketAddress.createUnresolved("10.0.0.1", 5005);
+    private static final InetSocketAddress SECOND = InetSocketAddress.createUnresolved("10.0.0.2", 5005);
+
+    /**
+     * 可切换结果的解析：address 为 null 时抛出 UnknownHostException
+     */
+    private static final class StubResolver implements TargetResolver {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile InetSocketAddress address = FIRST;
+        volatile CountDownLatch gate;
+
+        @Override
+        public InetSocketAddress resolve(String name) throws IOException {
+            calls.incrementAndGet();
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            InetSocketAddress result = address;
+            if (result == null) {
+                throw new UnknownHostException(name + ": not found");
+            }
+            return result;
+        }
+    }
+
+    private final StubResolver stub = new StubResolver();
+    private final List<String> lookups = new CopyOnWriteArrayList<>();
+    private CachingTargetResolver resolver;
+
+    @After
+    public void tearDown() {
+        if (resolver != null) {
+            resolver.close();
+        }
+    }
+
+    private CachingTargetResolver create(long ttlMillis, long negativeTtlMillis) {
+        resolver = new CachingTargetResolver(stub, ttlMillis, negativeTtlMillis, TimeUnit.MILLISECONDS, lookups::add);
+        return resolver;
+    }
+
+    private static void assertUnknown(CachingTargetResolver resolver, String name) throws IOException {
+        try {
+            resolver.resolve(name);
+            fail("Resolved " + name);
+        } catch (UnknownHostException e) {
+            assertTrue(e.getMessage().contains(name));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveTtl() {
+        create(0, 0);
+    }
+
+    @Test
+    public void repeatedLookupWithinTtlHitsCache() throws IOException {
+        create(10_000, 10_000);
+        assertEquals(FIRST, resolver.resolve("pod-a"));
+        stub.address = SECOND;
+        assertEquals(FIRST, resolver.resolve("pod-a"));
+
+        assertEquals(1, stub.calls.get());
+        assertEquals(List.of(CachingTargetResolver.MISS, CachingTargetResolver.HIT), lookups);
+    }
+
+    @Test
+    public void namesAreCachedSeparately() throws IOException {
+        create(10_000, 10_000);
+        resolver.resolve("pod-a");
+        resolver.resolve("pod-b");
+        assertEquals(2, stub.calls.get());
+    }
+
+    @Test
+    public void entryIsReplacedAfterTtl() throws Exception {
+        create(300, 100);
+        assertEquals(FIRST, resolver.resolve("pod-a"));
+        stub.address = SECOND;
+
+        // 到期前由后台刷新或到期后重新解析，都应拿到新地址
+        Thread.sleep(450);
+        assertEquals(SECOND, resolver.resolve("pod-a"));
+        assertTrue(stub.calls.get() >= 2);
+    }
+
+    @Test
+    public void failureIsCachedForNegativeTtl() throws Exception {
+        create(10_000, 300);
+        stub.address = null;
+        assertUnknown(resolver, "missing");
+        assertUnknown(resolver, "missing");
+        assertEquals(1, stub.calls.get());
+        assertEquals(List.of(CachingTargetResolver.FAILED, CachingTargetResolver.FAILED), lookups);
+
+        // 解析失败的名字不在后台刷新，negativeTtl 之后的 attach 重新解析
+        stub.address = FIRST;
+        Thread.sleep(400);
+        assertEquals(1, stub.calls.get());
+        assertEquals(FIRST, resolver.resolve("missing"));
+        assertEquals(2, stub.calls.get());
+    }
+
+    @Test
+    public void zeroNegativeTtlRetriesEveryTime() throws IOException {
+        create(10_000, 0);
+        stub.address = null;
+        assertUnknown(resolver, "missing");
+        assertUnknown(resolver, "missing");
+        assertEquals(2, stub.calls.get());
+    }
+
+    @Test
+    public void failedRefreshKeepsPreviousAddress() throws Exception {
+        create(300, 10_000);
+        assertEquals(FIRST, resolver.resolve("pod-a"));
+        stub.address = null;
+
+        Thread.sleep(450);
+        assertEquals(FIRST, resolver.resolve("pod-a"));
+        assertTrue(stub.calls.get() >= 2);
+    }
+
+    @Test
+    public void concurrentLookupsShareOneResolution() throws Exception {
+        create(10_000, 10_000);
+        stub.gate = new CountDownLatch(1);
+        CompletableFuture<InetSocketAddress> first = CompletableFuture.supplyAsync(() -> resolveUnchecked("pod-a"));
+        while (stub.calls.get() == 0) {
+            Thread.sleep(5);
+        }
+        CompletableFuture<InetSocketAddress> second = CompletableFuture.supplyAsync(() -> resolveUnchecked("pod-a"));
+        // 让第二个调用先排上等待
+        Thread.sleep(100);
+        stub.gate.countDown();
+
+        assertEquals(FIRST, first.get(5, TimeUnit.SECONDS));
+        assertEquals(FIRST, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, stub.calls.get());
+        assertTrue(lookups.contains(CachingTargetResolver.MISS));
+        assertTrue(lookups.contains(CachingTargetResolver.COALESCED));
+    }
+
+    @Test
+    public void runtimeFailureIsNotCached() throws IOException {
+        TargetResolver failing = new TargetResolver() {
+            private int calls;
+
+            @Override
+            public InetSocketAddress resolve(String name) {
+                if (calls++ == 0) {
+                    throw new IllegalStateException("API unavailable");
+                }
+                return FIRST;
+            }
+        };
+        resolver = new CachingTargetResolver(failing, 10_000, 10_000, TimeUnit.MILLISECONDS, lookups::add);
+        try {
+            resolver.resolve("pod-a");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // 预期
+        }
+        assertEquals(FIRST, resolver.resolve("pod-a"));
+    }
+
+    private InetSocketAddress resolveUnchecked(String name) {
+        try {
+            return resolver.resolve(name);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.proxy.server;
+
+import com.example.proxy.common.ReplayBuffer;
+import com.example.proxy.common.TunnelDeflateExtension;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ServerOptionsTest {
+
+    private static final String[] NO_ARGS = new String[0];
+
+    private static Properties properties(String... keyValues) {
+        Properties properties = new Properties();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            properties.setProperty(keyValues[i], keyValues[i + 1]);
+        }
+        return properties;
+    }
+
+    @Test
+    public void defaults() {
+        ServerOptions options = ServerOptions.parse(NO_ARGS, new Properties());
+        assertEquals(WebSocketDebugProxyServer.DEFAULT_PORT, options.port);
+        assertEquals(TunnelDeflateExtension.DEFAULT_LEVEL, options.deflateLevel);
+        assertTrue(options.deflateContextTakeover);
+        assertFalse(options.virtualThreads);
+        assertEquals(0, options.cacheMaxBytes);
+        assertEquals(ReplayBuffer.DEFAULT_GRACE_SECONDS, options.resumeGraceSeconds);
+        assertEquals(WebSocketDebugProxyServer.DEFAULT_SESSION_MAX_IDLE_SECONDS, options.sessionMaxIdleSeconds);
+        assertEquals(0, options.sessionMaxLifetimeSeconds);
+        assertNull(options.resolver);
+        assertNull(options.directory);
+        assertNull(options.recordFile);
+        assertNull(options.metricsPort);
+        assertFalse(options.trace);
+    }
+
+    @Test
+    public void readsPortAndProperties() {
+        ServerOptions options = ServerOptions.parse(new String[]{"19000"}, properties(
+                "proxy.deflate.level", "0",
+                "proxy.deflate.contextTakeover", "FALSE",
+                "proxy.threads", "virtual",
+                "proxy.cache", "true",
+                "proxy.resume.grace", "7",
+                "proxy.session.maxLifetime", "0x10",
+                "proxy.resolver", "dns:%s.svc",
+                "proxy.metrics.port", "19192",
+                "proxy.trace", "true"));
+        assertEquals(19000, options.port);
+        assertEquals(0, options.deflateLevel);
+        assertFalse(options.deflateContextTakeover);
+        assertTrue(options.virtualThreads);
+        assertEquals(WebSocketDebugProxyServer.DEFAULT_CACHE_BYTES_PER_TARGET, options.cacheMaxBytes);
+        assertEquals(7, options.resumeGraceSeconds);
+        assertEquals(16, options.sessionMaxLifetimeSeconds);
+        assertEquals("dns:%s.svc", options.resolver);
+        assertEquals(Integer.valueOf(19192), options.metricsPort);
+        assertTrue(options.trace);
+    }
+
+    @Test
+    public void invalidNumbersFallBackToDefaults() {
+        ServerOptions options = ServerOptions.parse(NO_ARGS, properties(
+                "proxy.decoders", "many",
+                "proxy.target.connectTimeout", "99999999999",
+                "proxy.metrics.port", "none"));
+        assertEquals(Runtime.getRuntime().availableProcessors(), options.decoders);
+        assertEquals(WebSocketDebugProxyServer.DEFAULT_TARGET_CONNECT_TIMEOUT_SECONDS,
+                options.targetConnectTimeoutSeconds);
+        assertNull(options.metricsPort);
+    }
+
+    @Test
+    public void emptyValuesMeanNotSet() {
+        ServerOptions options = ServerOptions.parse(NO_ARGS, properties(
+                "proxy.resolver", "",
+                "proxy.record", ""));
+        assertNull(options.resolver);
+        assertNull(options.recordFile);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void directoryRequiresReplicaUrl() {
+        ServerOptions.parse(NO_ARGS, properties("proxy.directory", "/tmp/sessions"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPort() {
+        ServerOptions.parse(new String[]{"http"}, new Properties());
+    }
+}
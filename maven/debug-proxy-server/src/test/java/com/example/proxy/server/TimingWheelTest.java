@@ -0,0 +1,181 @@
+package com.example.proxy.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private static final long TICK_MILLIS = 10;
+
+    private TimingWheel wheel;
+
+    @After
+    public void tearDown() {
+        if (wheel != null) {
+            wheel.stop();
+        }
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveTick() {
+        new TimingWheel("test-wheel", 0, 8);
+    }
+
+    @Test
+    public void neverFiresBeforeDelay() throws Exception {
+        wheel = new TimingWheel("test-wheel", TICK_MILLIS, 8);
+        // 不是 tick 整数倍的期限，按 tick 取整后也不能提前
+        long[] delays = {1, 9, 11, 25, 37, 59};
+        CountDownLatch done = new CountDownLatch(delays.length);
+        List<String> early = new CopyOnWriteArrayList<>();
+        for (long delay : delays) {
+            long start = System.nanoTime();
+            wheel.schedule(() -> {
+                long elapsed = System.nanoTime() - start;
+                if (elapsed < TimeUnit.MILLISECONDS.toNanos(delay)) {
+                    early.add(delay + "ms fired after " + elapsed + "ns");
+                }
+                done.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(early.toString(), early.isEmpty());
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void zeroAndNegativeDelaysFireOnNextTick() throws Exception {
+        wheel = new TimingWheel("test-wheel", TICK_MILLIS, 8);
+        CountDownLatch done = new CountDownLatch(2);
+        wheel.schedule(done::countDown, 0, TimeUnit.MILLISECONDS);
+        wheel.schedule(done::countDown, -100, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void delaysLongerThanOneRoundWaitForTheirRound() throws Exception {
+        // 4 个槽位 × 10ms：一圈 40ms
+        wheel = new TimingWheel("test-wheel", TICK_MILLIS, 4);
+        long start = System.nanoTime();
+        List<Long> fired = new CopyOnWriteArrayList<>();
+        List<String> early = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        // 三个任务大致落在同一个槽位上，分别要转 0、2、4 圈
+        for (long delay : new long[]{175, 95, 15}) {
+            wheel.schedule(() -> {
+                fired.add(delay);
+                if (millisSince(start) < delay) {
+                    early.add(delay + "ms fired after " + millisSince(start) + "ms");
+                }
+                done.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(3, wheel.getPending());
+
+        Thread.sleep(120);
+        assertEquals(2, fired.size());
+        assertEquals(1, wheel.getPending());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(15L, 95L, 175L), fired);
+        assertTrue(early.toString(), early.isEmpty());
+    }
+
+    @Test
+    public void cancelBeforeTransferToBucket() throws Exception {
+        wheel = new TimingWheel("test-wheel", TICK_MILLIS, 8);
+        AtomicInteger runs = new AtomicInteger();
+        // 在同一个 tick 内取消：任务还在待挂上的队列里
+        TimingWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(0, wheel.getPending());
+
+        Thread.sleep(100);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void cancelAfterTransferToBucket() throws Exception {
+        wheel = new TimingWheel("test-wheel", TICK_MILLIS, 4);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch sibling = new CountDownLatch(1);
+        // 要转几圈的任务，几个 tick 之后一定已经挂在槽位上
+        TimingWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 150, TimeUnit.MILLISECONDS);
+        // 同一个槽位上的另一个任务不受取消影响
+        wheel.schedule(sibling::countDown, 150, TimeUnit.MILLISECONDS);
+        Thread.sleep(60);
+
+        assertTrue(timeout.cancel());
+        assertEquals(1, wheel.getPending());
+        assertTrue(sibling.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, runs.get());
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void cancelAfterExpiryReturnsFalse() throws Exception {
+        wheel = new TimingWheel("test-wheel", TICK_MILLIS, 8);
+        CountDownLatch done = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = wheel.schedule(done::countDown, 5, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void expiringTaskCanReschedule() throws Exception {
+        wheel = new TimingWheel("test-wheel", TICK_MILLIS, 4);
+        int rounds = 5;
+        long delay = 25;
+        List<Long> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        // 像空闲检查一样，每次到期后再安排下一次
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                fired.add(millisSince(start));
+                if (fired.size() < rounds) {
+                    wheel.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    done.countDown();
+                }
+            }
+        };
+        wheel.schedule(task, delay, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(rounds, fired.size());
+        for (int i = 0; i < rounds; i++) {
+            assertTrue(fired.toString(), fired.get(i) >= (i + 1) * delay);
+        }
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheWheel() throws Exception {
+        wheel = new TimingWheel("test-wheel", TICK_MILLIS, 8);
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("boom");
+        }, 5, TimeUnit.MILLISECONDS);
+        wheel.schedule(done::countDown, 30, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -24,6 +24,8 @@ sleep 2
 # 检查编译
 echo ""
 echo "2. 检查编译状态..."
+# 服务端和客户端依赖共用的协议模块
+(cd debug-proxy-common && mvn -q install -DskipTests)
 for dir in debug-proxy-server debug-proxy-client demo-app; do
     if [ ! -f "$dir/target/"*".jar" ]; then
         echo "   编译 $dir..."
@@ -22,6 +22,7 @@ fi
 # 检查是否已编译
 if [ ! -f "debug-proxy-client/target/debug-proxy-client-1.0-SNAPSHOT.jar" ]; then
     echo "⚠️  未找到编译后的 jar 文件，开始编译..."
+    (cd debug-proxy-common && mvn install -DskipTests)
     cd debug-proxy-client
     mvn clean package -DskipTests
     cd ..
@@ -10,6 +10,7 @@ echo ""
 # 检查是否已编译
 if [ ! -f "debug-proxy-server/target/debug-proxy-server-1.0-SNAPSHOT.jar" ]; then
     echo "⚠️  未找到编译后的 jar 文件，开始编译..."
+    (cd debug-proxy-common && mvn install -DskipTests)
     cd debug-proxy-server
     mvn clean package -DskipTests
     cd ..
@@ -1,5 +1,6 @@
 package com.github.wl2027.remotedebugplugin.execution;
 
+import com.example.proxy.common.PersistentMetadataCache;
 import com.intellij.application.options.ModuleDescriptionsComboBox;
 import com.intellij.execution.ui.ConfigurationModuleSelector;
 import com.intellij.openapi.compiler.JavaCompilerBundle;
@@ -7,13 +8,17 @@ import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.options.SettingsEditor;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.LabeledComponent;
+import com.intellij.openapi.ui.Messages;
 import com.intellij.ui.components.JBCheckBox;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.components.JBTextArea;
 import com.intellij.util.ui.JBUI;
 import com.intellij.util.ui.UI;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 
 /**
  * WebSocket Proxy Configuration UI
@@ -27,8 +32,22 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
     private final JTextField targetHost = new JTextField();
     private final JTextField targetPort = new JTextField();
     private final JTextField podName = new JTextField();
+    private final JBTextArea targets = new JBTextArea(4, 0);
+    private final JTextField maxConcurrentAttaches = new JTextField();
     private final JTextField localPort = new JTextField();
     private final JBCheckBox autoRestart = new JBCheckBox("Auto restart");
+    private final JBCheckBox packetFraming = new JBCheckBox("Frame tunnel traffic by JDWP packet");
+    private final JBCheckBox multiplex = new JBCheckBox("Share one WebSocket connection across debug sessions (sessions cannot resume)");
+    private final JTextField compressionLevel = new JTextField();
+    private final JBCheckBox compressionContextTakeover = new JBCheckBox("Share compression context across messages");
+    private final JBCheckBox metadataCache = new JBCheckBox("Cache class metadata on disk");
+    private final JBCheckBox prefetch = new JBCheckBox("Prefetch stack frames and variables on breakpoints");
+    private final JBCheckBox trace = new JBCheckBox("Trace JDWP command latency");
+    private final JBCheckBox record = new JBCheckBox("Record JDWP traffic for replay");
+    private final JBCheckBox resume = new JBCheckBox("Resume the debug session after a connection drop");
+    private final JBCheckBox preConnect = new JBCheckBox("Connect to the target before the debugger attaches");
+    private final JTextField batchDelay = new JTextField();
+    private final JTextField heartbeatInterval = new JTextField();
     private final ConfigurationModuleSelector moduleSelector;
     
     public WsProxyConfigurable(Project project) {
@@ -60,7 +79,7 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
         gc.insets = JBUI.insets(4, 0, 4, 0);
         JPanel targetHostPanel = UI.PanelFactory.panel(targetHost)
                 .withLabel("Target Host:")
-                .withComment("The hostname/IP where the target JVM is running")
+                .withComment("The hostname/IP where the target JVM is running; leave empty to let the proxy server resolve the Pod Name")
                 .createPanel();
         mainPanel.add(targetHostPanel, gc);
         
@@ -80,6 +99,23 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
                 .createPanel();
         mainPanel.add(podNamePanel, gc);
         
+        // Multiple targets
+        gc.gridy++;
+        JPanel targetsPanel = UI.PanelFactory.panel(new JBScrollPane(targets))
+                .withLabel("Multiple Targets:")
+                .withComment("One host[:port] [name] per line, e.g. my-app-{0..19}.my-app-headless:5005; "
+                        + "each target gets its own debug session over a shared connection. "
+                        + "Leave empty to debug the single target above")
+                .createPanel();
+        mainPanel.add(targetsPanel, gc);
+        
+        gc.gridy++;
+        JPanel maxConcurrentAttachesPanel = UI.PanelFactory.panel(maxConcurrentAttaches)
+                .withLabel("Concurrent Attaches:")
+                .withComment("How many of the targets open their tunnel at the same time")
+                .createPanel();
+        mainPanel.add(maxConcurrentAttachesPanel, gc);
+        
         // Local configuration section
         gc.gridy++;
         gc.insets = JBUI.insetsTop(16);
@@ -92,7 +128,7 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
         gc.insets = JBUI.insets(4, 0, 4, 0);
         JPanel localPortPanel = UI.PanelFactory.panel(localPort)
                 .withLabel("Local Proxy Port:")
-                .withComment("IDEA will connect to this local port (e.g., 15005)")
+                .withComment("IDEA will connect to this local port; 0 picks a free port on each run")
                 .createPanel();
         mainPanel.add(localPortPanel, gc);
         
@@ -100,6 +136,91 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
         gc.gridy++;
         mainPanel.add(autoRestart, gc);
         
+        // Packet Framing
+        gc.gridy++;
+        mainPanel.add(packetFraming, gc);
+        
+        // Multiplex
+        gc.gridy++;
+        mainPanel.add(multiplex, gc);
+        
+        // Compression
+        gc.gridy++;
+        JPanel compressionPanel = UI.PanelFactory.panel(compressionLevel)
+                .withLabel("Compression Level:")
+                .withComment("permessage-deflate level 1-9, 0 disables compression")
+                .createPanel();
+        mainPanel.add(compressionPanel, gc);
+        
+        gc.gridy++;
+        mainPanel.add(compressionContextTakeover, gc);
+        
+        // Metadata Cache
+        gc.gridy++;
+        JButton clearMetadataCache = new JButton("Clear");
+        clearMetadataCache.addActionListener(e -> clearMetadataCache());
+        JPanel metadataCachePanel = UI.PanelFactory.panel(metadataCache)
+                .withComment("Reuses class and method metadata when re-attaching to the same build; "
+                        + "clear it after redeploying changed code with the same set of classes")
+                .createPanel();
+        JPanel metadataCacheRow = new JPanel(new BorderLayout());
+        metadataCacheRow.add(metadataCachePanel, BorderLayout.CENTER);
+        metadataCacheRow.add(clearMetadataCache, BorderLayout.EAST);
+        mainPanel.add(metadataCacheRow, gc);
+        
+        // Prefetch
+        gc.gridy++;
+        mainPanel.add(prefetch, gc);
+        
+        // Trace
+        gc.gridy++;
+        JPanel tracePanel = UI.PanelFactory.panel(trace)
+                .withComment("Use \"Dump JDWP Latency\" in the run toolbar to print per-command statistics")
+                .createPanel();
+        mainPanel.add(tracePanel, gc);
+        
+        // Record
+        gc.gridy++;
+        JPanel recordPanel = UI.PanelFactory.panel(record)
+                .withComment("Writes each run's traffic to a file under the IDE system directory, "
+                        + "shown in the console; replay it with the benchmark module's TrafficReplayer")
+                .createPanel();
+        mainPanel.add(recordPanel, gc);
+        
+        // Resume
+        gc.gridy++;
+        JPanel resumePanel = UI.PanelFactory.panel(resume)
+                .withComment("Reconnects with the same session when the WebSocket drops; "
+                        + "not available with a shared connection")
+                .createPanel();
+        mainPanel.add(resumePanel, gc);
+        
+        // Pre-connect
+        gc.gridy++;
+        JPanel preConnectPanel = UI.PanelFactory.panel(preConnect)
+                .withComment("Opens the tunnel while the debugger starts; the target JVM accepts "
+                        + "no other debugger while the tunnel is open")
+                .createPanel();
+        mainPanel.add(preConnectPanel, gc);
+        
+        // Write batching
+        gc.gridy++;
+        JPanel batchDelayPanel = UI.PanelFactory.panel(batchDelay)
+                .withLabel("Write Batching Delay (µs):")
+                .withComment("Coalesces bursts of JDWP events into fewer WebSocket frames; "
+                        + "single commands and replies are never delayed, 0 disables")
+                .createPanel();
+        mainPanel.add(batchDelayPanel, gc);
+        
+        // Heartbeat
+        gc.gridy++;
+        JPanel heartbeatPanel = UI.PanelFactory.panel(heartbeatInterval)
+                .withLabel("Heartbeat Interval (ms):")
+                .withComment("Measures tunnel round-trip time, shown in the console; a connection that stops "
+                        + "answering within a timeout derived from it is treated as lost. 0 disables")
+                .createPanel();
+        mainPanel.add(heartbeatPanel, gc);
+        
         // Module Selector
         gc.gridy++;
         gc.insets = JBUI.insetsTop(16);
@@ -124,7 +245,27 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
         targetHost.setText("localhost");
         targetPort.setText("5005");
         podName.setText("my-app");
-        localPort.setText("15005");
+        maxConcurrentAttaches.setText("8");
+        localPort.setText("0");
+        packetFraming.setSelected(true);
+        compressionLevel.setText("6");
+        compressionContextTakeover.setSelected(true);
+        metadataCache.setSelected(true);
+        prefetch.setSelected(true);
+        resume.setSelected(true);
+        preConnect.setSelected(true);
+        batchDelay.setText("5000");
+        heartbeatInterval.setText("2000");
+    }
+    
+    private void clearMetadataCache() {
+        try {
+            PersistentMetadataCache.open(WsProxyState.getMetadataCacheDirectory()).clear();
+            Messages.showInfoMessage(mainPanel, "Metadata cache cleared", "Clear Metadata Cache");
+        } catch (IOException e) {
+            Messages.showErrorDialog(mainPanel, "Cannot clear metadata cache: " + e.getMessage(),
+                    "Clear Metadata Cache");
+        }
     }
     
     @Override
@@ -133,8 +274,22 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
         targetHost.setText(config.TARGET_HOST);
         targetPort.setText(config.TARGET_PORT);
         podName.setText(config.POD_NAME);
+        targets.setText(config.TARGETS);
+        maxConcurrentAttaches.setText(String.valueOf(config.MAX_CONCURRENT_ATTACHES));
         localPort.setText(config.LOCAL_PORT);
         autoRestart.setSelected(config.AUTO_RESTART);
+        packetFraming.setSelected(config.PACKET_FRAMING);
+        multiplex.setSelected(config.MULTIPLEX);
+        compressionLevel.setText(String.valueOf(config.COMPRESSION_LEVEL));
+        compressionContextTakeover.setSelected(config.COMPRESSION_CONTEXT_TAKEOVER);
+        metadataCache.setSelected(config.METADATA_CACHE);
+        prefetch.setSelected(config.PREFETCH);
+        trace.setSelected(config.TRACE);
+        record.setSelected(config.RECORD);
+        resume.setSelected(config.RESUME);
+        preConnect.setSelected(config.PRE_CONNECT);
+        batchDelay.setText(String.valueOf(config.BATCH_DELAY_MICROS));
+        heartbeatInterval.setText(String.valueOf(config.HEARTBEAT_INTERVAL_MILLIS));
         moduleSelector.reset(config);
     }
     
@@ -144,8 +299,22 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
         config.TARGET_HOST = targetHost.getText().trim();
         config.TARGET_PORT = targetPort.getText().trim();
         config.POD_NAME = podName.getText().trim();
+        config.TARGETS = targets.getText().trim();
         config.LOCAL_PORT = localPort.getText().trim();
         config.AUTO_RESTART = autoRestart.isSelected();
+        config.PACKET_FRAMING = packetFraming.isSelected();
+        config.MULTIPLEX = multiplex.isSelected();
+        config.COMPRESSION_CONTEXT_TAKEOVER = compressionContextTakeover.isSelected();
+        config.METADATA_CACHE = metadataCache.isSelected();
+        config.PREFETCH = prefetch.isSelected();
+        config.TRACE = trace.isSelected();
+        config.RECORD = record.isSelected();
+        config.RESUME = resume.isSelected();
+        config.PRE_CONNECT = preConnect.isSelected();
+        config.MAX_CONCURRENT_ATTACHES = parseNumber(maxConcurrentAttaches, "Concurrent Attaches", 1, WsProxyTarget.MAX_TARGETS);
+        config.COMPRESSION_LEVEL = parseNumber(compressionLevel, "Compression Level", 0, 9);
+        config.BATCH_DELAY_MICROS = parseNumber(batchDelay, "Write Batching Delay", 0, 100_000);
+        config.HEARTBEAT_INTERVAL_MILLIS = parseNumber(heartbeatInterval, "Heartbeat Interval", 0, 60_000);
         
         // Validate
         if (config.WS_SERVER_URL.isEmpty()) {
@@ -154,8 +323,9 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
         if (!config.WS_SERVER_URL.startsWith("ws://") && !config.WS_SERVER_URL.startsWith("wss://")) {
             throw new ConfigurationException("WebSocket Server URL must start with ws:// or wss://");
         }
-        if (config.TARGET_HOST.isEmpty()) {
-            throw new ConfigurationException("Target Host is required");
+        // 目标主机为空时由代理服务端按 Pod 名解析（服务端需配置 -Dproxy.resolver）
+        if (config.TARGET_HOST.isEmpty() && config.POD_NAME.isEmpty()) {
+            throw new ConfigurationException("Target Host or Pod Name is required");
         }
         if (config.TARGET_PORT.isEmpty()) {
             throw new ConfigurationException("Target Port is required");
@@ -168,13 +338,22 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Target Port must be a valid number");
         }
+        if (!config.TARGETS.isEmpty()) {
+            try {
+                if (WsProxyTarget.parse(config.TARGETS, Integer.parseInt(config.TARGET_PORT)).isEmpty()) {
+                    throw new ConfigurationException("Multiple Targets lists no target");
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("Multiple Targets: " + e.getMessage());
+            }
+        }
         if (config.LOCAL_PORT.isEmpty()) {
             throw new ConfigurationException("Local Port is required");
         }
         try {
             int port = Integer.parseInt(config.LOCAL_PORT);
-            if (port < 1 || port > 65535) {
-                throw new ConfigurationException("Local Port must be between 1 and 65535");
+            if (port < 0 || port > 65535) {
+                throw new ConfigurationException("Local Port must be between 0 and 65535");
             }
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Local Port must be a valid number");
@@ -183,6 +362,22 @@ public class WsProxyConfigurable extends SettingsEditor<WsProxyConfiguration> {
         moduleSelector.applyTo(config);
     }
     
+    /**
+     * 读取数字输入框，不是数字或超出范围时报错
+     */
+    private static int parseNumber(JTextField field, String label, int min, int max) throws ConfigurationException {
+        int value;
+        try {
+            value = Integer.parseInt(field.getText().trim());
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException(label + " must be a valid number");
+        }
+        if (value < min || value > max) {
+            throw new ConfigurationException(label + " must be between " + min + " and " + max);
+        }
+        return value;
+    }
+    
     @Override
     protected @NotNull JComponent createEditor() {
         return mainPanel;
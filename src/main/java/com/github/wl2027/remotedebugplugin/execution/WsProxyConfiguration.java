@@ -7,7 +7,10 @@ import com.intellij.execution.ExecutionException;
 import com.intellij.execution.Executor;
 import com.intellij.execution.configurations.*;
 import com.intellij.execution.runners.ExecutionEnvironment;
+import com.intellij.execution.runners.ExecutionEnvironmentBuilder;
+import com.intellij.execution.runners.ExecutionUtil;
 import com.intellij.execution.runners.RunConfigurationWithSuppressedDefaultRunAction;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.module.Module;
 import com.intellij.openapi.options.SettingsEditor;
 import com.intellij.openapi.options.SettingsEditorGroup;
@@ -20,11 +23,16 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Unmodifiable;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 
 /**
  * WebSocket Proxy Remote Configuration
  * 
  * 配置数据类，保存WebSocket代理调试所需的所有参数
+ * 
+ * 填写了目标列表时是多目标配置：每个目标以一份子配置启动，各自是一个调试会话，见 {@link WsProxyTarget}。
  */
 public class WsProxyConfiguration extends ModuleBasedConfiguration<JavaRunConfigurationModule, Element>
         implements RunConfigurationWithSuppressedDefaultRunAction, RemoteRunProfile {
@@ -37,12 +45,58 @@ public class WsProxyConfiguration extends ModuleBasedConfiguration<JavaRunConfig
     public String TARGET_PORT = "5005";
     public String POD_NAME = "my-app";
     
-    // 本地JDWP端口（IDEA连接到这个端口）
-    public String LOCAL_PORT = "15005";
+    // 多个目标（如一个服务的所有副本）：每行一个 host[:port] [名称]，{0..19} 展开为一组编号；为空时只调试上面的单个目标
+    public String TARGETS = "";
+    
+    // 多目标时同时建立隧道的数量上限
+    public int MAX_CONCURRENT_ATTACHES = 8;
+    
+    // 本地JDWP端口（IDEA连接到这个端口），0 表示启动时由系统分配空闲端口
+    public String LOCAL_PORT = "0";
     
     // 自动重连
     public boolean AUTO_RESTART = false;
     
+    // 每个WebSocket帧只携带完整的JDWP包
+    public boolean PACKET_FRAMING = true;
+    
+    // 所有调试会话共享一个到代理服务器的WebSocket连接
+    public boolean MULTIPLEX = false;
+    
+    // WebSocket压缩（permessage-deflate）：级别 1-9，0 表示不压缩；小于阈值字节数的消息不压缩
+    public int COMPRESSION_LEVEL = 6;
+    public int COMPRESSION_THRESHOLD = 256;
+    // 消息之间共享压缩上下文
+    public boolean COMPRESSION_CONTEXT_TAKEOVER = true;
+    
+    // 类元数据缓存到本地磁盘，重新attach同一构建的目标时不再经过隧道获取
+    public boolean METADATA_CACHE = true;
+    
+    // 断点、单步停下时由服务端预取栈帧和局部变量，默认关闭
+    public boolean PREFETCH = false;
+    
+    // 按JDWP命令统计延迟，可在运行窗口中输出
+    public boolean TRACE = false;
+    
+    // 把JDWP流量记录到IDE的system目录下，用于离线回放
+    public boolean RECORD = false;
+    
+    // WebSocket异常断开后重连并继续调试会话（仅独占连接）
+    public boolean RESUME = true;
+    
+    // 启动运行配置时即建立隧道并连接目标JVM，不等调试器连上本地端口
+    public boolean PRE_CONNECT = true;
+    
+    // 微批：事件集中到达时合并成帧的最长等待时间（微秒，0 表示关闭）；这么久没有新数据时立即发送
+    public int BATCH_DELAY_MICROS = 5000;
+    public int BATCH_IDLE_MICROS = 500;
+    
+    // 心跳间隔（毫秒，0 表示关闭）：测量往返时间，据此判断连接是否断开并收紧微批等待
+    public int HEARTBEAT_INTERVAL_MILLIS = 2000;
+    
+    // 多目标运行时同一批子配置共用的建立隧道许可，不保存；单独运行时为 null
+    private Semaphore attachPermits;
+    
     public WsProxyConfiguration(final Project project, ConfigurationFactory configurationFactory) {
         super(new JavaRunConfigurationModule(project, true), configurationFactory);
     }
@@ -69,23 +123,71 @@ public class WsProxyConfiguration extends ModuleBasedConfiguration<JavaRunConfig
         return new RemoteConnection(
                 true,          // 使用Socket传输
                 "localhost",   // 连接到本地
-                LOCAL_PORT,    // 本地代理端口
+                LOCAL_PORT,    // 本地代理端口，为 0 时由 WsProxyState 绑定后改为实际端口
                 false          // IDEA作为客户端(attach模式)
         );
     }
     
+    /**
+     * 建立隧道前需要取得的许可，单独运行时为 null
+     */
+    Semaphore getAttachPermits() {
+        return attachPermits;
+    }
+    
     @Override
     public RunProfileState getState(final @NotNull Executor executor, final @NotNull ExecutionEnvironment env) 
             throws ExecutionException {
+        if (!TARGETS.trim().isEmpty()) {
+            List<WsProxyTarget> targets;
+            try {
+                targets = WsProxyTarget.parse(TARGETS, Integer.parseInt(TARGET_PORT));
+            } catch (IllegalArgumentException e) {
+                throw new ExecutionException("Invalid target list: " + e.getMessage(), e);
+            }
+            launchTargets(executor, targets);
+            // 本身不启动调试会话
+            return null;
+        }
+        // 使用自定义的WsProxyState来启动代理客户端
+        WsProxyState state = new WsProxyState(getProject(), this, AUTO_RESTART);
+        // LOCAL_PORT 为 0 时先绑定，调试器设置中是实际端口
+        int localPort = state.bindLocalPort();
         final GenericDebuggerRunnerSettings debuggerSettings = (GenericDebuggerRunnerSettings)env.getRunnerSettings();
         if (debuggerSettings != null) {
             debuggerSettings.LOCAL = false;
-            debuggerSettings.setDebugPort(LOCAL_PORT);
+            debuggerSettings.setDebugPort(String.valueOf(localPort));
             debuggerSettings.setTransport(DebuggerSettings.SOCKET_TRANSPORT);
         }
-        
-        // 使用自定义的WsProxyState来启动代理客户端
-        return new WsProxyState(getProject(), this, AUTO_RESTART);
+        return state;
+    }
+    
+    /**
+     * 为每个目标启动一份子配置：各自一个调试会话和运行窗口标签，同时建立隧道的数量不超过 MAX_CONCURRENT_ATTACHES。
+     * 子配置沿用本配置的 MULTIPLEX：多路复用时共用一个连接，但会话不能恢复；独占连接时每个会话可以恢复
+     */
+    private void launchTargets(Executor executor, List<WsProxyTarget> targets) {
+        Semaphore permits = new Semaphore(Math.max(1, MAX_CONCURRENT_ATTACHES));
+        ApplicationManager.getApplication().invokeLater(() -> {
+            for (WsProxyTarget target : targets) {
+                WsProxyConfiguration child = (WsProxyConfiguration) clone();
+                child.setName(getName() + " [" + target.getPodName() + "]");
+                child.TARGETS = "";
+                child.TARGET_HOST = target.getHost();
+                child.TARGET_PORT = String.valueOf(target.getPort());
+                child.POD_NAME = target.getPodName();
+                // 子配置同时监听，不能共用固定端口
+                child.LOCAL_PORT = "0";
+                child.attachPermits = permits;
+                // 运行前任务已由本配置执行过
+                child.setBeforeRunTasks(Collections.emptyList());
+                try {
+                    ExecutionEnvironmentBuilder.create(getProject(), executor, child).buildAndExecute();
+                } catch (ExecutionException e) {
+                    ExecutionUtil.handleExecutionError(getProject(), executor.getToolWindowId(), child.getName(), e);
+                }
+            }
+        }, getProject().getDisposed());
     }
     
     @Override
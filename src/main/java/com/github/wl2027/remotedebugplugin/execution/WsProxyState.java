@@ -1,5 +1,8 @@
 package com.github.wl2027.remotedebugplugin.execution;
 
+import com.example.proxy.common.JdwpTracer;
+import com.example.proxy.common.PersistentMetadataCache;
+import com.example.proxy.common.TrafficRecorder;
 import com.github.wl2027.remotedebugplugin.proxy.WsProxyClient;
 import com.intellij.execution.DefaultExecutionResult;
 import com.intellij.execution.ExecutionException;
@@ -11,6 +14,11 @@ import com.intellij.execution.impl.ConsoleViewImpl;
 import com.intellij.execution.process.ProcessHandler;
 import com.intellij.execution.runners.ProgramRunner;
 import com.intellij.execution.ui.ConsoleViewContentType;
+import com.intellij.icons.AllIcons;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.project.DumbAwareAction;
 import com.intellij.openapi.project.Project;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -21,6 +29,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Semaphore;
 
 /**
  * WebSocket Proxy State
@@ -30,6 +43,9 @@ import java.net.Socket;
  * 2. 等待IDEA调试器连接
  * 3. 创建WebSocket连接到代理服务器
  * 4. 转发JDWP数据
+ * 
+ * 开启预连接时，第3步在等待调试器的同时完成，调试器连上后直接使用已建立的隧道。
+ * 多目标运行的子配置在第3步前取得同一批共用的许可，限制同时建立的隧道数。
  */
 public class WsProxyState implements RemoteState {
     
@@ -42,7 +58,13 @@ public class WsProxyState implements RemoteState {
     
     private ServerSocket localServer;
     private WsProxyClient proxyClient;
+    // 预先建立、尚未被调试器使用的隧道
+    private volatile WsProxyClient preparedClient;
     private Thread proxyThread;
+    // 本次运行所有调试会话共用的延迟统计，未开启跟踪时为 null
+    private JdwpTracer tracer;
+    // 本次运行所有调试会话共用的流量记录，未开启记录时为 null
+    private TrafficRecorder recorder;
     
     public WsProxyState(Project project, WsProxyConfiguration configuration, boolean autoRestart) {
         this.project = project;
@@ -50,7 +72,21 @@ public class WsProxyState implements RemoteState {
         this.autoRestart = autoRestart;
         this.remoteConnection = configuration.createRemoteConnection();
     }
-    
+
+    /**
+     * 类元数据缓存目录，位于IDE的system目录下，所有运行配置共享
+     */
+    static Path getMetadataCacheDirectory() {
+        return Paths.get(PathManager.getSystemPath(), "remote-debug-plugin", "jdwp-metadata");
+    }
+
+    /**
+     * 流量记录目录，每次运行一个文件
+     */
+    static Path getRecordingDirectory() {
+        return Paths.get(PathManager.getSystemPath(), "remote-debug-plugin", "jdwp-recordings");
+    }
+
     @Override
     public ExecutionResult execute(final Executor executor, final @NotNull ProgramRunner<?> runner) 
             throws ExecutionException {
@@ -64,7 +100,59 @@ public class WsProxyState implements RemoteState {
         // 启动WebSocket代理客户端（不立即调用startNotify）
         startProxyClient(consoleView, processHandler);
         
-        return new DefaultExecutionResult(consoleView, processHandler);
+        if (tracer == null) {
+            return new DefaultExecutionResult(consoleView, processHandler);
+        }
+        return new DefaultExecutionResult(consoleView, processHandler, createDumpTraceAction(consoleView));
+    }
+    
+    /**
+     * 运行窗口工具栏上的按钮：把目前为止的JDWP命令延迟输出到控制台
+     */
+    private AnAction createDumpTraceAction(ConsoleViewImpl consoleView) {
+        return new DumbAwareAction("Dump JDWP Latency", "Print per-command JDWP latency to the console",
+                AllIcons.Actions.Dump) {
+            @Override
+            public void actionPerformed(@NotNull AnActionEvent e) {
+                consoleView.print(tracer.dump(), ConsoleViewContentType.SYSTEM_OUTPUT);
+            }
+        };
+    }
+    
+    /**
+     * 绑定调试器连接的本地端口，在生成调试器设置之前调用，返回实际端口。
+     * 端口为 0 时由系统分配空闲端口，多个运行配置同时启动也不会冲突
+     */
+    int bindLocalPort() throws ExecutionException {
+        if (localServer != null) {
+            return localServer.getLocalPort();
+        }
+        try {
+            // 启动本地ServerSocket，设置 SO_REUSEADDR 避免端口占用问题
+            ServerSocket server = new ServerSocket();
+            server.setReuseAddress(true);  // 允许端口重用
+            try {
+                server.bind(new java.net.InetSocketAddress("localhost", Integer.parseInt(configuration.LOCAL_PORT)));
+            } catch (IOException | RuntimeException e) {
+                server.close();
+                throw e;
+            }
+            localServer = server;
+            String localPort = String.valueOf(server.getLocalPort());
+            remoteConnection.setApplicationAddress(localPort);
+            remoteConnection.setDebuggerAddress(localPort);
+            return server.getLocalPort();
+        } catch (java.net.BindException e) {
+            String message = "Port " + configuration.LOCAL_PORT + " is already in use. " +
+                           "Please stop the previous debug session, choose a different port, " +
+                           "or set the port to 0 to pick a free one.";
+            logger.error("Failed to bind to port {}: {}", configuration.LOCAL_PORT, e.getMessage());
+            throw new ExecutionException(message, e);
+        } catch (IOException e) {
+            throw new ExecutionException("Failed to start proxy client: " + e.getMessage(), e);
+        } catch (NumberFormatException e) {
+            throw new ExecutionException("Invalid port number: " + configuration.LOCAL_PORT, e);
+        }
     }
     
     /**
@@ -72,20 +160,22 @@ public class WsProxyState implements RemoteState {
      */
     private void startProxyClient(ConsoleViewImpl consoleView, WsProxyProcessHandler processHandler) 
             throws ExecutionException {
+        int localPort = bindLocalPort();
         try {
-            int localPort = Integer.parseInt(configuration.LOCAL_PORT);
-            
-            // 启动本地ServerSocket，设置 SO_REUSEADDR 避免端口占用问题
-            localServer = new ServerSocket();
-            localServer.setReuseAddress(true);  // 允许端口重用
-            localServer.bind(new java.net.InetSocketAddress("localhost", localPort));
+            tracer = configuration.TRACE ? new JdwpTracer() : null;
+            if (configuration.RECORD) {
+                Path file = getRecordingDirectory().resolve(configuration.POD_NAME.replaceAll("[^\\w.-]", "_") + "-"
+                        + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".jdwprec");
+                recorder = TrafficRecorder.open(file);
+                consoleView.print("Recording JDWP traffic to " + file + "\n",
+                                 ConsoleViewContentType.SYSTEM_OUTPUT);
+            }
             
             consoleView.print("WebSocket Proxy Client starting...\n", 
                              ConsoleViewContentType.SYSTEM_OUTPUT);
             consoleView.print("Proxy Server: " + configuration.WS_SERVER_URL + "\n", 
                              ConsoleViewContentType.SYSTEM_OUTPUT);
-            consoleView.print("Target: " + configuration.TARGET_HOST + ":" + 
-                             configuration.TARGET_PORT + "\n", 
+            consoleView.print("Target: " + describeTarget() + "\n", 
                              ConsoleViewContentType.SYSTEM_OUTPUT);
             consoleView.print("Local Port: " + localPort + "\n", 
                              ConsoleViewContentType.SYSTEM_OUTPUT);
@@ -98,26 +188,37 @@ public class WsProxyState implements RemoteState {
             proxyThread = new Thread(() -> {
                 try {
                     while (!Thread.currentThread().isInterrupted() && !localServer.isClosed()) {
+                        // 目标JVM同一时间只接受一个调试器，下一条隧道在上一个会话结束后才能建立
+                        if (configuration.PRE_CONNECT) {
+                            prepareProxyClient(consoleView);
+                        }
                         Socket jdiSocket = localServer.accept();
+                        // JDWP 命令都是小包，不等 Nagle 合并
+                        jdiSocket.setTcpNoDelay(true);
                         
                         consoleView.print("Debugger connected from: " + 
                                          jdiSocket.getRemoteSocketAddress() + "\n", 
                                          ConsoleViewContentType.SYSTEM_OUTPUT);
                         logger.info("Debugger connected from: {}", jdiSocket.getRemoteSocketAddress());
                         
-                        // 创建并启动代理客户端
-                        proxyClient = new WsProxyClient(
-                                configuration.WS_SERVER_URL,
-                                configuration.TARGET_HOST,
-                                Integer.parseInt(configuration.TARGET_PORT),
-                                configuration.POD_NAME
-                        );
-                        
-                        consoleView.print("Connecting to proxy server...\n", 
-                                         ConsoleViewContentType.SYSTEM_OUTPUT);
+                        // 优先使用预先建立的隧道，已断开时重新连接
+                        WsProxyClient prepared = preparedClient;
+                        preparedClient = null;
+                        if (prepared != null && prepared.isPrepared()) {
+                            proxyClient = prepared;
+                            consoleView.print("Using pre-connected tunnel\n", 
+                                             ConsoleViewContentType.SYSTEM_OUTPUT);
+                        } else {
+                            if (prepared != null) {
+                                prepared.close();
+                            }
+                            proxyClient = createProxyClient(consoleView);
+                            consoleView.print("Connecting to proxy server...\n", 
+                                             ConsoleViewContentType.SYSTEM_OUTPUT);
+                        }
                         
                         try {
-                            proxyClient.connect(jdiSocket);
+                            connect(proxyClient, jdiSocket);
                             consoleView.print("Connected to proxy server successfully!\n", 
                                              ConsoleViewContentType.SYSTEM_OUTPUT);
                             consoleView.print("Debug session established. Session ID: " + 
@@ -153,18 +254,97 @@ public class WsProxyState implements RemoteState {
             // 通知ProcessHandler已启动
             processHandler.startNotify();
             
-        } catch (java.net.BindException e) {
-            String message = "Port " + configuration.LOCAL_PORT + " is already in use. " +
-                           "Please stop the previous debug session or choose a different port.";
-            logger.error("Failed to bind to port {}: {}", configuration.LOCAL_PORT, e.getMessage());
-            throw new ExecutionException(message, e);
         } catch (IOException e) {
             throw new ExecutionException("Failed to start proxy client: " + e.getMessage(), e);
-        } catch (NumberFormatException e) {
-            throw new ExecutionException("Invalid port number: " + configuration.LOCAL_PORT, e);
         }
     }
     
+    /**
+     * 创建代理客户端并应用运行配置中的选项
+     */
+    private WsProxyClient createProxyClient(ConsoleViewImpl consoleView) throws IOException {
+        WsProxyClient client = new WsProxyClient(
+                configuration.WS_SERVER_URL,
+                configuration.TARGET_HOST,
+                Integer.parseInt(configuration.TARGET_PORT),
+                configuration.POD_NAME
+        );
+        client.setPacketFraming(configuration.PACKET_FRAMING);
+        client.setMultiplexed(configuration.MULTIPLEX);
+        client.setCompression(configuration.COMPRESSION_LEVEL,
+                configuration.COMPRESSION_THRESHOLD,
+                configuration.COMPRESSION_CONTEXT_TAKEOVER);
+        client.setPrefetch(configuration.PREFETCH);
+        client.setTracer(tracer);
+        client.setRecorder(recorder);
+        client.setResume(configuration.RESUME);
+        client.setBatching(configuration.BATCH_DELAY_MICROS, configuration.BATCH_IDLE_MICROS);
+        client.setHeartbeat(configuration.HEARTBEAT_INTERVAL_MILLIS,
+                status -> consoleView.print(status + "\n", ConsoleViewContentType.SYSTEM_OUTPUT));
+        if (configuration.METADATA_CACHE) {
+            client.setMetadataCache(PersistentMetadataCache.open(getMetadataCacheDirectory()));
+        }
+        return client;
+    }
+    
+    /**
+     * 在调试器连接之前建立到代理服务器和目标JVM的隧道；失败时只输出提示，调试器连接后再按原流程连接
+     */
+    private void prepareProxyClient(ConsoleViewImpl consoleView) throws IOException {
+        WsProxyClient client = createProxyClient(consoleView);
+        preparedClient = client;
+        try {
+            prepare(client);
+            consoleView.print("Tunnel to " + describeTarget() + 
+                             " ready, waiting for debugger...\n", 
+                             ConsoleViewContentType.SYSTEM_OUTPUT);
+        } catch (Exception e) {
+            client.close();
+            preparedClient = null;
+            consoleView.print("Pre-connect failed, will connect when the debugger attaches: " + 
+                             e.getMessage() + "\n", 
+                             ConsoleViewContentType.ERROR_OUTPUT);
+            logger.warn("Failed to pre-connect to proxy server", e);
+        }
+    }
+    
+    /**
+     * 建立隧道：多目标运行时先取得许可
+     */
+    private void prepare(WsProxyClient client) throws Exception {
+        Semaphore permits = configuration.getAttachPermits();
+        if (permits == null) {
+            client.prepare();
+            return;
+        }
+        permits.acquire();
+        try {
+            client.prepare();
+        } finally {
+            permits.release();
+        }
+    }
+    
+    /**
+     * 转发调试会话，直到调试器断开；多目标运行时隧道先在许可内建立，connect 随后直接使用
+     */
+    private void connect(WsProxyClient client, Socket jdiSocket) throws Exception {
+        if (configuration.getAttachPermits() != null && !client.isPrepared()) {
+            prepare(client);
+        }
+        client.connect(jdiSocket);
+    }
+    
+    /**
+     * 没有填写目标主机时由代理服务端按 Pod 名解析
+     */
+    private String describeTarget() {
+        if (configuration.TARGET_HOST.isEmpty()) {
+            return "pod " + configuration.POD_NAME + " (resolved by proxy server), port " + configuration.TARGET_PORT;
+        }
+        return configuration.TARGET_HOST + ":" + configuration.TARGET_PORT;
+    }
+    
     @Override
     public RemoteConnection getRemoteConnection() {
         return remoteConnection;
@@ -182,6 +362,14 @@ public class WsProxyState implements RemoteState {
             proxyThread.interrupt();
         }
         
+        // 关闭未使用的预连接隧道，释放目标JVM的调试连接
+        WsProxyClient prepared = preparedClient;
+        preparedClient = null;
+        if (prepared != null) {
+            logger.debug("Closing pre-connected tunnel");
+            prepared.close();
+        }
+        
         // 关闭代理客户端
         if (proxyClient != null) {
             logger.debug("Closing proxy client");
@@ -201,6 +389,11 @@ public class WsProxyState implements RemoteState {
             }
         }
         
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+        
         logger.info("WebSocket proxy client stopped");
     }
     
@@ -243,5 +436,3 @@ public class WsProxyState implements RemoteState {
         }
     }
 }
-
-
@@ -0,0 +1,124 @@
+package com.github.wl2027.remotedebugplugin.execution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 多目标运行配置中的一个目标 JVM
+ *
+ * 目标列表每行（或逗号分隔）一项：{@code host[:port] [名称]}。端口省略时使用配置中的目标端口，
+ * 名称省略时取主机名的第一段（IP 地址时为整个地址）。
+ * {@code {0..19}} 展开为一组编号，例如 StatefulSet 的 20 个副本可以写成 {@code my-app-{0..19}.my-app-headless}；
+ * 同一项中相同的范围取同一个编号（{@code pod-{0..19}.svc debug-{0..19}}），不同的范围逐一组合；
+ * 起始值带前导零时按其宽度补零。
+ */
+final class WsProxyTarget {
+
+    /** 一次运行最多的目标数，避免写错的范围展开出大量会话 */
+    static final int MAX_TARGETS = 256;
+
+    private static final Pattern RANGE = Pattern.compile("\\{(\\d+)\\.\\.(\\d+)}");
+    private static final Pattern IP_ADDRESS = Pattern.compile("\\d+(\\.\\d+){3}");
+
+    private final String host;
+    private final int port;
+    private final String podName;
+
+    WsProxyTarget(String host, int port, String podName) {
+        this.host = host;
+        this.port = port;
+        this.podName = podName;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getPodName() {
+        return podName;
+    }
+
+    /**
+     * @param defaultPort 没有写端口的项使用的端口
+     * @throws IllegalArgumentException 格式错误、端口无效或目标超过 {@link #MAX_TARGETS} 个
+     */
+    static List<WsProxyTarget> parse(String spec, int defaultPort) {
+        List<WsProxyTarget> targets = new ArrayList<>();
+        for (String item : spec.split("[,\\n]")) {
+            item = item.trim();
+            if (item.isEmpty() || item.startsWith("#")) {
+                continue;
+            }
+            List<String> expanded = new ArrayList<>();
+            expand(item, expanded);
+            for (String entry : expanded) {
+                targets.add(parseEntry(entry, defaultPort));
+            }
+        }
+        if (targets.size() > MAX_TARGETS) {
+            throw new IllegalArgumentException("At most " + MAX_TARGETS + " targets are supported");
+        }
+        return targets;
+    }
+
+    private static void expand(String item, List<String> out) {
+        Matcher matcher = RANGE.matcher(item);
+        if (!matcher.find()) {
+            if (out.size() >= MAX_TARGETS) {
+                throw new IllegalArgumentException("At most " + MAX_TARGETS + " targets are supported");
+            }
+            out.add(item);
+            return;
+        }
+        String from = matcher.group(1);
+        long start = Long.parseLong(from);
+        long end = Long.parseLong(matcher.group(2));
+        if (end < start || end - start >= MAX_TARGETS) {
+            throw new IllegalArgumentException("Invalid range " + matcher.group() + " in " + item);
+        }
+        String format = from.length() > 1 && from.startsWith("0") ? "%0" + from.length() + "d" : "%d";
+        for (long i = start; i <= end; i++) {
+            expand(item.replace(matcher.group(), String.format(format, i)), out);
+        }
+    }
+
+    private static WsProxyTarget parseEntry(String entry, int defaultPort) {
+        String[] parts = entry.split("\\s+", 2);
+        String address = parts[0];
+        String host = address;
+        int port = defaultPort;
+        int colon = address.lastIndexOf(':');
+        if (colon >= 0) {
+            host = address.substring(0, colon);
+            try {
+                port = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in " + entry);
+            }
+        }
+        if (host.isEmpty() || port < 1 || port > 65535) {
+            throw new IllegalArgumentException("Invalid target " + entry);
+        }
+        String podName = parts.length > 1 ? parts[1].trim() : defaultName(host);
+        return new WsProxyTarget(host, port, podName);
+    }
+
+    private static String defaultName(String host) {
+        if (IP_ADDRESS.matcher(host).matches()) {
+            return host;
+        }
+        int dot = host.indexOf('.');
+        return dot > 0 ? host.substring(0, dot) : host;
+    }
+
+    @Override
+    public String toString() {
+        return podName + " (" + host + ":" + port + ")";
+    }
+}
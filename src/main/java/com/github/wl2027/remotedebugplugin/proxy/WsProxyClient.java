@@ -1,19 +1,46 @@
 package com.github.wl2027.remotedebugplugin.proxy;
 
+import com.example.proxy.common.BatchPolicy;
+import com.example.proxy.common.Heartbeat;
+import com.example.proxy.common.JdwpMetadataSession;
+import com.example.proxy.common.JdwpPacketReader;
+import com.example.proxy.common.JdwpPrefetch;
+import com.example.proxy.common.JdwpPrefetchCache;
+import com.example.proxy.common.JdwpTracer;
+import com.example.proxy.common.OutboundQueue;
+import com.example.proxy.common.PersistentMetadataCache;
+import com.example.proxy.common.ReplayBuffer;
+import com.example.proxy.common.TrafficRecorder;
+import com.example.proxy.common.TunnelDeflateExtension;
+import com.example.proxy.common.WsMuxConnection;
+
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ServerHandshake;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * WebSocket Debug Proxy Client for IDEA Plugin
@@ -24,15 +51,71 @@ public class WsProxyClient {
     
     private static final Logger logger = LoggerFactory.getLogger(WsProxyClient.class);
     
+    // 会话恢复的重连间隔，每次失败后加倍
+    private static final long RESUME_INITIAL_DELAY_MILLIS = 250;
+    private static final long RESUME_MAX_DELAY_MILLIS = 5000;
+    
+    private static final ScheduledExecutorService heartbeatTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "WsProxyClient-Heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
     private final String serverUrl;
     private final String targetHost;
     private final int targetPort;
     private final String podName;
     private final String sessionId;
     
-    private WebSocketClient wsClient;
-    private Socket jdiSocket;
+    private volatile WebSocketClient wsClient;
+    private volatile OutboundQueue outboundQueue;
+    private volatile ServerHandshake serverHandshake;
+    // 预先建立隧道时，在调试器连接后才设置
+    private volatile Socket jdiSocket;
     private volatile boolean running = false;
+    private boolean packetFraming = true;
+    private boolean multiplexed = false;
+    // permessage-deflate：级别为 0 时不压缩
+    private int compressionLevel = 0;
+    private int compressionThreshold = TunnelDeflateExtension.DEFAULT_THRESHOLD;
+    private boolean compressionContextTakeover = true;
+    // 磁盘上的类元数据缓存，null 表示不使用
+    private PersistentMetadataCache metadataCache;
+    private JdwpMetadataSession metadata;
+    // 使用服务端在挂起事件时推送的栈帧和局部变量
+    private boolean prefetch = false;
+    private JdwpPrefetchCache prefetchCache;
+    // JDWP 命令延迟跟踪，null 表示不跟踪
+    private JdwpTracer tracer;
+    private JdwpTracer.Session trace;
+    // WebSocket 异常断开后重连并继续会话，服务器同意后才创建重放缓冲区
+    private boolean resume = true;
+    private volatile ReplayBuffer replay;
+    // 服务器为断开的会话保留的时间，握手时由服务器告知
+    private volatile long resumeGraceSeconds = ReplayBuffer.DEFAULT_GRACE_SECONDS;
+    private final AtomicBoolean resuming = new AtomicBoolean();
+    // 微批：IDE -> WebSocket 方向，并在握手中告诉服务器用于目标JVM -> WebSocket 方向
+    private BatchPolicy batching = new BatchPolicy(BatchPolicy.DEFAULT_DELAY_MICROS, BatchPolicy.DEFAULT_IDLE_MICROS);
+    private BatchPolicy.Stream batch = batching.newStream();
+    // 心跳：独占连接由本会话发送，多路复用时使用共享连接的；间隔为 0 表示关闭
+    private long heartbeatIntervalMillis = Heartbeat.DEFAULT_INTERVAL_MILLIS;
+    private Consumer<String> heartbeatListener;
+    private Heartbeat heartbeat;
+    private ScheduledFuture<?> heartbeatTask;
+    private long reportedRttMicros = -1;
+    // 流量记录，null 表示不记录
+    private TrafficRecorder recorder;
+    private volatile TrafficRecorder.Session recording;
+    private final Object jdiWriteLock = new Object();
+    // 调试器已收到握手回答，之后的数据直接写给它；在此之前到达的数据缓冲在 pendingToJdi，受 jdiWriteLock 保护
+    private boolean jdiAttached;
+    private final List<byte[]> pendingToJdi = new ArrayList<>();
+    // 请求了提前握手：服务器转发来的第一帧以目标的握手回显开头，IDE收到的是本地的回答
+    private volatile boolean handshakeEchoPending;
+    
+    // 多路复用模式下使用共享连接上的一个channel
+    private WsMuxConnection muxConnection;
+    private WsMuxConnection.Channel channel;
     
     public WsProxyClient(String serverUrl, String targetHost, int targetPort, String podName) {
         this.serverUrl = serverUrl;
@@ -42,13 +125,183 @@ public class WsProxyClient {
         this.sessionId = UUID.randomUUID().toString();
     }
     
+    /**
+     * 设置帧模式：true 时每个WebSocket帧只携带完整的JDWP包
+     */
+    public void setPacketFraming(boolean packetFraming) {
+        this.packetFraming = packetFraming;
+    }
+    
+    /**
+     * 设置多路复用模式：true 时所有会话共享到同一服务器的一个WebSocket连接
+     */
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+    
+    /**
+     * 设置WebSocket压缩（permessage-deflate），在握手时与服务器协商
+     * @param level 压缩级别 1-9，0 表示不压缩
+     * @param threshold 小于该字节数的消息不压缩
+     * @param contextTakeover 消息之间是否共享压缩上下文
+     */
+    public void setCompression(int level, int threshold, boolean contextTakeover) {
+        this.compressionLevel = level;
+        this.compressionThreshold = threshold;
+        this.compressionContextTakeover = contextTakeover;
+    }
+    
+    /**
+     * 设置类元数据缓存：重新 attach 同一构建的目标时，类和方法的元数据由本地回答，不再经过隧道。
+     * 只在按 JDWP 包分帧时生效
+     */
+    public void setMetadataCache(PersistentMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+    
+    /**
+     * 设置挂起事件预取：断点、单步后的栈帧、局部变量等由服务端提前取好推送过来，本地直接回答。
+     * 只在按 JDWP 包分帧时生效，服务端不支持时没有影响
+     */
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+    
+    /**
+     * 设置JDWP命令延迟跟踪：按命令统计总耗时、目标JVM耗时和隧道耗时，多个会话可以共用一个。
+     * 只在按 JDWP 包分帧时生效
+     */
+    public void setTracer(JdwpTracer tracer) {
+        this.tracer = tracer;
+    }
+    
+    /**
+     * 设置会话恢复：WebSocket 异常断开后用同一会话ID重连，双方重发对方没有收到的数据，IDE不会察觉断开。
+     * 只对独占连接生效，服务器不支持时没有影响
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+    
+    /**
+     * 设置微批：类加载、线程启动等事件集中到达时，凑齐一帧后再等一小段时间，把随后的包并入同一帧，
+     * 帧数随之大幅下降；单独到达的包和回复从不等待。只在按 JDWP 包分帧时生效
+     * @param delayMicros 一帧最多等待的时间，0 表示关闭
+     * @param idleMicros 这么久没有新数据时立即发送
+     */
+    public void setBatching(long delayMicros, long idleMicros) {
+        this.batching = new BatchPolicy(delayMicros, idleMicros);
+        this.batch = batching.newStream();
+    }
+    
+    /**
+     * 设置心跳：定时发送 PING 测量隧道的往返时间和抖动，按测量值得出存活超时、收紧微批等待。
+     * 超过存活超时没有收到任何数据时按断开处理，开启会话恢复时随即重连。
+     * 多路复用模式下心跳由共享连接发送
+     * @param intervalMillis 心跳间隔，0 表示关闭
+     * @param listener 第一次测得或往返时间明显变化、以及判定断开时收到状态描述，可以为 null
+     */
+    public void setHeartbeat(long intervalMillis, Consumer<String> listener) {
+        this.heartbeatIntervalMillis = intervalMillis;
+        this.heartbeatListener = listener;
+    }
+    
+    /**
+     * 设置流量记录：IDE 与代理之间两个方向的数据（本地缓存回答的也包括在内）连同时间戳写入文件，
+     * 之后可以用基准模块的 TrafficReplayer 回放；多个会话可以共用一个，由调用方关闭
+     * @param recorder null 表示不记录
+     */
+    public void setRecorder(TrafficRecorder recorder) {
+        this.recorder = recorder;
+    }
+    
+    private Draft createDraft() {
+        return TunnelDeflateExtension.createDraft(compressionLevel, compressionThreshold, compressionContextTakeover);
+    }
+    
+    /**
+     * 在调试器连接之前建立隧道：WebSocket握手完成，服务器已连上目标JVM。
+     * 之后的 {@link #connect(Socket)} 直接使用该隧道，调试器attach时不再等待这两步
+     */
+    public void prepare() throws Exception {
+        startSession();
+        connectTunnel();
+    }
+    
+    /**
+     * 预先建立的隧道仍然可用
+     */
+    public boolean isPrepared() {
+        return running && (channel != null || wsClient != null && wsClient.isOpen());
+    }
+    
     /**
      * 连接到代理服务器
      * @param jdiSocket JDI连接的socket
      */
     public void connect(Socket jdiSocket) throws Exception {
         this.jdiSocket = jdiSocket;
+        JdwpPacketReader reader = null;
+        byte[] handshake = null;
+        if (packetFraming) {
+            // 不等隧道建立，IDE随后的 Version、IDSizes 等命令排在握手串后面一起发出
+            reader = new JdwpPacketReader(jdiSocket.getInputStream(), true, batch);
+            try {
+                handshake = answerHandshake(reader);
+            } catch (IOException e) {
+                // 同时关闭预先建立的隧道
+                close();
+                throw e;
+            }
+        } else {
+            attachJdi(null);
+        }
+        if (!isPrepared()) {
+            startSession();
+            connectTunnel();
+        }
+        
+        // 启动JDI -> WebSocket转发
+        forwardJdiToWebSocket(reader, handshake);
+        if (multiplexed) {
+            // IDE断开后只关闭本channel，共享连接留给其他会话
+            close();
+        }
+    }
+    
+    private void startSession() {
         this.running = true;
+        // 与 createHeaders 中的提前握手一致：预先建立隧道时回显可能在调试器连接之前就到达
+        handshakeEchoPending = packetFraming;
+        if (heartbeatIntervalMillis > 0) {
+            if (!multiplexed) {
+                heartbeat = new Heartbeat(heartbeatIntervalMillis);
+            }
+            heartbeatTask = heartbeatTimer.scheduleWithFixedDelay(this::heartbeat,
+                    Heartbeat.TICK_MILLIS, Heartbeat.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (packetFraming && metadataCache != null) {
+            metadata = new JdwpMetadataSession(sessionId, metadataCache.newSession(), this::writeLocalReply);
+        }
+        if (packetFraming && prefetch) {
+            prefetchCache = new JdwpPrefetchCache(sessionId, this::writeLocalReply);
+        }
+        if (packetFraming && tracer != null) {
+            trace = tracer.newSession();
+        }
+        if (recorder != null) {
+            recording = recorder.openSession(sessionId, podName + " " + targetHost + ":" + targetPort);
+        }
+    }
+    
+    /**
+     * 建立到代理服务器的独占连接或多路复用channel，返回时服务器已连上目标JVM
+     */
+    private void connectTunnel() throws Exception {
+        if (multiplexed) {
+            connectChannel();
+            return;
+        }
         
         URI serverUri = new URI(serverUrl);
         
@@ -64,38 +317,87 @@ public class WsProxyClient {
         }
         
         logger.info("Session {}: Connected to proxy server", sessionId);
-        
-        // 启动JDI -> WebSocket转发
-        forwardJdiToWebSocket();
+        outboundQueue = new OutboundQueue(wsClient.getConnection(),
+                OutboundQueue.DEFAULT_LOW_WATERMARK, OutboundQueue.DEFAULT_HIGH_WATERMARK);
+    }
+    
+    /**
+     * 在共享的多路复用连接上打开本会话的channel
+     */
+    private void connectChannel() throws Exception {
+        logger.info("Session {}: Opening channel on multiplexed connection to {}", sessionId, serverUrl);
+        muxConnection = WsMuxConnection.acquire(serverUrl, createDraft(), heartbeatIntervalMillis);
+        try {
+            channel = muxConnection.openChannel(createHeaders(), new WsMuxConnection.ChannelListener() {
+                @Override
+                public void onData(ByteBuffer data) {
+                    forwardToJdi(data);
+                }
+                
+                @Override
+                public void onClose(String reason) {
+                    logger.info("Session {}: Channel closed: {}", sessionId, reason);
+                    close();
+                }
+            });
+        } catch (Exception e) {
+            WsMuxConnection.release(muxConnection);
+            muxConnection = null;
+            throw e;
+        }
+        logger.info("Session {}: Channel {} opened", sessionId, channel.getId());
     }
     
     /**
      * 创建WebSocket客户端
      */
     private WebSocketClient createWebSocketClient(URI serverUri) {
-        return new WebSocketClient(serverUri, createHeaders()) {
+        return new WebSocketClient(serverUri, createDraft(), createHeaders()) {
             @Override
             public void onOpen(ServerHandshake handshake) {
-                logger.info("Session {}: WebSocket connection opened", sessionId);
+                logger.info("Session {}: WebSocket connection opened ({})", sessionId,
+                           ((Draft_6455) getConnection().getDraft()).getExtension());
+                serverHandshake = handshake;
+                if (heartbeat != null) {
+                    heartbeat.connected(!handshake.getFieldValue(Heartbeat.HEADER).isEmpty());
+                }
+                // 在收到第一帧之前创建，帧计数从连接建立时开始
+                if (replay == null && resume && ReplayBuffer.RESUME_VERSION.equals(
+                        handshake.getFieldValue(ReplayBuffer.RESUME_HEADER))) {
+                    resumeGraceSeconds = ReplayBuffer.graceFromHeader(
+                            handshake.getFieldValue(ReplayBuffer.GRACE_HEADER));
+                    replay = new ReplayBuffer(ReplayBuffer.DEFAULT_MAX_BYTES);
+                    replay.attach(0, this::send);
+                }
             }
             
             @Override
             public void onMessage(String message) {
+                ReplayBuffer replay = WsProxyClient.this.replay;
+                if (replay != null && replay.onText(message)) {
+                    return;
+                }
+                if (heartbeat != null && Heartbeat.PONG.equals(message)) {
+                    heartbeat.onPong(System.nanoTime());
+                    return;
+                }
                 logger.debug("Session {}: Received text message: {}", sessionId, message);
             }
             
             @Override
             public void onMessage(ByteBuffer bytes) {
-                // 接收来自server的JDWP数据，转发到JDI
-                try {
-                    byte[] data = new byte[bytes.remaining()];
-                    bytes.get(data);
-                    OutputStream out = jdiSocket.getOutputStream();
-                    out.write(data);
-                    out.flush();
-                } catch (IOException e) {
-                    logger.error("Session {}: Error forwarding to JDI: {}", sessionId, e.getMessage());
-                    close();
+                if (heartbeat != null) {
+                    heartbeat.received(System.nanoTime());
+                }
+                ReplayBuffer replay = WsProxyClient.this.replay;
+                if (replay == null) {
+                    forwardToJdi(bytes);
+                    return;
+                }
+                String ack = replay.received(bytes.remaining());
+                forwardToJdi(bytes);
+                if (ack != null) {
+                    send(ack);
                 }
             }
             
@@ -103,17 +405,281 @@ public class WsProxyClient {
             public void onClose(int code, String reason, boolean remote) {
                 logger.info("Session {}: WebSocket closed: code={}, reason={}, remote={}", 
                            sessionId, code, reason, remote);
-                running = false;
+                if (WsProxyClient.this.wsClient != this) {
+                    // 重连时被改连其他副本替换掉的客户端
+                    return;
+                }
+                ReplayBuffer replay = WsProxyClient.this.replay;
+                if (running && replay != null && code != CloseFrame.NORMAL) {
+                    replay.detach();
+                    if (resuming.compareAndSet(false, true)) {
+                        // 不能在WebSocket自己的线程中重连
+                        Thread thread = new Thread(WsProxyClient.this::resumeSession, "WsProxyClient-Resume");
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                    return;
+                }
+                // 服务端结束了会话（目标断开、会话到期）或连接不能恢复：断开调试器
+                if (running) {
+                    WsProxyClient.this.close();
+                }
             }
             
             @Override
             public void onError(Exception ex) {
                 logger.error("Session {}: WebSocket error: {}", sessionId, ex.getMessage(), ex);
-                running = false;
+                // 随后的 onClose 决定是否恢复
+                if (replay == null) {
+                    running = false;
+                }
             }
         };
     }
     
+    /**
+     * 心跳定时任务：独占连接上发送 PING、检查存活；往返时间明显变化时收紧微批等待并通知监听者
+     */
+    private void heartbeat() {
+        Heartbeat heartbeat = this.heartbeat;
+        WsMuxConnection muxConnection = this.muxConnection;
+        if (multiplexed) {
+            heartbeat = muxConnection != null ? muxConnection.getHeartbeat() : null;
+        }
+        if (!running || heartbeat == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        WebSocketClient client = wsClient;
+        if (!multiplexed && client != null && client.isOpen()) {
+            if (heartbeat.isExpired(now)) {
+                notifyHeartbeat("No response from proxy server within " + heartbeat.getTimeoutMillis()
+                        + " ms, treating the connection as lost");
+                client.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timeout");
+                return;
+            }
+            String ping = heartbeat.nextPing(now);
+            if (ping != null) {
+                client.send(ping);
+            }
+        }
+        if (!heartbeat.isMeasured()) {
+            return;
+        }
+        batch.limitDelay(heartbeat.getBatchDelayLimitMicros());
+        long rttMicros = heartbeat.getRttMicros();
+        if (Heartbeat.isSignificantChange(reportedRttMicros, rttMicros)) {
+            reportedRttMicros = rttMicros;
+            notifyHeartbeat("Tunnel " + heartbeat + ", batching up to "
+                    + Math.min(batching.getDelayMicros(), heartbeat.getBatchDelayLimitMicros()) + " us");
+        }
+    }
+    
+    private void notifyHeartbeat(String status) {
+        logger.info("Session {}: {}", sessionId, status);
+        if (heartbeatListener != null) {
+            heartbeatListener.accept(status);
+        }
+    }
+    
+    /**
+     * WebSocket异常断开后用同一会话ID重连，重发服务器没有收到的帧。
+     * 服务器已不保留该会话或超过服务器告知的宽限期时关闭会话
+     */
+    private void resumeSession() {
+        long deadline = System.currentTimeMillis() + resumeGraceSeconds * 1000;
+        long delay = RESUME_INITIAL_DELAY_MILLIS;
+        try {
+            boolean redirected = false;
+            while (running && System.currentTimeMillis() < deadline) {
+                if (!redirected) {
+                    Thread.sleep(delay);
+                    delay = Math.min(delay * 2, RESUME_MAX_DELAY_MILLIS);
+                }
+                logger.info("Session {}: Reconnecting to proxy server at {}", sessionId, serverUrl);
+                wsClient.addHeader(ReplayBuffer.RECEIVED_HEADER, String.valueOf(replay.getReceived()));
+                // 改连的新客户端还没有连接过
+                boolean connected = redirected ? wsClient.connectBlocking() : wsClient.reconnectBlocking();
+                redirected = false;
+                if (!connected) {
+                    continue;
+                }
+                String serverReceived = serverHandshake.getFieldValue(ReplayBuffer.RECEIVED_HEADER);
+                String owner = serverHandshake.getFieldValue(ReplayBuffer.OWNER_HEADER);
+                if (serverReceived.isEmpty() && !owner.isEmpty()) {
+                    // 负载均衡把重连分到了其他副本，改连持有会话的副本
+                    logger.info("Session {}: Session is held by {}, reconnecting there", sessionId, owner);
+                    WebSocketClient previous = wsClient;
+                    wsClient = createWebSocketClient(URI.create(owner));
+                    previous.close();
+                    redirected = true;
+                    continue;
+                }
+                if (serverReceived.isEmpty()) {
+                    logger.warn("Session {}: Session no longer exists on proxy server", sessionId);
+                    break;
+                }
+                outboundQueue = new OutboundQueue(wsClient.getConnection(),
+                        OutboundQueue.DEFAULT_LOW_WATERMARK, OutboundQueue.DEFAULT_HIGH_WATERMARK);
+                if (!replay.attach(Long.parseLong(serverReceived), wsClient::send)) {
+                    logger.warn("Session {}: Cannot resume, unacknowledged data was lost", sessionId);
+                    break;
+                }
+                resuming.set(false);
+                // 重发期间新连接又断开时，onClose 因为 resuming 而没有启动新的重连
+                if (!wsClient.isOpen() && resuming.compareAndSet(false, true)) {
+                    continue;
+                }
+                logger.info("Session {}: Resumed, {} bytes awaiting acknowledgement", sessionId,
+                           replay.getUnacknowledgedBytes());
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (running) {
+            logger.warn("Session {}: Cannot resume session, closing", sessionId);
+            close();
+        }
+    }
+    
+    /**
+     * 接收来自server的JDWP数据，转发到JDI
+     */
+    private void forwardToJdi(ByteBuffer bytes) {
+        byte[] data = new byte[bytes.remaining()];
+        bytes.get(data);
+        if (handshakeEchoPending) {
+            // 第一帧是目标的握手回显，IDE收到的是本地的回答
+            handshakeEchoPending = false;
+            data = JdwpPacketReader.stripHandshake(data);
+            if (data.length == 0) {
+                return;
+            }
+        }
+        if (trace != null) {
+            // 计时包不交给调试器
+            data = trace.onTunnelReplies(data);
+            if (data.length == 0) {
+                return;
+            }
+        }
+        if (prefetchCache != null) {
+            // 推送包不交给调试器
+            data = prefetchCache.onReplies(data);
+            if (data.length == 0) {
+                return;
+            }
+        }
+        if (metadata != null) {
+            metadata.onReplies(data);
+        }
+        writeToJdi(data);
+    }
+    
+    /**
+     * 读取IDE的握手串并立即回显
+     * @return 握手帧，之后仍随第一批命令发往服务器
+     */
+    private byte[] answerHandshake(JdwpPacketReader reader) throws IOException {
+        byte[] handshake = reader.nextFrame();
+        if (handshake == null) {
+            throw new EOFException("Debugger disconnected before the handshake");
+        }
+        attachJdi(JdwpPacketReader.HANDSHAKE);
+        return handshake;
+    }
+    
+    /**
+     * 调试器已连接：先写出握手回答，再写出隧道预先建立后已到达的数据，之后的数据直接写给调试器
+     * @param handshake 本地的握手回答，null 表示握手经隧道进行
+     */
+    private void attachJdi(byte[] handshake) throws IOException {
+        synchronized (jdiWriteLock) {
+            OutputStream out = jdiSocket.getOutputStream();
+            if (handshake != null) {
+                record(handshake);
+                out.write(handshake);
+            }
+            for (byte[] data : pendingToJdi) {
+                record(data);
+                out.write(data);
+            }
+            pendingToJdi.clear();
+            out.flush();
+            jdiAttached = true;
+        }
+    }
+    
+    /**
+     * 本地缓存直接回答的回复
+     */
+    private void writeLocalReply(byte[] reply) {
+        if (trace != null) {
+            trace.onLocalReplies(reply);
+        }
+        writeToJdi(reply);
+    }
+    
+    /**
+     * 写入JDI连接：服务器的回复和本地缓存的回复来自不同线程。调试器连接之前先缓冲
+     */
+    private void writeToJdi(byte[] data) {
+        try {
+            synchronized (jdiWriteLock) {
+                if (!jdiAttached) {
+                    pendingToJdi.add(data);
+                    return;
+                }
+                record(data);
+                OutputStream out = jdiSocket.getOutputStream();
+                out.write(data);
+                out.flush();
+            }
+        } catch (IOException e) {
+            logger.error("Session {}: Error forwarding to JDI: {}", sessionId, e.getMessage());
+            close();
+        }
+    }
+    
+    /**
+     * 在 jdiWriteLock 内调用，记录的顺序与写给IDE的顺序一致
+     */
+    private void record(byte[] data) {
+        if (recording != null) {
+            recording.toClient(data);
+        }
+    }
+    
+    /**
+     * 发送数据到服务器：独占连接或多路复用channel
+     */
+    private void send(byte[] data) {
+        if (channel != null) {
+            channel.send(data);
+        } else if (replay != null) {
+            // 断开期间只记录，恢复后重发
+            replay.send(data);
+        } else {
+            wsClient.send(data);
+        }
+    }
+    
+    /**
+     * 发送队列已满时阻塞，暂停读取JDI
+     */
+    private void awaitCapacity() throws InterruptedIOException {
+        if (channel != null) {
+            channel.awaitCapacity();
+            return;
+        }
+        if (replay != null) {
+            // 恢复期间暂停读取JDI
+            replay.awaitCapacity();
+        }
+        outboundQueue.awaitCapacity();
+    }
+    
     /**
      * 创建WebSocket握手headers
      */
@@ -123,21 +689,71 @@ public class WsProxyClient {
         headers.put("X-Target-Port", String.valueOf(targetPort));
         headers.put("X-Pod-Name", podName);
         headers.put("X-Session-Id", sessionId);
+        if (resume && !multiplexed) {
+            headers.put(ReplayBuffer.RESUME_HEADER, ReplayBuffer.RESUME_VERSION);
+        }
+        if (heartbeat != null) {
+            headers.put(Heartbeat.HEADER, String.valueOf(heartbeat.getIntervalMillis()));
+        }
+        if (packetFraming) {
+            headers.put(JdwpPacketReader.FRAME_MODE_HEADER, JdwpPacketReader.FRAME_MODE_PACKET);
+            headers.put(JdwpPacketReader.EARLY_HANDSHAKE_HEADER, JdwpPacketReader.EARLY_HANDSHAKE_VERSION);
+            headers.put(BatchPolicy.DELAY_HEADER, String.valueOf(batching.getDelayMicros()));
+            headers.put(BatchPolicy.IDLE_HEADER, String.valueOf(batching.getIdleMicros()));
+            if (prefetch) {
+                headers.put(JdwpPrefetch.PREFETCH_HEADER, JdwpPrefetch.PREFETCH_VERSION);
+            }
+            if (tracer != null) {
+                headers.put(JdwpTracer.TRACE_HEADER, JdwpTracer.TRACE_VERSION);
+            }
+        }
         return headers;
     }
     
     /**
      * 转发JDI的数据到WebSocket
+     * @param reader 按JDWP包分帧时使用，握手串已读出
+     * @param handshake 已在本地回答的握手帧，作为第一帧发出
      */
-    private void forwardJdiToWebSocket() {
+    private void forwardJdiToWebSocket(JdwpPacketReader reader, byte[] handshake) {
         try (InputStream in = jdiSocket.getInputStream()) {
+            if (packetFraming) {
+                // 之后按JDWP包边界成帧
+                for (byte[] frame = handshake; running && frame != null; frame = reader.nextFrame()) {
+                    if (recording != null) {
+                        recording.toTarget(frame);
+                    }
+                    if (trace != null) {
+                        trace.onCommands(frame);
+                    }
+                    if (prefetchCache != null) {
+                        frame = prefetchCache.onCommands(frame);
+                        if (frame.length == 0) {
+                            continue;
+                        }
+                    }
+                    if (metadata != null) {
+                        frame = metadata.onCommands(frame);
+                        if (frame.length == 0) {
+                            continue;
+                        }
+                    }
+                    awaitCapacity();
+                    send(frame);
+                }
+                return;
+            }
             byte[] buffer = new byte[8192];
             int bytesRead;
             
             while (running && (bytesRead = in.read(buffer)) != -1) {
                 byte[] data = new byte[bytesRead];
                 System.arraycopy(buffer, 0, data, 0, bytesRead);
-                wsClient.send(data);
+                if (recording != null) {
+                    recording.toTarget(data);
+                }
+                awaitCapacity();
+                send(data);
             }
         } catch (IOException e) {
             logger.info("Session {}: JDI connection closed: {}", sessionId, e.getMessage());
@@ -149,9 +765,24 @@ public class WsProxyClient {
      */
     public void close() {
         running = false;
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+        }
         if (wsClient != null) {
             wsClient.close();
         }
+        if (replay != null) {
+            replay.close();
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+            }
+            if (muxConnection != null) {
+                WsMuxConnection.release(muxConnection);
+                muxConnection = null;
+            }
+        }
         if (jdiSocket != null) {
             try {
                 jdiSocket.close();
@@ -159,6 +790,16 @@ public class WsProxyClient {
                 // Ignore
             }
         }
+        if (recording != null) {
+            recording.close();
+        }
+        if (metadata != null) {
+            logger.info("Session {}: {} metadata requests answered from cache", sessionId, metadata.getHits());
+        }
+        if (prefetchCache != null) {
+            logger.info("Session {}: {} requests answered from {} prefetches", sessionId,
+                       prefetchCache.getHits(), prefetchCache.getPushes());
+        }
         logger.info("Session {}: Proxy client closed", sessionId);
     }
     
@@ -0,0 +1,116 @@
+package com.github.wl2027.remotedebugplugin.execution;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WsProxyTargetTest {
+
+    private static void assertTarget(WsProxyTarget target, String host, int port, String podName) {
+        assertEquals(host, target.getHost());
+        assertEquals(port, target.getPort());
+        assertEquals(podName, target.getPodName());
+    }
+
+    private static void assertRejected(String spec) {
+        try {
+            WsProxyTarget.parse(spec, 5005);
+            fail("Accepted " + spec);
+        } catch (IllegalArgumentException e) {
+            // 预期
+        }
+    }
+
+    @Test
+    public void hostPortAndName() {
+        List<WsProxyTarget> targets = WsProxyTarget.parse("orders-0.orders:8000 primary", 5005);
+        assertEquals(1, targets.size());
+        assertTarget(targets.get(0), "orders-0.orders", 8000, "primary");
+    }
+
+    @Test
+    public void defaultsPortAndName() {
+        List<WsProxyTarget> targets = WsProxyTarget.parse("orders-0.orders.svc\n10.1.2.3\nlocalhost", 5005);
+        assertEquals(3, targets.size());
+        assertTarget(targets.get(0), "orders-0.orders.svc", 5005, "orders-0");
+        // IP 地址取整个地址作名称
+        assertTarget(targets.get(1), "10.1.2.3", 5005, "10.1.2.3");
+        assertTarget(targets.get(2), "localhost", 5005, "localhost");
+    }
+
+    @Test
+    public void skipsBlankLinesAndComments() {
+        List<WsProxyTarget> targets = WsProxyTarget.parse("  a , \n\n# b\n c:1 \n", 5005);
+        assertEquals(2, targets.size());
+        assertTarget(targets.get(0), "a", 5005, "a");
+        assertTarget(targets.get(1), "c", 1, "c");
+        assertTrue(WsProxyTarget.parse("\n # only comments\n", 5005).isEmpty());
+    }
+
+    @Test
+    public void expandsRange() {
+        List<WsProxyTarget> targets = WsProxyTarget.parse("my-app-{0..19}.my-app-headless", 5005);
+        assertEquals(20, targets.size());
+        assertTarget(targets.get(0), "my-app-0.my-app-headless", 5005, "my-app-0");
+        assertTarget(targets.get(19), "my-app-19.my-app-headless", 5005, "my-app-19");
+    }
+
+    @Test
+    public void sameRangeTakesSameNumber() {
+        List<WsProxyTarget> targets = WsProxyTarget.parse("pod-{0..2}.svc debug-{0..2}", 5005);
+        assertEquals(3, targets.size());
+        assertTarget(targets.get(2), "pod-2.svc", 5005, "debug-2");
+    }
+
+    @Test
+    public void differentRangesAreCombined() {
+        List<WsProxyTarget> targets = WsProxyTarget.parse("zone{1..2}-pod{0..2}", 5005);
+        assertEquals(6, targets.size());
+        assertEquals("zone1-pod0", targets.get(0).getHost());
+        assertEquals("zone1-pod2", targets.get(2).getHost());
+        assertEquals("zone2-pod0", targets.get(3).getHost());
+    }
+
+    @Test
+    public void leadingZerosSetWidth() {
+        List<WsProxyTarget> targets = WsProxyTarget.parse("node{08..10}", 5005);
+        assertEquals(3, targets.size());
+        assertEquals("node08", targets.get(0).getHost());
+        assertEquals("node10", targets.get(2).getHost());
+    }
+
+    @Test
+    public void singleValueRange() {
+        List<WsProxyTarget> targets = WsProxyTarget.parse("pod-{3..3}", 5005);
+        assertEquals(1, targets.size());
+        assertEquals("pod-3", targets.get(0).getHost());
+    }
+
+    @Test
+    public void rejectsInvalidRanges() {
+        assertRejected("pod-{5..1}");
+        assertRejected("pod-{0..256}");
+    }
+
+    @Test
+    public void limitsTotalTargets() {
+        assertEquals(WsProxyTarget.MAX_TARGETS, WsProxyTarget.parse("pod-{0..255}", 5005).size());
+        // 单个范围不超限，组合或多行合计超限
+        assertRejected("a{0..15}-b{0..16}");
+        assertRejected("pod-{0..255}\nextra");
+    }
+
+    @Test
+    public void rejectsInvalidPorts() {
+        assertRejected("host:");
+        assertRejected("host:abc");
+        assertRejected("host:0");
+        assertRejected("host:65536");
+        assertRejected(":5005");
+        assertEquals(65535, WsProxyTarget.parse("host:65535", 5005).get(0).getPort());
+    }
+}